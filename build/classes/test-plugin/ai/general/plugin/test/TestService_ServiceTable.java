@@ -0,0 +1,64 @@
+// Generated by ai.general.plugin.annotation.ServiceTableProcessor. Do not edit.
+
+package ai.general.plugin.test;
+
+public final class TestService_ServiceTable implements ai.general.plugin.ServiceTable {
+
+  @Override
+  public void addHandlers(ai.general.plugin.ServiceDefinition service_def,
+                          java.lang.Object service) {
+    final ai.general.plugin.test.TestService target = (ai.general.plugin.test.TestService) service;
+    service_def.addHandler(
+        "test_service/add",
+        ai.general.directory.Request.RequestType.Call,
+        "public double ai.general.plugin.test.TestService.add(double,double)",
+        new java.lang.reflect.Type[] {double.class, double.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              return target.add((java.lang.Double) args[0], (java.lang.Double) args[1]);
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+    service_def.addHandler(
+        "test_service/getEventData",
+        ai.general.directory.Request.RequestType.Call,
+        "public java.lang.String ai.general.plugin.test.TestService.getEventData()",
+        new java.lang.reflect.Type[] {},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              return target.getEventData();
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+    service_def.addHandler(
+        "plugin_test/plugin_event",
+        ai.general.directory.Request.RequestType.Publish,
+        "public void ai.general.plugin.test.TestService.pluginEvent(java.lang.String)",
+        new java.lang.reflect.Type[] {java.lang.String.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              target.pluginEvent((java.lang.String) args[0]);
+              return null;
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+  }
+}
@@ -0,0 +1,48 @@
+// Generated by ai.general.plugin.annotation.ServiceTableProcessor. Do not edit.
+
+package ai.general.plugin;
+
+public final class ServiceManagerTest$PatternTestService_ServiceTable implements ai.general.plugin.ServiceTable {
+
+  @Override
+  public void addHandlers(ai.general.plugin.ServiceDefinition service_def,
+                          java.lang.Object service) {
+    final ai.general.plugin.ServiceManagerTest.PatternTestService target = (ai.general.plugin.ServiceManagerTest.PatternTestService) service;
+    service_def.addHandler(
+        "sensors/+/*",
+        ai.general.directory.Request.RequestType.Publish,
+        "public void ai.general.plugin.ServiceManagerTest$PatternTestService.onSensorEvent(int)",
+        new java.lang.reflect.Type[] {int.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              target.onSensorEvent((java.lang.Integer) args[0]);
+              return null;
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+    service_def.addHandler(
+        "sensors/+/temperature",
+        ai.general.directory.Request.RequestType.Publish,
+        "public void ai.general.plugin.ServiceManagerTest$PatternTestService.onTemperature(int)",
+        new java.lang.reflect.Type[] {int.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              target.onTemperature((java.lang.Integer) args[0]);
+              return null;
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+  }
+}
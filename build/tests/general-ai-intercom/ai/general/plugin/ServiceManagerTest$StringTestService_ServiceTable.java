@@ -0,0 +1,46 @@
+// Generated by ai.general.plugin.annotation.ServiceTableProcessor. Do not edit.
+
+package ai.general.plugin;
+
+public final class ServiceManagerTest$StringTestService_ServiceTable implements ai.general.plugin.ServiceTable {
+
+  @Override
+  public void addHandlers(ai.general.plugin.ServiceDefinition service_def,
+                          java.lang.Object service) {
+    final ai.general.plugin.ServiceManagerTest.StringTestService target = (ai.general.plugin.ServiceManagerTest.StringTestService) service;
+    service_def.addHandler(
+        "methods/echo",
+        ai.general.directory.Request.RequestType.Call,
+        "public java.lang.Object ai.general.plugin.ServiceManagerTest$GenericBaseService.echo(java.lang.Object)",
+        new java.lang.reflect.Type[] {java.lang.String.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              return target.echo((java.lang.String) args[0]);
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+    service_def.addHandler(
+        "methods/length",
+        ai.general.directory.Request.RequestType.Call,
+        "public int ai.general.plugin.ServiceManagerTest$StringTestService.length(java.lang.String)",
+        new java.lang.reflect.Type[] {java.lang.String.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              return target.length((java.lang.String) args[0]);
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+  }
+}
@@ -0,0 +1,47 @@
+// Generated by ai.general.plugin.annotation.ServiceTableProcessor. Do not edit.
+
+package ai.general.plugin;
+
+public final class ServiceManagerTest$TestService_ServiceTable implements ai.general.plugin.ServiceTable {
+
+  @Override
+  public void addHandlers(ai.general.plugin.ServiceDefinition service_def,
+                          java.lang.Object service) {
+    final ai.general.plugin.ServiceManagerTest.TestService target = (ai.general.plugin.ServiceManagerTest.TestService) service;
+    service_def.addHandler(
+        "methods/combine",
+        ai.general.directory.Request.RequestType.Call,
+        "public ai.general.directory.test.TestBean ai.general.plugin.ServiceManagerTest$TestService.combine(ai.general.directory.test.TestBean,ai.general.directory.test.TestBean)",
+        new java.lang.reflect.Type[] {ai.general.directory.test.TestBean.class, ai.general.directory.test.TestBean.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              return target.combine((ai.general.directory.test.TestBean) args[0], (ai.general.directory.test.TestBean) args[1]);
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+    service_def.addHandler(
+        "events/bean",
+        ai.general.directory.Request.RequestType.Publish,
+        "public void ai.general.plugin.ServiceManagerTest$TestService.onEvent(ai.general.directory.test.TestBean)",
+        new java.lang.reflect.Type[] {ai.general.directory.test.TestBean.class},
+        new ai.general.net.MethodInvoker() {
+          @Override
+          @SuppressWarnings("unchecked")
+          public java.lang.Object invoke(java.lang.Object[] args)
+            throws java.lang.reflect.InvocationTargetException {
+            try {
+              target.onEvent((ai.general.directory.test.TestBean) args[0]);
+              return null;
+            } catch (java.lang.Throwable e) {
+              throw new java.lang.reflect.InvocationTargetException(e);
+            }
+          }
+        });
+  }
+}
@@ -0,0 +1,71 @@
+/* General AI - Directory
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.directory;
+
+/**
+ * Represents a request argument whose value is bound on demand.
+ *
+ * Requests that are received from a remote endpoint carry their arguments in an encoded form.
+ * Rather than converting every argument into a Java object when the request is received, the
+ * decoder can add a DeferredArgument to the {@link Request}. The argument is converted into a
+ * Java object only when a handler accesses it. Requests that do not reach any handler that
+ * reads the argument never pay for the conversion.
+ *
+ * {@link Request} resolves DeferredArguments transparently. Handlers that access arguments via
+ * {@link Request#getArgument(int)} or {@link Request#getArguments()} receive the bound value.
+ *
+ * The bound value is computed at most once and is cached. DeferredArgument is thread-safe.
+ */
+public abstract class DeferredArgument {
+
+  /**
+   * Constructs an unbound DeferredArgument.
+   */
+  protected DeferredArgument() {
+    value_ = null;
+    bound_ = false;
+  }
+
+  /**
+   * Returns the value of the argument. The value is bound on the first call and cached for
+   * subsequent calls.
+   *
+   * @return The bound argument value.
+   * @throws IllegalArgumentException if the encoded argument cannot be bound.
+   */
+  public Object getValue() throws IllegalArgumentException {
+    if (!bound_) {
+      synchronized (this) {
+        if (!bound_) {
+          value_ = bind();
+          bound_ = true;
+        }
+      }
+    }
+    return value_;
+  }
+
+  /**
+   * Returns true if the value of the argument has already been bound.
+   *
+   * @return True if the value of the argument has been bound.
+   */
+  public boolean isBound() {
+    return bound_;
+  }
+
+  /**
+   * Binds the encoded argument to its natural Java representation. This method is called at
+   * most once.
+   *
+   * @return The bound argument value.
+   * @throws IllegalArgumentException if the encoded argument cannot be bound.
+   */
+  protected abstract Object bind() throws IllegalArgumentException;
+
+  private volatile boolean bound_;  // True if value_ has been bound.
+  private Object value_;  // The bound value. Only valid if bound_ is true.
+}
@@ -5,6 +5,11 @@
 
 package ai.general.directory;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -20,15 +25,42 @@ import org.apache.logging.log4j.LogManager;
  * Directory can be used to create, delete and link nodes. Directory can be also used to
  * add, remove and execute node handlers.
  *
+ * Handlers can be added with wildcard paths. A trailing '/*' adds a catch-all handler. A path
+ * that contains a '+' segment or a '*' segment before its last segment adds a pattern handler
+ * to the node just before the first wildcard segment, e.g. "/sensors/+/temperature" adds a
+ * pattern handler to "/sensors" that handles requests to "/sensors/a/temperature" and
+ * "/sensors/b/temperature". Pattern handlers are indexed per node, so that the cost of
+ * dispatching a request is proportional to the number of matching patterns.
+ *
  * Linking and unlinking of nodes can be used to grant temporary access to a subset of nodes
  * Linking creates a virtual overlay that is removed by unlinking. This ensures that the access
  * is cleanly removed when the node is unlinked automatically removing any handlers that were
  * associated with the link.
  *
+ * Directory caches the resolved handlers of each combination of base path and request path
+ * that has been handled. Routes are cached per base path and indexed by request path, so that a
+ * cached route is found without building a combined key. A cached route is reused until one of
+ * the nodes involved in the route changes, i.e. until a child is mounted or unmounted or a
+ * catch-all handler is added or removed at a node along the base path or request path, or a
+ * handler is added or removed at the target node. Changes to other parts of the directory, such
+ * as subscriptions to other topics, do not invalidate the route. Thus, requests to frequently
+ * used paths are dispatched with two hash lookups and a check of the node generations along the
+ * path. When handlers or nodes are removed, the routes that have become invalid are dropped from
+ * the cache, so that the cache does not keep removed handlers reachable.
+ *
+ * Publish requests are handled on the calling thread by default. Parallel fan-out can be enabled
+ * with {@link #setParallelFanOut(ForkJoinPool, int, int)}, in which case publish requests with
+ * more handlers than the fan-out threshold are split into chunks that are handled in parallel.
+ * {@link #handle(String, Request)} still returns only after all handlers have been executed, so
+ * each handler observes the requests to a topic in the same order as with sequential handling.
+ *
  * Directory is a singleton class.
  */
 public class Directory {
 
+  /** Maximum number of cached routes. The route cache is cleared when it becomes full. */
+  public static final int kRouteCacheCapacity = 65536;
+
   /**
    * Singleton instance.
    */
@@ -40,6 +72,11 @@ public class Directory {
    */
   private Directory() {
     root_ = new DirectoryNode("");
+    routes_ = new ConcurrentHashMap<String, ConcurrentHashMap<String, Route>>();
+    num_routes_ = new AtomicInteger();
+    fan_out_pool_ = null;
+    fan_out_threshold_ = Integer.MAX_VALUE;
+    fan_out_chunk_size_ = Integer.MAX_VALUE;
   }
 
   /**
@@ -47,7 +84,9 @@ public class Directory {
    *
    * The handler will not be added if the path does not exist or a handler with the same
    * name was already added.
-   * The path must be absolute. Wildcards are ignored.
+   * The path must be absolute. A trailing wildcard is ignored. If the path contains other
+   * wildcards, the handler is added as a pattern handler to the node before the first wildcard,
+   * which must exist.
    *
    * @param path Path at which to add the handler.
    * @param handler The handler to add.
@@ -55,12 +94,17 @@ public class Directory {
    */
   public boolean addHandler(String path, Handler handler) {
     log.trace("add handler: {} => {}", path, handler.getName());
-    Node node = getNode(path);
+    int pattern_start = PatternIndex.patternStart(path);
+    Node node = getNode(pattern_start < 0 ? path : path.substring(0, pattern_start));
     if (node == null) {
       return false;
     }
     try {
-      node.addHandler(handler);
+      if (pattern_start < 0) {
+        node.addHandler(handler);
+      } else {
+        node.addPatternHandler(path.substring(pattern_start), handler);
+      }
     } catch (NodeException e) {
       log.catching(Level.TRACE, e);
       return false;
@@ -114,21 +158,34 @@ public class Directory {
    * @return The node at the specified path or null if no such path exists.
    */
   public Node getNode(String path) {
-    PathWalker path_walker = new PathWalker(path);
-    if (path_walker.numNodes() < 1 || path_walker.getCurrentNodeName().length() > 0) {
-      return null;
-    }
-    Node node = root_;
-    while (path_walker.moveDown()) {
-      if (node.hasChild(path_walker.getCurrentNodeName())) {
-        node = node.getChild(path_walker.getCurrentNodeName());
-      } else {
-        log.trace("node not found: {}", path);
-        // Path does not exist.
-        return null;
-      }
-    }
-    return node;
+    return getNode(path, null);
+  }
+
+  /**
+   * Returns the maximum number of handlers executed sequentially by one fan-out task.
+   *
+   * @return The fan-out chunk size.
+   */
+  public int getFanOutChunkSize() {
+    return fan_out_chunk_size_;
+  }
+
+  /**
+   * Returns the pool used for parallel fan-out or null if parallel fan-out is disabled.
+   *
+   * @return The fan-out pool or null.
+   */
+  public ForkJoinPool getFanOutPool() {
+    return fan_out_pool_;
+  }
+
+  /**
+   * Returns the number of handlers that a publish request must exceed to be handled in parallel.
+   *
+   * @return The fan-out threshold.
+   */
+  public int getFanOutThreshold() {
+    return fan_out_threshold_;
   }
 
   /**
@@ -146,12 +203,14 @@ public class Directory {
    * @return The total number of handlers executed.
    */
   public int handle(String base_path, Request request) {
-    log.trace("handle: {} => {}", base_path, request.getUri().toString());
-    Node base = getNode(base_path);
-    if (base == null) {
-      return 0;
+    log.trace("handle: {} => {}", base_path, request.getUri());
+    Route route = getRoute(base_path, request.getUri().getPath());
+    ForkJoinPool pool = fan_out_pool_;
+    if (pool != null && request.getRequestType() == Request.RequestType.Publish &&
+        route.size() > fan_out_threshold_) {
+      return route.executeParallel(request, pool, fan_out_chunk_size_);
     }
-    return base.handle(request);
+    return route.execute(request);
   }
 
   /**
@@ -163,7 +222,7 @@ public class Directory {
    * @return True if the node exists and has a handler with the specified name.
    */
   public boolean hasHandler(String path, String handler_name) {
-    Node node = getNode(path);
+    Node node = getHandlerNode(path);
     if (node == null) {
       return false;
     }
@@ -230,7 +289,8 @@ public class Directory {
    * Removes the handler with the specified name from the node at the specified path.
    *
    * Results in a no-op if the path does not exist or there is no such handler.
-   * The path must be absolute. Wildcards are ignored.
+   * The path must be absolute. Wildcard paths are interpreted as in
+   * {@link #addHandler(String, Handler)}.
    *
    * @param path Path from which to remove the handler.
    * @param handler_name The name of the handler to remove.
@@ -238,11 +298,12 @@ public class Directory {
    */
   public boolean removeHandler(String path, String handler_name) {
     log.trace("remove handler: {} => {}", path, handler_name);
-    Node node = getNode(path);
-    if (node == null) {
+    Node node = getHandlerNode(path);
+    if (node == null || !node.removeHandler(handler_name)) {
       return false;
     }
-    return node.removeHandler(handler_name);
+    purgeRoutes();
+    return true;
   }
 
   /**
@@ -277,7 +338,33 @@ public class Directory {
       }
     }
     log.exit();
-    return parent.unmount(node);
+    if (!parent.unmount(node)) {
+      return false;
+    }
+    purgeRoutes();
+    return true;
+  }
+
+  /**
+   * Enables or disables parallel fan-out of publish requests.
+   *
+   * If enabled, publish requests with more than threshold handlers are handled in chunks of at
+   * most chunk_size handlers on the specified pool. Passing a null pool disables parallel
+   * fan-out. Call requests are always handled sequentially.
+   *
+   * @param pool The pool on which to handle publish requests or null.
+   * @param threshold Number of handlers a publish request must exceed to be handled in parallel.
+   * @param chunk_size Maximum number of handlers executed sequentially by one fan-out task.
+   * @throws IllegalArgumentException if the threshold or chunk size is less than 1.
+   */
+  public void setParallelFanOut(ForkJoinPool pool, int threshold, int chunk_size)
+    throws IllegalArgumentException {
+    if (threshold < 1 || chunk_size < 1) {
+      throw new IllegalArgumentException("invalid fan-out threshold or chunk size");
+    }
+    fan_out_threshold_ = threshold;
+    fan_out_chunk_size_ = chunk_size;
+    fan_out_pool_ = pool;
   }
 
   /**
@@ -314,11 +401,126 @@ public class Directory {
     if (virtual_node instanceof VirtualNode) {
       ((VirtualNode) virtual_node).deactivate();
     }
-    return from_node.unmount(virtual_node);
+    if (!from_node.unmount(virtual_node)) {
+      return false;
+    }
+    purgeRoutes();
+    return true;
+  }
+
+  /**
+   * Returns the node to which a handler with the specified path is added. This is the node at
+   * the path or the node before the first wildcard if the path is a pattern.
+   *
+   * @param path The handler path.
+   * @return The node or null if no such node exists.
+   */
+  private Node getHandlerNode(String path) {
+    int pattern_start = PatternIndex.patternStart(path);
+    return getNode(pattern_start < 0 ? path : path.substring(0, pattern_start));
+  }
+
+  /**
+   * Returns the node at the specified path. If a route is specified, records all nodes before
+   * the node at the path or, if the path does not exist, all existing nodes along the path as
+   * path nodes of the route. See {@link #getNode(String)}.
+   *
+   * @param path The absolute path of the node.
+   * @param route The route to which the nodes along the path are added or null.
+   * @return The node at the specified path or null if no such path exists.
+   */
+  private Node getNode(String path, Route route) {
+    PathWalker path_walker = new PathWalker(path);
+    if (path_walker.numNodes() < 1 || path_walker.getCurrentNodeName().length() > 0) {
+      return null;
+    }
+    Node node = root_;
+    while (path_walker.moveDown()) {
+      if (route != null) {
+        route.addPathNode(node);
+      }
+      if (node.hasChild(path_walker.getCurrentNodeName())) {
+        node = node.getChild(path_walker.getCurrentNodeName());
+      } else {
+        log.trace("node not found: {}", path);
+        // Path does not exist.
+        return null;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Returns the resolved route for the specified base path and request path. Returns a cached
+   * route if the cached route is still valid. Otherwise resolves and caches the route.
+   *
+   * @param base_path The base directory node path.
+   * @param request_path The request URI path relative to the base path.
+   * @return The resolved route. Empty if the base path does not exist.
+   */
+  Route getRoute(String base_path, String request_path) {
+    ConcurrentHashMap<String, Route> base_routes = routes_.get(base_path);
+    if (base_routes != null) {
+      Route route = base_routes.get(request_path);
+      if (route != null && route.isValid()) {
+        return route;
+      }
+    }
+    Route route = new Route();
+    Node base = getNode(base_path, route);
+    if (base != null) {
+      base.resolve(new PathWalker(request_path), route);
+    }
+    if (num_routes_.get() >= kRouteCacheCapacity) {
+      routes_.clear();
+      num_routes_.set(0);
+      base_routes = null;
+    }
+    if (base_routes == null) {
+      base_routes = new ConcurrentHashMap<String, Route>();
+      ConcurrentHashMap<String, Route> existing = routes_.putIfAbsent(base_path, base_routes);
+      if (existing != null) {
+        base_routes = existing;
+      }
+    }
+    if (base_routes.put(request_path, route) == null) {
+      num_routes_.incrementAndGet();
+    }
+    return route;
+  }
+
+  /**
+   * Removes all invalid routes from the route cache. Called after handlers or nodes have been
+   * removed, so that cached routes do not keep removed handlers and nodes reachable.
+   */
+  private void purgeRoutes() {
+    for (ConcurrentHashMap<String, Route> base_routes : routes_.values()) {
+      for (Map.Entry<String, Route> entry : base_routes.entrySet()) {
+        Route route = entry.getValue();
+        if (!route.isValid() && base_routes.remove(entry.getKey(), route)) {
+          num_routes_.decrementAndGet();
+        }
+      }
+    }
   }
 
   private static Logger log = LogManager.getLogger();
 
+  // Maximum number of handlers executed sequentially by one fan-out task.
+  private volatile int fan_out_chunk_size_;
+
+  // Pool used for parallel fan-out or null.
+  private volatile ForkJoinPool fan_out_pool_;
+
+  // Number of handlers a publish request must exceed to be handled in parallel.
+  private volatile int fan_out_threshold_;
+
+  // Approximate number of cached routes.
+  private AtomicInteger num_routes_;
+
   // Represents the root of the directory.
   private Node root_;
+
+  // Resolved routes indexed by base path and request path.
+  private ConcurrentHashMap<String, ConcurrentHashMap<String, Route>> routes_;
 }
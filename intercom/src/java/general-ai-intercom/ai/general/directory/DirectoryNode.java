@@ -8,7 +8,7 @@ package ai.general.directory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -17,7 +17,11 @@ import org.apache.logging.log4j.LogManager;
  * Implements a directory node. A directory node represents a resource or group of resources
  * identified via a URI and provides a mechanism to handle requests directed to those resources.
  *
- * DirectoryNode is thread-safe.
+ * DirectoryNode is thread-safe. Requests are handled without locking. Children are indexed
+ * in a concurrent map and handlers are published as immutable snapshots that are replaced
+ * whenever a handler is added or removed. Thus, adding and removing handlers never blocks or
+ * disturbs concurrent requests. A request that is handled concurrently with a handler change
+ * is handled either by the old or the new set of handlers.
  */
 public class DirectoryNode extends Node {
 
@@ -29,9 +33,11 @@ public class DirectoryNode extends Node {
    */
   public DirectoryNode(String name) {
     this.name_ = name;
-    children_ = new HashMap<String, Node>();
-    handlers_ = new HashMap<String, Handler>();
-    catch_all_handlers_ = new ArrayList<Handler>();
+    children_ = new ConcurrentHashMap<String, Node>();
+    handlers_ = new ConcurrentHashMap<String, Handler>();
+    handler_snapshot_ = new Handler[0];
+    catch_all_snapshot_ = new Handler[0];
+    patterns_ = new PatternIndex();
   }
 
   /**
@@ -47,13 +53,30 @@ public class DirectoryNode extends Node {
    */
   @Override
   public synchronized void addHandler(Handler handler) throws NodeException {
-    if (handlers_.containsKey(handler.getName())) {
+    if (hasHandler(handler.getName())) {
       throw new NodeException(NodeException.Reason.DuplicateName);
     }
     handlers_.put(handler.getName(), handler);
-    if (handler.isCatchAll()) {
-      catch_all_handlers_.add(handler);
+    updateSnapshots();
+    handlersChanged(handler.isCatchAll());
+  }
+
+  /**
+   * Adds a pattern handler to this node.
+   * A NodeException is thrown if a handler with the same name already exists.
+   *
+   * @param pattern The relative path pattern.
+   * @param handler The handler to add.
+   * @throws NodeException if the handler cannot be added to this node.
+   */
+  @Override
+  public synchronized void addPatternHandler(String pattern, Handler handler)
+    throws NodeException {
+    if (hasHandler(handler.getName())) {
+      throw new NodeException(NodeException.Reason.DuplicateName);
     }
+    patterns_.add(pattern, handler);
+    handlersChanged(true);
   }
 
   /**
@@ -105,7 +128,9 @@ public class DirectoryNode extends Node {
    */
   @Override
   public int handle(Request request) {
-    return handle(request, new PathWalker(request.getUri()));
+    Route route = new Route();
+    resolve(new PathWalker(request.getUri()), route);
+    return route.execute(request);
   }
 
   /**
@@ -127,7 +152,7 @@ public class DirectoryNode extends Node {
    */
   @Override
   public boolean hasHandler(String name) {
-    return handlers_.containsKey(name);
+    return handlers_.containsKey(name) || patterns_.contains(name);
   }
 
   /**
@@ -166,6 +191,7 @@ public class DirectoryNode extends Node {
       throw new NodeException(NodeException.Reason.Cyclic);
     }
     children_.put(child.getName(), child);
+    childrenChanged();
   }
 
   /**
@@ -187,12 +213,16 @@ public class DirectoryNode extends Node {
    */
   @Override
   public synchronized boolean removeHandler(String name) {
-    Handler handler = handlers_.get(name);
-    if (handler == null) {
+    Handler handler = handlers_.remove(name);
+    if (handler != null) {
+      updateSnapshots();
+      handlersChanged(handler.isCatchAll());
+    } else if (patterns_.remove(name)) {
+      handlersChanged(true);
+    } else {
       return false;
     }
-    catch_all_handlers_.remove(handler);
-    return handlers_.remove(name) != null;
+    return true;
   }
 
   /**
@@ -204,57 +234,83 @@ public class DirectoryNode extends Node {
    */
   @Override
   public synchronized boolean unmount(Node child) {
-    return children_.remove(child.getName()) != null;
+    if (children_.remove(child.getName()) == null) {
+      return false;
+    }
+    childrenChanged();
+    return true;
   }
 
   /**
-   * Helper method to walk down a directory path while handling a request.
+   * Helper method to walk down a directory path while resolving the handlers of a request.
    *
-   * @param request The request to handle.
    * @param path_walker PathWalker to help find the target node.
-   * @return The total number of handlers executed.
+   * @param route The route to which the handlers are added.
    */
   @Override
-  protected int handle(Request request, PathWalker path_walker) {
-    log.entry();
-    int executed_handler_count = 0;
+  protected void resolve(PathWalker path_walker, Route route) {
     if (path_walker.atLeaf()) {
-      for (Handler handler : handlers_.values()) {
-        handler.handle(request);
-        executed_handler_count++;
+      route.addTargetNode(this);
+      for (Handler handler : handler_snapshot_) {
+        route.addHandler(handler);
       }
     } else {
-      if (catch_all_handlers_.size() > 0) {
+      route.addPathNode(this);
+      Handler[] catch_all_handlers = catch_all_snapshot_;
+      if (catch_all_handlers.length > 0 || !patterns_.isEmpty()) {
         String path_remainder = path_walker.remainder();
-        for (Handler handler : catch_all_handlers_) {
-          handler.handleCatchAll(path_remainder, request);
-          executed_handler_count++;
+        for (Handler handler : catch_all_handlers) {
+          route.addCatchAllHandler(handler, path_remainder);
+        }
+        ArrayList<Handler> pattern_handlers = new ArrayList<Handler>();
+        patterns_.match(path_remainder, pattern_handlers);
+        for (Handler handler : pattern_handlers) {
+          route.addCatchAllHandler(handler, path_remainder);
         }
       }
       path_walker.moveDown();
-      Node child = children_.get(path_walker.getCurrentNodeName());
+      Node child = children_.get(path_walker.getCurrentSegment());
       if (child != null) {
-        executed_handler_count += child.handle(request, path_walker);
+        child.resolve(path_walker, route);
       } else {
-        log.trace("target node not found: {}", request.getUri().toString());
+        log.trace("target node not found: {}", path_walker.getCurrentSegment());
+      }
+    }
+  }
+
+  /**
+   * Replaces the handler snapshots with the current handlers. Must be called with the lock
+   * held after each change to the handlers.
+   */
+  private void updateSnapshots() {
+    ArrayList<Handler> catch_all_handlers = new ArrayList<Handler>();
+    for (Handler handler : handlers_.values()) {
+      if (handler.isCatchAll()) {
+        catch_all_handlers.add(handler);
       }
     }
-    log.exit();
-    return executed_handler_count;
+    handler_snapshot_ = handlers_.values().toArray(new Handler[handlers_.size()]);
+    catch_all_snapshot_ = catch_all_handlers.toArray(new Handler[catch_all_handlers.size()]);
   }
 
   private static Logger log = LogManager.getLogger();
 
-  // Catch-all handlers handle requests that target this node or a decendant of this node.
-  // Catch-all handlers are also a members of handlers_.
-  private ArrayList<Handler> catch_all_handlers_;
+  // Snapshot of the catch-all handlers. Catch-all handlers handle requests that target this node
+  // or a decendant of this node. Catch-all handlers are also a members of handlers_.
+  private volatile Handler[] catch_all_snapshot_;
 
   // Child nodes indexed by their name.
-  private HashMap<String, Node> children_;
+  private ConcurrentHashMap<String, Node> children_;
+
+  // Snapshot of all handlers. Replaced, never modified.
+  private volatile Handler[] handler_snapshot_;
 
-  // List of handlers associated with this node.
-  private HashMap<String, Handler> handlers_;
+  // Handlers associated with this node indexed by their name. Modified only with the lock held.
+  private ConcurrentHashMap<String, Handler> handlers_;
 
   // Name of this node. The name is used in directory paths.
   private String name_;
+
+  // Pattern handlers of this node. Modified only with the lock held.
+  private PatternIndex patterns_;
 }
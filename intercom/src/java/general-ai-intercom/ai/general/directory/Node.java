@@ -16,6 +16,13 @@ import java.util.Collection;
  *
  * A node can be associated with one or more {@link Handler} instances that process requests to
  * the resources represented by the node or its child nodes.
+ *
+ * Each node maintains two generation counters that are used to invalidate cached routes. The
+ * handler generation changes whenever a handler is added to or removed from the node. It
+ * invalidates routes that target the node. The path generation changes whenever a node is
+ * mounted or unmounted or a catch-all or pattern handler is added or removed. It invalidates
+ * routes that pass through the node. Thus, changes to a node do not affect routes that do not
+ * involve the node.
  */
 public abstract class Node {
 
@@ -32,6 +39,45 @@ public abstract class Node {
    */
   public abstract void addHandler(Handler handler) throws NodeException;
 
+  /**
+   * Adds a pattern handler to this node. The handler handles requests to all decendants of this
+   * node whose path relative to this node matches the pattern. Pattern handlers are called via
+   * {@link Handler#handleCatchAll(String, Request)} with the relative path of the target node.
+   *
+   * Patterns are relative paths whose segments may be wildcards. A '+' segment and a '*' segment
+   * that is not the last segment match exactly one path segment. A trailing '/*' matches the
+   * node before the wildcard and all of its decendants.
+   *
+   * Pattern handlers share the name space of regular handlers and are removed via
+   * {@link #removeHandler(String)}. A NodeException is thrown if a handler with the same name
+   * already exists.
+   *
+   * @param pattern The relative path pattern.
+   * @param handler The handler to add.
+   * @throws NodeException if the handler cannot be added to this node.
+   */
+  public abstract void addPatternHandler(String pattern, Handler handler) throws NodeException;
+
+  /**
+   * Returns the current handler generation of this node. The handler generation changes whenever
+   * a handler is added to or removed from this node.
+   *
+   * @return The current handler generation.
+   */
+  public long getHandlerGeneration() {
+    return handler_generation_;
+  }
+
+  /**
+   * Returns the current path generation of this node. The path generation changes whenever a
+   * child node is mounted or unmounted or a catch-all or pattern handler is added or removed.
+   *
+   * @return The current path generation.
+   */
+  public long getPathGeneration() {
+    return path_generation_;
+  }
+
   /**
    * Provides access to child nodes.
    *
@@ -132,11 +178,40 @@ public abstract class Node {
   public abstract boolean unmount(Node child);
 
   /**
-   * Helper method to walk down a directory path while handling a request.
+   * Must be called by subclasses after a child node has been mounted or unmounted. Must be called
+   * with the lock of this node held.
+   */
+  protected void childrenChanged() {
+    path_generation_++;
+  }
+
+  /**
+   * Must be called by subclasses after a handler has been added or removed. Must be called with
+   * the lock of this node held.
+   *
+   * @param catch_all True if the handler is a catch-all or pattern handler.
+   */
+  protected void handlersChanged(boolean catch_all) {
+    handler_generation_++;
+    if (catch_all) {
+      path_generation_++;
+    }
+  }
+
+  /**
+   * Helper method to walk down a directory path while resolving the handlers of a request.
+   * Adds the catch-all handlers of this node and, if this node is the target node, the regular
+   * handlers of this node to the route.
    *
-   * @param request The request to handle.
    * @param path_walker PathWalker to help find the target node.
-   * @return The total number of handlers executed.
+   * @param route The route to which the handlers are added.
    */
-  protected abstract int handle(Request request, PathWalker path_walker);
+  protected abstract void resolve(PathWalker path_walker, Route route);
+
+  // Changes whenever a handler is added or removed. Modified only with the lock held.
+  private volatile long handler_generation_;
+
+  // Changes whenever a child node or a catch-all or pattern handler is added or removed.
+  // Modified only with the lock held.
+  private volatile long path_generation_;
 }
@@ -9,11 +9,113 @@ import ai.general.net.Uri;
 
 /**
  * A PathWalker is used to traverse directory paths.
- * The PathWalker splits a directory path into an array of nodes and keeps track of
+ * The PathWalker splits a directory path into a sequence of nodes and keeps track of
  * the current node. It can be used to move up and down in the node hierarchy.
+ *
+ * PathWalker does not split the path into substrings. It is a cursor over the original path
+ * string that tracks the offsets of the current node name. The current node name can be compared
+ * with {@link #currentNodeNameEquals(String)} or used as a hash map key via
+ * {@link #getCurrentSegment()} without creating a substring. Thus, walking a path does not
+ * allocate any memory except for {@link #getCurrentNodeName()} and {@link #remainder()}.
  */
 public class PathWalker {
 
+  /**
+   * A view of the name of the current node of a PathWalker.
+   *
+   * Segment has the same hash code as the String with the same characters and is equal to such a
+   * String. Thus, a Segment can be used to look up String keys in a hash map without creating a
+   * substring. Note that String.equals() does not consider a Segment equal to a String.
+   *
+   * A Segment changes when the PathWalker moves.
+   */
+  public class Segment implements CharSequence {
+
+    /**
+     * Returns the character at the specified index.
+     *
+     * @param index The index of the character relative to the start of the segment.
+     * @return The character at the specified index.
+     */
+    @Override
+    public char charAt(int index) {
+      return path_.charAt(start_ + index);
+    }
+
+    /**
+     * Compares this segment with a character sequence.
+     *
+     * @param object The object to compare to.
+     * @return True if object is a CharSequence with the same characters as this segment.
+     */
+    @Override
+    public boolean equals(Object object) {
+      if (object instanceof String) {
+        return currentNodeNameEquals((String) object);
+      }
+      if (!(object instanceof CharSequence)) {
+        return false;
+      }
+      CharSequence other = (CharSequence) object;
+      int length = length();
+      if (other.length() != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (other.charAt(i) != path_.charAt(start_ + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Computes the hash code in the same way as {@link String#hashCode()}.
+     *
+     * @return The hash code of the segment.
+     */
+    @Override
+    public int hashCode() {
+      int hash = 0;
+      for (int i = start_; i < end_; i++) {
+        hash = 31 * hash + path_.charAt(i);
+      }
+      return hash;
+    }
+
+    /**
+     * Returns the length of the segment.
+     *
+     * @return The number of characters in the segment.
+     */
+    @Override
+    public int length() {
+      return end_ - start_;
+    }
+
+    /**
+     * Returns a subsequence of this segment.
+     *
+     * @param start The start index relative to the start of the segment.
+     * @param end The end index (exclusive) relative to the start of the segment.
+     * @return The subsequence.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return path_.subSequence(start_ + start, start_ + end);
+    }
+
+    /**
+     * Returns the segment as a String.
+     *
+     * @return The name of the current node.
+     */
+    @Override
+    public String toString() {
+      return path_.substring(start_, end_);
+    }
+  }
+
   /**
    * Constructs a PathWalker from a directory path.
    *
@@ -30,14 +132,26 @@ public class PathWalker {
     if (!path.startsWith("/")) {
       path = "/" + path;
     }
-    nodes_ = path.split("/");
-    if (nodes_.length == 0) {
-      nodes_ = new String[] { "" };
+    this.path_ = path;
+    int limit = path.length();
+    while (limit > 0 && path.charAt(limit - 1) == '/') {
+      limit--;
     }
-    level_ = 0;
-    ends_with_wildcard_ = nodes_.length > 1 && nodes_[nodes_.length - 1].equals("*");
-    num_nodes_ = ends_with_wildcard_ ? nodes_.length - 1 : nodes_.length;
+    ends_with_wildcard_ = limit >= 2 && path.charAt(limit - 1) == '*' &&
+      path.charAt(limit - 2) == '/';
+    limit_ = ends_with_wildcard_ ? limit - 2 : limit;
+    int num_nodes = 1;
+    for (int i = 0; i < limit_; i++) {
+      if (path.charAt(i) == '/') {
+        num_nodes++;
+      }
+    }
+    num_nodes_ = num_nodes;
     leaf_level_ = num_nodes_ - 1;
+    level_ = 0;
+    start_ = 0;
+    end_ = 0;
+    segment_ = new Segment();
   }
 
   /**
@@ -59,6 +173,17 @@ public class PathWalker {
     return level_ == leaf_level_;
   }
 
+  /**
+   * Compares the name of the current node with the specified name without creating a substring.
+   *
+   * @param name The name to compare to.
+   * @return True if the current node has the specified name.
+   */
+  public boolean currentNodeNameEquals(String name) {
+    int length = end_ - start_;
+    return name.length() == length && path_.regionMatches(start_, name, 0, length);
+  }
+
   /**
    * The level of the current node along the path. The level is the distance between this node
    * and the first node.
@@ -72,10 +197,23 @@ public class PathWalker {
   /**
    * Name of current node along the path.
    *
+   * This method creates a substring. Use {@link #currentNodeNameEquals(String)} or
+   * {@link #getCurrentSegment()} to avoid the allocation.
+   *
    * @return The name of the current node.
    */
   public String getCurrentNodeName() {
-    return nodes_[level_];
+    return path_.substring(start_, end_);
+  }
+
+  /**
+   * Returns a view of the name of the current node. The view changes when this walker moves.
+   * The view can be used to look up the current node name in hash maps with String keys.
+   *
+   * @return A view of the current node name.
+   */
+  public Segment getCurrentSegment() {
+    return segment_;
   }
 
   /**
@@ -98,6 +236,9 @@ public class PathWalker {
       return false;
     }
     level_++;
+    start_ = end_ + 1;
+    int end = path_.indexOf('/', start_);
+    end_ = end < 0 || end > limit_ ? limit_ : end;
     return true;
   }
 
@@ -112,6 +253,8 @@ public class PathWalker {
       return false;
     }
     level_--;
+    end_ = start_ - 1;
+    start_ = end_ > 0 ? path_.lastIndexOf('/', end_ - 1) + 1 : 0;
     return true;
   }
 
@@ -125,7 +268,7 @@ public class PathWalker {
   }
 
   /**
-   * Computes and returns the path from the current node to leaf node.
+   * Returns the path from the current node to leaf node.
    * Wildcards are excluded.
    *
    * @return The remaining path to the leaf. Empty string if this is the leaf.
@@ -134,17 +277,16 @@ public class PathWalker {
     if (atLeaf()) {
       return "";
     }
-    StringBuilder remainder = new StringBuilder(nodes_[level_ + 1]);
-    for (int i = level_ + 2; i <= leaf_level_; i++) {
-      remainder.append('/');
-      remainder.append(nodes_[i]);
-    }
-    return remainder.toString();
+    return path_.substring(end_ + 1, limit_);
   }
 
-  private final int leaf_level_;  // Lowest level (excludes wildcard).
+  private int end_;  // End offset (exclusive) of the current node name in path_.
   private final boolean ends_with_wildcard_;  // True if the path ends with '/*'.
-  private int level_;  // Current position in nodes_.
-  private String[] nodes_;  // The names of the nodes in the URI path.
+  private final int leaf_level_;  // Lowest level (excludes wildcard).
+  private int level_;  // Current position in the path.
+  private final int limit_;  // End offset of the named nodes in path_ (excludes wildcard).
   private final int num_nodes_;  // Number of nodes (excludes wildcard).
+  private final String path_;  // The absolute path.
+  private final Segment segment_;  // View of the current node name.
+  private int start_;  // Start offset of the current node name in path_.
 }
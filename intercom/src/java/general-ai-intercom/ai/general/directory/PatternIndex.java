@@ -0,0 +1,345 @@
+/* General AI - Directory
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.directory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of pattern handlers of a node.
+ *
+ * A pattern is a relative path whose segments may be wildcards. The wildcard '+' matches exactly
+ * one path segment. A '*' segment matches exactly one path segment unless it is the last segment
+ * of the pattern, in which case it matches the node before the '*' and all of its decendants.
+ * For example, the pattern "+/temperature" matches "a/temperature" and "b/temperature" but
+ * not "a/humidity", and the pattern "+/*" matches "a", "a/b" and "a/b/c".
+ *
+ * Patterns are stored in a trie of path segments. Literal segments are indexed by name and each
+ * trie node has at most one wildcard branch. Thus, the cost of matching a path is proportional to
+ * the number of trie branches that match the path rather than the number of patterns.
+ *
+ * Matching is lock-free. Modifications must be synchronized by the caller.
+ */
+public class PatternIndex {
+
+  /** Single segment wildcard. */
+  public static final String kWildcard = "+";
+
+  /** Trailing multi segment wildcard. */
+  public static final String kCatchAll = "*";
+
+  /**
+   * A node of the pattern trie.
+   */
+  private static class Entry {
+
+    /**
+     * Creates an empty entry.
+     */
+    public Entry() {
+      children_ = new ConcurrentHashMap<String, Entry>();
+      wildcard_ = null;
+      handlers_ = new Handler[0];
+      catch_all_handlers_ = new Handler[0];
+    }
+
+    /**
+     * Returns true if this entry has no handlers and no branches.
+     *
+     * @return True if this entry can be removed.
+     */
+    public boolean isEmpty() {
+      return handlers_.length == 0 && catch_all_handlers_.length == 0 && children_.isEmpty() &&
+        wildcard_ == null;
+    }
+
+    // Handlers of patterns that end with '*' at this entry.
+    private volatile Handler[] catch_all_handlers_;
+
+    // Literal branches indexed by segment name.
+    private ConcurrentHashMap<String, Entry> children_;
+
+    // Handlers of patterns that end at this entry.
+    private volatile Handler[] handlers_;
+
+    // Wildcard branch or null.
+    private volatile Entry wildcard_;
+  }
+
+  /**
+   * Creates an empty pattern index.
+   */
+  public PatternIndex() {
+    root_ = new Entry();
+    patterns_ = new ConcurrentHashMap<String, String>();
+  }
+
+  /**
+   * Returns true if the path contains a wildcard segment that requires a pattern handler, i.e.
+   * a '+' segment or a '*' segment that is not the last segment. A path that ends with a '/*'
+   * but contains no other wildcards does not require a pattern handler.
+   *
+   * @param path A directory path.
+   * @return True if the path is a pattern.
+   */
+  public static boolean isPattern(String path) {
+    return patternStart(path) >= 0;
+  }
+
+  /**
+   * Returns the offset of the first segment of the path that requires a pattern handler or -1 if
+   * the path does not require a pattern handler.
+   *
+   * @param path A directory path.
+   * @return The offset of the first wildcard segment or -1.
+   */
+  public static int patternStart(String path) {
+    int length = path.length();
+    int start = 0;
+    while (start <= length) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end - start == 1) {
+        char c = path.charAt(start);
+        if (c == '+' || (c == '*' && hasSegmentAfter(path, end))) {
+          return start;
+        }
+      }
+      start = end + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a pattern handler. The handler is called when a path that matches the pattern is
+   * requested. A handler with the same name must not already be indexed.
+   *
+   * @param pattern The pattern relative to the node that owns this index.
+   * @param handler The handler to add.
+   */
+  public void add(String pattern, Handler handler) {
+    PathWalker walker = new PathWalker(pattern);
+    Entry entry = root_;
+    while (walker.moveDown()) {
+      entry = branch(entry, walker);
+    }
+    if (walker.endsWithWildcard()) {
+      entry.catch_all_handlers_ = append(entry.catch_all_handlers_, handler);
+    } else {
+      entry.handlers_ = append(entry.handlers_, handler);
+    }
+    patterns_.put(handler.getName(), pattern);
+  }
+
+  /**
+   * Returns true if a handler with the specified name is indexed.
+   *
+   * @param name The handler name.
+   * @return True if the index contains the handler.
+   */
+  public boolean contains(String name) {
+    return patterns_.containsKey(name);
+  }
+
+  /**
+   * Returns true if no handlers are indexed.
+   *
+   * @return True if the index is empty.
+   */
+  public boolean isEmpty() {
+    return patterns_.isEmpty();
+  }
+
+  /**
+   * Finds all handlers whose pattern matches the specified path.
+   *
+   * @param path The path relative to the node that owns this index.
+   * @param matches Collection to which the matching handlers are added.
+   */
+  public void match(String path, Collection<Handler> matches) {
+    if (patterns_.isEmpty()) {
+      return;
+    }
+    match(root_, new PathWalker(path), matches);
+  }
+
+  /**
+   * Returns the number of indexed handlers.
+   *
+   * @return The number of indexed handlers.
+   */
+  public int size() {
+    return patterns_.size();
+  }
+
+  /**
+   * Removes the handler with the specified name.
+   *
+   * @param name The handler name.
+   * @return True if the handler was removed.
+   */
+  public boolean remove(String name) {
+    String pattern = patterns_.remove(name);
+    if (pattern == null) {
+      return false;
+    }
+    PathWalker walker = new PathWalker(pattern);
+    remove(root_, walker, name);
+    return true;
+  }
+
+  /**
+   * Returns a copy of the handler array with the specified handler appended.
+   *
+   * @param handlers A handler array.
+   * @param handler The handler to append.
+   * @return The new handler array.
+   */
+  private static Handler[] append(Handler[] handlers, Handler handler) {
+    Handler[] result = new Handler[handlers.length + 1];
+    System.arraycopy(handlers, 0, result, 0, handlers.length);
+    result[handlers.length] = handler;
+    return result;
+  }
+
+  /**
+   * Returns the branch of the entry for the current segment of the walker. Creates the branch if
+   * it does not exist.
+   *
+   * @param entry The parent entry.
+   * @param walker PathWalker positioned at the segment.
+   * @return The branch entry.
+   */
+  private static Entry branch(Entry entry, PathWalker walker) {
+    if (isWildcard(walker)) {
+      if (entry.wildcard_ == null) {
+        entry.wildcard_ = new Entry();
+      }
+      return entry.wildcard_;
+    }
+    String name = walker.getCurrentNodeName();
+    Entry child = entry.children_.get(name);
+    if (child == null) {
+      child = new Entry();
+      entry.children_.put(name, child);
+    }
+    return child;
+  }
+
+  /**
+   * Returns true if the path contains a non-empty segment at or after the specified offset.
+   *
+   * @param path A directory path.
+   * @param offset The offset at which to start the search.
+   * @return True if there is a segment after the offset.
+   */
+  private static boolean hasSegmentAfter(String path, int offset) {
+    for (int i = offset; i < path.length(); i++) {
+      if (path.charAt(i) != '/') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the current segment of the walker is a single segment wildcard.
+   *
+   * @param walker PathWalker positioned at a segment of a pattern.
+   * @return True if the segment is a wildcard.
+   */
+  private static boolean isWildcard(PathWalker walker) {
+    return walker.currentNodeNameEquals(kWildcard) || walker.currentNodeNameEquals(kCatchAll);
+  }
+
+  /**
+   * Recursively finds the handlers that match the remainder of a path.
+   *
+   * @param entry The trie entry that matches the path up to the current segment of the walker.
+   * @param walker PathWalker positioned at the last matched segment.
+   * @param matches Collection to which the matching handlers are added.
+   */
+  private static void match(Entry entry, PathWalker walker, Collection<Handler> matches) {
+    for (Handler handler : entry.catch_all_handlers_) {
+      matches.add(handler);
+    }
+    if (walker.atLeaf()) {
+      for (Handler handler : entry.handlers_) {
+        matches.add(handler);
+      }
+      return;
+    }
+    walker.moveDown();
+    Entry child = entry.children_.get(walker.getCurrentSegment());
+    if (child != null) {
+      match(child, walker, matches);
+    }
+    Entry wildcard = entry.wildcard_;
+    if (wildcard != null) {
+      match(wildcard, walker, matches);
+    }
+    walker.moveUp();
+  }
+
+  /**
+   * Recursively removes a handler and prunes empty entries.
+   *
+   * @param entry The trie entry that matches the pattern up to the current segment of the walker.
+   * @param walker PathWalker positioned at the last matched segment of the pattern.
+   * @param name The name of the handler to remove.
+   * @return True if the entry is empty after the removal.
+   */
+  private static boolean remove(Entry entry, PathWalker walker, String name) {
+    if (walker.atLeaf()) {
+      if (walker.endsWithWildcard()) {
+        entry.catch_all_handlers_ = without(entry.catch_all_handlers_, name);
+      } else {
+        entry.handlers_ = without(entry.handlers_, name);
+      }
+      return entry.isEmpty();
+    }
+    walker.moveDown();
+    if (isWildcard(walker)) {
+      Entry wildcard = entry.wildcard_;
+      if (wildcard != null && remove(wildcard, walker, name)) {
+        entry.wildcard_ = null;
+      }
+    } else {
+      String segment = walker.getCurrentNodeName();
+      Entry child = entry.children_.get(segment);
+      if (child != null && remove(child, walker, name)) {
+        entry.children_.remove(segment);
+      }
+    }
+    return entry.isEmpty();
+  }
+
+  /**
+   * Returns a copy of the handler array without the handler with the specified name.
+   *
+   * @param handlers A handler array.
+   * @param name The name of the handler to remove.
+   * @return The new handler array.
+   */
+  private static Handler[] without(Handler[] handlers, String name) {
+    ArrayList<Handler> result = new ArrayList<Handler>(handlers.length);
+    for (Handler handler : handlers) {
+      if (!handler.getName().equals(name)) {
+        result.add(handler);
+      }
+    }
+    return result.toArray(new Handler[result.size()]);
+  }
+
+  // Patterns of the indexed handlers indexed by handler name.
+  private ConcurrentHashMap<String, String> patterns_;
+
+  // Root of the pattern trie.
+  private Entry root_;
+}
@@ -7,10 +7,13 @@ package ai.general.directory;
 
 import ai.general.net.Uri;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a request directed at a resource represented by a directory node.
@@ -24,9 +27,57 @@ import java.util.HashMap;
  * to the Directory node process the request.
  *
  * The request URI may specify query parameters which may be used by the request handlers.
+ *
+ * Publish requests may be restricted to a set of eligible sessions or exclude a set of sessions.
+ * The session sets can be specified directly via {@link #setEligibleSessions(Set)} and
+ * {@link #setExcludedSessions(Set)} or as comma separated lists in the {@link #kEligible} and
+ * {@link #kExclude} URI query parameters. In the latter case, the lists are parsed into sets
+ * once per request, so that handlers can check session membership in constant time.
+ *
+ * Request arguments may be added as {@link DeferredArgument} instances. Such arguments are bound
+ * on first access, which allows decoders to postpone the conversion of encoded arguments until a
+ * handler actually needs them.
+ *
+ * A request may be delivered to many handlers that send it to remote endpoints using the same
+ * wire format. Such handlers can use {@link #getEncoding(String)} and
+ * {@link #putEncoding(String, String)} to share encoded forms of the request, so that the
+ * request is encoded only once regardless of the number of recipients.
  */
 public class Request {
 
+  /**
+   * Read-only view of the request arguments that resolves deferred arguments on access.
+   */
+  private class ArgumentList extends AbstractList<Object> {
+
+    /**
+     * Returns the argument at the specified index. Deferred arguments are bound as necessary.
+     *
+     * @param index The argument index.
+     * @return The argument value.
+     */
+    @Override
+    public Object get(int index) {
+      return resolve(arguments_.get(index));
+    }
+
+    /**
+     * Returns the number of arguments.
+     *
+     * @return The number of arguments.
+     */
+    @Override
+    public int size() {
+      return arguments_.size();
+    }
+  }
+
+  /** Name of URI parameter that lists the session ID's eligible to receive a request. */
+  public static final String kEligible = "eligible";
+
+  /** Name of URI parameter that lists the session ID's excluded from receiving a request. */
+  public static final String kExclude = "exclude";
+
   /** Name of type parameter in URI. */
   public static final String kRequestType = "type";
 
@@ -97,12 +148,18 @@ public class Request {
     this.request_type_ = request_type;
     arguments_ = new ArrayList<Object>();
     Collections.addAll(this.arguments_, arguments);
+    argument_list_ = new ArgumentList();
     result_ = new Result();
+    eligible_sessions_ = null;
+    excluded_sessions_ = null;
+    session_filter_resolved_ = false;
   }
 
   /**
    * Adds a single argument to the request.
    *
+   * If the argument is a {@link DeferredArgument}, it is bound when it is first accessed.
+   *
    * @param argument The argument to add to the request.
    */
   public void addArgument(Object argument) {
@@ -130,16 +187,80 @@ public class Request {
     if (arguments_.size() <= index) {
       return null;
     }
-    return arguments_.get(index);
+    return resolve(arguments_.get(index));
   }
 
   /**
    * Returns the request arguments.
    *
+   * The returned collection is a read-only view. Any {@link DeferredArgument} is bound when it
+   * is accessed through the view.
+   *
    * @return Arguments associated with the request.
    */
   public Collection<Object> getArguments() {
-    return arguments_;
+    return argument_list_;
+  }
+
+  /**
+   * Returns the set of session ID's that are eligible to receive this request or null if the
+   * request is not restricted to specific sessions.
+   *
+   * If no set has been specified explicitly, the set is parsed from the {@link #kEligible} URI
+   * parameter.
+   *
+   * @return The eligible session ID's or null.
+   */
+  public Set<String> getEligibleSessions() {
+    resolveSessionFilter();
+    return eligible_sessions_;
+  }
+
+  /**
+   * Returns a previously cached encoded form of this request or null if none has been cached
+   * under the specified key.
+   *
+   * The key identifies the encoding and must include any parameters that affect the encoded
+   * form, such as the target URI.
+   *
+   * @param key The encoding key.
+   * @return The cached encoded form or null.
+   */
+  public String getEncoding(String key) {
+    ConcurrentHashMap<String, String> encodings = encodings_;
+    if (encodings == null) {
+      return null;
+    }
+    return encodings.get(key);
+  }
+
+  /**
+   * Returns the set of session ID's that are excluded from receiving this request or null if no
+   * session is excluded.
+   *
+   * If no set has been specified explicitly, the set is parsed from the {@link #kExclude} URI
+   * parameter.
+   *
+   * @return The excluded session ID's or null.
+   */
+  public Set<String> getExcludedSessions() {
+    resolveSessionFilter();
+    return excluded_sessions_;
+  }
+
+  /**
+   * Returns the request argument at the specified index without binding it.
+   * If the argument was added as a {@link DeferredArgument}, the DeferredArgument is returned.
+   * Returns null if there is no request argument at the specified index.
+   *
+   * @param index The request argument index.
+   * @return The unresolved request argument at the specified index or null.
+   */
+  public Object getRawArgument(int index) {
+    if (arguments_.size() <= index) {
+      return null;
+    }
+    return arguments_.get(index);
   }
 
   /**
@@ -192,6 +313,55 @@ public class Request {
     return arguments_.size();
   }
 
+  /**
+   * Caches an encoded form of this request under the specified key. If another handler has
+   * concurrently cached an encoding under the same key, the previously cached encoding is kept
+   * and returned.
+   *
+   * The cached encodings are not updated if the request is modified. Handlers must not modify
+   * requests whose encodings are cached.
+   *
+   * @param key The encoding key.
+   * @param encoding The encoded form of this request.
+   * @return The encoding cached under the key.
+   */
+  public String putEncoding(String key, String encoding) {
+    ConcurrentHashMap<String, String> encodings = encodings_;
+    if (encodings == null) {
+      synchronized (this) {
+        encodings = encodings_;
+        if (encodings == null) {
+          encodings = new ConcurrentHashMap<String, String>(4);
+          encodings_ = encodings;
+        }
+      }
+    }
+    String cached = encodings.putIfAbsent(key, encoding);
+    return cached != null ? cached : encoding;
+  }
+
+  /**
+   * Restricts this request to the specified sessions. The set must not be modified after it has
+   * been passed to this method.
+   *
+   * @param sessions The eligible session ID's or null to remove the restriction.
+   */
+  public void setEligibleSessions(Set<String> sessions) {
+    resolveSessionFilter();
+    this.eligible_sessions_ = sessions;
+  }
+
+  /**
+   * Excludes the specified sessions from receiving this request. The set must not be modified
+   * after it has been passed to this method.
+   *
+   * @param sessions The excluded session ID's or null to exclude no session.
+   */
+  public void setExcludedSessions(Set<String> sessions) {
+    resolveSessionFilter();
+    this.excluded_sessions_ = sessions;
+  }
+
   /**
    * Allows explicitly specifying the request type.
    *
@@ -201,8 +371,69 @@ public class Request {
     this.request_type_ = type;
   }
 
-  private ArrayList<Object> arguments_;  // Request arguments.
+  /**
+   * Parses a comma separated list of session ID's.
+   *
+   * @param list The comma separated list.
+   * @return The set of session ID's.
+   */
+  private static Set<String> parseSessions(String list) {
+    HashSet<String> sessions = new HashSet<String>();
+    int start = 0;
+    while (start <= list.length()) {
+      int end = list.indexOf(',', start);
+      if (end < 0) {
+        end = list.length();
+      }
+      if (end > start) {
+        sessions.add(list.substring(start, end));
+      }
+      start = end + 1;
+    }
+    return Collections.unmodifiableSet(sessions);
+  }
+
+  /**
+   * Resolves an argument. Binds the argument if it is a {@link DeferredArgument}.
+   *
+   * @param argument The argument as stored in the request.
+   * @return The argument value.
+   */
+  private static Object resolve(Object argument) {
+    if (argument instanceof DeferredArgument) {
+      return ((DeferredArgument) argument).getValue();
+    }
+    return argument;
+  }
+
+  /**
+   * Parses the session filter URI parameters unless this has been done before.
+   */
+  private void resolveSessionFilter() {
+    if (session_filter_resolved_) {
+      return;
+    }
+    synchronized (this) {
+      if (session_filter_resolved_) {
+        return;
+      }
+      if (uri_.hasParameter(kEligible)) {
+        eligible_sessions_ = parseSessions(uri_.getParameter(kEligible));
+      }
+      if (uri_.hasParameter(kExclude)) {
+        excluded_sessions_ = parseSessions(uri_.getParameter(kExclude));
+      }
+      session_filter_resolved_ = true;
+    }
+  }
+
+  private ArgumentList argument_list_;  // Read-only view of arguments_.
+  private ArrayList<Object> arguments_;  // Request arguments. May contain DeferredArguments.
+  private volatile Set<String> eligible_sessions_;  // Eligible session ID's or null.
+  private volatile ConcurrentHashMap<String, String> encodings_;  // Cached encodings or null.
+  private volatile Set<String> excluded_sessions_;  // Excluded session ID's or null.
   private RequestType request_type_;  // Request type.
   private Result result_;  // The result of processing the request.
+  private volatile boolean session_filter_resolved_;  // True if URI session lists are parsed.
   private Uri uri_;  // Resource URI.
 }
@@ -0,0 +1,220 @@
+/* General AI - Directory
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.directory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Route is the resolved list of handlers that handle requests to a particular directory path.
+ *
+ * A Route contains the catch-all handlers along the path in the order of the path followed by
+ * the regular handlers of the target node. Routes are resolved by {@link Node#resolve} and
+ * cached by {@link Directory}.
+ *
+ * A Route records the nodes it depends on together with their generations at the time the nodes
+ * were resolved. These are the nodes that the route passes through, whose path generation (see
+ * {@link Node#getPathGeneration()}) is recorded, and the target node, whose handler generation
+ * (see {@link Node#getHandlerGeneration()}) is recorded. A Route is valid as long as none of the
+ * recorded generations has changed. Thus, changes to nodes outside of the route do not
+ * invalidate the route. Nodes must record their generation before they read their handlers or
+ * children, so that concurrent changes are always detected.
+ *
+ * A Route is not modified after it has been resolved and can then be executed concurrently.
+ * Large routes can be executed in parallel chunks on a fork-join pool. See
+ * {@link #executeParallel(Request, ForkJoinPool, int)}.
+ */
+class Route {
+
+  // Initial capacity of the path generation array.
+  private static final int kInitialPathLength = 8;
+
+  /**
+   * Executes a range of handlers of a route. Ranges that are larger than the chunk size are
+   * split in half and executed in parallel.
+   */
+  private class FanOutTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param request The request to handle.
+     * @param from Index of the first handler in the range.
+     * @param to Index after the last handler in the range.
+     * @param chunk_size Maximum number of handlers executed sequentially by one task.
+     */
+    public FanOutTask(Request request, int from, int to, int chunk_size) {
+      this.request_ = request;
+      this.from_ = from;
+      this.to_ = to;
+      this.chunk_size_ = chunk_size;
+    }
+
+    /**
+     * Executes the handler range or splits it into two tasks.
+     */
+    @Override
+    protected void compute() {
+      if (to_ - from_ <= chunk_size_) {
+        execute(request_, from_, to_);
+      } else {
+        int middle = (from_ + to_) >>> 1;
+        invokeAll(new FanOutTask(request_, from_, middle, chunk_size_),
+                  new FanOutTask(request_, middle, to_, chunk_size_));
+      }
+    }
+
+    private int chunk_size_;  // Maximum number of handlers executed sequentially.
+    private int from_;  // Index of the first handler in the range.
+    private Request request_;  // The request to handle.
+    private int to_;  // Index after the last handler in the range.
+  }
+
+  /**
+   * Creates an empty Route.
+   */
+  public Route() {
+    handlers_ = new ArrayList<Handler>();
+    path_remainders_ = new ArrayList<String>();
+    path_nodes_ = new ArrayList<Node>();
+    path_generations_ = new long[kInitialPathLength];
+  }
+
+  /**
+   * Adds a catch-all handler to this route.
+   *
+   * @param handler The catch-all handler.
+   * @param path_remainder The path from the node of the handler to the target node.
+   */
+  public void addCatchAllHandler(Handler handler, String path_remainder) {
+    handlers_.add(handler);
+    path_remainders_.add(path_remainder);
+  }
+
+  /**
+   * Adds a regular handler of the target node to this route.
+   *
+   * @param handler The handler.
+   */
+  public void addHandler(Handler handler) {
+    handlers_.add(handler);
+    path_remainders_.add(null);
+  }
+
+  /**
+   * Records a node that this route passes through on its way to the target node or to the base
+   * node of the route. The route becomes invalid when the path generation of the node changes.
+   *
+   * @param node The node that this route passes through.
+   */
+  public void addPathNode(Node node) {
+    int index = path_nodes_.size();
+    if (index == path_generations_.length) {
+      path_generations_ = Arrays.copyOf(path_generations_, index * 2);
+    }
+    path_generations_[index] = node.getPathGeneration();
+    path_nodes_.add(node);
+  }
+
+  /**
+   * Records the target node of this route. The route becomes invalid when the handler generation
+   * of the target node changes.
+   *
+   * @param node The target node.
+   */
+  public void addTargetNode(Node node) {
+    target_generation_ = node.getHandlerGeneration();
+    target_node_ = node;
+  }
+
+  /**
+   * Executes all handlers of this route in order.
+   *
+   * @param request The request to handle.
+   * @return The total number of handlers executed.
+   */
+  public int execute(Request request) {
+    int count = handlers_.size();
+    execute(request, 0, count);
+    return count;
+  }
+
+  /**
+   * Executes the handlers of this route in chunks of at most chunk_size handlers on the
+   * specified pool. Returns after all handlers have been executed.
+   *
+   * Each handler is executed exactly once, so that each handler still observes the requests of
+   * a topic in the order in which they are executed, as long as the route is not executed
+   * concurrently for the same topic. The order among different handlers is not defined.
+   *
+   * @param request The request to handle.
+   * @param pool The pool on which to execute the handlers.
+   * @param chunk_size Maximum number of handlers executed sequentially by one task.
+   * @return The total number of handlers executed.
+   */
+  public int executeParallel(Request request, ForkJoinPool pool, int chunk_size) {
+    int count = handlers_.size();
+    if (count <= chunk_size) {
+      execute(request, 0, count);
+    } else {
+      pool.invoke(new FanOutTask(request, 0, count, chunk_size));
+    }
+    return count;
+  }
+
+  /**
+   * Checks whether this route is still valid, i.e. whether the generations of all recorded nodes
+   * are unchanged.
+   *
+   * @return True if none of the nodes of this route has changed since the route was resolved.
+   */
+  public boolean isValid() {
+    if (target_node_ != null && target_node_.getHandlerGeneration() != target_generation_) {
+      return false;
+    }
+    for (int i = 0; i < path_nodes_.size(); i++) {
+      if (path_nodes_.get(i).getPathGeneration() != path_generations_[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of handlers of this route.
+   *
+   * @return The number of handlers.
+   */
+  public int size() {
+    return handlers_.size();
+  }
+
+  /**
+   * Executes the handlers in the specified index range in order.
+   *
+   * @param request The request to handle.
+   * @param from Index of the first handler to execute.
+   * @param to Index after the last handler to execute.
+   */
+  private void execute(Request request, int from, int to) {
+    for (int i = from; i < to; i++) {
+      String path_remainder = path_remainders_.get(i);
+      if (path_remainder == null) {
+        handlers_.get(i).handle(request);
+      } else {
+        handlers_.get(i).handleCatchAll(path_remainder, request);
+      }
+    }
+  }
+
+  private ArrayList<Handler> handlers_;  // Handlers in execution order.
+  private long[] path_generations_;  // Path generations of the path nodes when recorded.
+  private ArrayList<Node> path_nodes_;  // Nodes that this route passes through.
+  private ArrayList<String> path_remainders_;  // Path remainders. Null for regular handlers.
+  private long target_generation_;  // Handler generation of the target node when recorded.
+  private Node target_node_;  // Target node or null if the target node does not exist.
+}
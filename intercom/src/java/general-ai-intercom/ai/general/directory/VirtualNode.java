@@ -7,7 +7,7 @@ package ai.general.directory;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * VirtualNodes add an overlay layer on top of a directory hierarchy.
@@ -32,6 +32,9 @@ import java.util.HashMap;
  * the underlying node. When the node is unlinked, the handlers are automatically removed
  * with the VirtualNode. Such behavior is necessary in order to provide correct access
  * control with user accounts.
+ *
+ * VirtualNode is thread-safe. Like {@link DirectoryNode}, it relays requests to immutable
+ * handler snapshots without locking.
  */
 public class VirtualNode extends Node {
 
@@ -58,7 +61,7 @@ public class VirtualNode extends Node {
      */
     @Override
     public void handle(Request request) {
-      for (Handler handler : handlers_.values()) {
+      for (Handler handler : handler_snapshot_) {
         handler.handle(request);
       }
     }
@@ -71,9 +74,16 @@ public class VirtualNode extends Node {
      */
     @Override
     public void handleCatchAll(String path_remainder, Request request) {
-      for (Handler handler : catch_all_handlers_) {
+      for (Handler handler : catch_all_snapshot_) {
         handler.handleCatchAll(path_remainder, request);
       }
+      if (!patterns_.isEmpty()) {
+        ArrayList<Handler> pattern_handlers = new ArrayList<Handler>();
+        patterns_.match(path_remainder, pattern_handlers);
+        for (Handler handler : pattern_handlers) {
+          handler.handleCatchAll(path_remainder, request);
+        }
+      }
     }
   }
 
@@ -88,9 +98,11 @@ public class VirtualNode extends Node {
   public VirtualNode(Node node, String handler_name) {
     this.node_ = node;
     active_ = true;
-    children_ = new HashMap<String, VirtualNode>();
-    handlers_ = new HashMap<String, Handler>();
-    catch_all_handlers_ = new ArrayList<Handler>();
+    children_ = new ConcurrentHashMap<String, VirtualNode>();
+    handlers_ = new ConcurrentHashMap<String, Handler>();
+    handler_snapshot_ = new Handler[0];
+    catch_all_snapshot_ = new Handler[0];
+    patterns_ = new PatternIndex();
     virtual_handler_ = new VirtualNodeHandler(handler_name);
   }
 
@@ -106,16 +118,35 @@ public class VirtualNode extends Node {
    * @throws NodeException if the handler cannot be added to this node.
    */
   @Override
-  public void addHandler(Handler handler) throws NodeException {
-    if (handlers_.containsKey(handler.getName())) {
+  public synchronized void addHandler(Handler handler) throws NodeException {
+    if (hasHandler(handler.getName())) {
       throw new NodeException(NodeException.Reason.DuplicateName);
     }
     handlers_.put(handler.getName(), handler);
-    if (active_ && handlers_.size() == 1) {
+    updateSnapshots();
+    if (active_ && numHandlers() == 1) {
       node_.addHandler(virtual_handler_);
     }
-    if (handler.isCatchAll()) {
-      catch_all_handlers_.add(handler);
+  }
+
+  /**
+   * Adds a pattern handler to this virtual node. Pattern handlers are matched when the virtual
+   * node handler of the underlying node handles a catch-all request.
+   * A NodeException is thrown if a handler with the same name already exists.
+   *
+   * @param pattern The relative path pattern.
+   * @param handler The handler to add.
+   * @throws NodeException if the handler cannot be added to this node.
+   */
+  @Override
+  public synchronized void addPatternHandler(String pattern, Handler handler)
+    throws NodeException {
+    if (hasHandler(handler.getName())) {
+      throw new NodeException(NodeException.Reason.DuplicateName);
+    }
+    patterns_.add(pattern, handler);
+    if (active_ && numHandlers() == 1) {
+      node_.addHandler(virtual_handler_);
     }
   }
 
@@ -137,7 +168,7 @@ public class VirtualNode extends Node {
    *
    * @return True if the virtual node handler was removed from the underlying node.
    */
-  public boolean deactivate() {
+  public synchronized boolean deactivate() {
     active_ = false;
     for (VirtualNode child : children_.values()) {
       child.deactivate();
@@ -153,18 +184,24 @@ public class VirtualNode extends Node {
    */
   @Override
   public Node getChild(String name) {
-    if (children_.containsKey(name)) {
-      return children_.get(name);
-    } else {
-      Node child = node_.getChild(name);
-      if (child == null) {
-        return null;
-      }
-      VirtualNode virtual_child =
-        new VirtualNode(child, virtual_handler_.getName() + ":" + child.getName());
-      children_.put(name, virtual_child);
+    VirtualNode virtual_child = children_.get(name);
+    if (virtual_child != null) {
       return virtual_child;
     }
+    Node child = node_.getChild(name);
+    if (child == null) {
+      return null;
+    }
+    virtual_child = new VirtualNode(child, virtual_handler_.getName() + ":" + child.getName());
+    VirtualNode existing_child = children_.putIfAbsent(name, virtual_child);
+    if (existing_child != null) {
+      return existing_child;
+    }
+    if (!active_) {
+      // This node has been deactivated concurrently, but may have missed the new child.
+      virtual_child.deactivate();
+    }
+    return virtual_child;
   }
 
   /**
@@ -177,6 +214,17 @@ public class VirtualNode extends Node {
     return node_.getChildren();
   }
 
+  /**
+   * Returns the handler generation of the underlying node. Changes to the handlers of this
+   * virtual node are relayed by the virtual node handler and do not affect the generation.
+   *
+   * @return The current handler generation of the underlying node.
+   */
+  @Override
+  public long getHandlerGeneration() {
+    return node_.getHandlerGeneration();
+  }
+
   /**
    * Node name.
    *
@@ -187,6 +235,16 @@ public class VirtualNode extends Node {
     return node_.getName();
   }
 
+  /**
+   * Returns the path generation of the underlying node.
+   *
+   * @return The current path generation of the underlying node.
+   */
+  @Override
+  public long getPathGeneration() {
+    return node_.getPathGeneration();
+  }
+
   /**
    * Handles the specified request.
    *
@@ -227,7 +285,7 @@ public class VirtualNode extends Node {
    */
   @Override
   public boolean hasHandler(String name) {
-    return handlers_.containsKey(name);
+    return handlers_.containsKey(name) || patterns_.contains(name);
   }
 
   /**
@@ -273,16 +331,13 @@ public class VirtualNode extends Node {
    * @return True if the handler was removed.
    */
   @Override
-  public boolean removeHandler(String name) {
-    Handler handler = handlers_.get(name);
-    if (handler == null) {
+  public synchronized boolean removeHandler(String name) {
+    if (handlers_.remove(name) != null) {
+      updateSnapshots();
+    } else if (!patterns_.remove(name)) {
       return false;
     }
-    catch_all_handlers_.remove(handler);
-    if (handlers_.remove(name) == null) {
-      return false;
-    }
-    if (handlers_.isEmpty()) {
+    if (numHandlers() == 0) {
       node_.removeHandler(virtual_handler_.getName());
     }
     return true;
@@ -301,36 +356,66 @@ public class VirtualNode extends Node {
   }
 
   /**
-   * Helper method to walk down a directory path while handling a request.
+   * Helper method to walk down a directory path while resolving the handlers of a request.
    *
-   * @param request The request to handle.
    * @param path_walker PathWalker to help find the target node.
-   * @return The total number of handlers executed.
+   * @param route The route to which the handlers are added.
    */
   @Override
-  protected int handle(Request request, PathWalker path_walker) {
-    return node_.handle(request, path_walker);
+  protected void resolve(PathWalker path_walker, Route route) {
+    node_.resolve(path_walker, route);
+  }
+
+  /**
+   * Returns the total number of regular and pattern handlers.
+   *
+   * @return The number of handlers of this virtual node.
+   */
+  private int numHandlers() {
+    return handlers_.size() + patterns_.size();
+  }
+
+  /**
+   * Replaces the handler snapshots with the current handlers. Must be called with the lock
+   * held after each change to the handlers.
+   */
+  private void updateSnapshots() {
+    ArrayList<Handler> catch_all_handlers = new ArrayList<Handler>();
+    for (Handler handler : handlers_.values()) {
+      if (handler.isCatchAll()) {
+        catch_all_handlers.add(handler);
+      }
+    }
+    handler_snapshot_ = handlers_.values().toArray(new Handler[handlers_.size()]);
+    catch_all_snapshot_ = catch_all_handlers.toArray(new Handler[catch_all_handlers.size()]);
   }
 
   // True if this node serves as an active overlay on top of the underlying node, i.e. requests
   // to the underlying node are relayed to this node.
-  private boolean active_;
+  private volatile boolean active_;
 
-  // Catch-all handlers associated with this virtual node.
-  private ArrayList<Handler> catch_all_handlers_;
+  // Snapshot of the catch-all handlers associated with this virtual node.
+  private volatile Handler[] catch_all_snapshot_;
 
   // Virtual nodes representing the children of the underlying node indexed by their name.
   // The child nodes are not true children but used to extend the overlay. A virtual node
   // has only virtual children that represent the actual children of the underlying node. A
   // virtual node cannot have independent children.
-  private HashMap<String, VirtualNode> children_;
+  private ConcurrentHashMap<String, VirtualNode> children_;
 
   // Handler added to the underlying node.
   private VirtualNodeHandler virtual_handler_;
 
-  // List of handlers associated with this virtual node.
-  private HashMap<String, Handler> handlers_;
+  // Snapshot of all handlers associated with this virtual node. Replaced, never modified.
+  private volatile Handler[] handler_snapshot_;
+
+  // Handlers associated with this virtual node indexed by their name. Modified only with the
+  // lock held.
+  private ConcurrentHashMap<String, Handler> handlers_;
 
   // Underlying node.
   private Node node_;
+
+  // Pattern handlers associated with this virtual node. Modified only with the lock held.
+  private PatternIndex patterns_;
 }
@@ -0,0 +1,121 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.directory.DeferredArgument;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Type;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * Binds request arguments to a method parameter.
+ *
+ * An ArgumentBinder is created once per method parameter from the generic parameter type. Thus,
+ * parameters such as List&lt;Point&gt; are bound to lists of points rather than lists of maps.
+ *
+ * Values that are already instances of a non-generic parameter type are passed through without
+ * conversion. This includes strings, primitive wrappers and beans that have been bound before.
+ * Unbound {@link TypedArgument}s are decoded directly into the parameter type. Other values are
+ * converted via {@link CodecRegistry}.
+ *
+ * ArgumentBinder is immutable and thread-safe.
+ */
+class ArgumentBinder {
+
+  /**
+   * Creates a binder for a parameter of the specified type.
+   *
+   * @param type The generic parameter type.
+   */
+  public ArgumentBinder(Type type) {
+    java_type_ = CodecRegistry.Instance.getTypeFactory().constructType(type);
+    Class<?> raw_class = java_type_.getRawClass();
+    primitive_ = raw_class.isPrimitive();
+    if (primitive_) {
+      assignable_class_ = MethodType.methodType(raw_class).wrap().returnType();
+    } else if (isGeneric(java_type_)) {
+      assignable_class_ = null;
+    } else {
+      assignable_class_ = raw_class;
+    }
+  }
+
+  /**
+   * Binds a value to the parameter type. The value may be a {@link DeferredArgument}.
+   *
+   * @param value The value to bind.
+   * @return The bound value.
+   * @throws IllegalArgumentException if the value cannot be bound to the parameter type.
+   */
+  public Object bind(Object value) throws IllegalArgumentException {
+    if (value instanceof DeferredArgument) {
+      DeferredArgument deferred = (DeferredArgument) value;
+      if (deferred instanceof TypedArgument && !deferred.isBound() &&
+          java_type_.getRawClass() != Object.class) {
+        return checkPrimitive(((TypedArgument) deferred).bind(java_type_));
+      }
+      value = deferred.getValue();
+    }
+    if (value == null) {
+      if (primitive_) {
+        throw new IllegalArgumentException("null value for primitive parameter");
+      }
+      return null;
+    }
+    if (assignable_class_ != null && assignable_class_.isInstance(value)) {
+      return value;
+    }
+    return checkPrimitive(CodecRegistry.Instance.convert(value, java_type_));
+  }
+
+  /**
+   * Returns the parameter type.
+   *
+   * @return The parameter type.
+   */
+  public JavaType getType() {
+    return java_type_;
+  }
+
+  /**
+   * Checks that a bound value is not null if the parameter type is primitive.
+   *
+   * @param value The bound value.
+   * @return The bound value.
+   * @throws IllegalArgumentException if the value is null and the parameter type is primitive.
+   */
+  private Object checkPrimitive(Object value) throws IllegalArgumentException {
+    if (value == null && primitive_) {
+      throw new IllegalArgumentException("null value for primitive parameter");
+    }
+    return value;
+  }
+
+  /**
+   * Returns true if instances of the raw class of the type are not necessarily instances of
+   * the type, e.g. because the type is a collection with a specific element type.
+   *
+   * @param type A parameter type.
+   * @return True if the type is generic.
+   */
+  private static boolean isGeneric(JavaType type) {
+    if (type.isArrayType()) {
+      return isGeneric(type.getContentType());
+    }
+    return type.isContainerType() || type.hasGenericTypes();
+  }
+
+  // Class whose instances are passed through without conversion or null.
+  private Class<?> assignable_class_;
+
+  // The parameter type.
+  private JavaType java_type_;
+
+  // True if the parameter type is primitive.
+  private boolean primitive_;
+}
@@ -0,0 +1,27 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.util.List;
+
+/**
+ * OutputSender that can send a batch of text messages at once.
+ *
+ * Each message of a batch is delivered to the remote endpoint as a separate message, but the
+ * sender may coalesce the messages, e.g. into a single socket write. This reduces the overhead of
+ * sending many small messages, such as the subscribe requests sent when a connection becomes
+ * ready.
+ */
+public interface BatchOutputSender extends OutputSender {
+
+  /**
+   * Sends a batch of text messages to the remote endpoint in order.
+   *
+   * @param texts The text messages to send.
+   * @return True if all messages were successfully sent.
+   */
+  boolean sendTexts(List<String> texts);
+}
@@ -0,0 +1,91 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size direct byte buffers.
+ *
+ * Direct buffers avoid a copy when data is written to or read from a socket channel, but are
+ * expensive to allocate. BufferPool keeps released buffers for reuse. The pool retains at most
+ * a configurable number of idle buffers. Buffers acquired beyond that number are allocated on
+ * demand and are garbage collected after release.
+ *
+ * BufferPool is thread-safe.
+ */
+class BufferPool {
+
+  /**
+   * Creates a buffer pool.
+   *
+   * @param buffer_size The size of each buffer in bytes.
+   * @param max_idle The maximum number of idle buffers retained by the pool.
+   */
+  public BufferPool(int buffer_size, int max_idle) {
+    this.buffer_size_ = buffer_size;
+    this.max_idle_ = max_idle;
+    buffers_ = new ConcurrentLinkedQueue<ByteBuffer>();
+    idle_count_ = new AtomicInteger(0);
+  }
+
+  /**
+   * Returns a cleared buffer from the pool or allocates a new buffer if the pool is empty.
+   *
+   * @return A direct buffer of {@link #getBufferSize()} bytes.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = buffers_.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(buffer_size_);
+    }
+    idle_count_.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns the size of the pooled buffers.
+   *
+   * @return The buffer size in bytes.
+   */
+  public int getBufferSize() {
+    return buffer_size_;
+  }
+
+  /**
+   * Returns the number of idle buffers in the pool.
+   *
+   * @return The number of idle buffers.
+   */
+  public int getIdleCount() {
+    return idle_count_.get();
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers that were not acquired from this pool are ignored.
+   * The buffer must not be used after it has been released.
+   *
+   * @param buffer The buffer to release.
+   */
+  public void release(ByteBuffer buffer) {
+    if (!buffer.isDirect() || buffer.capacity() != buffer_size_) {
+      return;
+    }
+    if (idle_count_.incrementAndGet() > max_idle_) {
+      idle_count_.decrementAndGet();
+      return;
+    }
+    buffers_.offer(buffer);
+  }
+
+  private int buffer_size_;  // Size of each buffer in bytes.
+  private ConcurrentLinkedQueue<ByteBuffer> buffers_;  // Idle buffers.
+  private AtomicInteger idle_count_;  // Number of idle buffers.
+  private int max_idle_;  // Maximum number of idle buffers.
+}
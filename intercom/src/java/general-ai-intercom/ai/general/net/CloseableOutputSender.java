@@ -0,0 +1,24 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+/**
+ * OutputSender whose underlying transport can be closed by the sending side.
+ *
+ * Closing a {@link Connection} does not close its transport, since the transport is usually owned
+ * by a server, such as the {@link WebSocketServer}. Senders that wrap a transport implement this
+ * interface, so that wrapping senders, such as the {@link QueuedOutputSender}, can disconnect a
+ * remote endpoint that does not keep up.
+ */
+public interface CloseableOutputSender extends OutputSender {
+
+  /**
+   * Closes the transport to the remote endpoint. Messages sent after the transport has been
+   * closed are not delivered. This method can be called from any thread and has no effect if the
+   * transport has already been closed.
+   */
+  void closeTransport();
+}
@@ -0,0 +1,182 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+/**
+ * Process-wide registry of JSON codecs.
+ *
+ * CodecRegistry owns the single JSON object mapper used by all connections, method handlers and
+ * remote method calls. Creating object mappers is expensive and every mapper maintains its own
+ * serializer and deserializer caches. Sharing one mapper allows all components to benefit from
+ * the same caches.
+ *
+ * CodecRegistry hands out immutable ObjectReader and ObjectWriter instances. Readers are
+ * cached per target type. Readers and writers are thread-safe and can be retained by callers.
+ *
+ * Custom serializers and deserializers can be plugged in by registering a Jackson module via
+ * {@link #registerModule(Module)}. Modules should be registered during initialization.
+ * Registering a module replaces the shared mapper with a new mapper that includes the module
+ * and discards all cached readers and writers. Readers and writers obtained before the
+ * registration remain valid but do not use the module.
+ *
+ * CodecRegistry is a thread-safe singleton.
+ */
+public class CodecRegistry {
+
+  /**
+   * Immutable snapshot of the codec state. Replaced as a whole when a module is registered.
+   */
+  private static class Codecs {
+
+    /**
+     * Creates the codecs for the specified mapper. The mapper must not be modified after this
+     * call.
+     *
+     * @param mapper The fully configured object mapper.
+     */
+    public Codecs(ObjectMapper mapper) {
+      this.mapper_ = mapper;
+      writer_ = mapper.writer();
+      readers_ = new ConcurrentHashMap<JavaType, ObjectReader>();
+    }
+
+    private ObjectMapper mapper_;  // The configured object mapper.
+    private ConcurrentHashMap<JavaType, ObjectReader> readers_;  // Readers by target type.
+    private ObjectWriter writer_;  // Generic writer.
+  }
+
+  /**
+   * Singleton instance.
+   */
+  public static final CodecRegistry Instance = new CodecRegistry();
+
+  /**
+   * CodecRegistry is singleton.
+   * The singleton instance can be obtained via {@link #Instance}.
+   */
+  private CodecRegistry() {
+    codecs_ = new Codecs(new ObjectMapper());
+  }
+
+  /**
+   * Converts a value to the specified type. The value is typically a generic JSON value, such as
+   * a map or a list, that has been decoded without type information.
+   *
+   * @param value The value to convert.
+   * @param type The target type.
+   * @return The converted value.
+   * @throws IllegalArgumentException if the value cannot be converted to the specified type.
+   */
+  public <T> T convert(Object value, Class<T> type) throws IllegalArgumentException {
+    return codecs_.mapper_.convertValue(value, type);
+  }
+
+  /**
+   * Converts a value to the specified type. The value is typically a generic JSON value, such as
+   * a map or a list, that has been decoded without type information.
+   *
+   * @param value The value to convert.
+   * @param type The target type.
+   * @return The converted value.
+   * @throws IllegalArgumentException if the value cannot be converted to the specified type.
+   */
+  public <T> T convert(Object value, JavaType type) throws IllegalArgumentException {
+    return codecs_.mapper_.convertValue(value, type);
+  }
+
+  /**
+   * Creates a new empty JSON array node. Array nodes can be used to assemble messages that are
+   * encoded via {@link #getWriter()}.
+   *
+   * @return A new empty JSON array node.
+   */
+  public ArrayNode createArrayNode() {
+    return codecs_.mapper_.createArrayNode();
+  }
+
+  /**
+   * Returns the JSON factory used to create streaming parsers and generators.
+   *
+   * @return The shared JSON factory.
+   */
+  public JsonFactory getFactory() {
+    return codecs_.mapper_.getFactory();
+  }
+
+  /**
+   * Returns a reader that decodes JSON into instances of the specified type.
+   *
+   * @param type The target type.
+   * @return A reader for the specified type.
+   */
+  public ObjectReader getReader(Class<?> type) {
+    return getReader(codecs_.mapper_.getTypeFactory().constructType(type));
+  }
+
+  /**
+   * Returns a reader that decodes JSON into instances of the specified type.
+   * Readers are cached by type.
+   *
+   * @param type The target type.
+   * @return A reader for the specified type.
+   */
+  public ObjectReader getReader(JavaType type) {
+    Codecs codecs = codecs_;
+    ObjectReader reader = codecs.readers_.get(type);
+    if (reader == null) {
+      reader = codecs.mapper_.reader(type);
+      ObjectReader cached = codecs.readers_.putIfAbsent(type, reader);
+      if (cached != null) {
+        reader = cached;
+      }
+    }
+    return reader;
+  }
+
+  /**
+   * Returns the type factory that can be used to construct generic types.
+   *
+   * @return The shared type factory.
+   */
+  public TypeFactory getTypeFactory() {
+    return codecs_.mapper_.getTypeFactory();
+  }
+
+  /**
+   * Returns a writer that encodes Java objects as JSON using their runtime type.
+   *
+   * @return The shared writer.
+   */
+  public ObjectWriter getWriter() {
+    return codecs_.writer_;
+  }
+
+  /**
+   * Registers a Jackson module with custom serializers, deserializers or other extensions.
+   *
+   * The module applies to all readers and writers returned after this call.
+   *
+   * @param module The module to register.
+   */
+  public synchronized void registerModule(Module module) {
+    ObjectMapper mapper = codecs_.mapper_.copy();
+    mapper.registerModule(module);
+    codecs_ = new Codecs(mapper);
+  }
+
+  private volatile Codecs codecs_;  // Current codec state.
+}
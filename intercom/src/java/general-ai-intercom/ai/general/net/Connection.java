@@ -5,6 +5,10 @@
 
 package ai.general.net;
 
+import ai.general.directory.Request;
+
+import java.util.Collection;
+
 /**
  * Base class for connections to remote endpoints.
  *
@@ -67,8 +71,10 @@ package ai.general.net;
  * <li>{@link #publish(String, Object, String[], String[])}</li>
  * <li>{@link #subscribe(String)}</li>
  * <li>{@link #subscribe(Uri)}</li>
+ * <li>{@link #subscribe(Collection)}</li>
  * <li>{@link #unsubscribe(String)}</li>
  * <li>{@link #unsubscribe(Uri)}</li>
+ * <li>{@link #unsubscribe(Collection)}</li>
  * </ul></p>
  *
  * In addition to making requests, the Connection class also processes incoming requests. This
@@ -131,6 +137,7 @@ public abstract class Connection {
       home_path_ = home_path_.substring(0, home_path_.length() - 1);
     }
     is_ready_ = false;
+    registration_lock_ = new Object();
     server_id_ = null;
     session_id_ = null;
   }
@@ -160,6 +167,55 @@ public abstract class Connection {
    */
   public abstract boolean call(Uri method_uri, RpcCallback callback, Object ... arguments);
 
+  /**
+   * Makes an RPC call to the remote endpoint at the specified method path with the specified
+   * timeout. This method creates an appropriate URI for the call.
+   *
+   * The RPC is executed asynchronously. When completed the provided RpcCallback will be called.
+   * If the call does not complete within the timeout, the RpcCallback is called with a timeout
+   * error. See {@link RpcCallback#kTimeoutError}.
+   *
+   * @param method_path Method URI path of the RPC method to call.
+   * @param timeout_millis The call timeout in milliseconds.
+   * @param callback The callback to invoke when the RPC returns.
+   * @param arguments RPC method arguments.
+   * @return True if the call was sent.
+   */
+  public abstract boolean call(String method_path,
+                               long timeout_millis,
+                               RpcCallback callback,
+                               Object ... arguments);
+
+  /**
+   * Makes an RPC call to the remote endpoint at the specified method URI with the specified
+   * timeout.
+   *
+   * The RPC is executed asynchronously. When completed the provided RpcCallback will be called.
+   * If the call does not complete within the timeout, the RpcCallback is called with a timeout
+   * error. See {@link RpcCallback#kTimeoutError}.
+   *
+   * @param method_uri Method URI of the RPC method to call.
+   * @param timeout_millis The call timeout in milliseconds.
+   * @param callback The callback to invoke when the RPC returns.
+   * @param arguments RPC method arguments.
+   * @return True if the call was sent.
+   */
+  public abstract boolean call(Uri method_uri,
+                               long timeout_millis,
+                               RpcCallback callback,
+                               Object ... arguments);
+
+  /**
+   * Stops tracking a call made with one of the call methods. The callback of the call is not
+   * invoked and any response received later is ignored. The remote method is not notified.
+   *
+   * Subclasses that keep track of pending calls should override this method to release the
+   * resources of the call. By default, this method does nothing.
+   *
+   * @param callback The callback of the call to cancel.
+   */
+  public void cancelCall(RpcCallback callback) {}
+
   /**
    * Closes the connection.
    *
@@ -190,6 +246,18 @@ public abstract class Connection {
     return uri_.getServer();
   }
 
+  /**
+   * Returns the lock that serializes the addition and removal of this connection to and from the
+   * {@link ConnectionManager}, including the connection and disconnection of plugins. Plugins
+   * that are enabled or disabled while the connection is registered hold this lock while they
+   * connect to or disconnect from the connection.
+   *
+   * @return The registration lock.
+   */
+  public Object getRegistrationLock() {
+    return registration_lock_;
+  }
+
   /**
    * The server ID received by the server. This is only valid if this connection is a client
    * connection and is set after the connection has been established.
@@ -323,6 +391,22 @@ public abstract class Connection {
                                   String[] exclude, 
                                   String[] eligible);
 
+  /**
+   * Relays a publish request received by a {@link RelayHandler} to the remote endpoint using the
+   * specified topic URI. The first argument of the request is published as the event data.
+   *
+   * The same request is typically relayed to many connections. Subclasses should override this
+   * method to encode the request only once for all connections by using the encoding cache of
+   * the request. By default, this method calls {@link #publish(Uri, Object)}.
+   *
+   * @param topic_uri The topic URI to publish to.
+   * @param request The publish request to relay.
+   * @return True if the request was sent.
+   */
+  public boolean relay(Uri topic_uri, Request request) {
+    return publish(topic_uri, request.getArgument(0));
+  }
+
   /**
    * Sends a subscribe request to the remote endpoint for the specified topic path.
    *
@@ -343,6 +427,26 @@ public abstract class Connection {
    */
   public abstract boolean subscribe(Uri topic_uri);
 
+  /**
+   * Sends subscribe requests to the remote endpoint for the specified topic paths.
+   *
+   * This method is used to subscribe to the topics of many services at once, e.g. when a
+   * connection becomes ready. By default, this method calls {@link #subscribe(String)} for each
+   * topic path. Subclasses may send the requests as a batch.
+   *
+   * @param topic_paths The topic paths to subscribe to.
+   * @return True if all requests were sent.
+   */
+  public boolean subscribe(Collection<String> topic_paths) {
+    boolean success = true;
+    for (String topic_path : topic_paths) {
+      if (!subscribe(topic_path)) {
+        success = false;
+      }
+    }
+    return success;
+  }
+
   /**
    * Sends an unsubscribe request to the remote endpoint for the specified topic path.
    *
@@ -364,6 +468,26 @@ public abstract class Connection {
    */
   public abstract boolean unsubscribe(Uri topic_uri);
 
+  /**
+   * Sends unsubscribe requests to the remote endpoint for the specified topic paths.
+   * This method is the counterpart of {@link #subscribe(Collection)}.
+   *
+   * By default, this method calls {@link #unsubscribe(String)} for each topic path. Subclasses
+   * may send the requests as a batch.
+   *
+   * @param topic_paths The topic paths to unsubscribe from.
+   * @return True if all requests were sent.
+   */
+  public boolean unsubscribe(Collection<String> topic_paths) {
+    boolean success = true;
+    for (String topic_path : topic_paths) {
+      if (!unsubscribe(topic_path)) {
+        success = false;
+      }
+    }
+    return success;
+  }
+
   /**
    * Sets the local home directory path.
    *
@@ -433,6 +557,7 @@ public abstract class Connection {
 
   private String home_path_;  // The home directory of this user account.
   private boolean is_ready_;  // True if the connection handshake successfully completed.
+  private Object registration_lock_;  // Serializes registration with the ConnectionManager.
   private String server_id_;  // Server identification received during welcome handshake.
   private String session_id_;  // Session ID of WAMP session.
   private Uri uri_;  // The connection URI.
@@ -9,7 +9,8 @@ import ai.general.plugin.PluginManager;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The ConnectionManager manages all {@link Connection} instances.
@@ -20,6 +21,21 @@ import java.util.HashSet;
  * The ConnectionManager interacts with the {@link PluginManager} to notify services of new or
  * closed connections.
  *
+ * Connections are indexed by session ID and by user account, so that the connections of a session
+ * or user can be found without scanning all connections. Connections are indexed under the session
+ * ID and user account they have when they are added. The server and client side of a connection
+ * share the same session ID. Thus, if both endpoints run in the same process, a lookup by session
+ * ID returns both sides.
+ *
+ * The ConnectionManager does not hold a global lock. Connections can be added, removed and looked
+ * up concurrently. The addition and removal of the same connection, including the notification
+ * of the {@link PluginManager}, are serialized by a per-connection lock, so that services are
+ * never connected to a connection after it has been removed or disconnected before they have
+ * been connected. The collections returned by the ConnectionManager are read-only live views that
+ * can be iterated while connections are added or removed. Their iterators are weakly consistent,
+ * i.e. they never throw a ConcurrentModificationException and they reflect the state at some
+ * point at or since their creation.
+ *
  * ConnectionManager is a singleton class.
  */
 public class ConnectionManager {
@@ -29,12 +45,123 @@ public class ConnectionManager {
    */
   public static final ConnectionManager Instance = new ConnectionManager();
 
+  /**
+   * Maps keys to the set of connections indexed under the key.
+   *
+   * Index entries are created when the first connection is indexed under a key and removed when
+   * the last connection is removed, so that the index does not grow with the number of past
+   * sessions. Updates of the same key are serialized by locking the connection set of the key.
+   * Lookups do not lock.
+   */
+  private static class Index {
+
+    public Index() {
+      map_ = new ConcurrentHashMap<String, Set<Connection>>();
+    }
+
+    /**
+     * Adds a connection under the specified key. Null keys are ignored.
+     *
+     * @param key The index key or null.
+     * @param connection The connection to add.
+     */
+    public void add(String key, Connection connection) {
+      if (key == null) {
+        return;
+      }
+      while (true) {
+        Set<Connection> connections = map_.get(key);
+        if (connections == null) {
+          connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+          Set<Connection> existing = map_.putIfAbsent(key, connections);
+          if (existing != null) {
+            connections = existing;
+          }
+        }
+        synchronized (connections) {
+          // The set may have been removed from the index after its last connection was removed.
+          if (map_.get(key) == connections) {
+            connections.add(connection);
+            return;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns a read-only view of the connections indexed under the specified key.
+     *
+     * @param key The index key.
+     * @return The connections indexed under the key. The collection is empty if there are none.
+     */
+    public Collection<Connection> get(String key) {
+      Set<Connection> connections = key != null ? map_.get(key) : null;
+      if (connections == null) {
+        return Collections.emptySet();
+      }
+      return Collections.unmodifiableSet(connections);
+    }
+
+    /**
+     * Removes a connection from the specified key. Null keys are ignored.
+     *
+     * @param key The index key or null.
+     * @param connection The connection to remove.
+     */
+    public void remove(String key, Connection connection) {
+      if (key == null) {
+        return;
+      }
+      Set<Connection> connections = map_.get(key);
+      if (connections == null) {
+        return;
+      }
+      synchronized (connections) {
+        if (connections.remove(connection) && connections.isEmpty()) {
+          map_.remove(key, connections);
+        }
+      }
+    }
+
+    /**
+     * Returns the number of keys in the index.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+      return map_.size();
+    }
+
+    private ConcurrentHashMap<String, Set<Connection>> map_;  // Maps keys to connections.
+  }
+
+  /**
+   * Keys under which a connection has been indexed.
+   */
+  private static class Registration {
+
+    /**
+     * @param session_id The session ID of the connection or null.
+     * @param user_account The user account of the connection or null.
+     */
+    public Registration(String session_id, String user_account) {
+      this.session_id_ = session_id;
+      this.user_account_ = user_account;
+    }
+
+    private String session_id_;  // Session ID or null.
+    private String user_account_;  // User account or null.
+  }
+
   /**
    * ConnectionManager is a singleton.
    * The singleton instance can be obtained via {@link #Instance}.
    */
   private ConnectionManager() {
-    connections_ = new HashSet<Connection>();
+    connections_ = new ConcurrentHashMap<Connection, Registration>();
+    num_connections_ = new StripedCounter();
+    sessions_ = new Index();
+    users_ = new Index();
   }
 
   /**
@@ -49,29 +176,77 @@ public class ConnectionManager {
    * added by this method must be removed with a call to {@link #remove(Connection)} when the
    * connection is closed.
    *
+   * The connection is indexed under its current session ID and user account.
+   *
    * The ConnectionManager automatically notifes the {@link PluginManager} of the new connection,
-   * which connects all enabled services to the new connection.
+   * which connects all enabled services to the new connection. The PluginManager is notified
+   * while holding the registration lock of the connection only, so that subscribing the services
+   * of one connection does not block other connections. Thus, plugins may be connected to
+   * different connections concurrently. See {@link ai.general.plugin.Plugin}.
    *
    * @param connection The connection to add to the connection manager.
    * @throws IllegalArgumentException if the connection is not connected.
    */
-  public synchronized void add(Connection connection) {
+  public void add(Connection connection) {
     if (!connection.isReady()) {
       throw new IllegalArgumentException("Connection must be ready.");
     }
-    if (!connections_.contains(connection)) {
-      connections_.add(connection);
+    synchronized (connection.getRegistrationLock()) {
+      if (!connection.isReady()) {
+        // The connection has been closed and removed concurrently.
+        return;
+      }
+      Registration registration =
+        new Registration(connection.getSessionId(), connection.getUserAccount());
+      if (connections_.putIfAbsent(connection, registration) != null) {
+        return;
+      }
+      num_connections_.increment();
+      sessions_.add(registration.session_id_, connection);
+      users_.add(registration.user_account_, connection);
       PluginManager.Instance.connect(connection);
     }
   }
 
   /**
-   * Returns a read-only collection of all connections.
+   * Returns a read-only view of all connections.
    *
    * @return A collection of all connections.
    */
   public Collection<Connection> getConnections() {
-    return Collections.unmodifiableSet(connections_);
+    return Collections.unmodifiableSet(connections_.keySet());
+  }
+
+  /**
+   * Returns a read-only view of all connections with the specified session ID.
+   *
+   * @param session_id The session ID.
+   * @return The connections of the session. The collection is empty if there are none.
+   */
+  public Collection<Connection> getSessionConnections(String session_id) {
+    return sessions_.get(session_id);
+  }
+
+  /**
+   * Returns a read-only view of all connections associated with the specified user account.
+   *
+   * @param user_account The user account.
+   * @return The connections of the user. The collection is empty if there are none.
+   */
+  public Collection<Connection> getUserConnections(String user_account) {
+    return users_.get(user_account);
+  }
+
+  /**
+   * Checks whether the specified connection has been added and not yet removed. The result is
+   * stable only while the registration lock of the connection is held. See
+   * {@link Connection#getRegistrationLock()}.
+   *
+   * @param connection The connection to check.
+   * @return True if the connection is registered with the ConnectionManager.
+   */
+  public boolean isRegistered(Connection connection) {
+    return connections_.containsKey(connection);
   }
 
   /**
@@ -80,7 +255,25 @@ public class ConnectionManager {
    * @return The number of connections.
    */
   public int numConnections() {
-    return connections_.size();
+    return (int) num_connections_.sum();
+  }
+
+  /**
+   * Returns the number of distinct session IDs of all connections.
+   *
+   * @return The number of sessions.
+   */
+  public int numSessions() {
+    return sessions_.size();
+  }
+
+  /**
+   * Returns the number of distinct user accounts of all connections.
+   *
+   * @return The number of users.
+   */
+  public int numUsers() {
+    return users_.size();
   }
 
   /**
@@ -94,11 +287,23 @@ public class ConnectionManager {
    *
    * @param connection The connection to remove from the connection manager.
    */
-  public synchronized void remove(Connection connection) {
-    if (connections_.remove(connection)) {
+  public void remove(Connection connection) {
+    synchronized (connection.getRegistrationLock()) {
+      Registration registration = connections_.remove(connection);
+      if (registration == null) {
+        return;
+      }
+      num_connections_.decrement();
+      sessions_.remove(registration.session_id_, connection);
+      users_.remove(registration.user_account_, connection);
       PluginManager.Instance.disconnect(connection);
     }
   }
 
-  private HashSet<Connection> connections_;  // All connections.
+  // All connections mapped to the keys under which they are indexed.
+  private ConcurrentHashMap<Connection, Registration> connections_;
+
+  private StripedCounter num_connections_;  // Number of connections.
+  private Index sessions_;  // Connections indexed by session ID.
+  private Index users_;  // Connections indexed by user account.
 }
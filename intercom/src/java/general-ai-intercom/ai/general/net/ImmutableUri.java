@@ -0,0 +1,182 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.net.URI;
+
+/**
+ * A Uri that cannot be modified.
+ *
+ * The string representation of an ImmutableUri is computed once at construction time, which
+ * makes {@link #toString()} free. ImmutableUri is intended for URI's that are used or rendered
+ * many times, such as relay URI's and cached request URI's.
+ *
+ * Modified copies can be created with {@link #withPath(String)} and
+ * {@link #withFragment(String)}. The copies share the query parameters with the original.
+ * A mutable copy can be created with the {@link Uri#Uri(Uri)} copy constructor.
+ *
+ * All methods that would modify the URI throw an UnsupportedOperationException.
+ *
+ * ImmutableUri is thread-safe.
+ */
+public class ImmutableUri extends Uri {
+
+  /**
+   * Creates an ImmutableUri from a URI string.
+   *
+   * @param uri_string The URI string.
+   * @throws IllegalArgumentException If the URI string is invalid.
+   */
+  public ImmutableUri(String uri_string) throws IllegalArgumentException {
+    super(uri_string);
+    string_ = super.toString();
+  }
+
+  /**
+   * Creates an ImmutableUri from a Java URI.
+   *
+   * @param uri The Java URI.
+   */
+  public ImmutableUri(URI uri) {
+    super(uri);
+    string_ = super.toString();
+  }
+
+  /**
+   * Creates an immutable copy of a Uri.
+   *
+   * @param uri The Uri to copy.
+   */
+  public ImmutableUri(Uri uri) {
+    super(uri);
+    string_ = super.toString();
+  }
+
+  /**
+   * Creates a copy of an ImmutableUri with a different path and fragment.
+   *
+   * @param uri The ImmutableUri to copy.
+   * @param path The path of the copy.
+   * @param fragment The fragment of the copy.
+   */
+  private ImmutableUri(ImmutableUri uri, String path, String fragment) {
+    super(uri, path, fragment);
+    string_ = super.toString();
+  }
+
+  /**
+   * Returns the specified Uri if it is an ImmutableUri or an immutable copy otherwise.
+   *
+   * @param uri A Uri.
+   * @return An ImmutableUri equal to uri.
+   */
+  public static ImmutableUri of(Uri uri) {
+    if (uri instanceof ImmutableUri) {
+      return (ImmutableUri) uri;
+    }
+    return new ImmutableUri(uri);
+  }
+
+  /**
+   * Not supported.
+   *
+   * @param name The name of the parameter to remove.
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public void removeParameter(String name) {
+    throw new UnsupportedOperationException("ImmutableUri cannot be modified.");
+  }
+
+  /**
+   * Not supported.
+   *
+   * @param fragment The fragment.
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public void setFragment(String fragment) {
+    throw new UnsupportedOperationException("ImmutableUri cannot be modified.");
+  }
+
+  /**
+   * Not supported.
+   *
+   * @param name The name of the parameter.
+   * @param value The value of the parameter.
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public void setParameter(String name, String value) {
+    throw new UnsupportedOperationException("ImmutableUri cannot be modified.");
+  }
+
+  /**
+   * Not supported.
+   *
+   * @param path The resource path.
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public void setPath(String path) {
+    throw new UnsupportedOperationException("ImmutableUri cannot be modified.");
+  }
+
+  /**
+   * Not supported.
+   *
+   * @param port The port.
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public void setPort(int port) {
+    throw new UnsupportedOperationException("ImmutableUri cannot be modified.");
+  }
+
+  /**
+   * Not supported.
+   *
+   * @param user The user information.
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public void setUser(String user) {
+    throw new UnsupportedOperationException("ImmutableUri cannot be modified.");
+  }
+
+  /**
+   * Returns the string representation computed at construction time.
+   *
+   * @return A string representation of the URI.
+   */
+  @Override
+  public String toString() {
+    return string_;
+  }
+
+  /**
+   * Returns a copy of this URI with the specified fragment.
+   *
+   * @param fragment The fragment of the copy.
+   * @return An ImmutableUri that differs from this URI only in the fragment.
+   */
+  public ImmutableUri withFragment(String fragment) {
+    return new ImmutableUri(this, getPath(), fragment);
+  }
+
+  /**
+   * Returns a copy of this URI with the specified path. If the URI has a server, the path is
+   * made absolute.
+   *
+   * @param path The path of the copy.
+   * @return An ImmutableUri that differs from this URI only in the path.
+   */
+  public ImmutableUri withPath(String path) {
+    return new ImmutableUri(this, path, getFragment());
+  }
+
+  private String string_;  // The string representation of this URI.
+}
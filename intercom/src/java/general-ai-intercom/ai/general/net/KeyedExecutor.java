@@ -0,0 +1,259 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Executes tasks in order per key and tasks with different keys in parallel.
+ *
+ * KeyedExecutor is used to handle published events. Events that are published to the same topic
+ * must be handled in the order they were received, but events that are published to different
+ * topics can be handled concurrently. The topic path is used as the key.
+ *
+ * Each key has its own task queue. A queue is drained by at most one thread of the underlying
+ * executor at a time. In order to be fair to other keys, a thread runs at most
+ * {@link #kBatchSize} tasks of a key before it reschedules the key. Queues are removed when
+ * they become empty, so the number of keys does not grow without bound.
+ *
+ * If the underlying executor rejects a key, the tasks of the key are run on the thread that
+ * calls {@link #execute(String, Runnable)}. This throttles producers that outpace the executor.
+ * If the executor rejects a key that is rescheduled after a batch, the thread that ran the batch
+ * continues to run the tasks of the key.
+ *
+ * Exceptions thrown by tasks are logged and do not affect subsequent tasks.
+ *
+ * KeyedExecutor is thread-safe.
+ */
+public class KeyedExecutor {
+
+  /** Maximum number of tasks of one key that are run before the key is rescheduled. */
+  public static final int kBatchSize = 64;
+
+  /**
+   * Task queue of a single key.
+   */
+  private class KeyQueue implements Runnable {
+
+    /**
+     * @param key The key of this queue.
+     */
+    public KeyQueue(String key) {
+      this.key_ = key;
+      tasks_ = new ArrayDeque<Runnable>();
+      scheduled_ = false;
+      retired_ = false;
+    }
+
+    /**
+     * Adds a task to this queue. Returns true if the queue must be scheduled by the caller.
+     * Returns null if the queue has been retired and the task has not been added.
+     *
+     * @param task The task to add.
+     * @return True if the queue needs to be scheduled, false if it is already scheduled or null
+     *         if the queue is retired.
+     */
+    public synchronized Boolean add(Runnable task) {
+      if (retired_) {
+        return null;
+      }
+      tasks_.add(task);
+      if (scheduled_) {
+        return false;
+      }
+      scheduled_ = true;
+      return true;
+    }
+
+    /**
+     * Returns the number of tasks waiting in this queue.
+     *
+     * @return The queue depth.
+     */
+    public synchronized int depth() {
+      return tasks_.size();
+    }
+
+    /**
+     * Runs up to {@link #kBatchSize} tasks. Reschedules the queue if more tasks are waiting or
+     * retires the queue if it is empty. If the executor rejects the queue, runs the next batch
+     * on the current thread.
+     */
+    @Override
+    public void run() {
+      while (true) {
+        for (int i = 0; i < kBatchSize; i++) {
+          Runnable task = next();
+          if (task == null) {
+            return;
+          }
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            log.catching(Level.ERROR, e);
+          }
+        }
+        if (!hasNext() || submit(this)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Returns true if there are waiting tasks. Retires the queue otherwise.
+     *
+     * @return True if there are waiting tasks.
+     */
+    private synchronized boolean hasNext() {
+      if (tasks_.isEmpty()) {
+        retire();
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Removes and returns the next task or retires the queue and returns null if the queue is
+     * empty.
+     *
+     * @return The next task or null.
+     */
+    private synchronized Runnable next() {
+      Runnable task = tasks_.poll();
+      if (task == null) {
+        retire();
+      }
+      return task;
+    }
+
+    /**
+     * Removes this queue from the queue map. Must be called with the lock held.
+     */
+    private void retire() {
+      scheduled_ = false;
+      retired_ = true;
+      queues_.remove(key_, this);
+    }
+
+    private String key_;  // The key of this queue.
+    private boolean retired_;  // True if this queue has been removed from the queue map.
+    private boolean scheduled_;  // True if this queue has been submitted to the executor.
+    private ArrayDeque<Runnable> tasks_;  // Waiting tasks.
+  }
+
+  /**
+   * Creates a KeyedExecutor that runs tasks on the specified executor. The degree of
+   * parallelism is limited by the number of threads of the executor.
+   *
+   * @param executor The executor that runs the tasks.
+   */
+  public KeyedExecutor(Executor executor) {
+    this.executor_ = executor;
+    queues_ = new ConcurrentHashMap<String, KeyQueue>();
+  }
+
+  /**
+   * Runs a task after all previously submitted tasks with the same key have completed.
+   *
+   * @param key The ordering key.
+   * @param task The task to run.
+   */
+  public void execute(String key, Runnable task) {
+    while (true) {
+      KeyQueue queue = queues_.get(key);
+      if (queue == null) {
+        KeyQueue new_queue = new KeyQueue(key);
+        queue = queues_.putIfAbsent(key, new_queue);
+        if (queue == null) {
+          queue = new_queue;
+        }
+      }
+      Boolean needs_schedule = queue.add(task);
+      if (needs_schedule == null) {
+        continue;  // The queue was retired concurrently.
+      }
+      if (needs_schedule) {
+        schedule(queue);
+      }
+      return;
+    }
+  }
+
+  /**
+   * Returns the number of keys with waiting or running tasks.
+   *
+   * @return The number of active keys.
+   */
+  public int getKeyCount() {
+    return queues_.size();
+  }
+
+  /**
+   * Returns the number of waiting tasks of the specified key. Does not include a task that is
+   * currently running.
+   *
+   * @param key The ordering key.
+   * @return The queue depth of the key.
+   */
+  public int getQueueDepth(String key) {
+    KeyQueue queue = queues_.get(key);
+    return queue != null ? queue.depth() : 0;
+  }
+
+  /**
+   * Returns a snapshot of the queue depths of all active keys.
+   *
+   * @return Map from key to the number of waiting tasks.
+   */
+  public Map<String, Integer> getQueueDepths() {
+    HashMap<String, Integer> depths = new HashMap<String, Integer>();
+    for (Map.Entry<String, KeyQueue> entry : queues_.entrySet()) {
+      depths.put(entry.getKey(), entry.getValue().depth());
+    }
+    return depths;
+  }
+
+  /**
+   * Submits a queue to the underlying executor. Runs the queue on the calling thread if the
+   * executor rejects it.
+   *
+   * @param queue The queue to schedule.
+   */
+  private void schedule(KeyQueue queue) {
+    if (!submit(queue)) {
+      queue.run();
+    }
+  }
+
+  /**
+   * Submits a queue to the underlying executor.
+   *
+   * @param queue The queue to submit.
+   * @return False if the executor rejected the queue.
+   */
+  private boolean submit(KeyQueue queue) {
+    try {
+      executor_.execute(queue);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  private static Logger log = LogManager.getLogger();
+
+  private Executor executor_;  // Runs the task queues.
+  private ConcurrentHashMap<String, KeyQueue> queues_;  // Task queues of active keys.
+}
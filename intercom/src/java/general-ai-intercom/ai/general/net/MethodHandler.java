@@ -12,8 +12,7 @@ import ai.general.directory.Result;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.lang.reflect.Type;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
@@ -32,6 +31,10 @@ import org.apache.logging.log4j.LogManager;
  * An RPC method may throw an exception which is returned to the remote caller. While not
  * necessary, it is recommended that a subclass of {@link RpcException} is thrown since it allows
  * specifying all error information that can be returned to the caller.
+ *
+ * The method is bound to a {@link MethodInvoker} when the MethodHandler is created, so that
+ * requests are handled without reflective calls where possible. Exceptions thrown by the method
+ * are reported in the same way regardless of how the method is invoked.
  */
 public class MethodHandler extends Handler {
 
@@ -49,7 +52,9 @@ public class MethodHandler extends Handler {
    * RPC call methods may have any number of parameters, return any value and throw exceptions.
    *
    * Method parameters must hava a POJO type. This includes primitive Java types or their arrays,
-   * and bean types, i.e. classes that declare getters and setters for each field.
+   * and bean types, i.e. classes that declare getters and setters for each field. Parameters
+   * may be generic collections of POJO types, e.g. List&lt;Point&gt;. Arguments are bound to the
+   * generic parameter types.
    *
    * @param name A unique name for the MethodHandler.
    * @param catchall True if this a catch-all handler.
@@ -58,19 +63,35 @@ public class MethodHandler extends Handler {
    * @throws IllegalArgumentException if the arguments are invalid or incompatible with each other.
    */
   public MethodHandler(String name, boolean catchall, Object instance, Method method) {
+    this(name,
+         catchall,
+         method.getGenericParameterTypes(),
+         MethodInvoker.create(checkInstance(instance, method), method));
+  }
+
+  /**
+   * Creates a MethodHandler that calls a method through the specified invoker. This constructor
+   * is used by generated code that binds methods without reflection.
+   *
+   * Arguments are bound to the specified parameter types before they are passed to the invoker.
+   * The same restrictions apply to the parameter types as for the methods accepted by
+   * {@link #MethodHandler(String, boolean, Object, Method)}.
+   *
+   * @param name A unique name for the MethodHandler.
+   * @param catchall True if this a catch-all handler.
+   * @param parameter_types The generic parameter types of the method.
+   * @param invoker Invokes the method.
+   */
+  public MethodHandler(String name,
+                       boolean catchall,
+                       Type[] parameter_types,
+                       MethodInvoker invoker) {
     super(name, catchall);
-    if (!Modifier.isStatic(method.getModifiers())) {
-      if (instance == null) {
-        throw new IllegalArgumentException("Non-static method requires instance.");
-      }
-      if (!method.getDeclaringClass().isInstance(instance)) {
-        throw new IllegalArgumentException("Incompatible instance object.");
-      }
+    binders_ = new ArgumentBinder[parameter_types.length];
+    for (int i = 0; i < parameter_types.length; i++) {
+      binders_[i] = new ArgumentBinder(parameter_types[i]);
     }
-    this.instance_ = instance;
-    this.method_ = method;
-    parameter_types_ = method.getParameterTypes();
-    json_parser_ = new ObjectMapper();
+    this.invoker_ = invoker;
   }
 
   /**
@@ -81,22 +102,22 @@ public class MethodHandler extends Handler {
    * @param request The request to handle.
    */
   public void handle(Request request) {
-    log.entry(request.getUri().toString());
+    log.entry(request.getUri());
     try {
-      Object[] raw_args = request.getArguments().toArray();
-      if (raw_args.length != parameter_types_.length) {
+      int num_args = request.numArguments();
+      if (num_args != binders_.length) {
         request.getResult().addError(
             new Result.Error("invalid number of method arguments",
-                             "got " + raw_args.length + " arguments for method with " +
-                             parameter_types_.length + " arguments"));
+                             "got " + num_args + " arguments for method with " +
+                             binders_.length + " arguments"));
         log.exit("invalid number of arguments");
         return;
       }
-      Object[] args = new Object[raw_args.length];
-      for (int i = 0; i < raw_args.length; i++) {
-        args[i] = json_parser_.convertValue(raw_args[i], parameter_types_[i]);
+      Object[] args = new Object[num_args];
+      for (int i = 0; i < num_args; i++) {
+        args[i] = binders_[i].bind(request.getRawArgument(i));
       }
-      Object result = method_.invoke(instance_, args);
+      Object result = invoker_.invoke(args);
       if (result != null) {
         request.getResult().addValue(result);
       }
@@ -126,10 +147,28 @@ public class MethodHandler extends Handler {
     log.exit();
   }
 
+  /**
+   * Checks that the instance is compatible with the method.
+   *
+   * @param instance Instance associated with method. May be null for static methods.
+   * @param method The method to be called.
+   * @return The instance.
+   * @throws IllegalArgumentException if the instance is incompatible with the method.
+   */
+  private static Object checkInstance(Object instance, Method method) {
+    if (!Modifier.isStatic(method.getModifiers())) {
+      if (instance == null) {
+        throw new IllegalArgumentException("Non-static method requires instance.");
+      }
+      if (!method.getDeclaringClass().isInstance(instance)) {
+        throw new IllegalArgumentException("Incompatible instance object.");
+      }
+    }
+    return instance;
+  }
+
   private static Logger log = LogManager.getLogger();
 
-  private Object instance_;  // The object instance that is associated with the method call.
-  private ObjectMapper json_parser_;  // JSON parser.
-  private Method method_;  // The method to be called.
-  private Class<?>[] parameter_types_;  // The parameter types of the method.
+  private ArgumentBinder[] binders_;  // Binds request arguments to the method parameters.
+  private MethodInvoker invoker_;  // Invokes the method.
 }
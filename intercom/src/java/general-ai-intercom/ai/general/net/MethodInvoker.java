@@ -0,0 +1,433 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Invokes a method that has been bound once, so that repeated invocations avoid the overhead of
+ * {@link Method#invoke(Object, Object...)}.
+ *
+ * If the JVM provides java.lang.invoke.LambdaMetafactory, MethodInvoker binds methods with up to
+ * {@link #kMaxGeneratedArity} parameters to a generated implementation of a small functional
+ * interface. Calls through the generated class are direct calls that can be inlined by the JIT.
+ * Other methods, and methods that cannot be bound, are invoked via reflection.
+ *
+ * Methods of classes that are not visible to the class loader of MethodInvoker, such as classes
+ * loaded by a plugin class loader, are bound via a small lookup class that is defined in the
+ * package and class loader of the declaring class. This requires MethodHandles.privateLookupIn,
+ * which is available since Java 9. The lookup class and its lookup method are package-private,
+ * so that the lookup is only available to the package of the declaring class. The Function and
+ * Procedure interfaces are public so that they can be implemented by classes generated in other
+ * class loaders.
+ *
+ * Plain method handles are not used on the hot path, since a method handle that is stored in a
+ * field is not a constant for the JIT and is usually slower to invoke than reflection.
+ *
+ * MethodInvoker can also be subclassed by generated code that calls the method directly, such as
+ * the service tables generated by {@link ai.general.plugin.annotation.ServiceTableProcessor}.
+ *
+ * Regardless of how the method is invoked, exceptions thrown by the method are reported as
+ * {@link InvocationTargetException}.
+ */
+public abstract class MethodInvoker {
+
+  /** Maximum number of parameters of methods that are bound to a generated invoker. */
+  public static final int kMaxGeneratedArity = 3;
+
+  // Name of the JDK lambda metafactory class.
+  private static final String kLambdaMetafactory = "java.lang.invoke.LambdaMetafactory";
+
+  // Simple name of the lookup class defined in the package of a declaring class.
+  private static final String kLookupClassName = "MethodInvoker$$Lookup";
+
+  // Name of the static method of the lookup class that returns its lookup.
+  private static final String kLookupMethod = "lookup";
+
+  // Internal name of the MethodHandles class.
+  private static final String kMethodHandles = "java/lang/invoke/MethodHandles";
+
+  // Name of the MethodHandles method that creates a lookup in another class.
+  private static final String kPrivateLookupIn = "privateLookupIn";
+
+  /** Generated invoker of methods without parameters. */
+  public interface Function0 { Object invoke(); }
+
+  /** Generated invoker of methods with 1 parameter. */
+  public interface Function1 { Object invoke(Object arg0); }
+
+  /** Generated invoker of methods with 2 parameters. */
+  public interface Function2 { Object invoke(Object arg0, Object arg1); }
+
+  /** Generated invoker of methods with 3 parameters. */
+  public interface Function3 { Object invoke(Object arg0, Object arg1, Object arg2); }
+
+  /** Generated invoker of void methods without parameters. */
+  public interface Procedure0 { void invoke(); }
+
+  /** Generated invoker of void methods with 1 parameter. */
+  public interface Procedure1 { void invoke(Object arg0); }
+
+  /** Generated invoker of void methods with 2 parameters. */
+  public interface Procedure2 { void invoke(Object arg0, Object arg1); }
+
+  /** Generated invoker of void methods with 3 parameters. */
+  public interface Procedure3 { void invoke(Object arg0, Object arg1, Object arg2); }
+
+  /**
+   * Invokes a method via a generated functional interface implementation.
+   */
+  private static class GeneratedInvoker extends MethodInvoker {
+
+    /**
+     * @param function The generated implementation of one of the Function or Procedure
+     *                 interfaces.
+     * @param arity The number of method parameters.
+     * @param is_void True if the method returns void.
+     */
+    public GeneratedInvoker(Object function, int arity, boolean is_void) {
+      this.function_ = function;
+      this.arity_ = arity;
+      this.is_void_ = is_void;
+    }
+
+    /**
+     * Invokes the generated function.
+     *
+     * @param args The method arguments.
+     * @return The return value of the method or null if the method is void.
+     * @throws InvocationTargetException if the method throws an exception.
+     */
+    @Override
+    public Object invoke(Object[] args) throws InvocationTargetException {
+      try {
+        switch (arity_) {
+          case 0:
+            if (is_void_) {
+              ((Procedure0) function_).invoke();
+              return null;
+            }
+            return ((Function0) function_).invoke();
+          case 1:
+            if (is_void_) {
+              ((Procedure1) function_).invoke(args[0]);
+              return null;
+            }
+            return ((Function1) function_).invoke(args[0]);
+          case 2:
+            if (is_void_) {
+              ((Procedure2) function_).invoke(args[0], args[1]);
+              return null;
+            }
+            return ((Function2) function_).invoke(args[0], args[1]);
+          default:
+            if (is_void_) {
+              ((Procedure3) function_).invoke(args[0], args[1], args[2]);
+              return null;
+            }
+            return ((Function3) function_).invoke(args[0], args[1], args[2]);
+        }
+      } catch (Throwable e) {
+        throw new InvocationTargetException(e);
+      }
+    }
+
+    private int arity_;  // The number of method parameters.
+    private Object function_;  // Generated Function or Procedure implementation.
+    private boolean is_void_;  // True if the method returns void.
+  }
+
+  /**
+   * Invokes a method via reflection.
+   */
+  private static class ReflectiveInvoker extends MethodInvoker {
+
+    /**
+     * @param instance Instance associated with method or null for static methods.
+     * @param method The method to invoke.
+     */
+    public ReflectiveInvoker(Object instance, Method method) {
+      this.instance_ = instance;
+      this.method_ = method;
+    }
+
+    /**
+     * Invokes the method via reflection.
+     *
+     * @param args The method arguments.
+     * @return The return value of the method or null if the method is void.
+     * @throws IllegalAccessException if the method is not accessible.
+     * @throws InvocationTargetException if the method throws an exception.
+     */
+    @Override
+    public Object invoke(Object[] args) throws IllegalAccessException, InvocationTargetException {
+      return method_.invoke(instance_, args);
+    }
+
+    private Object instance_;  // Instance associated with method or null.
+    private Method method_;  // The method to invoke.
+  }
+
+  /**
+   * Creates an invoker for the specified method. The instance must be compatible with the
+   * method. See {@link MethodHandler#MethodHandler(String, boolean, Object, Method)}.
+   *
+   * @param instance Instance associated with method or null for static methods.
+   * @param method The method to invoke.
+   * @return A MethodInvoker for the method.
+   */
+  public static MethodInvoker create(Object instance, Method method) {
+    Object function = generate(instance, method);
+    if (function != null) {
+      return new GeneratedInvoker(function,
+                                  method.getParameterTypes().length,
+                                  method.getReturnType() == void.class);
+    }
+    return new ReflectiveInvoker(instance, method);
+  }
+
+  /**
+   * Invokes the method. The arguments must have been converted to the parameter types of the
+   * method. Null values must not be passed for primitive parameters.
+   *
+   * @param args The method arguments.
+   * @return The return value of the method or null if the method is void.
+   * @throws IllegalAccessException if the method is not accessible.
+   * @throws InvocationTargetException if the method throws an exception.
+   */
+  public abstract Object invoke(Object[] args)
+    throws IllegalAccessException, InvocationTargetException;
+
+  /**
+   * Returns true if this invoker calls the method via reflection.
+   *
+   * @return True if the invoker is reflective.
+   */
+  public boolean isReflective() {
+    return this instanceof ReflectiveInvoker;
+  }
+
+  /**
+   * Generates an implementation of the Function or Procedure interface that matches the method.
+   * Returns null if the method has too many parameters, cannot be accessed by this class or the
+   * JVM does not support LambdaMetafactory.
+   *
+   * @param instance Instance associated with method or null for static methods.
+   * @param method The method to bind.
+   * @return The generated function or null.
+   */
+  private static Object generate(Object instance, Method method) {
+    Class<?>[] parameter_types = method.getParameterTypes();
+    if (parameter_types.length > kMaxGeneratedArity) {
+      return null;
+    }
+    boolean is_void = method.getReturnType() == void.class;
+    boolean is_static = Modifier.isStatic(method.getModifiers());
+    Class<?> function_type = functionType(parameter_types.length, is_void);
+    Class<?>[] erased_types = new Class<?>[parameter_types.length];
+    Class<?>[] boxed_types = new Class<?>[parameter_types.length];
+    for (int i = 0; i < parameter_types.length; i++) {
+      erased_types[i] = Object.class;
+      boxed_types[i] = box(parameter_types[i]);
+    }
+    Class<?> return_type = is_void ? void.class : Object.class;
+    try {
+      MethodHandles.Lookup lookup = lookupIn(method.getDeclaringClass());
+      MethodHandle metafactory = lookup.findStatic(
+          Class.forName(kLambdaMetafactory),
+          "metafactory",
+          MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+                                MethodType.class, MethodType.class, MethodHandle.class,
+                                MethodType.class));
+      MethodType factory_type = is_static ?
+        MethodType.methodType(function_type) :
+        MethodType.methodType(function_type, method.getDeclaringClass());
+      CallSite site = (CallSite) metafactory.invokeWithArguments(
+          lookup,
+          "invoke",
+          factory_type,
+          MethodType.methodType(return_type, erased_types),
+          lookup.unreflect(method),
+          MethodType.methodType(is_void ? void.class : box(method.getReturnType()), boxed_types));
+      return is_static ?
+        site.getTarget().invoke() :
+        site.getTarget().invokeWithArguments(instance);
+    } catch (Throwable e) {
+      log.catching(Level.TRACE, e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns a lookup that can generate invokers of methods of the specified class.
+   *
+   * Returns the lookup of MethodInvoker if the class is visible to the class loader of
+   * MethodInvoker. Otherwise, returns the lookup of a lookup class in the package and class loader
+   * of the declaring class. A lookup created via MethodHandles.privateLookupIn cannot be used
+   * directly, since the lambda metafactory requires full privilege access, which is not granted
+   * across class loaders. It has package access, however, and is used to define the lookup class
+   * and to call its package-private lookup method.
+   *
+   * @param declaring_class The declaring class of the bound method.
+   * @return A lookup for generating the invoker.
+   * @throws Throwable if no suitable lookup can be created.
+   */
+  private static MethodHandles.Lookup lookupIn(Class<?> declaring_class) throws Throwable {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      if (Class.forName(declaring_class.getName(), false, MethodInvoker.class.getClassLoader()) ==
+          declaring_class) {
+        return lookup;
+      }
+    } catch (ClassNotFoundException e) {}
+    Method private_lookup_in = MethodHandles.class.getMethod(
+        kPrivateLookupIn, Class.class, MethodHandles.Lookup.class);
+    MethodHandles.Lookup declaring_lookup =
+      (MethodHandles.Lookup) private_lookup_in.invoke(null, declaring_class, lookup);
+    Class<?> lookup_class = defineLookupClass(declaring_class, declaring_lookup);
+    MethodHandle lookup_method = declaring_lookup.findStatic(
+        lookup_class, kLookupMethod, MethodType.methodType(MethodHandles.Lookup.class));
+    return (MethodHandles.Lookup) lookup_method.invokeWithArguments();
+  }
+
+  /**
+   * Returns the lookup class in the package and class loader of the specified class. Defines the
+   * lookup class if it does not exist.
+   *
+   * @param declaring_class The declaring class of the bound method.
+   * @param declaring_lookup A lookup in the declaring class with package access.
+   * @return The lookup class.
+   * @throws Exception if the lookup class cannot be defined.
+   */
+  private static Class<?> defineLookupClass(Class<?> declaring_class,
+                                            MethodHandles.Lookup declaring_lookup)
+    throws Exception {
+    String name = declaring_class.getName();
+    String class_name = name.substring(0, name.lastIndexOf('.') + 1) + kLookupClassName;
+    ClassLoader loader = declaring_class.getClassLoader();
+    try {
+      Class<?> lookup_class = Class.forName(class_name, false, loader);
+      if (lookup_class.getClassLoader() == loader) {
+        return lookup_class;
+      }
+    } catch (ClassNotFoundException e) {}
+    Method define_class = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+    try {
+      return (Class<?>) define_class.invoke(declaring_lookup, lookupClassFile(class_name));
+    } catch (InvocationTargetException e) {
+      // The lookup class may have been defined concurrently by another thread.
+      return Class.forName(class_name, false, loader);
+    }
+  }
+
+  /**
+   * Returns the class file of a lookup class with the specified name. The package-private lookup
+   * class declares a single package-private static method that returns MethodHandles.lookup().
+   *
+   * @param class_name The binary name of the lookup class.
+   * @return The class file.
+   * @throws IOException if the class file cannot be written.
+   */
+  private static byte[] lookupClassFile(String class_name) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);  // minor version
+    out.writeShort(51);  // major version (Java 7)
+    out.writeShort(12);  // constant pool count
+    out.writeByte(1);  // #1 Utf8: this class
+    out.writeUTF(class_name.replace('.', '/'));
+    out.writeByte(7);  // #2 Class: this class
+    out.writeShort(1);
+    out.writeByte(1);  // #3 Utf8: super class
+    out.writeUTF("java/lang/Object");
+    out.writeByte(7);  // #4 Class: super class
+    out.writeShort(3);
+    out.writeByte(1);  // #5 Utf8: method name
+    out.writeUTF(kLookupMethod);
+    out.writeByte(1);  // #6 Utf8: method descriptor
+    out.writeUTF("()L" + kMethodHandles + "$Lookup;");
+    out.writeByte(1);  // #7 Utf8: MethodHandles
+    out.writeUTF(kMethodHandles);
+    out.writeByte(7);  // #8 Class: MethodHandles
+    out.writeShort(7);
+    out.writeByte(12);  // #9 NameAndType: lookup()
+    out.writeShort(5);
+    out.writeShort(6);
+    out.writeByte(10);  // #10 Methodref: MethodHandles.lookup()
+    out.writeShort(8);
+    out.writeShort(9);
+    out.writeByte(1);  // #11 Utf8: Code attribute name
+    out.writeUTF("Code");
+    out.writeShort(0x0030);  // final super
+    out.writeShort(2);  // this class
+    out.writeShort(4);  // super class
+    out.writeShort(0);  // interfaces
+    out.writeShort(0);  // fields
+    out.writeShort(1);  // methods
+    out.writeShort(0x0008);  // static
+    out.writeShort(5);  // name
+    out.writeShort(6);  // descriptor
+    out.writeShort(1);  // attributes
+    out.writeShort(11);  // Code
+    out.writeInt(16);  // attribute length
+    out.writeShort(1);  // max stack
+    out.writeShort(0);  // max locals
+    out.writeInt(4);  // code length
+    out.writeByte(0xB8);  // invokestatic #10
+    out.writeShort(10);
+    out.writeByte(0xB0);  // areturn
+    out.writeShort(0);  // exception table length
+    out.writeShort(0);  // code attributes
+    out.writeShort(0);  // class attributes
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Returns the wrapper type of a primitive type or the type itself if it is not primitive.
+   *
+   * @param type A type.
+   * @return The boxed type.
+   */
+  private static Class<?> box(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return type;
+    }
+    return MethodType.methodType(type).wrap().returnType();
+  }
+
+  /**
+   * Returns the Function or Procedure interface for the specified arity.
+   *
+   * @param arity The number of method parameters.
+   * @param is_void True if the method returns void.
+   * @return The functional interface type.
+   */
+  private static Class<?> functionType(int arity, boolean is_void) {
+    switch (arity) {
+      case 0: return is_void ? Procedure0.class : Function0.class;
+      case 1: return is_void ? Procedure1.class : Function1.class;
+      case 2: return is_void ? Procedure2.class : Function2.class;
+      default: return is_void ? Procedure3.class : Function3.class;
+    }
+  }
+
+  private static Logger log = LogManager.getLogger();
+}
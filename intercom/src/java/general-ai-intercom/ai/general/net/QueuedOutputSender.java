@@ -0,0 +1,464 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * OutputSender that decouples the caller from a potentially slow remote endpoint.
+ *
+ * QueuedOutputSender places outgoing text messages into a bounded per-connection queue and
+ * returns immediately. Queued messages are sent by the underlying OutputSender on a thread of
+ * the specified executor. At most one flush task per queue is active at any time. A flush task
+ * drains all messages queued at the time it runs as a batch, so bursts of messages require only
+ * one task submission. If the underlying sender is a {@link BatchOutputSender}, the drained
+ * messages are passed to it as one batch.
+ *
+ * Messages can be marked as droppable. Droppable messages are messages whose loss is tolerated
+ * by the protocol, such as events. The {@link OverflowPolicy} determines what happens if the
+ * queue is full.
+ *
+ * Binary messages are not queued and are sent directly.
+ *
+ * The send methods return true if the message has been queued. Failures of the underlying
+ * sender are counted, but cannot be reported to the caller.
+ *
+ * If the executor rejects a task, e.g. because it is bounded or has been shut down, the task is
+ * run on the calling thread instead. Rejections are counted.
+ *
+ * QueuedOutputSender is thread-safe.
+ */
+public class QueuedOutputSender implements BatchOutputSender {
+
+  /**
+   * Defines the behavior when a message is sent while the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Blocks the caller until there is room in the queue. Should only be used if the remote
+     * endpoint is trusted to keep up.
+     */
+    Block,
+
+    /**
+     * Closes the connection and, if the underlying sender is a {@link CloseableOutputSender}, its
+     * transport. All queued messages are discarded and all subsequent messages are rejected.
+     */
+    Disconnect,
+
+    /**
+     * Drops the oldest queued droppable message to make room. If no queued message is droppable,
+     * a new droppable message is dropped. Messages that are not droppable, such as call results,
+     * are never dropped and may exceed the queue capacity.
+     */
+    DropOldest,
+  }
+
+  /**
+   * A queued message.
+   */
+  private static class Message {
+
+    /**
+     * Creates a queued message.
+     *
+     * @param text The message text.
+     * @param droppable True if the message may be dropped on overflow.
+     */
+    public Message(String text, boolean droppable) {
+      this.text_ = text;
+      this.droppable_ = droppable;
+    }
+
+    private boolean droppable_;  // True if the message may be dropped on overflow.
+    private String text_;  // The message text.
+  }
+
+  /**
+   * Sends all queued messages. Runs on the executor.
+   */
+  private class Flusher implements Runnable {
+
+    /**
+     * Drains the queue in batches until it is empty.
+     */
+    @Override
+    public void run() {
+      ArrayList<Message> batch = new ArrayList<Message>();
+      while (true) {
+        synchronized (queue_) {
+          if (queue_.isEmpty()) {
+            flushing_ = false;
+            return;
+          }
+          batch.addAll(queue_);
+          queue_.clear();
+          queue_.notifyAll();
+        }
+        if (batch.size() > 1 && sender_ instanceof BatchOutputSender) {
+          sendBatch(batch);
+        } else {
+          for (Message message : batch) {
+            try {
+              if (sender_.sendText(message.text_)) {
+                sent_count_.incrementAndGet();
+              } else {
+                failed_count_.incrementAndGet();
+              }
+            } catch (Exception e) {
+              log.catching(Level.DEBUG, e);
+              failed_count_.incrementAndGet();
+            }
+          }
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Creates a queue in front of the specified sender.
+   *
+   * The executor must not run tasks on the thread that submits them, since the flush task would
+   * then run on the sending thread and a blocking overflow policy could deadlock.
+   *
+   * @param sender The underlying sender that delivers messages to the remote endpoint.
+   * @param capacity The maximum number of queued messages.
+   * @param policy The overflow policy.
+   * @param executor The executor used to flush the queue.
+   * @param connection The connection to close if the policy is Disconnect. May be null.
+   */
+  public QueuedOutputSender(OutputSender sender,
+                            int capacity,
+                            OverflowPolicy policy,
+                            Executor executor,
+                            Connection connection) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be positive.");
+    }
+    this.sender_ = sender;
+    this.capacity_ = capacity;
+    this.policy_ = policy;
+    this.executor_ = executor;
+    this.connection_ = connection;
+    queue_ = new ArrayDeque<Message>();
+    flushing_ = false;
+    closed_ = false;
+    max_depth_ = 0;
+    dropped_count_ = new AtomicLong(0);
+    failed_count_ = new AtomicLong(0);
+    rejected_count_ = new AtomicLong(0);
+    sent_count_ = new AtomicLong(0);
+  }
+
+  /**
+   * Returns the queue capacity.
+   *
+   * @return The maximum number of queued messages.
+   */
+  public int getCapacity() {
+    return capacity_;
+  }
+
+  /**
+   * Returns the number of messages that were dropped or rejected due to overflow.
+   *
+   * @return The number of dropped messages.
+   */
+  public long getDroppedCount() {
+    return dropped_count_.get();
+  }
+
+  /**
+   * Returns the number of messages that the underlying sender failed to send.
+   *
+   * @return The number of failed messages.
+   */
+  public long getFailedCount() {
+    return failed_count_.get();
+  }
+
+  /**
+   * Returns the highest number of messages that have been queued at the same time.
+   *
+   * @return The maximum queue depth.
+   */
+  public int getMaxQueueDepth() {
+    synchronized (queue_) {
+      return max_depth_;
+    }
+  }
+
+  /**
+   * Returns the overflow policy.
+   *
+   * @return The overflow policy.
+   */
+  public OverflowPolicy getOverflowPolicy() {
+    return policy_;
+  }
+
+  /**
+   * Returns the number of messages currently waiting to be sent.
+   *
+   * @return The current queue depth.
+   */
+  public int getQueueDepth() {
+    synchronized (queue_) {
+      return queue_.size();
+    }
+  }
+
+  /**
+   * Returns the number of tasks that were rejected by the executor and run on the calling thread.
+   *
+   * @return The number of rejected tasks.
+   */
+  public long getRejectedCount() {
+    return rejected_count_.get();
+  }
+
+  /**
+   * Returns the number of messages successfully sent by the underlying sender.
+   *
+   * @return The number of sent messages.
+   */
+  public long getSentCount() {
+    return sent_count_.get();
+  }
+
+  /**
+   * Returns true if the queue has been closed due to an overflow with the Disconnect policy.
+   *
+   * @return True if the queue is closed.
+   */
+  public boolean isClosed() {
+    synchronized (queue_) {
+      return closed_;
+    }
+  }
+
+  /**
+   * Sends binary data directly via the underlying sender without queuing.
+   *
+   * @param data Binary data to send.
+   * @return True if the data was successfully sent.
+   */
+  @Override
+  public boolean sendBinary(ByteBuffer data) {
+    return sender_.sendBinary(data);
+  }
+
+  /**
+   * Queues a message that must not be dropped.
+   *
+   * @param text Text message to send.
+   * @return True if the message was queued.
+   */
+  @Override
+  public boolean sendText(String text) {
+    return sendText(text, false);
+  }
+
+  /**
+   * Queues a message.
+   *
+   * @param text Text message to send.
+   * @param droppable True if the message may be dropped if the queue overflows.
+   * @return True if the message was queued.
+   */
+  public boolean sendText(String text, boolean droppable) {
+    boolean disconnect = false;
+    boolean schedule = false;
+    synchronized (queue_) {
+      if (closed_) {
+        return false;
+      }
+      if (queue_.size() >= capacity_) {
+        switch (policy_) {
+          case Block:
+            while (queue_.size() >= capacity_ && !closed_) {
+              try {
+                queue_.wait();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped_count_.incrementAndGet();
+                return false;
+              }
+            }
+            if (closed_) {
+              return false;
+            }
+            break;
+          case Disconnect:
+            closed_ = true;
+            dropped_count_.addAndGet(queue_.size() + 1);
+            queue_.clear();
+            queue_.notifyAll();
+            disconnect = true;
+            break;
+          case DropOldest:
+            if (!dropOldest() && droppable) {
+              dropped_count_.incrementAndGet();
+              return true;
+            }
+            break;
+        }
+      }
+      if (!disconnect) {
+        queue_.add(new Message(text, droppable));
+        if (queue_.size() > max_depth_) {
+          max_depth_ = queue_.size();
+        }
+        if (!flushing_) {
+          flushing_ = true;
+          schedule = true;
+        }
+      }
+    }
+    if (disconnect) {
+      log.debug("output queue overflow, disconnecting");
+      closeConnection();
+      return false;
+    }
+    if (schedule) {
+      execute(new Flusher());
+    }
+    return true;
+  }
+
+  /**
+   * Queues a batch of messages that must not be dropped. The messages are sent by the same flush
+   * task unless the queue is flushed while the messages are being queued.
+   *
+   * @param texts Text messages to send.
+   * @return True if all messages were queued.
+   */
+  @Override
+  public boolean sendTexts(List<String> texts) {
+    boolean success = true;
+    for (String text : texts) {
+      if (!sendText(text, false)) {
+        success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Closes the associated connection and the transport of the underlying sender on the executor.
+   * The connection is not closed on the sending thread since the sending thread may be in the
+   * middle of processing a request, unless the executor rejects the task.
+   *
+   * Closing the connection alone would leave the remote endpoint connected to a queue that
+   * rejects all messages. Thus, the transport is closed as well if the underlying sender is a
+   * {@link CloseableOutputSender}.
+   */
+  private void closeConnection() {
+    if (connection_ == null && !(sender_ instanceof CloseableOutputSender)) {
+      return;
+    }
+    execute(new Runnable() {
+        @Override
+        public void run() {
+          if (sender_ instanceof CloseableOutputSender) {
+            try {
+              ((CloseableOutputSender) sender_).closeTransport();
+            } catch (Exception e) {
+              log.catching(Level.DEBUG, e);
+            }
+          }
+          if (connection_ != null) {
+            connection_.close();
+          }
+        }
+      });
+  }
+
+  /**
+   * Runs a task on the executor. If the executor rejects the task, runs the task on the calling
+   * thread, so that a scheduled flush is never lost and the queue does not stall.
+   *
+   * @param task The task to run.
+   */
+  private void execute(Runnable task) {
+    try {
+      executor_.execute(task);
+    } catch (RejectedExecutionException e) {
+      log.catching(Level.DEBUG, e);
+      rejected_count_.incrementAndGet();
+      task.run();
+    }
+  }
+
+  /**
+   * Removes the oldest droppable message from the queue. Must be called while holding the
+   * queue lock.
+   *
+   * @return True if a message was removed.
+   */
+  private boolean dropOldest() {
+    Iterator<Message> iterator = queue_.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().droppable_) {
+        iterator.remove();
+        dropped_count_.incrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends a batch of messages via the underlying {@link BatchOutputSender}. Called by the flush
+   * task.
+   *
+   * @param batch The messages to send.
+   */
+  private void sendBatch(ArrayList<Message> batch) {
+    ArrayList<String> texts = new ArrayList<String>(batch.size());
+    for (Message message : batch) {
+      texts.add(message.text_);
+    }
+    try {
+      if (((BatchOutputSender) sender_).sendTexts(texts)) {
+        sent_count_.addAndGet(texts.size());
+      } else {
+        failed_count_.addAndGet(texts.size());
+      }
+    } catch (Exception e) {
+      log.catching(Level.DEBUG, e);
+      failed_count_.addAndGet(texts.size());
+    }
+  }
+
+  private static Logger log = LogManager.getLogger();
+
+  private int capacity_;  // Maximum number of queued messages.
+  private boolean closed_;  // True if the queue has been closed due to overflow.
+  private Connection connection_;  // The connection to close on overflow or null.
+  private AtomicLong dropped_count_;  // Number of dropped messages.
+  private Executor executor_;  // Executor that runs flush tasks.
+  private AtomicLong failed_count_;  // Number of messages the underlying sender failed to send.
+  private boolean flushing_;  // True if a flush task has been scheduled or is running.
+  private int max_depth_;  // Highest observed queue depth.
+  private OverflowPolicy policy_;  // Overflow policy.
+  private ArrayDeque<Message> queue_;  // Queued messages. Also used as lock.
+  private AtomicLong rejected_count_;  // Number of tasks rejected by the executor.
+  private OutputSender sender_;  // Underlying sender.
+  private AtomicLong sent_count_;  // Number of messages sent by the underlying sender.
+}
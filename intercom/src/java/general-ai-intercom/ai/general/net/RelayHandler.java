@@ -6,8 +6,11 @@
 package ai.general.net;
 
 import ai.general.directory.Handler;
+import ai.general.directory.PatternIndex;
 import ai.general.directory.Request;
 
+import java.util.Set;
+
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
@@ -17,31 +20,45 @@ import org.apache.logging.log4j.LogManager;
  *
  * Request URI's are modified to use the relay path rather than the original request path.
  * This allows mapping from the caller URI structure to the receiver URI structure allowing
- * communication between assymetric clients.
+ * communication between assymetric clients. Relay URI's are immutable, so their string form is
+ * computed only once per relay path.
+ *
+ * Publish requests are not relayed if the session of the connection is not eligible or is
+ * excluded. See {@link Request#getEligibleSessions()} and {@link Request#getExcludedSessions()}.
  *
  * RelayHandler includes the path remainder in relayed catchall requests providing the receiver
- * with the full context of the request.
+ * with the full context of the request. The same applies to pattern subscriptions such as
+ * "/sensors/+/temperature", which are relayed with the actual topic path, e.g.
+ * "/sensors/a/temperature".
  */
 public class RelayHandler extends Handler {
 
   /**
-   * If the relay path ends with a '/*', this handler will be configured as a catch all handler.
-   * Relayed URI's do not include the wildcard, but include the full path of the target node
-   * with respect to the relay_uri.
+   * If the relay path ends with a '/*' or contains other wildcards, this handler will be
+   * configured as a catch all handler. Relayed URI's do not include the wildcards, but include
+   * the full path of the target node with respect to the relay_uri.
    *
    * @param name A unique name for this handler.
    * @param connection Connection through which to relay requests.
    * @param relay_uri The URI that will be used in relayed messaged.
    */
   public RelayHandler(String name, Connection connection, Uri relay_uri) {
-    super(name, relay_uri.getPath().endsWith("/*"));
+    super(name,
+          relay_uri.getPath().endsWith("/*") || PatternIndex.isPattern(relay_uri.getPath()));
     this.connection_ = connection;
-    if (isCatchAll()) {
+    ImmutableUri immutable_relay_uri = ImmutableUri.of(relay_uri);
+    int pattern_start = PatternIndex.patternStart(relay_uri.getPath());
+    if (pattern_start >= 0) {
+      // keep the path up to the first wildcard
+      this.relay_uri_ =
+        immutable_relay_uri.withPath(relay_uri.getPath().substring(0, pattern_start));
+    } else if (isCatchAll()) {
       // remove the final '*';
       this.relay_uri_ =
-        changePath(relay_uri, relay_uri.getPath().substring(0, relay_uri.getPath().length() - 1));
+        immutable_relay_uri.withPath(
+            relay_uri.getPath().substring(0, relay_uri.getPath().length() - 1));
     } else {
-      this.relay_uri_ = relay_uri;
+      this.relay_uri_ = immutable_relay_uri;
     }
   }
 
@@ -63,7 +80,7 @@ public class RelayHandler extends Handler {
    * @param request The request to handle.
    */
   public void handleCatchAll(String path_remainder, Request request) {
-    handle(changePath(relay_uri_, relay_uri_.getPath() + path_remainder), request);
+    handle(relay_uri_.withPath(relay_uri_.getPath() + path_remainder), request);
   }
 
   /**
@@ -73,54 +90,28 @@ public class RelayHandler extends Handler {
    * @param relay_uri The URI that will be used in relayed messaged.
    * @param request The request to be relayed.
    */
-  private void handle(Uri relay_uri, Request request) {
+  private void handle(ImmutableUri relay_uri, Request request) {
     if (request.getRequestType() != Request.RequestType.Publish ||
         request.getArguments().size() != 1) {
       return;
     }
-    Uri request_uri = request.getUri();
-    if (request_uri.hasParameter("eligible")) {
-      String eligible = request_uri.getParameter("eligible");
-      if (!(eligible.equals(connection_.getSessionId()) ||
-            eligible.startsWith(connection_.getSessionId() + ",") ||
-            eligible.indexOf("," + connection_.getSessionId()) > 0)) {
-        log.trace("not eligible: {}", relay_uri.toString());
-        return;
-      }
-    }
-    if (request_uri.hasParameter("exclude")) {
-      String exclude = request_uri.getParameter("exclude");
-      if (exclude.equals(connection_.getSessionId()) ||
-          exclude.startsWith(connection_.getSessionId() + ",") ||
-          exclude.indexOf("," + connection_.getSessionId()) > 0) {
-        log.trace("exclude relay: {}", relay_uri.toString());
-        return;
-      }
+    String session_id = connection_.getSessionId();
+    Set<String> eligible = request.getEligibleSessions();
+    if (eligible != null && !eligible.contains(session_id)) {
+      log.trace("not eligible: {}", relay_uri);
+      return;
     }
-    log.trace("relay: {}", relay_uri.toString());
-    connection_.publish(relay_uri, request.getArgument(0));
-  }
-
-  /**
-   * Changes the path of the URI and returns a new URI with the updated path.
-   * Returns the input URI if the new path is malformed.
-   *
-   * @param uri URI to change.
-   * @param new_path The updated path.
-   * @return The updated URI.
-   */
-  private Uri changePath(Uri uri, String new_path) {
-    Uri new_uri = new Uri(uri);
-    try {
-      new_uri.setPath(new_path);
-      return new_uri;
-    } catch (IllegalArgumentException e) {
-      return uri;
+    Set<String> exclude = request.getExcludedSessions();
+    if (exclude != null && exclude.contains(session_id)) {
+      log.trace("exclude relay: {}", relay_uri);
+      return;
     }
+    log.trace("relay: {}", relay_uri);
+    connection_.relay(relay_uri, request);
   }
 
   private static Logger log = LogManager.getLogger();
 
   private Connection connection_;  // The connection to use to relay messages.
-  private Uri relay_uri_;  // The outgoing URI to use in relayed messages.
+  private ImmutableUri relay_uri_;  // The outgoing URI to use in relayed messages.
 }
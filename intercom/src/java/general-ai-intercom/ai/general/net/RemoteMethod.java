@@ -5,10 +5,15 @@
 
 package ai.general.net;
 
+import java.util.concurrent.Executor;
+
 /**
  * Represents a remote method that can be called via a {@link Connection}.
  *
  * RemoteMethod offers methods for making an RPC call synchronously or asynchronously.
+ * Asynchronous calls return a {@link RemoteMethodCall}, which is a {@link java.util.Future}
+ * that also accepts completion listeners. Listeners allow handling many outstanding calls
+ * without blocking a thread per call.
  *
  * The generic argument TReturnType specifies the return type of the RemoteMethod.
  * If the return type is void, Void can be specified as TReturnType.
@@ -34,7 +39,9 @@ public class RemoteMethod<TReturnType> {
    *
    * If a timeout or error occurs, this method return a {@link RemoteMethodCall} object via a
    * {@link RemoteMethodCallException} that can be used to determine the cause of error or
-   * continue waiting if the exception was thrown due to a timeout.
+   * continue waiting if the exception was thrown due to a timeout. A timeout exception is also
+   * thrown if the connection has expired the call because its deadline has passed. In this case
+   * the call has completed and waiting cannot be continued.
    *
    * This method waits for the default timeout specified by the {@link RemoteMethodCall} class.
    *
@@ -48,6 +55,9 @@ public class RemoteMethod<TReturnType> {
     if (method_call.call(arguments)) {
       if (method_call.isSuccessful()) {
         return method_call.getResult();
+      } else if (method_call.hasTimedOut()) {
+        throw new RemoteMethodCallException(method_call,
+                                            RemoteMethodCallException.Reason.Timeout);
       } else {
         throw new RemoteMethodCallException(method_call,
                                             RemoteMethodCallException.Reason.RemoteError);
@@ -80,6 +90,49 @@ public class RemoteMethod<TReturnType> {
     return method_call;
   }
 
+  /**
+   * Makes an asynchronous remote method call and notifies the specified listener when the
+   * call completes. This method does not block.
+   *
+   * The listener is run by the specified executor or by the thread that completes the call if
+   * the executor is null. The listener is also notified if the call cannot be sent.
+   *
+   * @param listener The listener to notify when the call completes.
+   * @param executor The executor that runs the listener or null.
+   * @param arguments The method arguments.
+   * @return The {@link RemoteMethodCall} object which represents the call.
+   */
+  public RemoteMethodCall<TReturnType> callAsync(RemoteMethodCall.Listener<TReturnType> listener,
+                                                 Executor executor,
+                                                 Object ... arguments) {
+    RemoteMethodCall<TReturnType> method_call =
+      new RemoteMethodCall<TReturnType>(connection_, method_path_, return_type_);
+    method_call.addListener(listener, executor);
+    method_call.callAsync(arguments);
+    return method_call;
+  }
+
+  /**
+   * Makes an asynchronous remote method call with a per-call deadline and immediately returns.
+   *
+   * If the remote method does not return within the specified timeout, the call completes with
+   * a timeout error.
+   *
+   * The returned {@link RemoteMethodCall} object can be used to track the progress of the call,
+   * register completion listeners and obtain the final result.
+   *
+   * @param timeout_millis The call timeout in milliseconds.
+   * @param arguments The method arguments.
+   * @return The {@link RemoteMethodCall} object which represents the call.
+   */
+  public RemoteMethodCall<TReturnType> callAsyncWithTimeout(long timeout_millis,
+                                                            Object ... arguments) {
+    RemoteMethodCall<TReturnType> method_call =
+      new RemoteMethodCall<TReturnType>(connection_, method_path_, return_type_);
+    method_call.callAsyncWithTimeout(timeout_millis, arguments);
+    return method_call;
+  }
+
   private Connection connection_;  // Connection with which the RPC is made.
   private String method_path_;  // The directory path of the method.
   private Class<TReturnType> return_type_;  // The return type of the remote method.
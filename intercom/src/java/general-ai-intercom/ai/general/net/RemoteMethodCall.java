@@ -5,7 +5,18 @@
 
 package ai.general.net;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
 
 /**
  * Represents a remote method call.
@@ -16,12 +27,17 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * RemoteMethodCall provides methods for synchronization and allows waiting for the call to
  * complete.
  *
+ * RemoteMethodCall also implements the {@link Future} interface and supports completion
+ * listeners. Listeners registered via {@link #addListener(Listener, Executor)} are notified
+ * without blocking any thread while the call is in progress. This allows making a large number
+ * of concurrent calls without dedicating a thread to each outstanding call.
+ *
  * Each RemoteMethodCall instance is associated with exactly one call and can only be used for that
  * one call.
  *
  * If the remote method returns void, TReturnType may be Void. The call result will be null.
  */
-public class RemoteMethodCall<TReturnType> implements RpcCallback {
+public class RemoteMethodCall<TReturnType> implements Future<TReturnType>, RpcCallback {
 
   /** Default synchronous method call timeout in milliseconds. */
   public static final long kDefaultCallTimeoutMillis = 120000;
@@ -40,6 +56,40 @@ public class RemoteMethodCall<TReturnType> implements RpcCallback {
     InProgress,
   }
 
+  /**
+   * Listener that is notified when a remote method call completes.
+   */
+  public interface Listener<TReturnType> {
+
+    /**
+     * Called once when the call has completed, either successfully, with an error or because
+     * it has been cancelled.
+     *
+     * @param method_call The completed call.
+     */
+    void onCompletion(RemoteMethodCall<TReturnType> method_call);
+  }
+
+  /**
+   * A listener registration that is waiting for the call to complete.
+   */
+  private static class Registration<TReturnType> {
+
+    /**
+     * Creates a registration.
+     *
+     * @param listener The listener to notify.
+     * @param executor The executor that runs the listener or null.
+     */
+    public Registration(Listener<TReturnType> listener, Executor executor) {
+      this.listener_ = listener;
+      this.executor_ = executor;
+    }
+
+    private Executor executor_;  // The executor that runs the listener or null.
+    private Listener<TReturnType> listener_;  // The listener to notify.
+  }
+
   /**
    * Creates a RemoteMethodCall instance for a single RPC call.
    *
@@ -55,12 +105,107 @@ public class RemoteMethodCall<TReturnType> implements RpcCallback {
     this.return_type_ = return_type;
     state_ = State.Initialized;
     call_timeout_millis_ = kDefaultCallTimeoutMillis;
-    json_parser_ = new ObjectMapper();
     successful_ = false;
     result_ = null;
     error_uri_ = null;
     error_description_ = null;
     error_details_ = null;
+    call_failed_ = false;
+    cancelled_ = false;
+    listeners_ = null;
+  }
+
+  /**
+   * Registers a listener that is notified when the call completes. If the call has already
+   * completed, the listener is notified immediately.
+   *
+   * The listener is run by the specified executor. If the executor is null, the listener is run
+   * by the thread that completes the call, which is typically a network thread. Such listeners
+   * must not block.
+   *
+   * @param listener The listener to notify on completion.
+   * @param executor The executor that runs the listener or null.
+   */
+  public void addListener(Listener<TReturnType> listener, Executor executor) {
+    synchronized (this) {
+      if (state_ != State.Completed) {
+        if (listeners_ == null) {
+          listeners_ = new ArrayList<Registration<TReturnType>>(2);
+        }
+        listeners_.add(new Registration<TReturnType>(listener, executor));
+        return;
+      }
+    }
+    notifyListener(listener, executor);
+  }
+
+  /**
+   * Cancels the call. The remote method is not notified of the cancellation and may still
+   * execute. Any result returned after the call has been cancelled is ignored. The call is
+   * removed from the pending calls of the connection.
+   *
+   * @param may_interrupt_if_running Ignored.
+   * @return True if the call was cancelled, false if it had already completed.
+   */
+  @Override
+  public boolean cancel(boolean may_interrupt_if_running) {
+    synchronized (this) {
+      if (state_ == State.Completed) {
+        return false;
+      }
+      cancelled_ = true;
+      successful_ = false;
+      state_ = State.Completed;
+      notifyAll();
+    }
+    connection_.cancelCall(this);
+    notifyListeners();
+    return true;
+  }
+
+  /**
+   * Waits until the call completes and returns the result.
+   *
+   * @return The result of the call.
+   * @throws CancellationException if the call was cancelled.
+   * @throws ExecutionException with a {@link RemoteMethodCallException} cause if the call failed.
+   * @throws InterruptedException if the current thread was interrupted while waiting.
+   */
+  @Override
+  public TReturnType get() throws ExecutionException, InterruptedException {
+    synchronized (this) {
+      while (state_ != State.Completed) {
+        wait();
+      }
+    }
+    return getCompletedResult();
+  }
+
+  /**
+   * Waits until the call completes or the timeout expires and returns the result.
+   *
+   * @param timeout The maximum time to wait.
+   * @param unit The unit of the timeout.
+   * @return The result of the call.
+   * @throws CancellationException if the call was cancelled.
+   * @throws ExecutionException with a {@link RemoteMethodCallException} cause if the call failed.
+   * @throws InterruptedException if the current thread was interrupted while waiting.
+   * @throws TimeoutException if the call did not complete before the timeout expired.
+   */
+  @Override
+  public TReturnType get(long timeout, TimeUnit unit)
+    throws ExecutionException, InterruptedException, TimeoutException {
+    long deadline_nanos = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (this) {
+      while (state_ != State.Completed) {
+        long remaining_nanos = deadline_nanos - System.nanoTime();
+        if (remaining_nanos <= 0) {
+          throw new TimeoutException();
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining_nanos);
+      }
+    }
+    return getCompletedResult();
   }
 
   /**
@@ -145,11 +290,62 @@ public class RemoteMethodCall<TReturnType> implements RpcCallback {
    * @return True if the call was made.
    */
   public boolean callAsync(Object ... arguments) {
-    if (state_ != State.Initialized) {
+    if (!begin()) {
       return false;
     }
-    state_ = State.InProgress;
-    return connection_.call(method_path_, this, arguments);
+    return end(connection_.call(method_path_, this, arguments));
+  }
+
+  /**
+   * Makes an asynchronous remote method call with the specified call timeout and immediately
+   * returns.
+   *
+   * If the remote method does not return within the timeout, the call completes with a timeout
+   * error. See {@link #hasTimedOut()}.
+   *
+   * A call can be only made in the Initialized state. Each RemoteMethodCall instance can be
+   * used only for one RPC call.
+   *
+   * @param timeout_millis The call timeout in milliseconds.
+   * @param arguments The method arguments.
+   * @return True if the call was made.
+   */
+  public boolean callAsyncWithTimeout(long timeout_millis, Object ... arguments) {
+    if (!begin()) {
+      return false;
+    }
+    return end(connection_.call(method_path_, timeout_millis, this, arguments));
+  }
+
+  /**
+   * Checks whether the call completed with a timeout error because no response was received
+   * before the call deadline.
+   *
+   * @return True if the method call has timed out.
+   */
+  public boolean hasTimedOut() {
+    return state_ == State.Completed && !successful_ && error_uri_ != null &&
+      RpcCallback.kTimeoutError.equals(error_uri_.getFragment());
+  }
+
+  /**
+   * Checks whether the call has been cancelled.
+   *
+   * @return True if the call has been cancelled.
+   */
+  @Override
+  public boolean isCancelled() {
+    return cancelled_;
+  }
+
+  /**
+   * Checks whether the call has completed.
+   *
+   * @return True if the call has completed.
+   */
+  @Override
+  public boolean isDone() {
+    return state_ == State.Completed;
   }
 
   /**
@@ -169,29 +365,51 @@ public class RemoteMethodCall<TReturnType> implements RpcCallback {
    * @param error_details Optional error details. Null if no details were provided.
    */
   @Override
-  public synchronized void onError(Uri error_uri, String error_description, Object error_details) {
-    state_ = State.Completed;
-    successful_ = false;
-    this.error_uri_ = error_uri;
-    this.error_description_ = error_description;
-    this.error_details_ = error_details;
-    notifyAll();
+  public void onError(Uri error_uri, String error_description, Object error_details) {
+    synchronized (this) {
+      if (state_ == State.Completed) {
+        return;
+      }
+      successful_ = false;
+      this.error_uri_ = error_uri;
+      this.error_description_ = error_description;
+      this.error_details_ = error_details;
+      state_ = State.Completed;
+      notifyAll();
+    }
+    notifyListeners();
   }
 
   /**
    * RpcCallback implementation. Called by the network thread on successful execution of the RPC
    * method.
    *
+   * If the result cannot be converted to the return type, the call completes with an error whose
+   * details are the unconverted result.
+   *
    * @param result The result of the RPC method or null if the method did not return a value.
    */
   @Override
-  public synchronized void onSuccess(Object result) {
-    state_ = State.Completed;
-    successful_ = true;
-    if (result != null) {
-      result_ = json_parser_.convertValue(result, return_type_);
+  public void onSuccess(Object result) {
+    synchronized (this) {
+      if (state_ == State.Completed) {
+        return;
+      }
+      successful_ = true;
+      if (result != null) {
+        try {
+          result_ = CodecRegistry.Instance.convert(result, return_type_);
+        } catch (IllegalArgumentException e) {
+          log.catching(Level.DEBUG, e);
+          successful_ = false;
+          error_description_ = "cannot convert result to " + return_type_.getName();
+          error_details_ = result;
+        }
+      }
+      state_ = State.Completed;
+      notifyAll();
     }
-    notifyAll();
+    notifyListeners();
   }
 
   /**
@@ -226,26 +444,140 @@ public class RemoteMethodCall<TReturnType> implements RpcCallback {
     if (state_ == State.Completed) {
       return true;
     }
-    if (state_ != State.InProgress) {
+    synchronized (this) {
+      if (state_ == State.InProgress) {
+        try {
+          wait(timeout_millis);
+        } catch (InterruptedException e) {}
+      }
+      return state_ == State.Completed;
+    }
+  }
+
+  /**
+   * Moves the call from the Initialized to the InProgress state.
+   *
+   * @return True if the call was in the Initialized state.
+   */
+  private synchronized boolean begin() {
+    if (state_ != State.Initialized) {
       return false;
     }
-    synchronized (this) {
+    state_ = State.InProgress;
+    return true;
+  }
+
+  /**
+   * Completes the call with a call error if the call could not be sent. If the call was
+   * cancelled while it was being sent, removes it from the pending calls of the connection.
+   *
+   * @param sent True if the call was sent.
+   * @return The value of sent.
+   */
+  private boolean end(boolean sent) {
+    if (!sent) {
+      synchronized (this) {
+        if (state_ == State.Completed) {
+          return false;
+        }
+        call_failed_ = true;
+        successful_ = false;
+        state_ = State.Completed;
+        notifyAll();
+      }
+      notifyListeners();
+    } else if (cancelled_) {
+      connection_.cancelCall(this);
+    }
+    return sent;
+  }
+
+  /**
+   * Returns the result of a completed call or throws the exception that corresponds to the
+   * completion state of the call.
+   *
+   * @return The result of the call.
+   * @throws CancellationException if the call was cancelled.
+   * @throws ExecutionException if the call failed.
+   */
+  private TReturnType getCompletedResult() throws ExecutionException {
+    if (cancelled_) {
+      throw new CancellationException();
+    }
+    if (successful_) {
+      return result_;
+    }
+    RemoteMethodCallException.Reason reason;
+    if (call_failed_) {
+      reason = RemoteMethodCallException.Reason.CallError;
+    } else if (hasTimedOut()) {
+      reason = RemoteMethodCallException.Reason.Timeout;
+    } else {
+      reason = RemoteMethodCallException.Reason.RemoteError;
+    }
+    throw new ExecutionException(new RemoteMethodCallException(this, reason));
+  }
+
+  /**
+   * Runs a listener using the specified executor or on the calling thread if executor is null.
+   * If the executor rejects the listener, runs the listener on the calling thread, so that the
+   * listener is always notified.
+   *
+   * @param listener The listener to notify.
+   * @param executor The executor that runs the listener or null.
+   */
+  private void notifyListener(final Listener<TReturnType> listener, Executor executor) {
+    if (executor != null) {
+      final RemoteMethodCall<TReturnType> method_call = this;
       try {
-        wait(timeout_millis);
-      } catch (InterruptedException e) {}
-      return state_ == State.Completed;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              listener.onCompletion(method_call);
+            }
+          });
+        return;
+      } catch (RejectedExecutionException e) {
+        log.catching(Level.DEBUG, e);
+      }
+    }
+    try {
+      listener.onCompletion(this);
+    } catch (Exception e) {
+      log.catching(Level.DEBUG, e);
     }
   }
 
+  /**
+   * Notifies all registered listeners. Called once after the call has completed.
+   */
+  private void notifyListeners() {
+    ArrayList<Registration<TReturnType>> listeners;
+    synchronized (this) {
+      listeners = listeners_;
+      listeners_ = null;
+    }
+    if (listeners == null) {
+      return;
+    }
+    for (Registration<TReturnType> registration : listeners) {
+      notifyListener(registration.listener_, registration.executor_);
+    }
+  }
+
+  private static Logger log = LogManager.getLogger();
+
+  private boolean call_failed_;  // True if the call could not be sent.
   private long call_timeout_millis_;  // The RPC timeout in milliseconds.
+  private volatile boolean cancelled_;  // True if the call has been cancelled.
   private Connection connection_;  // Connection with which the RPC is made.
   private String error_description_;  // Error description.
   private Object error_details_;  // Optional error details.
   private Uri error_uri_;  // Returned error URI if the RPC was not successful.
-  private ObjectMapper json_parser_;  // JSON parser.
+  private ArrayList<Registration<TReturnType>> listeners_;  // Pending listeners or null.
   private String method_path_;  // The directory path of the method.
   private TReturnType result_;  // The return value of the RPC method.
   private Class<TReturnType> return_type_;  // The return type of the RPC method.
-  private State state_;  // The current state of the RPC.
-  private boolean successful_;  // True if the RPC was successful.
+  private volatile State state_;  // The current state of the RPC.
+  private volatile boolean successful_;  // True if the RPC was successful.
 }
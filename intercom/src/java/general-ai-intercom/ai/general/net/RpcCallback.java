@@ -10,9 +10,19 @@ package ai.general.net;
  * RPC callbacks are used to communicate the aysnchronous result of an RPC to the caller.
  *
  * For each RPC, exactly one of onSuccess() or onError() will be called when the RPC completes.
+ *
+ * If the RPC does not complete before its deadline, onError() is called with an error URI whose
+ * fragment is {@link #kTimeoutError}. If the connection is closed before the RPC completes,
+ * onError() is called with an error URI whose fragment is {@link #kClosedError}.
  */
 public interface RpcCallback {
 
+  /** Error URI fragment of calls that did not complete before the connection was closed. */
+  public static final String kClosedError = "closed";
+
+  /** Error URI fragment of calls that did not complete before their deadline. */
+  public static final String kTimeoutError = "timeout";
+
   /**
    * Called on an RPC error.
    *
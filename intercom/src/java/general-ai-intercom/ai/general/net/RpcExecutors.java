@@ -0,0 +1,206 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Factory methods for executors that run incoming RPC calls.
+ *
+ * By default, connections execute incoming RPC calls on the thread that processes the incoming
+ * message. A connection can be configured to dispatch calls to an executor instead, so that a
+ * slow RPC method does not delay the processing of subsequent messages. RpcExecutors creates
+ * suitable executors.
+ *
+ * Executors created by this class reject calls if they are overloaded. The connection reports
+ * rejected calls to the caller as call errors. Bounded pools reject calls if all threads are busy
+ * and the queue is full. Virtual thread executors created by {@link #newDefault(int, int)} reject
+ * calls if the specified number of calls is already executing or waiting. Executors created by
+ * {@link #newVirtualThreadPerCall()} are not bounded.
+ */
+public class RpcExecutors {
+
+  // Name of the JDK factory method of virtual thread executors.
+  private static final String kVirtualThreadFactory = "newVirtualThreadPerTaskExecutor";
+
+  /**
+   * Limits the number of calls that are executing or waiting on an executor. Calls that exceed
+   * the limit are rejected.
+   */
+  private static class BoundedExecutor implements Executor {
+
+    /**
+     * @param executor The executor that runs the calls.
+     * @param max_calls The maximum number of calls that are executing or waiting.
+     */
+    public BoundedExecutor(Executor executor, int max_calls) {
+      this.executor_ = executor;
+      permits_ = new Semaphore(max_calls);
+    }
+
+    /**
+     * Runs the call on the underlying executor unless the limit has been reached.
+     *
+     * @param call The call to run.
+     * @throws RejectedExecutionException if the limit has been reached or the underlying executor
+     *                                    rejects the call.
+     */
+    @Override
+    public void execute(final Runnable call) {
+      if (!permits_.tryAcquire()) {
+        throw new RejectedExecutionException("Too many concurrent calls.");
+      }
+      try {
+        executor_.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                call.run();
+              } finally {
+                permits_.release();
+              }
+            }
+          });
+      } catch (RuntimeException e) {
+        permits_.release();
+        throw e;
+      }
+    }
+
+    private Executor executor_;  // Runs the calls.
+    private Semaphore permits_;  // One permit per call that may be executing or waiting.
+  }
+
+  /**
+   * Names the threads of bounded pools.
+   */
+  private static class RpcThreadFactory implements ThreadFactory {
+
+    /**
+     * Creates a daemon thread.
+     *
+     * @param task The task run by the thread.
+     * @return The thread.
+     */
+    @Override
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(task, "RpcExecutor-" + thread_count_.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+
+    private AtomicInteger thread_count_ = new AtomicInteger(0);  // Number of created threads.
+  }
+
+  /**
+   * Not instantiable.
+   */
+  private RpcExecutors() {}
+
+  /**
+   * Returns true if the JVM supports virtual threads.
+   *
+   * @return True if {@link #newVirtualThreadPerCall()} is supported.
+   */
+  public static boolean hasVirtualThreads() {
+    try {
+      Executors.class.getMethod(kVirtualThreadFactory);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Creates a bounded thread pool. Calls are queued if all threads are busy. Calls are rejected
+   * if the queue is full. Idle threads exit after one minute.
+   *
+   * @param max_threads The maximum number of concurrently executing calls.
+   * @param queue_capacity The maximum number of queued calls.
+   * @return A bounded executor.
+   */
+  public static Executor newBoundedPool(int max_threads, int queue_capacity) {
+    ThreadPoolExecutor executor =
+      new ThreadPoolExecutor(max_threads, max_threads,
+                             60, TimeUnit.SECONDS,
+                             new ArrayBlockingQueue<Runnable>(queue_capacity),
+                             new RpcThreadFactory(),
+                             new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Creates an executor that runs each call on a virtual thread if the JVM supports virtual
+   * threads and a bounded pool otherwise.
+   *
+   * Both executors reject calls if they are overloaded. The bounded pool accepts at most
+   * max_threads executing and queue_capacity waiting calls. The virtual thread executor accepts at
+   * most max_threads + queue_capacity calls that have not completed, which all execute
+   * concurrently.
+   *
+   * @param max_threads The maximum number of threads of the bounded pool.
+   * @param queue_capacity The maximum number of queued calls of the bounded pool.
+   * @return An executor for RPC calls.
+   */
+  public static Executor newDefault(int max_threads, int queue_capacity) {
+    Executor executor = newVirtualThreadPerCall();
+    if (executor != null) {
+      return bound(executor, (int) Math.min((long) max_threads + queue_capacity,
+                                            Integer.MAX_VALUE));
+    }
+    return newBoundedPool(max_threads, queue_capacity);
+  }
+
+  /**
+   * Creates an executor that runs each call on a new virtual thread. Returns null if the JVM
+   * does not support virtual threads.
+   *
+   * Virtual threads are looked up reflectively, so that this library can be compiled and run on
+   * older JVM's.
+   *
+   * @return A virtual thread per call executor or null.
+   */
+  public static Executor newVirtualThreadPerCall() {
+    try {
+      Method factory = Executors.class.getMethod(kVirtualThreadFactory);
+      return (Executor) factory.invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (Exception e) {
+      // Virtual threads may be a disabled preview feature.
+      log.catching(Level.TRACE, e);
+      return null;
+    }
+  }
+
+  /**
+   * Limits the number of calls that are executing or waiting on the specified executor. Calls
+   * that exceed the limit are rejected with a RejectedExecutionException.
+   *
+   * @param executor The executor that runs the calls.
+   * @param max_calls The maximum number of calls that are executing or waiting.
+   * @return The bounded executor.
+   */
+  static Executor bound(Executor executor, int max_calls) {
+    return new BoundedExecutor(executor, max_calls);
+  }
+
+  private static Logger log = LogManager.getLogger();
+}
@@ -0,0 +1,75 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates over multiple cells to reduce contention.
+ *
+ * Each thread updates the cell selected by its thread ID, so that threads that update the counter
+ * at the same time usually do not contend for the same cache line. The value of the counter is the
+ * sum of all cells. The sum is not an atomic snapshot if the counter is updated concurrently, but
+ * it is exact when there are no concurrent updates.
+ *
+ * StripedCounter is thread-safe.
+ */
+class StripedCounter {
+
+  // Number of array elements per cell. Cells are padded to a 64 byte cache line.
+  private static final int kPadding = 8;
+
+  /**
+   * Creates a counter with a number of cells that matches the number of available processors.
+   */
+  public StripedCounter() {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors()) {
+      stripes <<= 1;
+    }
+    mask_ = stripes - 1;
+    cells_ = new AtomicLongArray(stripes * kPadding);
+  }
+
+  /**
+   * Adds a value to the counter.
+   *
+   * @param delta The value to add. May be negative.
+   */
+  public void add(long delta) {
+    cells_.addAndGet((int) (Thread.currentThread().getId() & mask_) * kPadding, delta);
+  }
+
+  /**
+   * Decrements the counter by 1.
+   */
+  public void decrement() {
+    add(-1);
+  }
+
+  /**
+   * Increments the counter by 1.
+   */
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Returns the sum of all cells.
+   *
+   * @return The value of the counter.
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < cells_.length(); i += kPadding) {
+      sum += cells_.get(i);
+    }
+    return sum;
+  }
+
+  private AtomicLongArray cells_;  // Padded counter cells.
+  private int mask_;  // Maps thread IDs to cells. The number of cells is a power of 2.
+}
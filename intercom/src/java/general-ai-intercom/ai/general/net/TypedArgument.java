@@ -0,0 +1,31 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * A request argument that can be decoded directly into a specific type.
+ *
+ * Decoders add arguments that implement TypedArgument to requests if the encoded form of the
+ * argument can be decoded into any target type. {@link MethodHandler} binds such arguments
+ * directly to the declared parameter types of its method, without first building a generic
+ * object graph of maps and lists.
+ *
+ * Implementations must be thread-safe. Each call decodes a new value, so that handlers do not
+ * share mutable argument objects.
+ */
+public interface TypedArgument {
+
+  /**
+   * Decodes the argument into the specified type.
+   *
+   * @param type The target type.
+   * @return The decoded value.
+   * @throws IllegalArgumentException if the argument cannot be decoded into the type.
+   */
+  Object bind(JavaType type) throws IllegalArgumentException;
+}
@@ -57,6 +57,25 @@ public class Uri {
     this.fragment_ = uri.fragment_;
   }
 
+  /**
+   * Creates a copy of a Uri with a different path and fragment. The copy shares the query
+   * parameters with the original Uri. Thus, this constructor must only be used if neither Uri
+   * modifies its query parameters.
+   *
+   * @param uri The Uri to copy.
+   * @param path The path of the copy.
+   * @param fragment The fragment of the copy.
+   */
+  Uri(Uri uri, String path, String fragment) {
+    this.protocol_ = uri.protocol_;
+    this.server_ = uri.server_;
+    this.port_ = uri.port_;
+    this.path_ = normalizePath(uri.server_, path);
+    this.user_ = uri.user_;
+    this.parameters_ = uri.parameters_;
+    this.fragment_ = fragment != null ? fragment : "";
+  }
+
   /**
    * Construct a Uri from a Java URI.
    *
@@ -261,13 +280,7 @@ public class Uri {
    * @param path The resource path.
    */
   public void setPath(String path) {
-    if (path == null) {
-      path = "";
-    }
-    if (server_.length() > 0 && (path.length() == 0 || path.charAt(0) != '/')) {
-      path = "/" + path;
-    }
-    this.path_ = path;
+    this.path_ = normalizePath(server_, path);
   }
 
   /**
@@ -325,6 +338,23 @@ public class Uri {
     }
   }
 
+  /**
+   * Makes a path absolute if the URI has a server.
+   *
+   * @param server The server of the URI.
+   * @param path The resource path. May be null.
+   * @return The normalized path.
+   */
+  private static String normalizePath(String server, String path) {
+    if (path == null) {
+      path = "";
+    }
+    if (server.length() > 0 && (path.length() == 0 || path.charAt(0) != '/')) {
+      path = "/" + path;
+    }
+    return path;
+  }
+
   /**
    * Parses a URI string and returns it as a Java URI.
    *
@@ -0,0 +1,163 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of parsed URI strings.
+ *
+ * Connections receive the same topic and method URI strings over and over again. Parsing and
+ * normalizing a URI string is comparatively expensive. UriCache maps raw URI strings to their
+ * parsed and normalized form, so that each distinct string is parsed only once.
+ *
+ * The cache keeps two generations of entries. New entries are added to the young generation.
+ * When the young generation is full, it becomes the old generation and the previous old
+ * generation is discarded. Entries found in the old generation are moved back to the young
+ * generation. Thus, frequently used entries stay in the cache and the cache never holds more
+ * than its capacity.
+ *
+ * Cached URI's are stored and returned as {@link ImmutableUri}'s, so that all users of a URI
+ * string share the same instance and its memoized string representation. Callers that need to
+ * modify a URI must create a mutable copy.
+ *
+ * UriCache is thread-safe.
+ */
+public class UriCache {
+
+  /** Default maximum number of cached URI's. */
+  public static final int kDefaultCapacity = 8192;
+
+  /** Process-wide URI cache. */
+  public static final UriCache Instance = new UriCache(kDefaultCapacity);
+
+  /**
+   * Creates a URI cache with the specified capacity.
+   *
+   * @param capacity The maximum number of cached URI's. Must be at least 2.
+   */
+  public UriCache(int capacity) {
+    if (capacity < 2) {
+      throw new IllegalArgumentException("Capacity must be at least 2.");
+    }
+    this.generation_capacity_ = capacity / 2;
+    young_ = new ConcurrentHashMap<String, ImmutableUri>();
+    old_ = new ConcurrentHashMap<String, ImmutableUri>();
+    hit_count_ = new AtomicLong(0);
+    miss_count_ = new AtomicLong(0);
+  }
+
+  /**
+   * Removes all cached URI's. Does not reset the hit and miss counters.
+   */
+  public synchronized void clear() {
+    young_ = new ConcurrentHashMap<String, ImmutableUri>();
+    old_ = new ConcurrentHashMap<String, ImmutableUri>();
+  }
+
+  /**
+   * Returns the parsed and normalized form of a URI string. Returns null if the URI string is
+   * not a valid URI.
+   *
+   * @param uri_string The URI string.
+   * @return The normalized URI or null if the URI string is invalid.
+   */
+  public ImmutableUri get(String uri_string) {
+    ConcurrentHashMap<String, ImmutableUri> young = young_;
+    ImmutableUri uri = young.get(uri_string);
+    if (uri == null) {
+      uri = old_.get(uri_string);
+      if (uri == null) {
+        miss_count_.incrementAndGet();
+        uri = parse(uri_string);
+        if (uri == null) {
+          return null;
+        }
+      } else {
+        hit_count_.incrementAndGet();
+      }
+      put(young, uri_string, uri);
+    } else {
+      hit_count_.incrementAndGet();
+    }
+    return uri;
+  }
+
+  /**
+   * Returns the number of lookups that were answered from the cache.
+   *
+   * @return The number of cache hits.
+   */
+  public long getHitCount() {
+    return hit_count_.get();
+  }
+
+  /**
+   * Returns the number of lookups that required parsing the URI string.
+   *
+   * @return The number of cache misses.
+   */
+  public long getMissCount() {
+    return miss_count_.get();
+  }
+
+  /**
+   * Returns the number of cached URI's.
+   *
+   * @return The number of cached URI's.
+   */
+  public int size() {
+    return young_.size() + old_.size();
+  }
+
+  /**
+   * Parses and normalizes a URI string.
+   *
+   * @param uri_string The URI string.
+   * @return The parsed URI or null if the URI string is invalid.
+   */
+  private static ImmutableUri parse(String uri_string) {
+    try {
+      return new ImmutableUri(new URI(uri_string).normalize());
+    } catch (URISyntaxException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds an entry to the young generation. Starts a new generation if the young generation is
+   * full.
+   *
+   * @param young The young generation read by the caller.
+   * @param uri_string The URI string.
+   * @param uri The parsed URI.
+   */
+  private void put(ConcurrentHashMap<String, ImmutableUri> young,
+                   String uri_string,
+                   ImmutableUri uri) {
+    if (young.size() >= generation_capacity_) {
+      synchronized (this) {
+        if (young == young_) {
+          old_ = young_;
+          young_ = new ConcurrentHashMap<String, ImmutableUri>();
+        }
+        young = young_;
+      }
+    }
+    young.put(uri_string, uri);
+  }
+
+  private int generation_capacity_;  // Maximum number of entries per generation.
+  private AtomicLong hit_count_;  // Number of cache hits.
+  private AtomicLong miss_count_;  // Number of cache misses.
+  private volatile ConcurrentHashMap<String, ImmutableUri> old_;  // Old generation.
+  private volatile ConcurrentHashMap<String, ImmutableUri> young_;  // Young generation.
+}
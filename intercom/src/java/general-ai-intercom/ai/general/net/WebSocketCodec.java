@@ -0,0 +1,424 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Implements the parts of the WebSocket protocol (RFC 6455) needed by {@link WebSocketServer}:
+ * the opening handshake and the encoding and decoding of frames.
+ *
+ * All methods are stateless and thread-safe.
+ */
+class WebSocketCodec {
+
+  /** Continuation frame opcode. */
+  public static final int kContinuation = 0x0;
+
+  /** Text frame opcode. */
+  public static final int kText = 0x1;
+
+  /** Binary frame opcode. */
+  public static final int kBinary = 0x2;
+
+  /** Close frame opcode. */
+  public static final int kClose = 0x8;
+
+  /** Ping frame opcode. */
+  public static final int kPing = 0x9;
+
+  /** Pong frame opcode. */
+  public static final int kPong = 0xA;
+
+  /** Close status code of a normal closure. */
+  public static final int kNormalClosure = 1000;
+
+  /** Close status code of a protocol error. */
+  public static final int kProtocolError = 1002;
+
+  /** Close status code of a message that violates the endpoint policy. */
+  public static final int kPolicyViolation = 1008;
+
+  /** Close status code of a message that is too large. */
+  public static final int kMessageTooBig = 1009;
+
+  /** Maximum length of a frame header. */
+  public static final int kMaxHeaderLength = 14;
+
+  /** Character set of text frames. */
+  public static final Charset kUtf8 = Charset.forName("UTF-8");
+
+  // Character set of the HTTP handshake.
+  private static final Charset kAscii = Charset.forName("US-ASCII");
+
+  // Base64 alphabet.
+  private static final char[] kBase64 =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  // GUID appended to the client key to compute the accept key.
+  private static final String kWebSocketGuid = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  /**
+   * A decoded WebSocket frame.
+   */
+  public static class Frame {
+
+    /**
+     * Creates a frame.
+     *
+     * @param opcode The frame opcode.
+     * @param is_final True if this is the final frame of a message.
+     * @param payload The unmasked payload.
+     */
+    public Frame(int opcode, boolean is_final, byte[] payload) {
+      this.opcode_ = opcode;
+      this.is_final_ = is_final;
+      this.payload_ = payload;
+    }
+
+    /**
+     * Returns the frame opcode.
+     *
+     * @return The frame opcode.
+     */
+    public int getOpcode() {
+      return opcode_;
+    }
+
+    /**
+     * Returns the unmasked frame payload.
+     *
+     * @return The payload.
+     */
+    public byte[] getPayload() {
+      return payload_;
+    }
+
+    /**
+     * Returns true if this is a control frame.
+     *
+     * @return True for close, ping and pong frames.
+     */
+    public boolean isControl() {
+      return (opcode_ & 0x8) != 0;
+    }
+
+    /**
+     * Returns true if this is the final frame of a message.
+     *
+     * @return True if the FIN bit is set.
+     */
+    public boolean isFinal() {
+      return is_final_;
+    }
+
+    private boolean is_final_;  // True if the FIN bit is set.
+    private int opcode_;  // The frame opcode.
+    private byte[] payload_;  // The unmasked payload.
+  }
+
+  /**
+   * A parsed WebSocket opening handshake request.
+   */
+  public static class Handshake {
+
+    /**
+     * Creates a handshake.
+     *
+     * @param path The request path.
+     * @param headers The request headers with lower case names.
+     */
+    public Handshake(String path, HashMap<String, String> headers) {
+      this.path_ = path;
+      this.headers_ = headers;
+    }
+
+    /**
+     * Returns the value of the specified header or null.
+     *
+     * @param name The lower case header name.
+     * @return The header value or null if the header is not present.
+     */
+    public String getHeader(String name) {
+      return headers_.get(name);
+    }
+
+    /**
+     * Returns the request path.
+     *
+     * @return The request path.
+     */
+    public String getPath() {
+      return path_;
+    }
+
+    /**
+     * Returns the value of the Sec-WebSocket-Key header if this is a valid WebSocket upgrade
+     * request.
+     *
+     * @return The client key or null if the request is not a valid upgrade request.
+     */
+    public String getKey() {
+      String upgrade = getHeader("upgrade");
+      String connection = getHeader("connection");
+      String version = getHeader("sec-websocket-version");
+      if (upgrade == null || !upgrade.equalsIgnoreCase("websocket") ||
+          connection == null || !connection.toLowerCase().contains("upgrade") ||
+          version == null || !version.equals("13")) {
+        return null;
+      }
+      return getHeader("sec-websocket-key");
+    }
+
+    /**
+     * Returns true if the client offered the specified subprotocol.
+     *
+     * @param protocol The subprotocol name.
+     * @return True if the subprotocol is listed in the Sec-WebSocket-Protocol header.
+     */
+    public boolean offersProtocol(String protocol) {
+      String protocols = getHeader("sec-websocket-protocol");
+      if (protocols == null) {
+        return false;
+      }
+      for (String offered : protocols.split(",")) {
+        if (offered.trim().equals(protocol)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private HashMap<String, String> headers_;  // Request headers with lower case names.
+    private String path_;  // Request path.
+  }
+
+  /**
+   * Computes the Sec-WebSocket-Accept value for a client key.
+   *
+   * @param key The Sec-WebSocket-Key sent by the client.
+   * @return The accept key.
+   */
+  public static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return base64(sha1.digest((key.trim() + kWebSocketGuid).getBytes(kAscii)));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Encodes binary data as Base64 with padding.
+   *
+   * @param data The data to encode.
+   * @return The Base64 encoding of data.
+   */
+  public static String base64(byte[] data) {
+    StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+    for (int i = 0; i < data.length; i += 3) {
+      int remaining = data.length - i;
+      int bits = (data[i] & 0xff) << 16;
+      if (remaining > 1) {
+        bits |= (data[i + 1] & 0xff) << 8;
+      }
+      if (remaining > 2) {
+        bits |= data[i + 2] & 0xff;
+      }
+      encoded.append(kBase64[(bits >> 18) & 0x3f]);
+      encoded.append(kBase64[(bits >> 12) & 0x3f]);
+      encoded.append(remaining > 1 ? kBase64[(bits >> 6) & 0x3f] : '=');
+      encoded.append(remaining > 2 ? kBase64[bits & 0x3f] : '=');
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * Creates the payload of a close frame.
+   *
+   * @param status The close status code.
+   * @return The close frame payload.
+   */
+  public static byte[] closePayload(int status) {
+    return new byte[] { (byte) (status >> 8), (byte) status };
+  }
+
+  /**
+   * Decodes the next frame from the buffer. The buffer must be in read mode. If the buffer
+   * contains a complete frame, the frame is consumed and returned. Otherwise, the buffer position
+   * is not changed and null is returned.
+   *
+   * Client frames must be masked.
+   *
+   * @param buffer The received data.
+   * @param max_payload_length The maximum accepted payload length.
+   * @return The decoded frame or null if the buffer does not contain a complete frame.
+   * @throws IllegalArgumentException If the frame violates the protocol or is too large.
+   */
+  public static Frame decode(ByteBuffer buffer, int max_payload_length) {
+    int start = buffer.position();
+    int available = buffer.remaining();
+    if (available < 2) {
+      return null;
+    }
+    int b0 = buffer.get(start) & 0xff;
+    int b1 = buffer.get(start + 1) & 0xff;
+    if ((b0 & 0x70) != 0) {
+      throw new IllegalArgumentException("reserved bits set");
+    }
+    if ((b1 & 0x80) == 0) {
+      throw new IllegalArgumentException("client frame not masked");
+    }
+    int opcode = b0 & 0x0f;
+    long length = b1 & 0x7f;
+    int header_length = 2;
+    if (length == 126) {
+      if (available < 4) {
+        return null;
+      }
+      length = buffer.getShort(start + 2) & 0xffff;
+      header_length = 4;
+    } else if (length == 127) {
+      if (available < 10) {
+        return null;
+      }
+      length = buffer.getLong(start + 2);
+      header_length = 10;
+    }
+    if (length < 0 || length > max_payload_length) {
+      throw new IllegalArgumentException("frame too large");
+    }
+    if ((opcode & 0x8) != 0 && (length > 125 || (b0 & 0x80) == 0)) {
+      throw new IllegalArgumentException("invalid control frame");
+    }
+    if (available < header_length + 4 + length) {
+      return null;
+    }
+    int mask_offset = start + header_length;
+    byte[] payload = new byte[(int) length];
+    int payload_offset = mask_offset + 4;
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) (buffer.get(payload_offset + i) ^ buffer.get(mask_offset + (i & 3)));
+    }
+    buffer.position(payload_offset + payload.length);
+    return new Frame(opcode, (b0 & 0x80) != 0, payload);
+  }
+
+  /**
+   * Writes an unmasked server frame to the buffer. The buffer must have room for
+   * {@link #headerLength(int)} plus the payload length bytes.
+   *
+   * @param buffer The buffer to write to.
+   * @param opcode The frame opcode.
+   * @param payload The payload.
+   */
+  public static void encode(ByteBuffer buffer, int opcode, byte[] payload) {
+    buffer.put((byte) (0x80 | opcode));
+    if (payload.length < 126) {
+      buffer.put((byte) payload.length);
+    } else if (payload.length <= 0xffff) {
+      buffer.put((byte) 126);
+      buffer.putShort((short) payload.length);
+    } else {
+      buffer.put((byte) 127);
+      buffer.putLong(payload.length);
+    }
+    buffer.put(payload);
+  }
+
+  /**
+   * Returns the length of the header of an unmasked frame with the specified payload length.
+   *
+   * @param payload_length The payload length.
+   * @return The header length.
+   */
+  public static int headerLength(int payload_length) {
+    if (payload_length < 126) {
+      return 2;
+    } else if (payload_length <= 0xffff) {
+      return 4;
+    } else {
+      return 10;
+    }
+  }
+
+  /**
+   * Returns the HTTP response that accepts a WebSocket upgrade.
+   *
+   * @param key The Sec-WebSocket-Key sent by the client.
+   * @param protocol The selected subprotocol or null.
+   * @return The handshake response.
+   */
+  public static byte[] handshakeResponse(String key, String protocol) {
+    StringBuilder response = new StringBuilder(160);
+    response.append("HTTP/1.1 101 Switching Protocols\r\n");
+    response.append("Upgrade: websocket\r\n");
+    response.append("Connection: Upgrade\r\n");
+    response.append("Sec-WebSocket-Accept: ").append(acceptKey(key)).append("\r\n");
+    if (protocol != null) {
+      response.append("Sec-WebSocket-Protocol: ").append(protocol).append("\r\n");
+    }
+    response.append("\r\n");
+    return response.toString().getBytes(kAscii);
+  }
+
+  /**
+   * Parses an HTTP upgrade request. The buffer must be in read mode. If the buffer contains the
+   * complete request header, the header is consumed and returned. Otherwise, the buffer position
+   * is not changed and null is returned.
+   *
+   * @param buffer The received data.
+   * @return The parsed handshake or null if the header is incomplete.
+   * @throws IllegalArgumentException If the request is not a valid HTTP GET request.
+   */
+  public static Handshake parseHandshake(ByteBuffer buffer) {
+    int start = buffer.position();
+    int end = -1;
+    for (int i = start; i + 3 < buffer.limit(); i++) {
+      if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' &&
+          buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      return null;
+    }
+    byte[] header = new byte[end - start];
+    buffer.get(header);
+    buffer.position(end + 4);
+    String[] lines = new String(header, kAscii).split("\r\n");
+    String[] request_line = lines[0].split(" ");
+    if (request_line.length != 3 || !request_line[0].equals("GET")) {
+      throw new IllegalArgumentException("invalid request line");
+    }
+    HashMap<String, String> headers = new HashMap<String, String>();
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0) {
+        headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+                    lines[i].substring(colon + 1).trim());
+      }
+    }
+    return new Handshake(request_line[1], headers);
+  }
+
+  /**
+   * Returns the HTTP response that rejects a request.
+   *
+   * @param status The HTTP status line without the protocol version, e.g. "400 Bad Request".
+   * @return The HTTP response.
+   */
+  public static byte[] rejectResponse(String status) {
+    return ("HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n")
+      .getBytes(kAscii);
+  }
+}
@@ -0,0 +1,40 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+/**
+ * Creates connections for WebSocket sessions accepted by a {@link WebSocketServer}.
+ *
+ * The endpoint defines the protocol spoken over the WebSocket. For each accepted WebSocket, the
+ * server calls {@link #open(String, OutputSender)} to obtain the Connection that processes the
+ * text messages received on the WebSocket. When the WebSocket is closed, the server closes the
+ * connection.
+ *
+ * Implementations must be thread-safe, since the server may open sessions on multiple threads.
+ */
+public interface WebSocketEndpoint {
+
+  /**
+   * Returns the WebSocket subprotocol implemented by this endpoint. The server selects the
+   * subprotocol if the client offers it in the opening handshake.
+   *
+   * @return The subprotocol name or null if the endpoint does not define a subprotocol.
+   */
+  String getSubprotocol();
+
+  /**
+   * Creates the connection for a newly opened WebSocket. This method is called after the
+   * opening handshake has completed, so the connection may immediately send messages via the
+   * sender.
+   *
+   * If this method returns null, the server closes the WebSocket.
+   *
+   * @param path The request path of the opening handshake.
+   * @param sender OutputSender that sends text messages over the WebSocket.
+   * @return The connection that processes received messages or null to reject the WebSocket.
+   */
+  Connection open(String path, OutputSender sender);
+}
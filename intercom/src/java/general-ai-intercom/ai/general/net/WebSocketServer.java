@@ -0,0 +1,851 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Selector based WebSocket server.
+ *
+ * WebSocketServer accepts WebSocket connections (RFC 6455) and hands each accepted WebSocket to a
+ * {@link WebSocketEndpoint}, which creates the {@link Connection} that processes the messages
+ * received on the WebSocket. For example, {@link ai.general.net.wamp.WampEndpoint} creates a
+ * WampConnection for each WebSocket.
+ *
+ * All I/O is performed by a small, fixed number of reactor threads. Each reactor thread owns a
+ * selector and serves a subset of the WebSockets. Received messages are processed by calling
+ * {@link Connection#process(String)} on the reactor thread, so messages of one WebSocket are
+ * processed in order. Connections that execute long running requests should hand them off to an
+ * executor.
+ *
+ * Messages sent via the OutputSender of a WebSocket are written to the socket immediately without
+ * blocking if the socket can accept them. Otherwise, the unwritten part is queued and written by
+ * the reactor thread as soon as the socket becomes writable. If the remote endpoint does not
+ * accept data fast enough and more than {@link #setMaxPendingOutput(int)} bytes are queued, the
+ * WebSocket is closed. The OutputSender is a {@link BatchOutputSender}, which writes the frames
+ * of a batch of messages with a single write. It is also a {@link CloseableOutputSender}, which
+ * allows the connection side, e.g. a {@link QueuedOutputSender}, to close the WebSocket.
+ *
+ * Reads use one pooled direct buffer per reactor. Outgoing frames that fit into a pooled buffer
+ * are written from pooled direct buffers. An idle WebSocket does not hold any buffers, so a
+ * server can maintain a large number of idle WebSockets.
+ *
+ * WebSocketServer is thread-safe.
+ */
+public class WebSocketServer {
+
+  /** Default maximum length of a received message in bytes. */
+  public static final int kDefaultMaxMessageLength = 1 << 20;
+
+  /** Default maximum number of bytes queued for a WebSocket before it is closed. */
+  public static final int kDefaultMaxPendingOutput = 4 << 20;
+
+  // Size of pooled buffers.
+  private static final int kBufferSize = 16 * 1024;
+
+  // Maximum number of idle pooled buffers.
+  private static final int kMaxIdleBuffers = 256;
+
+  // Maximum length of the HTTP header of the opening handshake.
+  private static final int kMaxHandshakeLength = 8 * 1024;
+
+  /**
+   * Lifecycle states of a WebSocket session.
+   */
+  private enum State {
+    Handshake,
+    Open,
+    Closing,
+    Closed,
+  }
+
+  /**
+   * A reactor thread. Each reactor owns a selector and serves the sessions registered with it.
+   * The first reactor also accepts new sockets.
+   */
+  private class Reactor extends Thread {
+
+    /**
+     * Creates a reactor.
+     *
+     * @param index The reactor index.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public Reactor(int index) throws IOException {
+      super("WebSocketReactor-" + index);
+      setDaemon(true);
+      selector_ = Selector.open();
+      tasks_ = new ConcurrentLinkedQueue<Runnable>();
+      read_buffer_ = buffer_pool_.acquire();
+    }
+
+    /**
+     * Runs a task on the reactor thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+      tasks_.add(task);
+      selector_.wakeup();
+    }
+
+    /**
+     * Registers a newly accepted socket with this reactor. Must be called on the reactor thread.
+     *
+     * @param channel The accepted socket.
+     */
+    public void register(SocketChannel channel) {
+      try {
+        Session session = new Session(channel, this);
+        session.key_ = channel.register(selector_, SelectionKey.OP_READ, session);
+        connection_count_.incrementAndGet();
+      } catch (IOException e) {
+        log.catching(Level.DEBUG, e);
+        closeChannel(channel);
+      }
+    }
+
+    /**
+     * Main loop of the reactor.
+     */
+    @Override
+    public void run() {
+      while (running_) {
+        try {
+          selector_.select();
+          Runnable task;
+          while ((task = tasks_.poll()) != null) {
+            task.run();
+          }
+          for (SelectionKey key : selector_.selectedKeys()) {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+            Session session = (Session) key.attachment();
+            if (key.isReadable()) {
+              session.onReadable(read_buffer_);
+            }
+            if (key.isValid() && key.isWritable()) {
+              session.onWritable();
+            }
+          }
+          selector_.selectedKeys().clear();
+        } catch (Exception e) {
+          log.catching(Level.WARN, e);
+        }
+      }
+      for (SelectionKey key : selector_.keys()) {
+        if (key.attachment() instanceof Session) {
+          ((Session) key.attachment()).close();
+        }
+      }
+      try {
+        selector_.close();
+      } catch (IOException e) {
+        log.catching(Level.DEBUG, e);
+      }
+      buffer_pool_.release(read_buffer_);
+    }
+
+    private ByteBuffer read_buffer_;  // Buffer used for all reads of this reactor.
+    private Selector selector_;  // Selector of all sessions of this reactor.
+    private ConcurrentLinkedQueue<Runnable> tasks_;  // Tasks to run on the reactor thread.
+  }
+
+  /**
+   * A WebSocket session. The session is the OutputSender of the connection created for the
+   * WebSocket.
+   *
+   * All methods except the OutputSender methods and {@link #closeTransport()} are called on the
+   * reactor thread.
+   */
+  private class Session implements BatchOutputSender, CloseableOutputSender {
+
+    /**
+     * Creates a session for an accepted socket.
+     *
+     * @param channel The socket.
+     * @param reactor The reactor that serves the session.
+     */
+    public Session(SocketChannel channel, Reactor reactor) {
+      this.channel_ = channel;
+      this.reactor_ = reactor;
+      key_ = null;
+      state_ = State.Handshake;
+      connection_ = null;
+      inbound_ = null;
+      fragments_ = null;
+      fragment_opcode_ = 0;
+      outbound_ = new ArrayDeque<ByteBuffer>();
+      outbound_bytes_ = 0;
+      write_pending_ = false;
+      close_after_flush_ = false;
+    }
+
+    /**
+     * Closes the socket and the connection of this session.
+     */
+    public void close() {
+      if (state_ == State.Closed) {
+        return;
+      }
+      state_ = State.Closed;
+      if (key_ != null) {
+        key_.cancel();
+      }
+      closeChannel(channel_);
+      synchronized (this) {
+        for (ByteBuffer buffer : outbound_) {
+          buffer_pool_.release(buffer);
+        }
+        outbound_.clear();
+        outbound_bytes_ = 0;
+      }
+      inbound_ = null;
+      fragments_ = null;
+      connection_count_.decrementAndGet();
+      if (connection_ != null) {
+        try {
+          connection_.close();
+        } catch (Exception e) {
+          log.catching(Level.DEBUG, e);
+        }
+      }
+    }
+
+    /**
+     * Closes the WebSocket on the reactor thread. Sends a policy violation close frame if the
+     * socket can accept it without blocking and then closes the socket and the connection of
+     * this session.
+     */
+    @Override
+    public void closeTransport() {
+      reactor_.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (state_ == State.Open) {
+              writeFrame(WebSocketCodec.kClose,
+                         WebSocketCodec.closePayload(WebSocketCodec.kPolicyViolation));
+            }
+            close();
+          }
+        });
+    }
+
+    /**
+     * Reads available data from the socket and processes all complete frames.
+     *
+     * @param read_buffer The read buffer of the reactor.
+     */
+    public void onReadable(ByteBuffer read_buffer) {
+      read_buffer.clear();
+      int count;
+      try {
+        count = channel_.read(read_buffer);
+      } catch (IOException e) {
+        count = -1;
+      }
+      if (count < 0) {
+        close();
+        return;
+      }
+      read_buffer.flip();
+      ByteBuffer input = read_buffer;
+      if (inbound_ != null) {
+        if (inbound_.remaining() < read_buffer.remaining()) {
+          int capacity = Math.max(inbound_.capacity() * 2,
+                                  inbound_.position() + read_buffer.remaining());
+          ByteBuffer inbound = ByteBuffer.allocate(capacity);
+          inbound_.flip();
+          inbound.put(inbound_);
+          inbound_ = inbound;
+        }
+        inbound_.put(read_buffer);
+        inbound_.flip();
+        input = inbound_;
+      }
+      try {
+        processInput(input);
+      } catch (IllegalArgumentException e) {
+        log.debug("WebSocket protocol error: {}", e.getMessage());
+        if (state_ == State.Handshake) {
+          writeBytes(WebSocketCodec.rejectResponse("400 Bad Request"));
+        } else if (state_ == State.Open) {
+          writeFrame(WebSocketCodec.kClose,
+                     WebSocketCodec.closePayload(WebSocketCodec.kProtocolError));
+        }
+        closeAfterFlush();
+      }
+      if (state_ == State.Closed || !input.hasRemaining()) {
+        inbound_ = null;
+      } else if (input == read_buffer) {
+        inbound_ = ByteBuffer.allocate(Math.max(1024, input.remaining() * 2));
+        inbound_.put(input);
+      } else {
+        inbound_.compact();
+      }
+    }
+
+    /**
+     * Writes queued data to the socket.
+     */
+    public void onWritable() {
+      boolean close = false;
+      synchronized (this) {
+        try {
+          while (!outbound_.isEmpty()) {
+            ByteBuffer buffer = outbound_.peek();
+            outbound_bytes_ -= channel_.write(buffer);
+            if (buffer.hasRemaining()) {
+              break;
+            }
+            outbound_.poll();
+            buffer_pool_.release(buffer);
+          }
+        } catch (IOException e) {
+          close = true;
+        }
+        if (outbound_.isEmpty() && !close) {
+          write_pending_ = false;
+          key_.interestOps(SelectionKey.OP_READ);
+          close = close_after_flush_;
+        }
+      }
+      if (close) {
+        close();
+      }
+    }
+
+    /**
+     * Sends a binary message.
+     *
+     * @param data Binary data to send.
+     * @return True if the message was written or queued.
+     */
+    @Override
+    public boolean sendBinary(ByteBuffer data) {
+      if (state_ != State.Open) {
+        return false;
+      }
+      byte[] payload = new byte[data.remaining()];
+      data.duplicate().get(payload);
+      return writeFrame(WebSocketCodec.kBinary, payload);
+    }
+
+    /**
+     * Sends a text message.
+     *
+     * @param text Text message to send.
+     * @return True if the message was written or queued.
+     */
+    @Override
+    public boolean sendText(String text) {
+      if (state_ != State.Open) {
+        return false;
+      }
+      return writeFrame(WebSocketCodec.kText, text.getBytes(WebSocketCodec.kUtf8));
+    }
+
+    /**
+     * Sends a batch of text messages. The frames of all messages are written to the socket with a
+     * single write.
+     *
+     * @param texts Text messages to send.
+     * @return True if the messages were written or queued.
+     */
+    @Override
+    public boolean sendTexts(List<String> texts) {
+      if (state_ != State.Open) {
+        return false;
+      }
+      byte[][] payloads = new byte[texts.size()][];
+      int length = 0;
+      for (int i = 0; i < payloads.length; i++) {
+        payloads[i] = texts.get(i).getBytes(WebSocketCodec.kUtf8);
+        length += WebSocketCodec.headerLength(payloads[i].length) + payloads[i].length;
+      }
+      ByteBuffer buffer;
+      if (length <= buffer_pool_.getBufferSize()) {
+        buffer = buffer_pool_.acquire();
+      } else {
+        buffer = ByteBuffer.allocate(length);
+      }
+      for (byte[] payload : payloads) {
+        WebSocketCodec.encode(buffer, WebSocketCodec.kText, payload);
+      }
+      buffer.flip();
+      return write(buffer);
+    }
+
+    /**
+     * Closes the session as soon as all queued data has been written.
+     */
+    private void closeAfterFlush() {
+      boolean close;
+      synchronized (this) {
+        close_after_flush_ = true;
+        close = outbound_.isEmpty();
+      }
+      if (close) {
+        close();
+      } else {
+        state_ = State.Closing;
+      }
+    }
+
+    /**
+     * Delivers a complete message to the connection.
+     *
+     * @param opcode The message opcode.
+     * @param payload The message payload.
+     */
+    private void deliver(int opcode, byte[] payload) {
+      if (opcode != WebSocketCodec.kText || connection_ == null) {
+        log.trace("ignoring binary message");
+        return;
+      }
+      try {
+        connection_.process(new String(payload, WebSocketCodec.kUtf8));
+      } catch (Exception e) {
+        log.catching(Level.DEBUG, e);
+      }
+    }
+
+    /**
+     * Processes a received frame.
+     *
+     * @param frame The received frame.
+     * @throws IllegalArgumentException If the frame violates the protocol.
+     */
+    private void processFrame(WebSocketCodec.Frame frame) {
+      switch (frame.getOpcode()) {
+        case WebSocketCodec.kText:
+        case WebSocketCodec.kBinary:
+          if (fragments_ != null) {
+            throw new IllegalArgumentException("expected continuation frame");
+          }
+          if (frame.isFinal()) {
+            deliver(frame.getOpcode(), frame.getPayload());
+          } else {
+            fragments_ = new ByteArrayOutputStream();
+            fragments_.write(frame.getPayload(), 0, frame.getPayload().length);
+            fragment_opcode_ = frame.getOpcode();
+          }
+          break;
+        case WebSocketCodec.kContinuation:
+          if (fragments_ == null) {
+            throw new IllegalArgumentException("unexpected continuation frame");
+          }
+          if (fragments_.size() + frame.getPayload().length > max_message_length_) {
+            throw new IllegalArgumentException("message too large");
+          }
+          fragments_.write(frame.getPayload(), 0, frame.getPayload().length);
+          if (frame.isFinal()) {
+            byte[] payload = fragments_.toByteArray();
+            fragments_ = null;
+            deliver(fragment_opcode_, payload);
+          }
+          break;
+        case WebSocketCodec.kPing:
+          writeFrame(WebSocketCodec.kPong, frame.getPayload());
+          break;
+        case WebSocketCodec.kPong:
+          break;
+        case WebSocketCodec.kClose:
+          byte[] payload = frame.getPayload();
+          if (payload.length > 2) {
+            payload = new byte[] { payload[0], payload[1] };
+          }
+          writeFrame(WebSocketCodec.kClose, payload);
+          closeAfterFlush();
+          break;
+        default:
+          throw new IllegalArgumentException("unknown opcode " + frame.getOpcode());
+      }
+    }
+
+    /**
+     * Completes the opening handshake and creates the connection.
+     *
+     * @param handshake The received handshake request.
+     */
+    private void processHandshake(WebSocketCodec.Handshake handshake) {
+      String key = handshake.getKey();
+      if (key == null) {
+        writeBytes(WebSocketCodec.rejectResponse("400 Bad Request"));
+        closeAfterFlush();
+        return;
+      }
+      String protocol = endpoint_.getSubprotocol();
+      if (protocol != null && !handshake.offersProtocol(protocol)) {
+        protocol = null;
+      }
+      writeBytes(WebSocketCodec.handshakeResponse(key, protocol));
+      state_ = State.Open;
+      Connection connection = null;
+      try {
+        connection = endpoint_.open(handshake.getPath(), this);
+      } catch (Exception e) {
+        log.catching(Level.DEBUG, e);
+      }
+      if (connection == null) {
+        writeFrame(WebSocketCodec.kClose,
+                   WebSocketCodec.closePayload(WebSocketCodec.kPolicyViolation));
+        closeAfterFlush();
+        return;
+      }
+      connection_ = connection;
+    }
+
+    /**
+     * Processes the opening handshake and all complete frames in the input. Consumes the
+     * processed data from the input.
+     *
+     * @param input The received data in read mode.
+     * @throws IllegalArgumentException If the input violates the protocol.
+     */
+    private void processInput(ByteBuffer input) {
+      while (input.hasRemaining()) {
+        if (state_ == State.Handshake) {
+          WebSocketCodec.Handshake handshake = WebSocketCodec.parseHandshake(input);
+          if (handshake == null) {
+            if (input.remaining() > kMaxHandshakeLength) {
+              throw new IllegalArgumentException("handshake too large");
+            }
+            return;
+          }
+          processHandshake(handshake);
+        } else if (state_ == State.Open) {
+          WebSocketCodec.Frame frame = WebSocketCodec.decode(input, max_message_length_);
+          if (frame == null) {
+            return;
+          }
+          processFrame(frame);
+        } else {
+          // Data received after a close frame is discarded.
+          input.position(input.limit());
+        }
+      }
+    }
+
+    /**
+     * Writes the buffer to the socket or queues it if the socket cannot accept all data.
+     *
+     * @param buffer The data to write in read mode.
+     * @return True if the data was written or queued.
+     */
+    private boolean write(ByteBuffer buffer) {
+      boolean overflow = false;
+      boolean enable_write = false;
+      synchronized (this) {
+        if (close_after_flush_ || state_ == State.Closed) {
+          buffer_pool_.release(buffer);
+          return false;
+        }
+        if (outbound_.isEmpty()) {
+          try {
+            channel_.write(buffer);
+          } catch (IOException e) {
+            buffer_pool_.release(buffer);
+            overflow = true;
+          }
+          if (!overflow && !buffer.hasRemaining()) {
+            buffer_pool_.release(buffer);
+            return true;
+          }
+        }
+        if (!overflow) {
+          if (outbound_bytes_ + buffer.remaining() > max_pending_output_) {
+            buffer_pool_.release(buffer);
+            overflow = true;
+          } else {
+            outbound_.add(buffer);
+            outbound_bytes_ += buffer.remaining();
+            if (!write_pending_) {
+              write_pending_ = true;
+              enable_write = true;
+            }
+          }
+        }
+      }
+      if (overflow) {
+        log.debug("closing WebSocket due to write failure or output overflow");
+        reactor_.execute(new Runnable() {
+            @Override
+            public void run() {
+              close();
+            }
+          });
+        return false;
+      }
+      if (enable_write) {
+        reactor_.execute(new Runnable() {
+            @Override
+            public void run() {
+              if (key_.isValid()) {
+                key_.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+              }
+            }
+          });
+      }
+      return true;
+    }
+
+    /**
+     * Writes raw bytes to the socket.
+     *
+     * @param data The data to write.
+     * @return True if the data was written or queued.
+     */
+    private boolean writeBytes(byte[] data) {
+      return write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes a frame to the socket. Frames that fit into a pooled buffer are encoded into a
+     * pooled direct buffer.
+     *
+     * @param opcode The frame opcode.
+     * @param payload The frame payload.
+     * @return True if the frame was written or queued.
+     */
+    private boolean writeFrame(int opcode, byte[] payload) {
+      int length = WebSocketCodec.headerLength(payload.length) + payload.length;
+      ByteBuffer buffer;
+      if (length <= buffer_pool_.getBufferSize()) {
+        buffer = buffer_pool_.acquire();
+      } else {
+        buffer = ByteBuffer.allocate(length);
+      }
+      WebSocketCodec.encode(buffer, opcode, payload);
+      buffer.flip();
+      return write(buffer);
+    }
+
+    private SocketChannel channel_;  // The socket.
+    private boolean close_after_flush_;  // True if the session closes when all data is written.
+    private volatile Connection connection_;  // The connection created by the endpoint.
+    private int fragment_opcode_;  // Opcode of the fragmented message being received.
+    private ByteArrayOutputStream fragments_;  // Payload of a fragmented message or null.
+    private ByteBuffer inbound_;  // Unprocessed received data in write mode or null.
+    private SelectionKey key_;  // Selection key of the socket.
+    private ArrayDeque<ByteBuffer> outbound_;  // Queued data that has not been written yet.
+    private long outbound_bytes_;  // Number of queued bytes.
+    private Reactor reactor_;  // The reactor that serves this session.
+    private volatile State state_;  // Lifecycle state.
+    private boolean write_pending_;  // True if the socket is registered for write readiness.
+  }
+
+  /**
+   * Creates a WebSocket server. The server does not accept connections until it is started.
+   *
+   * @param address The local address to bind to. Port 0 selects an ephemeral port.
+   * @param reactor_count The number of reactor threads.
+   * @param endpoint The endpoint that creates connections for accepted WebSockets.
+   */
+  public WebSocketServer(InetSocketAddress address, int reactor_count,
+                         WebSocketEndpoint endpoint) {
+    if (reactor_count < 1) {
+      throw new IllegalArgumentException("At least one reactor is required.");
+    }
+    this.address_ = address;
+    this.endpoint_ = endpoint;
+    reactors_ = new Reactor[reactor_count];
+    buffer_pool_ = new BufferPool(kBufferSize, kMaxIdleBuffers);
+    connection_count_ = new AtomicInteger(0);
+    max_message_length_ = kDefaultMaxMessageLength;
+    max_pending_output_ = kDefaultMaxPendingOutput;
+    next_reactor_ = 0;
+    running_ = false;
+    server_channel_ = null;
+  }
+
+  /**
+   * Returns the number of open sockets including sockets that have not completed the opening
+   * handshake.
+   *
+   * @return The number of open sockets.
+   */
+  public int getConnectionCount() {
+    return connection_count_.get();
+  }
+
+  /**
+   * Returns the local port the server is bound to.
+   *
+   * @return The local port or -1 if the server is not running.
+   */
+  public synchronized int getPort() {
+    if (server_channel_ == null) {
+      return -1;
+    }
+    return server_channel_.socket().getLocalPort();
+  }
+
+  /**
+   * Returns true if the server has been started and not stopped.
+   *
+   * @return True if the server is running.
+   */
+  public boolean isRunning() {
+    return running_;
+  }
+
+  /**
+   * Sets the maximum length of a received message. WebSockets that send larger messages are
+   * closed.
+   *
+   * @param max_message_length The maximum message length in bytes.
+   */
+  public void setMaxMessageLength(int max_message_length) {
+    this.max_message_length_ = max_message_length;
+  }
+
+  /**
+   * Sets the maximum number of bytes that may be queued for a WebSocket that does not accept
+   * data fast enough. WebSockets that exceed this limit are closed.
+   *
+   * @param max_pending_output The maximum number of queued bytes per WebSocket.
+   */
+  public void setMaxPendingOutput(int max_pending_output) {
+    this.max_pending_output_ = max_pending_output;
+  }
+
+  /**
+   * Binds the server socket and starts the reactor threads.
+   *
+   * @throws IOException If the server socket cannot be bound.
+   */
+  public synchronized void start() throws IOException {
+    if (running_) {
+      return;
+    }
+    ServerSocketChannel server_channel = ServerSocketChannel.open();
+    try {
+      server_channel.configureBlocking(false);
+      server_channel.socket().setReuseAddress(true);
+      server_channel.socket().bind(address_, 1024);
+      for (int i = 0; i < reactors_.length; i++) {
+        reactors_[i] = new Reactor(i);
+      }
+      server_channel.register(reactors_[0].selector_, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      server_channel.close();
+      throw e;
+    }
+    server_channel_ = server_channel;
+    running_ = true;
+    for (Reactor reactor : reactors_) {
+      reactor.start();
+    }
+    log.debug("WebSocket server listening on port {}", getPort());
+  }
+
+  /**
+   * Stops the server. Closes the server socket and all WebSockets and waits for the reactor
+   * threads to exit.
+   */
+  public synchronized void stop() {
+    if (!running_) {
+      return;
+    }
+    running_ = false;
+    for (Reactor reactor : reactors_) {
+      reactor.selector_.wakeup();
+    }
+    for (Reactor reactor : reactors_) {
+      try {
+        reactor.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      server_channel_.close();
+    } catch (IOException e) {
+      log.catching(Level.DEBUG, e);
+    }
+    server_channel_ = null;
+  }
+
+  /**
+   * Accepts all pending sockets and distributes them over the reactors.
+   * Called on the thread of the first reactor.
+   */
+  private void accept() {
+    while (true) {
+      final SocketChannel channel;
+      try {
+        channel = server_channel_.accept();
+        if (channel == null) {
+          return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        log.catching(Level.DEBUG, e);
+        return;
+      }
+      final Reactor reactor = reactors_[next_reactor_];
+      next_reactor_ = (next_reactor_ + 1) % reactors_.length;
+      if (reactor == reactors_[0]) {
+        reactor.register(channel);
+      } else {
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+              reactor.register(channel);
+            }
+          });
+      }
+    }
+  }
+
+  /**
+   * Closes a socket and ignores any errors.
+   *
+   * @param channel The socket to close.
+   */
+  private static void closeChannel(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.catching(Level.TRACE, e);
+    }
+  }
+
+  private static Logger log = LogManager.getLogger();
+
+  private InetSocketAddress address_;  // Local address of the server socket.
+  private BufferPool buffer_pool_;  // Pool of direct buffers used for reads and writes.
+  private AtomicInteger connection_count_;  // Number of open sockets.
+  private WebSocketEndpoint endpoint_;  // Creates connections for accepted WebSockets.
+  private volatile int max_message_length_;  // Maximum length of a received message.
+  private volatile int max_pending_output_;  // Maximum number of queued bytes per WebSocket.
+  private int next_reactor_;  // Index of the reactor that receives the next socket.
+  private Reactor[] reactors_;  // Reactor threads.
+  private volatile boolean running_;  // True if the server is running.
+  private ServerSocketChannel server_channel_;  // The server socket.
+}
@@ -0,0 +1,85 @@
+/* General AI - WAMP Server and Client
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net.wamp;
+
+import ai.general.directory.DeferredArgument;
+import ai.general.net.CodecRegistry;
+import ai.general.net.TypedArgument;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * A {@link DeferredArgument} that holds the raw JSON text of a structured WAMP message field.
+ *
+ * JsonArgument is created by {@link WampMessage} for JSON objects and arrays, such as call
+ * arguments and event data. The JSON text is a slice of the received message and is only parsed
+ * into Java objects when a handler accesses the argument.
+ *
+ * Handlers that know the type of the argument can decode the JSON text directly into that type
+ * via {@link #bind(JavaType)}. This does not bind the generic value of the argument.
+ */
+class JsonArgument extends DeferredArgument implements TypedArgument {
+
+  /**
+   * Creates a JsonArgument for the specified JSON text.
+   *
+   * @param json The raw JSON text of the argument.
+   */
+  public JsonArgument(String json) {
+    this.json_ = json;
+  }
+
+  /**
+   * Decodes the JSON text into the specified type.
+   *
+   * @param type The target type.
+   * @return The decoded value.
+   * @throws IllegalArgumentException if the JSON text cannot be decoded into the type.
+   */
+  @Override
+  public Object bind(JavaType type) throws IllegalArgumentException {
+    return read(type);
+  }
+
+  /**
+   * Returns the raw JSON text of the argument.
+   *
+   * @return The raw JSON text.
+   */
+  public String getJson() {
+    return json_;
+  }
+
+  /**
+   * Binds the JSON text to generic Java objects, i.e. maps, lists and primitive wrappers.
+   *
+   * @return The bound argument value.
+   * @throws IllegalArgumentException if the JSON text cannot be parsed.
+   */
+  @Override
+  protected Object bind() throws IllegalArgumentException {
+    return read(CodecRegistry.Instance.getTypeFactory().constructType(Object.class));
+  }
+
+  /**
+   * Parses the JSON text into the specified type.
+   *
+   * @param type The target type.
+   * @return The parsed value.
+   * @throws IllegalArgumentException if the JSON text cannot be parsed into the type.
+   */
+  private Object read(JavaType type) throws IllegalArgumentException {
+    try {
+      return CodecRegistry.Instance.getReader(type).readValue(json_);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  private String json_;  // Raw JSON text.
+}
@@ -0,0 +1,478 @@
+/* General AI - WAMP Server and Client
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net.wamp;
+
+import ai.general.event.Watcher;
+import ai.general.net.RpcCallback;
+import ai.general.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Keeps track of outgoing RPC calls that are awaiting a call result or call error.
+ *
+ * Each pending call is identified by a numeric call ID. Call ID's are assigned in increasing
+ * order and are sent to the remote endpoint as decimal strings. Pending calls are stored in an
+ * open addressing hash table keyed by the numeric call ID, which avoids boxing of call ID's. The
+ * size of the table is proportional to the number of pending calls, regardless of the range of
+ * call ID's that are pending. The table grows when it is half full and shrinks when it is sparse.
+ *
+ * Each pending call has a deadline. Deadlines are tracked in a hashed timer wheel with a
+ * resolution of {@link #kTickMillis} milliseconds. A shared reaper thread advances the timer
+ * wheels of all tables with pending calls and expires overdue calls by invoking their
+ * {@link RpcCallback#onError(Uri, String, Object)} method with a timeout error URI. The fragment
+ * of the error URI is {@link RpcCallback#kTimeoutError}.
+ *
+ * Callbacks are never invoked while holding the lock of the table.
+ *
+ * PendingCallTable is thread-safe.
+ */
+class PendingCallTable {
+
+  /** Resolution of call deadlines in milliseconds. */
+  public static final long kTickMillis = 100;
+
+  // Multiplier that spreads sequential call ID's over the slot array.
+  private static final long kHashMultiplier = 0x9E3779B97F4A7C15L;
+
+  // Initial and minimum size of the slot array. Must be a power of 2.
+  private static final int kInitialCapacity = 16;
+
+  // Number of buckets in the timer wheel. Must be a power of 2.
+  private static final int kWheelSize = 512;
+
+  /**
+   * Represents a pending call. A pending call is linked into a timer wheel bucket.
+   */
+  private static class PendingCall {
+
+    /**
+     * Creates a pending call.
+     *
+     * @param id The call ID.
+     * @param callback The callback to invoke when the call completes.
+     * @param deadline_tick The tick at which the call expires.
+     */
+    public PendingCall(long id, RpcCallback callback, long deadline_tick) {
+      this.id_ = id;
+      this.callback_ = callback;
+      this.deadline_tick_ = deadline_tick;
+      next_ = null;
+      previous_ = null;
+    }
+
+    private RpcCallback callback_;  // The callback to invoke when the call completes.
+    private long deadline_tick_;  // The tick at which the call expires.
+    private long id_;  // The call ID.
+    private PendingCall next_;  // Next call in the same timer wheel bucket.
+    private PendingCall previous_;  // Previous call in the same timer wheel bucket.
+  }
+
+  /**
+   * Periodically advances the timer wheels of all tables that have pending calls.
+   */
+  private static class Reaper extends Watcher {
+
+    /**
+     * Creates the reaper. The reaper thread is started when the first table is registered.
+     */
+    public Reaper() {
+      super("PendingCallReaper", kTickMillis);
+      tables_ = Collections.newSetFromMap(new ConcurrentHashMap<PendingCallTable, Boolean>());
+    }
+
+    /**
+     * Adds a table to the set of watched tables.
+     *
+     * @param table The table to watch.
+     */
+    public void register(PendingCallTable table) {
+      tables_.add(table);
+      start();
+    }
+
+    /**
+     * Removes a table from the set of watched tables.
+     *
+     * @param table The table to remove.
+     */
+    public void unregister(PendingCallTable table) {
+      tables_.remove(table);
+    }
+
+    /**
+     * Expires overdue calls in all watched tables.
+     */
+    @Override
+    protected void watch() {
+      long now_millis = System.currentTimeMillis();
+      for (PendingCallTable table : tables_) {
+        try {
+          table.expire(now_millis);
+        } catch (Exception e) {
+          log.catching(Level.DEBUG, e);
+        }
+      }
+    }
+
+    private Set<PendingCallTable> tables_;  // Tables with pending calls.
+  }
+
+  /**
+   * Creates an empty PendingCallTable.
+   *
+   * @param timeout_error_uri The error URI passed to callbacks of expired calls.
+   */
+  public PendingCallTable(Uri timeout_error_uri) {
+    this.timeout_error_uri_ = timeout_error_uri;
+    slots_ = new PendingCall[kInitialCapacity];
+    wheel_ = new PendingCall[kWheelSize];
+    next_id_ = 1;
+    size_ = 0;
+    current_tick_ = System.currentTimeMillis() / kTickMillis;
+    registered_ = false;
+  }
+
+  /**
+   * Adds a pending call and returns its call ID.
+   *
+   * @param callback The callback to invoke when the call completes or expires.
+   * @param timeout_millis The call timeout in milliseconds. Must be positive. Timeouts that
+   *                       exceed the range of time values never expire.
+   * @return The call ID.
+   */
+  public synchronized long add(RpcCallback callback, long timeout_millis) {
+    long id = next_id_++;
+    if ((size_ + 1) * 2 > slots_.length) {
+      resize(slots_.length * 2);
+    }
+    long now_millis = System.currentTimeMillis();
+    long timeout = Math.max(timeout_millis, 1);
+    long deadline_millis = timeout < Long.MAX_VALUE - now_millis ?
+      now_millis + timeout : Long.MAX_VALUE;
+    long deadline_tick = deadline_millis / kTickMillis;
+    if (deadline_millis % kTickMillis != 0) {
+      deadline_tick++;
+    }
+    if (deadline_tick <= current_tick_) {
+      deadline_tick = current_tick_ + 1;
+    }
+    PendingCall call = new PendingCall(id, callback, deadline_tick);
+    int mask = slots_.length - 1;
+    int index = slotIndex(id);
+    while (slots_[index] != null) {
+      index = (index + 1) & mask;
+    }
+    slots_[index] = call;
+    link(call);
+    size_++;
+    if (!registered_) {
+      registered_ = true;
+      reaper.register(this);
+    }
+    return id;
+  }
+
+  /**
+   * Expires all calls whose deadline has passed and invokes their error callbacks.
+   *
+   * This method is periodically called by the reaper thread. It can be also called explicitly.
+   *
+   * @param now_millis The current time in milliseconds.
+   * @return The number of expired calls.
+   */
+  public int expire(long now_millis) {
+    ArrayList<RpcCallback> expired = new ArrayList<RpcCallback>();
+    synchronized (this) {
+      long now_tick = now_millis / kTickMillis;
+      if (now_tick > current_tick_) {
+        // Each bucket needs to be visited at most once, even if many ticks have passed.
+        long last_tick = Math.min(now_tick, current_tick_ + kWheelSize);
+        for (long tick = current_tick_ + 1; tick <= last_tick; tick++) {
+          PendingCall call = wheel_[(int) (tick & (kWheelSize - 1))];
+          while (call != null) {
+            PendingCall next = call.next_;
+            if (call.deadline_tick_ <= now_tick) {
+              unlink(call);
+              removeSlot(find(call.id_));
+              expired.add(call.callback_);
+            }
+            call = next;
+          }
+        }
+        current_tick_ = now_tick;
+      }
+      if (size_ == 0 && registered_) {
+        registered_ = false;
+        reaper.unregister(this);
+      }
+    }
+    for (RpcCallback callback : expired) {
+      try {
+        callback.onError(new Uri(timeout_error_uri_), "call timeout", null);
+      } catch (Exception e) {
+        log.catching(Level.DEBUG, e);
+      }
+    }
+    if (!expired.isEmpty()) {
+      log.trace("expired {} calls", expired.size());
+    }
+    return expired.size();
+  }
+
+  /**
+   * Removes all pending calls and invokes their error callbacks with the specified error. The
+   * table is unregistered from the reaper thread.
+   *
+   * @param error_uri The error URI passed to the callbacks.
+   * @param error_description The error description passed to the callbacks.
+   * @return The number of failed calls.
+   */
+  public int failAll(Uri error_uri, String error_description) {
+    ArrayList<RpcCallback> failed = new ArrayList<RpcCallback>();
+    synchronized (this) {
+      for (PendingCall call : slots_) {
+        if (call != null) {
+          failed.add(call.callback_);
+        }
+      }
+      slots_ = new PendingCall[kInitialCapacity];
+      wheel_ = new PendingCall[kWheelSize];
+      size_ = 0;
+      if (registered_) {
+        registered_ = false;
+        reaper.unregister(this);
+      }
+    }
+    for (RpcCallback callback : failed) {
+      try {
+        callback.onError(new Uri(error_uri), error_description, null);
+      } catch (Exception e) {
+        log.catching(Level.DEBUG, e);
+      }
+    }
+    return failed.size();
+  }
+
+  /**
+   * Formats a call ID for transmission to the remote endpoint.
+   *
+   * @param id The numeric call ID.
+   * @return The call ID string.
+   */
+  public static String format(long id) {
+    return Long.toString(id);
+  }
+
+  /**
+   * Removes the pending call with the specified call ID and returns its callback.
+   * Returns null if the call ID is malformed or there is no pending call with the ID, for example
+   * because the call has already expired.
+   *
+   * @param call_id The call ID string received from the remote endpoint.
+   * @return The callback of the call or null.
+   */
+  public RpcCallback remove(String call_id) {
+    long id = parse(call_id);
+    if (id <= 0) {
+      return null;
+    }
+    synchronized (this) {
+      int index = find(id);
+      if (index < 0) {
+        return null;
+      }
+      PendingCall call = slots_[index];
+      removeSlot(index);
+      unlink(call);
+      return call.callback_;
+    }
+  }
+
+  /**
+   * Removes the pending call with the specified callback. Unlike {@link #remove(String)}, this
+   * method scans the whole table and is intended for calls that are cancelled locally.
+   *
+   * @param callback The callback of the call to remove.
+   * @return True if a call was removed.
+   */
+  public synchronized boolean remove(RpcCallback callback) {
+    for (int index = 0; index < slots_.length; index++) {
+      PendingCall call = slots_[index];
+      if (call != null && call.callback_ == callback) {
+        removeSlot(index);
+        unlink(call);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of pending calls.
+   *
+   * @return The number of pending calls.
+   */
+  public synchronized int size() {
+    return size_;
+  }
+
+  /**
+   * Returns the size of the slot array.
+   *
+   * @return The number of slots.
+   */
+  synchronized int capacity() {
+    return slots_.length;
+  }
+
+  /**
+   * Parses a call ID string without allocation.
+   *
+   * @param call_id The call ID string.
+   * @return The numeric call ID or -1 if the call ID is malformed.
+   */
+  private static long parse(String call_id) {
+    int length = call_id.length();
+    if (length == 0 || length > 18) {
+      return -1;
+    }
+    long id = 0;
+    for (int i = 0; i < length; i++) {
+      char c = call_id.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      id = id * 10 + (c - '0');
+    }
+    return id;
+  }
+
+  /**
+   * Returns the slot index of the pending call with the specified ID.
+   *
+   * @param id The call ID.
+   * @return The slot index or -1 if there is no pending call with the ID.
+   */
+  private int find(long id) {
+    int mask = slots_.length - 1;
+    int index = slotIndex(id);
+    while (slots_[index] != null) {
+      if (slots_[index].id_ == id) {
+        return index;
+      }
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a call to the timer wheel bucket of its deadline.
+   *
+   * @param call The call to add.
+   */
+  private void link(PendingCall call) {
+    int bucket = (int) (call.deadline_tick_ & (kWheelSize - 1));
+    call.next_ = wheel_[bucket];
+    if (call.next_ != null) {
+      call.next_.previous_ = call;
+    }
+    wheel_[bucket] = call;
+  }
+
+  /**
+   * Empties a slot and shifts subsequent calls of the same probe sequence back, so that lookups
+   * do not need to skip deleted slots. Shrinks the slot array if it becomes sparse.
+   *
+   * @param index The index of the slot to empty.
+   */
+  private void removeSlot(int index) {
+    int mask = slots_.length - 1;
+    int hole = index;
+    int next = (hole + 1) & mask;
+    while (slots_[next] != null) {
+      // The call at next can be moved to the hole unless its home slot lies between the hole
+      // and next.
+      int home = slotIndex(slots_[next].id_);
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        slots_[hole] = slots_[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    slots_[hole] = null;
+    size_--;
+    if (size_ * 8 < slots_.length && slots_.length > kInitialCapacity) {
+      resize(slots_.length / 2);
+    }
+  }
+
+  /**
+   * Rehashes all pending calls into a slot array of the specified size.
+   *
+   * @param capacity The new size of the slot array. Must be a power of 2.
+   */
+  private void resize(int capacity) {
+    PendingCall[] slots = slots_;
+    slots_ = new PendingCall[capacity];
+    int mask = capacity - 1;
+    for (PendingCall call : slots) {
+      if (call != null) {
+        int index = slotIndex(call.id_);
+        while (slots_[index] != null) {
+          index = (index + 1) & mask;
+        }
+        slots_[index] = call;
+      }
+    }
+  }
+
+  /**
+   * Returns the home slot index of a call ID.
+   *
+   * @param id The call ID.
+   * @return The index of the first slot probed for the call.
+   */
+  private int slotIndex(long id) {
+    return (int) ((id * kHashMultiplier) >>> 32) & (slots_.length - 1);
+  }
+
+  /**
+   * Removes a call from its timer wheel bucket.
+   *
+   * @param call The call to remove.
+   */
+  private void unlink(PendingCall call) {
+    if (call.previous_ != null) {
+      call.previous_.next_ = call.next_;
+    } else {
+      wheel_[(int) (call.deadline_tick_ & (kWheelSize - 1))] = call.next_;
+    }
+    if (call.next_ != null) {
+      call.next_.previous_ = call.previous_;
+    }
+    call.next_ = null;
+    call.previous_ = null;
+  }
+
+  private static Logger log = LogManager.getLogger();
+  private static Reaper reaper = new Reaper();
+
+  private long current_tick_;  // The last tick processed by expire().
+  private long next_id_;  // The next call ID.
+  private boolean registered_;  // True if this table is registered with the reaper.
+  private int size_;  // Number of pending calls.
+  private PendingCall[] slots_;  // Open addressing hash table of pending calls.
+  private Uri timeout_error_uri_;  // Error URI passed to callbacks of expired calls.
+  private PendingCall[] wheel_;  // Timer wheel buckets of pending calls.
+}
@@ -6,30 +6,37 @@
 package ai.general.net.wamp;
 
 import ai.general.common.RandomString;
-import ai.general.common.Strings;
 import ai.general.directory.Directory;
 import ai.general.directory.Handler;
 import ai.general.directory.Request;
 import ai.general.directory.Result;
+import ai.general.net.BatchOutputSender;
+import ai.general.net.CodecRegistry;
 import ai.general.net.Connection;
+import ai.general.net.ImmutableUri;
+import ai.general.net.KeyedExecutor;
 import ai.general.net.OutputSender;
+import ai.general.net.QueuedOutputSender;
 import ai.general.net.RelayHandler;
 import ai.general.net.RpcCallback;
 import ai.general.net.Uri;
+import ai.general.net.UriCache;
 
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JavaType;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 
 /**
@@ -47,7 +54,9 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
  * <li>WampConnection allows symmetric communication between client and server. Both the server
  * and client can make RPC calls to each other and can subscribe to messages at either endpoint.
  * </li>
- * <li>The * wildcard can be used to subscribe to or unsubscribe from a set of topics.</li>
+ * <li>The * wildcard can be used to subscribe to or unsubscribe from a set of topics. The +
+ * wildcard matches a single path segment and can be used anywhere in a topic path, e.g.
+ * "/sensors/+/temperature".</li>
  * <li>WampConnection treats publish and event calls in the same way. Whether a publish or event
  * message is sent, depends on whether the connection is on the server or client side, regardless
  * of the method that is called.</li>
@@ -67,9 +76,19 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
  *
  * WampConnection is thread-safe. The {@link #process(String)} method can be executed by a
  * thread pool.
+ *
+ * By default, incoming RPC calls are executed on the thread that calls {@link #process(String)}.
+ * If a call executor is set via {@link #setCallExecutor(Executor)}, incoming calls are executed
+ * by the call executor, so that slow RPC methods do not delay subsequent messages. Similarly,
+ * incoming publish and event requests can be handled by a {@link KeyedExecutor} set via
+ * {@link #setPublishExecutor(KeyedExecutor)}, which preserves the order of events per topic.
+ * Messages are still parsed in order on the processing thread.
  */
 public class WampConnection extends Connection {
 
+  /** Default RPC call timeout in milliseconds. */
+  public static final long kDefaultCallTimeoutMillis = 120000;
+
   // The URI port.
   private static final int kPort = -1;
 
@@ -85,16 +104,58 @@ public class WampConnection extends Connection {
   // Required by protocol.
   private static final int kWampVersion = 1;
 
+  // Request encoding cache key of the JSON encoded event data of relayed requests.
+  private static final String kPayloadEncoding = "wamp:payload";
+
+  // Request encoding cache key prefix of relayed WAMP messages. The key is completed with the
+  // WAMP type ID and the topic URI.
+  private static final String kRelayEncodingPrefix = "wamp:relay:";
+
   // WAMP type ID's.
-  private static final int kWelcome = 0;
-  private static final int kPrefix = 1;
-  private static final int kCall = 2;
-  private static final int kCallResult = 3;
-  private static final int kCallError = 4;
-  private static final int kSubscribe = 5;
-  private static final int kUnsubscribe = 6;
-  private static final int kPublish = 7;
-  private static final int kEvent = 8;
+  static final int kWelcome = 0;
+  static final int kPrefix = 1;
+  static final int kCall = 2;
+  static final int kCallResult = 3;
+  static final int kCallError = 4;
+  static final int kSubscribe = 5;
+  static final int kUnsubscribe = 6;
+  static final int kPublish = 7;
+  static final int kEvent = 8;
+
+  /**
+   * Executes an incoming RPC call via the call executor.
+   */
+  private class CallTask implements Runnable {
+
+    /**
+     * @param uri The URI of the RPC method.
+     * @param call_id The call ID supplied by the caller.
+     * @param request The call request.
+     */
+    public CallTask(Uri uri, String call_id, Request request) {
+      this.uri_ = uri;
+      this.call_id_ = call_id;
+      this.request_ = request;
+    }
+
+    /**
+     * Executes the call and sends the call result or call error. Unexpected exceptions are
+     * returned to the caller as runtime errors, since there is no other thread to report them to.
+     */
+    @Override
+    public void run() {
+      try {
+        executeCall(uri_, call_id_, request_);
+      } catch (RuntimeException e) {
+        log.catching(Level.DEBUG, e);
+        sender_.sendText(makeCallError(uri_, call_id_, "runtime_error", "runtime error", null));
+      }
+    }
+
+    private String call_id_;  // The call ID supplied by the caller.
+    private Request request_;  // The call request.
+    private Uri uri_;  // The URI of the RPC method.
+  }
 
   /**
    * By default the WampConnection starts in client mode. To switch the connection to server
@@ -127,14 +188,11 @@ public class WampConnection extends Connection {
     this.sender_ = sender;
     is_server_ = false;
     setSessionId("0");
-    json_mapper_ = new ObjectMapper();
-    object_array_type_ = json_mapper_.getTypeFactory().constructArrayType(Object.class);
-    string_array_list_type_ =
-      json_mapper_.getTypeFactory().constructCollectionType(ArrayList.class, String.class);
-    client_subscribed_uris_ = new ArrayList<Uri>();
+    client_subscribed_uris_ = new HashMap<String, Integer>();
     server_subscribed_paths_ = new ArrayList<String>();
-    pending_rpc_calls_ = new HashMap<String, RpcCallback>();
-    rpc_call_counter_ = 0;
+    pending_calls_ = new PendingCallTable(
+        new ImmutableUri(createUriFromPath("/error")).withFragment(RpcCallback.kTimeoutError));
+    call_timeout_millis_ = kDefaultCallTimeoutMillis;
     prefix_ = new HashMap<String, String>();
   }
 
@@ -143,6 +201,7 @@ public class WampConnection extends Connection {
    * This method creates an appropriate URI for the call.
    *
    * The RPC is executed asynchronously. When completed the provided RpcCallback will be called.
+   * The call uses the default call timeout of this connection.
    *
    * @param method_path Method URI path of the RPC method to call.
    * @param callback The callback to invoke when the RPC returns.
@@ -151,6 +210,45 @@ public class WampConnection extends Connection {
    */
   @Override
   public boolean call(String method_path, RpcCallback callback, Object ... arguments) {
+    return call(method_path, call_timeout_millis_, callback, arguments);
+  }
+
+  /**
+   * Makes an RPC call to the remote endpoint at the specified method URI.
+   *
+   * The RPC is executed asynchronously. When completed the provided RpcCallback will be called.
+   * The call uses the default call timeout of this connection.
+   *
+   * @param method_uri Method URI of the RPC method to call.
+   * @param callback The callback to invoke when the RPC returns.
+   * @param arguments RPC method arguments.
+   * @return True if the call was sent.
+   */
+  @Override
+  public boolean call(Uri method_uri, RpcCallback callback, Object ... arguments) {
+    return call(method_uri, call_timeout_millis_, callback, arguments);
+  }
+
+  /**
+   * Makes an RPC call to the remote endpoint at the specified method path with the specified
+   * timeout. This method creates an appropriate URI for the call.
+   *
+   * The RPC is executed asynchronously. When completed the provided RpcCallback will be called.
+   * If no response is received within the timeout, the call is removed from the set of pending
+   * calls and the RpcCallback is called with a timeout error. Any response received after the
+   * timeout is ignored.
+   *
+   * @param method_path Method URI path of the RPC method to call.
+   * @param timeout_millis The call timeout in milliseconds.
+   * @param callback The callback to invoke when the RPC returns.
+   * @param arguments RPC method arguments.
+   * @return True if the call was sent.
+   */
+  @Override
+  public boolean call(String method_path,
+                      long timeout_millis,
+                      RpcCallback callback,
+                      Object ... arguments) {
     if (method_path.length() == 0) {
       return false;
     }
@@ -158,31 +256,34 @@ public class WampConnection extends Connection {
       method_path = "/" + method_path;
     }
     try {
-      return call(createUriFromPath(method_path), callback, arguments);
+      return call(createUriFromPath(method_path), timeout_millis, callback, arguments);
     } catch (IllegalArgumentException e) {
       return false;
     }
   }
 
   /**
-   * Makes an RPC call to the remote endpoint at the specified method URI.
+   * Makes an RPC call to the remote endpoint at the specified method URI with the specified
+   * timeout.
    *
    * The RPC is executed asynchronously. When completed the provided RpcCallback will be called.
+   * If no response is received within the timeout, the call is removed from the set of pending
+   * calls and the RpcCallback is called with a timeout error. Any response received after the
+   * timeout is ignored.
    *
    * @param method_uri Method URI of the RPC method to call.
+   * @param timeout_millis The call timeout in milliseconds.
    * @param callback The callback to invoke when the RPC returns.
    * @param arguments RPC method arguments.
    * @return True if the call was sent.
    */
   @Override
-  public boolean call(Uri method_uri, RpcCallback callback, Object ... arguments) {
-    String call_id;
-    synchronized (pending_rpc_calls_) {
-      rpc_call_counter_++;
-      call_id = getSessionId() + ":" + rpc_call_counter_ + ":" + System.currentTimeMillis();
-      pending_rpc_calls_.put(call_id, callback);
-    }
-    ArrayNode request = json_mapper_.createArrayNode();
+  public boolean call(Uri method_uri,
+                      long timeout_millis,
+                      RpcCallback callback,
+                      Object ... arguments) {
+    String call_id = PendingCallTable.format(pending_calls_.add(callback, timeout_millis));
+    ArrayNode request = CodecRegistry.Instance.createArrayNode();
     request.add(kCall);
     request.add(call_id);
     request.add(method_uri.toString());
@@ -190,10 +291,23 @@ public class WampConnection extends Connection {
       request.addPOJO(argument);
     }
     try {
-      return sender_.sendText(json_mapper_.writeValueAsString(request));
-    } catch (JsonProcessingException e) {
-      return false;
-    }
+      if (sender_.sendText(CodecRegistry.Instance.getWriter().writeValueAsString(request))) {
+        return true;
+      }
+    } catch (JsonProcessingException e) { /* handled below */ }
+    pending_calls_.remove(call_id);
+    return false;
+  }
+
+  /**
+   * Removes the call with the specified callback from the set of pending calls. Any response
+   * received for the call is ignored.
+   *
+   * @param callback The callback of the call to cancel.
+   */
+  @Override
+  public void cancelCall(RpcCallback callback) {
+    pending_calls_.remove(callback);
   }
 
   /**
@@ -207,12 +321,16 @@ public class WampConnection extends Connection {
   /**
    * This method must be called in order to properly clean up when the WampConnection is
    * closed.
-   * Removes all handlers added by this instance.
+   * Removes all handlers added by this instance. Pending calls fail immediately with an error URI
+   * whose fragment is {@link RpcCallback#kClosedError}.
    */
   @Override
   public void close() {
     super.close();
     unsubscribeAll();
+    pending_calls_.failAll(
+        new ImmutableUri(createUriFromPath("/error")).withFragment(RpcCallback.kClosedError),
+        "connection closed");
   }
 
   /**
@@ -251,6 +369,46 @@ public class WampConnection extends Connection {
     return publish(topic_uri, data, false, null, null);
   }
 
+  /**
+   * Returns the outbound message queue of this connection or null if messages are sent
+   * directly. The queue provides queue depth and drop metrics.
+   *
+   * @return The outbound message queue or null.
+   */
+  public QueuedOutputSender getOutputQueue() {
+    OutputSender sender = sender_;
+    return sender instanceof QueuedOutputSender ? (QueuedOutputSender) sender : null;
+  }
+
+  /**
+   * Returns the executor that executes incoming RPC calls or null if incoming calls are executed
+   * on the processing thread.
+   *
+   * @return The call executor or null.
+   */
+  public Executor getCallExecutor() {
+    return call_executor_;
+  }
+
+  /**
+   * Returns the default timeout of RPC calls made via this connection.
+   *
+   * @return The default call timeout in milliseconds.
+   */
+  public long getCallTimeoutMillis() {
+    return call_timeout_millis_;
+  }
+
+  /**
+   * Returns the executor that handles incoming publish and event requests or null if they are
+   * handled on the processing thread.
+   *
+   * @return The publish executor or null.
+   */
+  public KeyedExecutor getPublishExecutor() {
+    return publish_executor_;
+  }
+
   /**
    * Whether this connection acts as a WAMP server or WAMP client.
    *
@@ -268,12 +426,12 @@ public class WampConnection extends Connection {
    * @return True if the message was sent.
    */
   public boolean prefix(String prefix, Uri uri) {
-    ArrayNode request = json_mapper_.createArrayNode();
+    ArrayNode request = CodecRegistry.Instance.createArrayNode();
     request.add(kPrefix);
     request.add(prefix);
     request.add(uri.toString());
     try {
-      return sender_.sendText(json_mapper_.writeValueAsString(request));
+      return sender_.sendText(CodecRegistry.Instance.getWriter().writeValueAsString(request));
     } catch (JsonProcessingException e) {
       return false;
     }
@@ -287,6 +445,10 @@ public class WampConnection extends Connection {
    * interpreted. The method does return true even if the processing of the request has resulted
    * in a logic error as long as the input conforms to the protocol.
    *
+   * The input is decoded with a streaming parser. Structured call arguments and event data are
+   * not converted into Java objects during decoding. They are passed to handlers as deferred
+   * arguments and are bound only if a handler accesses them.
+   *
    * @param input Message received from remote endpoint.
    * @return True if the input was successfully interpreted.
    */
@@ -296,13 +458,12 @@ public class WampConnection extends Connection {
       return false;
     }
     try {
-      Object[] request = json_mapper_.readValue(input, object_array_type_);
-      if (request.length < 1) {
+      WampMessage request = WampMessage.decode(input);
+      if (request == null) {
         log.trace("invalid request");
         return false;
       }
-      int type_id = (Integer) request[0];
-      switch (type_id) {
+      switch (request.getTypeId()) {
         case kWelcome: return processWelcome(request);
         case kPrefix: return processPrefix(request);
         case kCall: return processCall(request);
@@ -397,56 +558,191 @@ public class WampConnection extends Connection {
     return publish(topic_path, data, false, exclude, eligible);
   }
 
+  /**
+   * Relays a publish request to the remote endpoint using the specified topic URI.
+   *
+   * The WAMP message is encoded only once per request, WAMP type ID and topic URI and shared
+   * via the encoding cache of the request by all connections that relay the request. The event
+   * data is encoded only once per request regardless of the topic URI. Event data that was
+   * received as JSON and has not been bound is relayed as is without re-encoding.
+   *
+   * @param topic_uri The topic URI to publish to.
+   * @param request The publish request to relay.
+   * @return True if the request was sent.
+   */
+  @Override
+  public boolean relay(Uri topic_uri, Request request) {
+    int type_id = is_server_ ? kEvent : kPublish;
+    String topic = topic_uri.toString();
+    String message_key = kRelayEncodingPrefix + type_id + ":" + topic;
+    String message = request.getEncoding(message_key);
+    if (message == null) {
+      try {
+        String payload = request.getEncoding(kPayloadEncoding);
+        if (payload == null) {
+          payload = request.putEncoding(kPayloadEncoding, encodePayload(request.getRawArgument(0)));
+        }
+        String encoded_topic = CodecRegistry.Instance.getWriter().writeValueAsString(topic);
+        message = request.putEncoding(
+            message_key, "[" + type_id + "," + encoded_topic + "," + payload + "]");
+      } catch (JsonProcessingException e) {
+        return false;
+      }
+    }
+    return sendEvent(message);
+  }
+
+  /**
+   * Sets the executor that executes incoming RPC calls. If the executor is null, incoming calls
+   * are executed synchronously on the thread that processes the call message.
+   *
+   * If an executor is set, multiple calls received via this connection may execute concurrently
+   * and may complete in a different order than they were received. The call result or call error
+   * is sent when the call completes. If the executor rejects a call, a call error is returned to
+   * the caller.
+   *
+   * Suitable executors can be created via {@link ai.general.net.RpcExecutors}.
+   *
+   * @param executor The call executor or null.
+   */
+  public void setCallExecutor(Executor executor) {
+    call_executor_ = executor;
+  }
+
+  /**
+   * Changes the default timeout of RPC calls made via this connection. The new timeout applies
+   * only to calls made after this method returns.
+   *
+   * @param timeout_millis The new default call timeout in milliseconds.
+   */
+  public void setCallTimeoutMillis(long timeout_millis) {
+    call_timeout_millis_ = timeout_millis;
+  }
+
+  /**
+   * Places a bounded outbound message queue in front of the output sender of this connection.
+   *
+   * By default, messages are sent synchronously on the thread that produces them, which
+   * allows a slow remote endpoint to stall the producing thread. With an output queue, messages
+   * are queued and sent in batches on a thread of the specified executor. Events and publish
+   * messages are marked as droppable. All other messages, including call results, are never
+   * dropped. If the queue is full, the specified overflow policy is applied.
+   *
+   * This method should be called before the connection is used. It has no effect if an output
+   * queue has already been set.
+   *
+   * @param capacity The maximum number of queued messages.
+   * @param policy The overflow policy.
+   * @param executor The executor used to send queued messages.
+   */
+  public synchronized void setOutputQueue(int capacity,
+                                          QueuedOutputSender.OverflowPolicy policy,
+                                          Executor executor) {
+    if (sender_ instanceof QueuedOutputSender) {
+      return;
+    }
+    sender_ = new QueuedOutputSender(sender_, capacity, policy, executor, this);
+  }
+
+  /**
+   * Sets the executor that handles incoming publish and event requests. If the executor is null,
+   * publish and event requests are handled synchronously on the thread that processes the message.
+   *
+   * The topic path is used as the executor key. Thus, events published to the same topic are
+   * handled in the order they were received, while events published to different topics may be
+   * handled concurrently. The executor can be shared by multiple connections.
+   *
+   * @param executor The publish executor or null.
+   */
+  public void setPublishExecutor(KeyedExecutor executor) {
+    publish_executor_ = executor;
+  }
+
   /**
    * Sends a subscribe request to the remote endpoint for the specified topic path.
    * This method generates the appropriate URI for the request based on information provided
    * during construction of this object.
    * The path must be absolute.
    *
+   * If this connection is already subscribed to the topic, no request is sent. See
+   * {@link #subscribe(Uri)}.
+   *
    * @param topic_path The topic path to subscribe to.
-   * @return True if the request was sent.
+   * @return True if the request was sent or the topic is already subscribed.
    */
   @Override
   public boolean subscribe(String topic_path) {
-    if (topic_path.length() == 0) {
-      return false;
-    }
-    if (topic_path.charAt(0) != '/') {
-      topic_path = "/" + topic_path;
-    }
-    try {
-      return subscribe(createUriFromPath(topic_path));
-    } catch (IllegalArgumentException e) {
-      return false;
-    }
+    Uri topic_uri = createTopicUri(topic_path);
+    return topic_uri != null && subscribe(topic_uri);
   }
 
   /**
    * Sends a subscribe request to the remote endpoint for the specified topic URI.
    *
+   * Subscriptions are reference counted. If this connection is already subscribed to the topic,
+   * e.g. because another service subscribed to the same topic, no request is sent and the
+   * established subscription is shared. The topic is unsubscribed when each subscription has
+   * been matched by an unsubscription.
+   *
+   * Subscribe and unsubscribe requests are sent while holding the subscription lock, so that a
+   * subscription is shared only after its subscribe request has been sent successfully and the
+   * requests of a topic are sent in the order in which the subscription count changes.
+   *
    * @param topic_uri The topic URI to subscribe to.
-   * @return True if the request was sent.
+   * @return True if the request was sent or the topic is already subscribed.
    */
   @Override
   public boolean subscribe(Uri topic_uri) {
-    ArrayNode request = json_mapper_.createArrayNode();
-    request.add(kSubscribe);
-    request.add(topic_uri.toString());
-    try {
-      if (sender_.sendText(json_mapper_.writeValueAsString(request))) {
-        synchronized (client_subscribed_uris_) {
-          client_subscribed_uris_.add(topic_uri);
-        }
+    String uri_string = topic_uri.toString();
+    synchronized (client_subscribed_uris_) {
+      if (!addSubscription(uri_string)) {
         return true;
-      } else {
-        return false;
       }
-    } catch (JsonProcessingException e) {
-      // Exception will not be thrown due to construction.
+      if (sender_.sendText(makeSubscription(kSubscribe, uri_string))) {
+        return true;
+      }
+      removeSubscription(uri_string);
       return false;
     }
   }
 
+  /**
+   * Sends subscribe requests to the remote endpoint for the specified topic paths.
+   *
+   * No requests are sent for topics that are already subscribed. The requests for the remaining
+   * topics are sent as one batch if the output sender is a {@link BatchOutputSender}.
+   *
+   * @param topic_paths The topic paths to subscribe to.
+   * @return True if all requests were sent.
+   */
+  @Override
+  public boolean subscribe(Collection<String> topic_paths) {
+    boolean success = true;
+    ArrayList<String> subscribed_uris = new ArrayList<String>();
+    ArrayList<String> messages = new ArrayList<String>();
+    synchronized (client_subscribed_uris_) {
+      for (String topic_path : topic_paths) {
+        Uri topic_uri = createTopicUri(topic_path);
+        if (topic_uri == null) {
+          success = false;
+          continue;
+        }
+        String uri_string = topic_uri.toString();
+        if (addSubscription(uri_string)) {
+          subscribed_uris.add(uri_string);
+          messages.add(makeSubscription(kSubscribe, uri_string));
+        }
+      }
+      if (!messages.isEmpty() && !sendAll(messages)) {
+        for (String uri_string : subscribed_uris) {
+          removeSubscription(uri_string);
+        }
+        success = false;
+      }
+    }
+    return success;
+  }
+
   /**
    * Sends an unsubscribe request to the remote endpoint for the specified topic path.
    * This method generates the appropriate URI for the request based on information provided
@@ -454,49 +750,64 @@ public class WampConnection extends Connection {
    * This method is the counterpart of {@link #subscribe(String)}.
    *
    * @param topic_path The topic path to unsubscribe from.
-   * @return True if the request was sent.
+   * @return True if the request was sent or the topic remains subscribed by other subscribers.
    */
   @Override
   public boolean unsubscribe(String topic_path) {
-    if (topic_path.length() == 0) {
-      return false;
-    }
-    if (topic_path.charAt(0) != '/') {
-      topic_path = "/" + topic_path;
-    }
-    try {
-      return unsubscribe(createUriFromPath(topic_path));
-    } catch (IllegalArgumentException e) {
-      return false;
-    }
+    Uri topic_uri = createTopicUri(topic_path);
+    return topic_uri != null && unsubscribe(topic_uri);
   }
 
   /**
    * Sends an unsubscribe request to the remote endpoint for the specified topic URI.
    *
+   * If the topic has been subscribed multiple times, the reference count of the subscription is
+   * decremented and no request is sent. See {@link #subscribe(Uri)}.
+   *
    * @param topic_uri The topic URI to unsubscribe from.
-   * @return True if the request was sent.
+   * @return True if the request was sent or the topic remains subscribed by other subscribers.
    */
   @Override
   public boolean unsubscribe(Uri topic_uri) {
-    ArrayNode request = json_mapper_.createArrayNode();
-    request.add(kUnsubscribe);
-    request.add(topic_uri.toString());
-    try {
-      if (sender_.sendText(json_mapper_.writeValueAsString(request))) {
-        synchronized (client_subscribed_uris_) {
-          client_subscribed_uris_.remove(topic_uri);
-        }
+    String uri_string = topic_uri.toString();
+    synchronized (client_subscribed_uris_) {
+      if (!removeSubscription(uri_string)) {
         return true;
-      } else {
-        return false;
       }
-    } catch (JsonProcessingException e) {
-      // Exception will not be thrown due to construction.
-      return false;
+      return sender_.sendText(makeSubscription(kUnsubscribe, uri_string));
     }
   }
 
+  /**
+   * Sends unsubscribe requests to the remote endpoint for the specified topic paths.
+   * This method is the counterpart of {@link #subscribe(Collection)}.
+   *
+   * @param topic_paths The topic paths to unsubscribe from.
+   * @return True if all requests were sent.
+   */
+  @Override
+  public boolean unsubscribe(Collection<String> topic_paths) {
+    boolean success = true;
+    ArrayList<String> messages = new ArrayList<String>();
+    synchronized (client_subscribed_uris_) {
+      for (String topic_path : topic_paths) {
+        Uri topic_uri = createTopicUri(topic_path);
+        if (topic_uri == null) {
+          success = false;
+          continue;
+        }
+        String uri_string = topic_uri.toString();
+        if (removeSubscription(uri_string)) {
+          messages.add(makeSubscription(kUnsubscribe, uri_string));
+        }
+      }
+      if (!messages.isEmpty() && !sendAll(messages)) {
+        success = false;
+      }
+    }
+    return success;
+  }
+
   /**
    * Starts a new session with a WAMP client and sends a welcome message to the client using
    * a randomly generated session ID.
@@ -527,13 +838,13 @@ public class WampConnection extends Connection {
   public boolean welcome(String session_id) {
     setSessionId(session_id);
     is_server_ = true;
-    ArrayNode response = json_mapper_.createArrayNode();
+    ArrayNode response = CodecRegistry.Instance.createArrayNode();
     response.add(kWelcome);
     response.add(session_id);
     response.add(kWampVersion);
     response.add(kServerId);
     try {
-      if (sender_.sendText(json_mapper_.writeValueAsString(response))) {
+      if (sender_.sendText(CodecRegistry.Instance.getWriter().writeValueAsString(response))) {
         setIsReady(true);
         log.trace("connected as server with session ID '{}'", getSessionId());
         return true;
@@ -542,6 +853,40 @@ public class WampConnection extends Connection {
     return false;
   }
 
+  /**
+   * Increments the number of subscriptions of a topic URI subscribed to as client.
+   *
+   * @param uri_string The topic URI.
+   * @return True if the topic was not subscribed before and a subscribe request must be sent.
+   */
+  private boolean addSubscription(String uri_string) {
+    synchronized (client_subscribed_uris_) {
+      Integer count = client_subscribed_uris_.get(uri_string);
+      client_subscribed_uris_.put(uri_string, count == null ? 1 : count + 1);
+      return count == null;
+    }
+  }
+
+  /**
+   * Creates the URI of a topic path. Relative paths are interpreted as absolute paths.
+   *
+   * @param topic_path The topic path.
+   * @return The topic URI or null if the path is invalid.
+   */
+  private Uri createTopicUri(String topic_path) {
+    if (topic_path.length() == 0) {
+      return null;
+    }
+    if (topic_path.charAt(0) != '/') {
+      topic_path = "/" + topic_path;
+    }
+    try {
+      return createUriFromPath(topic_path);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
   /**
    * Creates a Uri object from the given URI string. Verifies that the URI string conforms to the
    * expected format and normalizes the URI string as necessary.
@@ -549,10 +894,12 @@ public class WampConnection extends Connection {
    * This method also expands any WAMP CURIE to a full URI if an applicable CURIE prefix has
    * been defined via a previous prefix request.
    *
+   * Parsed URI's are cached and shared. The returned URI cannot be modified.
+   *
    * @param uri_string The unprocessed URI as a string.
    * @return The URI if the uri_string is valid or null if it is invalid.
    */
-  private Uri createUri(String uri_string) {
+  private ImmutableUri createUri(String uri_string) {
     if (!prefix_.isEmpty()) {
       int index = uri_string.indexOf(':');
       if (index > 0) {
@@ -562,13 +909,7 @@ public class WampConnection extends Connection {
         }
       }
     }
-    try {
-      return new Uri(new URI(uri_string).normalize());
-    } catch (URISyntaxException e) {
-      return null;
-    } catch (IllegalArgumentException e) {
-      return null;
-    }
+    return UriCache.Instance.get(uri_string);
   }
 
   /**
@@ -586,11 +927,82 @@ public class WampConnection extends Connection {
     return uri;
   }
 
+  /**
+   * Encodes event data as JSON. If the data is a {@link JsonArgument} that has not been bound,
+   * the received JSON text is returned without re-encoding.
+   *
+   * @param data The event data as stored in the request.
+   * @return The JSON encoded event data.
+   * @throws JsonProcessingException if the data cannot be encoded.
+   */
+  private String encodePayload(Object data) throws JsonProcessingException {
+    if (data instanceof JsonArgument) {
+      JsonArgument argument = (JsonArgument) data;
+      if (!argument.isBound()) {
+        return argument.getJson();
+      }
+      data = argument.getValue();
+    }
+    return CodecRegistry.Instance.getWriter().writeValueAsString(data);
+  }
+
+  /**
+   * Executes an incoming call request and sends the call result or call error message via the
+   * output sender.
+   *
+   * @param uri The URI of the RPC method.
+   * @param call_id The call ID supplied by the caller.
+   * @param request The call request.
+   */
+  private void executeCall(Uri uri, String call_id, Request request) {
+    if (Directory.Instance.handle(getHomePath(), request) > 0) {
+      Result result = request.getResult();
+      if (!result.hasErrors()) {
+        sender_.sendText(makeCallResult(uri, call_id, result.getValues()));
+        log.trace("processed RPC call with success: '{}'", uri);
+      } else {
+        // WAMP supports returning only one error. Thus, only the first error is returned to the
+        // caller.
+        Result.Error error = result.getError(0);
+        sender_.sendText(makeCallError(uri,
+                                       call_id,
+                                       "logic_error",
+                                       error.getDescription(),
+                                       error.getDetails()));
+        log.trace("processed RPC call with error: '{}'", uri);
+      }
+    } else {
+      sender_.sendText(makeCallError(uri, call_id, "rpc_error", "undefined method", null));
+      log.trace("call to undefined method: '{}'", uri);
+    }
+  }
+
+  /**
+   * Handles an incoming publish request via the publish executor if one is set or on the
+   * calling thread otherwise.
+   *
+   * @param request The publish request.
+   */
+  private void handlePublish(final Request request) {
+    KeyedExecutor executor = publish_executor_;
+    if (executor == null) {
+      Directory.Instance.handle(getHomePath(), request);
+      return;
+    }
+    final String home_path = getHomePath();
+    executor.execute(home_path + request.getUri().getPath(), new Runnable() {
+        @Override
+        public void run() {
+          Directory.Instance.handle(home_path, request);
+        }
+      });
+  }
+
   /**
    * Creates a call error message that can be sent to the caller of an RPC method.
    *
    * If any error_details are provided, they are included in the message.
-   * The call URI is modified by setting the error code as its fragment.
+   * The error URI is the call URI with the error code as its fragment.
    *
    * @param uri The URI of the original RPC method call.
    * @param call_id The call ID supplied by the original caller.
@@ -605,16 +1017,15 @@ public class WampConnection extends Connection {
                                String error_description,
                                Object error_details) {
     try {
-      uri.setFragment(error_code);
-      ArrayNode response = json_mapper_.createArrayNode();
+      ArrayNode response = CodecRegistry.Instance.createArrayNode();
       response.add(kCallError);
       response.add(call_id);
-      response.add(uri.toUri().toString());
+      response.add(ImmutableUri.of(uri).withFragment(error_code).toString());
       response.add(error_description);
       if (error_details != null) {
         response.addPOJO(error_details);
       }
-      return json_mapper_.writeValueAsString(response);
+      return CodecRegistry.Instance.getWriter().writeValueAsString(response);
     } catch (JsonProcessingException e) {  // handled below
       // Revert to manual message generation if there is a secondary exception during exception
       // handling.
@@ -638,7 +1049,7 @@ public class WampConnection extends Connection {
    */
   private String makeCallResult(Uri uri, String call_id, Collection<Object> result) {
     try {
-      ArrayNode response = json_mapper_.createArrayNode();
+      ArrayNode response = CodecRegistry.Instance.createArrayNode();
       response.add(kCallResult);
       response.add(call_id);
       switch (result.size()) {
@@ -646,42 +1057,62 @@ public class WampConnection extends Connection {
         case 1: response.addPOJO(result.iterator().next()); break;
         default: response.addPOJO(result); break;
       }
-      return json_mapper_.writeValueAsString(response);
+      return CodecRegistry.Instance.getWriter().writeValueAsString(response);
     } catch (JsonProcessingException e) {
       return makeCallError(uri, call_id, "runtime_error", "runtime error", null);
     }
   }
 
+  /**
+   * Creates a subscribe or unsubscribe message.
+   *
+   * @param message_type Either kSubscribe or kUnsubscribe.
+   * @param uri_string The topic URI.
+   * @return The subscribe or unsubscribe message.
+   */
+  private String makeSubscription(int message_type, String uri_string) {
+    ArrayNode request = CodecRegistry.Instance.createArrayNode();
+    request.add(message_type);
+    request.add(uri_string);
+    try {
+      return CodecRegistry.Instance.getWriter().writeValueAsString(request);
+    } catch (JsonProcessingException e) {
+      // Exception will not be thrown due to construction.
+      return null;
+    }
+  }
+
   /**
    * Processes an incoming call request.
    *
    * Once the call has completed, sends the call result or call error message via the output
    * sender.
    *
-   * The method handler is run synchronously on the calling thread. This method does not return
-   * until the method handler returns.
+   * If no call executor has been set, the method handler is run synchronously on the calling
+   * thread and this method does not return until the method handler returns. Otherwise, the
+   * method handler is run by the call executor and this method returns immediately.
    *
    * wamp_request[1] = call ID
    * wamp_request[2] = method URI
    * wamp_request[3..] = arguments
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully processed.
    * @throws ClassCastException if the request arguments are invalid.
    */
-  private boolean processCall(Object[] wamp_request) {
+  private boolean processCall(WampMessage wamp_request) {
     final int kIndexCallId = 1;
     final int kIndexMethodUri = 2;
 
-    if (wamp_request.length < 3) {
+    if (wamp_request.size() < 3) {
       // Protocol violation, do not respond.
       log.trace("invalid call request");
       return false;
     }
-    String call_id = (String) wamp_request[kIndexCallId];
-    Uri uri = createUri((String) wamp_request[kIndexMethodUri]);
+    String call_id = wamp_request.getString(kIndexCallId);
+    Uri uri = createUri(wamp_request.getString(kIndexMethodUri));
     if (uri == null) {
-      log.trace("invalid method uri: {}", wamp_request[kIndexMethodUri]);
+      log.trace("invalid method uri: {}", wamp_request.getField(kIndexMethodUri));
       return sender_.sendText(makeCallError(createUriFromPath("/error"),
                                             call_id,
                                             "rpc_error",
@@ -689,28 +1120,19 @@ public class WampConnection extends Connection {
                                             null));
     }
     Request request = new Request(uri, Request.RequestType.Call);
-    for (int i = 3; i < wamp_request.length; i++) {
-      request.addArgument(wamp_request[i]);
+    for (int i = 3; i < wamp_request.size(); i++) {
+      request.addArgument(wamp_request.getField(i));
     }
-    if (Directory.Instance.handle(getHomePath(), request) > 0) {
-      Result result = request.getResult();
-      if (!result.hasErrors()) {
-        sender_.sendText(makeCallResult(uri, call_id, result.getValues()));
-        log.trace("processed RPC call with success: '{}'", wamp_request[kIndexMethodUri]);
-      } else {
-        // WAMP supports returning only one error. Thus, only the first error is returned to the
-        // caller.
-        Result.Error error = result.getError(0);
-        sender_.sendText(makeCallError(uri,
-                                       call_id,
-                                       "logic_error",
-                                       error.getDescription(),
-                                       error.getDetails()));
-        log.trace("processed RPC call with error: '{}'", wamp_request[kIndexMethodUri]);
-      }
-    } else {
-      sender_.sendText(makeCallError(uri, call_id, "rpc_error", "undefined method", null));
-      log.trace("call to undefined method: '{}'", wamp_request[kIndexMethodUri]);
+    Executor executor = call_executor_;
+    if (executor == null) {
+      executeCall(uri, call_id, request);
+      return true;
+    }
+    try {
+      executor.execute(new CallTask(uri, call_id, request));
+    } catch (RejectedExecutionException e) {
+      sender_.sendText(makeCallError(uri, call_id, "rpc_error", "call rejected", null));
+      log.trace("rejected RPC call: '{}'", uri);
     }
     return true;
   }
@@ -725,40 +1147,37 @@ public class WampConnection extends Connection {
    * wamp_request[3] = error description
    * wamp_request[4] = error details (optional)
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully processed.
    * @throws ClassCastException if the request arguments are invalid.
    */
-  private boolean processCallError(Object[] wamp_request) {
+  private boolean processCallError(WampMessage wamp_request) {
     final int kIndexCallId = 1;
     final int kIndexErrorUri = 2;
     final int kIndexErrorDescription = 3;
     final int kIndexErrorDetails = 4;
 
-    if (wamp_request.length < 4) {
+    if (wamp_request.size() < 4) {
       log.trace("invalid call error request");
       return false;
     }
-    String call_id = (String) wamp_request[kIndexCallId];
+    String call_id = wamp_request.getString(kIndexCallId);
     Object error_details = null;
-    if (wamp_request.length > 4) {
-      error_details = wamp_request[kIndexErrorDetails];
+    if (wamp_request.size() > 4) {
+      error_details = wamp_request.getValue(kIndexErrorDetails);
     }
-    RpcCallback callback = pending_rpc_calls_.get(call_id);
+    RpcCallback callback = pending_calls_.remove(call_id);
     if (callback == null) {
       log.trace("call error with no callback");
       return true;
     }
-    synchronized (pending_rpc_calls_) {
-      pending_rpc_calls_.remove(call_id);
-    }
     try {
-      callback.onError(new Uri((String) wamp_request[kIndexErrorUri]),
-                       (String) wamp_request[kIndexErrorDescription],
+      callback.onError(new Uri(wamp_request.getString(kIndexErrorUri)),
+                       wamp_request.getString(kIndexErrorDescription),
                        error_details);
     } catch (IllegalArgumentException e) {
       // On URI error make the callback without the URI.
-      callback.onError(null, (String) wamp_request[kIndexErrorDescription], error_details);
+      callback.onError(null, wamp_request.getString(kIndexErrorDescription), error_details);
     }
     log.trace("processed call error");
     return true;
@@ -772,28 +1191,25 @@ public class WampConnection extends Connection {
    * wamp_request[1] = call ID
    * wamp_request[2] = call result
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully processed.
    * @throws ClassCastException if the request arguments are invalid.
    */
-  private boolean processCallResult(Object[] wamp_request) {
+  private boolean processCallResult(WampMessage wamp_request) {
     final int kIndexCallId = 1;
     final int kIndexCallResult = 2;
 
-    if (wamp_request.length < 3) {
+    if (wamp_request.size() < 3) {
       log.trace("invalid call result request");
       return false;
     }
-    String call_id = (String) wamp_request[kIndexCallId];
-    RpcCallback callback = pending_rpc_calls_.get(call_id);
+    String call_id = wamp_request.getString(kIndexCallId);
+    RpcCallback callback = pending_calls_.remove(call_id);
     if (callback == null) {
       log.trace("call result with no callback");
       return true;
     }
-    synchronized (pending_rpc_calls_) {
-      pending_rpc_calls_.remove(call_id);
-    }
-    callback.onSuccess(wamp_request[kIndexCallResult]);
+    callback.onSuccess(wamp_request.getValue(kIndexCallResult));
     log.trace("processed call result");
     return true;
   }
@@ -807,26 +1223,27 @@ public class WampConnection extends Connection {
    * wamp_request[1] = topic URI
    * wamp_request[2] = event data
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully processed.
    * @throws ClassCastException if the request arguments are invalid.
    */
-  private boolean processEvent(Object[] wamp_request) {
+  private boolean processEvent(WampMessage wamp_request) {
     final int kIndexTopicUri = 1;
     final int kIndexEventData = 2;
 
-    if (wamp_request.length < 3) {
+    if (wamp_request.size() < 3) {
       log.trace("invalid event request");
       return false;
     }
-    Uri uri = createUri((String) wamp_request[kIndexTopicUri]);
+    Uri uri = createUri(wamp_request.getString(kIndexTopicUri));
     if (uri == null) {
-      log.trace("invalid topic uri: {}", wamp_request[kIndexTopicUri]);
+      log.trace("invalid topic uri: {}", wamp_request.getField(kIndexTopicUri));
       return false;
     }
-    Request request = new Request(uri, Request.RequestType.Publish, wamp_request[kIndexEventData]);
-    Directory.Instance.handle(getHomePath(), request);
-    log.trace("processed event '{}'", wamp_request[kIndexTopicUri]);
+    Request request =
+      new Request(uri, Request.RequestType.Publish, wamp_request.getField(kIndexEventData));
+    handlePublish(request);
+    log.trace("processed event '{}'", wamp_request.getField(kIndexTopicUri));
     return true;
   }
 
@@ -836,23 +1253,23 @@ public class WampConnection extends Connection {
    * wamp_request[1] = prefix
    * wamp_request[2] = URI to be prefixed
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully procesed.
    * @throws ClassCastException if request arguments are invalid.
    */
-  private boolean processPrefix(Object[] wamp_request) {
+  private boolean processPrefix(WampMessage wamp_request) {
     final int kIndexPrefix = 1;
     final int kIndexUri = 2;
 
-    if (wamp_request.length < 3) {
+    if (wamp_request.size() < 3) {
       log.trace("invalid prefix request");
       return false;
     }
     synchronized (prefix_) {
-      prefix_.put((String) wamp_request[kIndexPrefix], (String) wamp_request[kIndexUri]);
+      prefix_.put(wamp_request.getString(kIndexPrefix), wamp_request.getString(kIndexUri));
     }
     log.trace("processed prefix '{}' -> '{}'",
-              wamp_request[kIndexPrefix], wamp_request[kIndexUri]);
+              wamp_request.getField(kIndexPrefix), wamp_request.getField(kIndexUri));
     return true;
   }
 
@@ -864,48 +1281,51 @@ public class WampConnection extends Connection {
    * wamp_request[3] = exclude_me or exclude list (optional)
    * wamp_request[4] = eligible list (optional)
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully procesed.
    * @throws ClassCastException if request arguments are invalid.
    */
-  private boolean processPublish(Object[] wamp_request) {
+  private boolean processPublish(WampMessage wamp_request) {
     final int kIndexTopicUri = 1;
     final int kIndexEventData = 2;
     final int kIndexExclude = 3;
     final int kIndexElligible = 4;
 
-    if (wamp_request.length < 3) {
+    if (wamp_request.size() < 3) {
       log.trace("invalid publish request");
       return false;
     }
-    Uri uri = createUri((String) wamp_request[kIndexTopicUri]);
+    Uri uri = createUri(wamp_request.getString(kIndexTopicUri));
     if (uri == null) {
-      log.trace("invalid topic uri: {}", wamp_request[kIndexTopicUri]);
+      log.trace("invalid topic uri: {}", wamp_request.getField(kIndexTopicUri));
       return false;
     }
-    Request request = new Request(uri, Request.RequestType.Publish, wamp_request[kIndexEventData]);
-    if (wamp_request.length > kIndexExclude) {
-      if (wamp_request[kIndexExclude] instanceof Boolean) {
-        uri.setParameter("exclude", getSessionId());
-      } else if (wamp_request[kIndexExclude] instanceof ArrayList) {
-        ArrayList<String> exclude =
-          json_mapper_.convertValue(wamp_request[kIndexExclude], string_array_list_type_);
+    Request request =
+      new Request(uri, Request.RequestType.Publish, wamp_request.getField(kIndexEventData));
+    if (wamp_request.size() > kIndexExclude) {
+      Object exclude_field = wamp_request.getField(kIndexExclude);
+      if (exclude_field instanceof Boolean) {
+        request.setExcludedSessions(Collections.singleton(getSessionId()));
+      } else if (exclude_field instanceof ArrayList) {
+        @SuppressWarnings("unchecked")
+        ArrayList<String> exclude = (ArrayList<String>) exclude_field;
         if (exclude.size() > 0) {
-          uri.setParameter("exclude", Strings.join(exclude, ","));
+          request.setExcludedSessions(new HashSet<String>(exclude));
         }
       }
-      if (wamp_request.length > kIndexElligible) {
-        if (wamp_request[kIndexElligible] instanceof ArrayList) {
-          ArrayList<String> eligible =
-            json_mapper_.convertValue(wamp_request[kIndexElligible], string_array_list_type_);
+      if (wamp_request.size() > kIndexElligible) {
+        Object eligible_field = wamp_request.getField(kIndexElligible);
+        if (eligible_field instanceof ArrayList) {
+          @SuppressWarnings("unchecked")
+          ArrayList<String> eligible = (ArrayList<String>) eligible_field;
           if (eligible.size() > 0) {
-            uri.setParameter("eligible", Strings.join(eligible, ","));
+            request.setEligibleSessions(new HashSet<String>(eligible));
           }
         }
       }
     }
-    Directory.Instance.handle(getHomePath(), request);
-    log.trace("processed publish '{}'", wamp_request[kIndexTopicUri]);
+    handlePublish(request);
+    log.trace("processed publish '{}'", wamp_request.getField(kIndexTopicUri));
     return true;
   }
 
@@ -914,20 +1334,20 @@ public class WampConnection extends Connection {
    *
    * wamp_request[1] = topic URI
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully procesed.
    * @throws ClassCastException if request arguments are invalid.
    */
-  private boolean processSubscribe(Object[] wamp_request) {
+  private boolean processSubscribe(WampMessage wamp_request) {
     final int kIndexTopicUri = 1;
 
-    if (wamp_request.length < 2) {
+    if (wamp_request.size() < 2) {
       log.trace("invalid subscribe request");
       return false;
     }
-    Uri uri = createUri((String) wamp_request[kIndexTopicUri]);
+    Uri uri = createUri(wamp_request.getString(kIndexTopicUri));
     if (uri == null) {
-      log.trace("invalid topic uri: {}", wamp_request[kIndexTopicUri]);
+      log.trace("invalid topic uri: {}", wamp_request.getField(kIndexTopicUri));
       return false;
     }
     String path = getHomePath() + uri.getPath();
@@ -949,20 +1369,20 @@ public class WampConnection extends Connection {
    *
    * wamp_request[1] = topic URI
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully procesed.
    * @throws ClassCastException if request arguments are invalid.
    */
-  private boolean processUnsubscribe(Object[] wamp_request) {
+  private boolean processUnsubscribe(WampMessage wamp_request) {
     final int kIndexTopicUri = 1;
 
-    if (wamp_request.length < 2) {
+    if (wamp_request.size() < 2) {
       log.trace("invalid unsubscribe request");
       return false;
     }
-    Uri uri = createUri((String) wamp_request[kIndexTopicUri]);
+    Uri uri = createUri(wamp_request.getString(kIndexTopicUri));
     if (uri == null) {
-      log.trace("invalid topic uri: {}", wamp_request[kIndexTopicUri]);
+      log.trace("invalid topic uri: {}", wamp_request.getField(kIndexTopicUri));
       return false;
     }
     String path = getHomePath() + uri.getPath();
@@ -981,21 +1401,21 @@ public class WampConnection extends Connection {
    * wamp_request[2] = protocol version
    * wamp_request[3] = server ID
    *
-   * @param wamp_request The WAMP request arguments.
+   * @param wamp_request The decoded WAMP request.
    * @return True if the request has been successfully procesed.
    * @throws ClassCastException if request arguments are invalid.
    */
-  private boolean processWelcome(Object[] wamp_request) {
+  private boolean processWelcome(WampMessage wamp_request) {
     final int kIndexSessionId = 1;
     //  final int kProtocolVersion = 2;  // ignored
     final int kIndexServerId = 3;
 
-    if (wamp_request.length < 4) {
+    if (wamp_request.size() < 4) {
       log.trace("invalid welcome request");
       return false;
     }
-    setSessionId((String) wamp_request[kIndexSessionId]);
-    setServerId((String) wamp_request[kIndexServerId]);
+    setSessionId(wamp_request.getString(kIndexSessionId));
+    setServerId(wamp_request.getString(kIndexServerId));
     setIsReady(true);
     log.trace("received server welcome from {} for session {}", getServerId(), getSessionId());
     return true;
@@ -1060,7 +1480,7 @@ public class WampConnection extends Connection {
                           boolean exclude_me,
                           String[] exclude,
                           String[] eligible) {
-    ArrayNode request = json_mapper_.createArrayNode();
+    ArrayNode request = CodecRegistry.Instance.createArrayNode();
     request.add(is_server_ ? kEvent : kPublish);
     request.add(topic_uri.toString());
     request.addPOJO(data);
@@ -1076,7 +1496,7 @@ public class WampConnection extends Connection {
       request.addPOJO(eligible);
     }
     try {
-      return sender_.sendText(json_mapper_.writeValueAsString(request));
+      return sendEvent(CodecRegistry.Instance.getWriter().writeValueAsString(request));
     } catch (JsonProcessingException e) {
       return false;
     }
@@ -1095,6 +1515,61 @@ public class WampConnection extends Connection {
     }
   }
 
+  /**
+   * Decrements the number of subscriptions of a topic URI subscribed to as client.
+   *
+   * @param uri_string The topic URI.
+   * @return True if an unsubscribe request must be sent, i.e. if the last subscription has been
+   *         removed or the topic has not been subscribed via this connection.
+   */
+  private boolean removeSubscription(String uri_string) {
+    synchronized (client_subscribed_uris_) {
+      Integer count = client_subscribed_uris_.get(uri_string);
+      if (count != null && count > 1) {
+        client_subscribed_uris_.put(uri_string, count - 1);
+        return false;
+      }
+      client_subscribed_uris_.remove(uri_string);
+      return true;
+    }
+  }
+
+  /**
+   * Sends a list of messages. If the output sender is a {@link BatchOutputSender}, the messages
+   * are sent as one batch.
+   *
+   * @param messages The encoded messages.
+   * @return True if all messages were sent.
+   */
+  private boolean sendAll(List<String> messages) {
+    OutputSender sender = sender_;
+    if (sender instanceof BatchOutputSender) {
+      return ((BatchOutputSender) sender).sendTexts(messages);
+    }
+    boolean success = true;
+    for (String message : messages) {
+      if (!sender.sendText(message)) {
+        success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Sends an event or publish message. If the connection has an output queue, the message is
+   * marked as droppable.
+   *
+   * @param message The encoded message.
+   * @return True if the message was sent or queued.
+   */
+  private boolean sendEvent(String message) {
+    OutputSender sender = sender_;
+    if (sender instanceof QueuedOutputSender) {
+      return ((QueuedOutputSender) sender).sendText(message, true);
+    }
+    return sender.sendText(message);
+  }
+
   /**
    * Executes both client and server unsubscription.
    * As client, unsubscribes from all subscribed topics.
@@ -1102,12 +1577,15 @@ public class WampConnection extends Connection {
    */
   private void unsubscribeAll() {
     // client unsubscription
+    ArrayList<String> messages = new ArrayList<String>();
     synchronized (client_subscribed_uris_) {
-      Uri[] topic_uris = client_subscribed_uris_.toArray(new Uri[] {});
-      for (Uri uri : topic_uris) {
-        unsubscribe(uri);
+      for (String uri_string : client_subscribed_uris_.keySet()) {
+        messages.add(makeSubscription(kUnsubscribe, uri_string));
       }
       client_subscribed_uris_.clear();
+      if (!messages.isEmpty()) {
+        sendAll(messages);
+      }
     }
     // server unsubscription
     synchronized (server_subscribed_paths_) {
@@ -1120,14 +1598,15 @@ public class WampConnection extends Connection {
 
   private static Logger log = LogManager.getLogger();
 
-  private ArrayList<Uri> client_subscribed_uris_;  // All URI's subscribed to as client.
+  private volatile Executor call_executor_;  // Executes incoming calls. May be null.
+  private volatile long call_timeout_millis_;  // Default RPC call timeout.
+  // All URI's subscribed to as client: URI -> number of subscriptions.
+  // Also serves as the lock that serializes subscribe and unsubscribe requests.
+  private HashMap<String, Integer> client_subscribed_uris_;
   private boolean is_server_;  // If true, use server protocol.
-  private ObjectMapper json_mapper_;  // JSON parser and generator.
-  private JavaType object_array_type_;  // Object[] type used in JSON parsing.
-  private HashMap<String, RpcCallback> pending_rpc_calls_;  // RPC calls in progress.
+  private PendingCallTable pending_calls_;  // RPC calls in progress.
   private HashMap<String, String> prefix_;  // WAMP prefix directory.
-  private long rpc_call_counter_;  // Counter used to keep track of RPC calls.
-  private OutputSender sender_;  // Used to send messages to the remote endpoint.
+  private volatile KeyedExecutor publish_executor_;  // Handles incoming events. May be null.
+  private volatile OutputSender sender_;  // Used to send messages to the remote endpoint.
   private ArrayList<String> server_subscribed_paths_;  // All paths subscribed to by clients.
-  private JavaType string_array_list_type_;  // ArrayList<String> type used in JSON parsing.
 }
@@ -0,0 +1,124 @@
+/* General AI - WAMP Server and Client
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net.wamp;
+
+import ai.general.net.Connection;
+import ai.general.net.KeyedExecutor;
+import ai.general.net.OutputSender;
+import ai.general.net.Uri;
+import ai.general.net.WebSocketEndpoint;
+
+import java.util.concurrent.Executor;
+
+/**
+ * WebSocketEndpoint that serves the WAMP protocol.
+ *
+ * WampEndpoint creates a server side {@link WampConnection} for each WebSocket accepted by a
+ * {@link ai.general.net.WebSocketServer} and sends the WAMP welcome message to the client.
+ * All connections use the same home path. If a call executor has been set, all connections
+ * execute incoming RPC calls via the call executor. If a publish executor has been set, all
+ * connections share the publish executor to handle incoming events.
+ *
+ * WampEndpoint is thread-safe.
+ */
+public class WampEndpoint implements WebSocketEndpoint {
+
+  /** WebSocket subprotocol name of WAMP version 1. */
+  public static final String kSubprotocol = "wamp";
+
+  /**
+   * Creates a WAMP endpoint.
+   *
+   * @param hostname The hostname used in the connection URI's.
+   * @param home_path Home directory path of all connections. Must be absolute.
+   */
+  public WampEndpoint(String hostname, String home_path) {
+    this.hostname_ = hostname;
+    this.home_path_ = home_path;
+    this.call_executor_ = null;
+    this.publish_executor_ = null;
+  }
+
+  /**
+   * Returns the executor that executes incoming RPC calls of new connections.
+   *
+   * @return The call executor or null if calls are executed on the processing thread.
+   */
+  public Executor getCallExecutor() {
+    return call_executor_;
+  }
+
+  /**
+   * Returns the executor that handles incoming events of new connections.
+   *
+   * @return The publish executor or null if events are handled on the processing thread.
+   */
+  public KeyedExecutor getPublishExecutor() {
+    return publish_executor_;
+  }
+
+  /**
+   * Returns the WAMP subprotocol name.
+   *
+   * @return {@link #kSubprotocol}
+   */
+  @Override
+  public String getSubprotocol() {
+    return kSubprotocol;
+  }
+
+  /**
+   * Creates a server side WampConnection for the WebSocket and sends the welcome message.
+   *
+   * @param path The request path of the opening handshake.
+   * @param sender OutputSender that sends text messages over the WebSocket.
+   * @return The WampConnection or null if the welcome message could not be sent.
+   */
+  @Override
+  public Connection open(String path, OutputSender sender) {
+    int query = path.indexOf('?');
+    if (query >= 0) {
+      path = path.substring(0, query);
+    }
+    if (!path.startsWith("/")) {
+      path = "/" + path;
+    }
+    WampConnection connection =
+      new WampConnection(new Uri("ws", hostname_, path), null, home_path_, sender);
+    connection.setCallExecutor(call_executor_);
+    connection.setPublishExecutor(publish_executor_);
+    if (!connection.welcome()) {
+      connection.close();
+      return null;
+    }
+    return connection;
+  }
+
+  /**
+   * Sets the executor that executes incoming RPC calls of connections opened after this method
+   * returns. See {@link WampConnection#setCallExecutor(Executor)}.
+   *
+   * @param executor The call executor or null.
+   */
+  public void setCallExecutor(Executor executor) {
+    call_executor_ = executor;
+  }
+
+  /**
+   * Sets the executor that handles incoming events of connections opened after this method
+   * returns. See {@link WampConnection#setPublishExecutor(KeyedExecutor)}.
+   *
+   * @param executor The publish executor or null.
+   */
+  public void setPublishExecutor(KeyedExecutor executor) {
+    publish_executor_ = executor;
+  }
+
+  private volatile Executor call_executor_;  // Executes incoming calls of new connections.
+  private String home_path_;  // Home directory path of all connections.
+  private String hostname_;  // Hostname used in connection URI's.
+  private volatile KeyedExecutor publish_executor_;  // Handles incoming events of new connections.
+}
@@ -0,0 +1,303 @@
+/* General AI - WAMP Server and Client
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net.wamp;
+
+import ai.general.directory.DeferredArgument;
+import ai.general.net.CodecRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Represents a decoded incoming WAMP message.
+ *
+ * WampMessage is created by a streaming decoder. The decoder reads the WAMP type ID first and
+ * then reads only the fields that are used by the specific message type. The message fields are
+ * stored in the same order as in the WAMP message. Index 0 always holds the type ID.
+ *
+ * Fields are decoded as follows:
+ * <p><ul>
+ * <li>URI's, ID's and descriptions are decoded as strings.</li>
+ * <li>Call arguments, call results, event data and error details are payload fields. Scalar
+ * payloads are decoded to their Java wrapper types. JSON objects and arrays are not parsed into
+ * Java objects, but are stored as {@link JsonArgument} instances that hold the raw JSON text and
+ * are bound on demand.</li>
+ * <li>Exclude and eligible lists of publish messages are decoded directly into lists of
+ * strings. The exclude_me flag is decoded as a Boolean.</li>
+ * <li>All other fields are skipped and stored as null.</li>
+ * </ul></p>
+ *
+ * WampMessage does not validate the number of fields. This is left to the message processor.
+ */
+class WampMessage {
+
+  /**
+   * Decodes a WAMP message.
+   *
+   * Returns null if the message has an unknown type ID.
+   *
+   * @param input The WAMP message text.
+   * @return The decoded message or null if the type ID is unknown.
+   * @throws IOException if the input is not a well-formed WAMP message.
+   */
+  public static WampMessage decode(String input) throws IOException {
+    JsonParser parser = CodecRegistry.Instance.getFactory().createParser(input);
+    try {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new JsonParseException("WAMP message must be an array", parser.getTokenLocation());
+      }
+      if (parser.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+        throw new JsonParseException("invalid WAMP type ID", parser.getTokenLocation());
+      }
+      int type_id = parser.getIntValue();
+      if (type_id < WampConnection.kWelcome || type_id > WampConnection.kEvent) {
+        return null;
+      }
+      WampMessage message = new WampMessage(type_id);
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        if (parser.getCurrentToken() == null) {
+          throw new JsonParseException("unterminated WAMP message", parser.getCurrentLocation());
+        }
+        message.fields_.add(decodeField(input, parser, type_id, message.fields_.size()));
+      }
+      return message;
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * Returns the field at the specified index. Deferred payload fields are not bound by this
+   * method and are returned as {@link JsonArgument} instances.
+   *
+   * @param index The field index.
+   * @return The raw field value.
+   */
+  public Object getField(int index) {
+    return fields_.get(index);
+  }
+
+  /**
+   * Returns the string field at the specified index.
+   *
+   * @param index The field index.
+   * @return The string value.
+   * @throws ClassCastException if the field is not a string field.
+   */
+  public String getString(int index) {
+    return (String) fields_.get(index);
+  }
+
+  /**
+   * Returns the type ID of the message.
+   *
+   * @return The WAMP type ID.
+   */
+  public int getTypeId() {
+    return type_id_;
+  }
+
+  /**
+   * Returns the value of the field at the specified index. Deferred payload fields are bound.
+   *
+   * @param index The field index.
+   * @return The field value.
+   * @throws IllegalArgumentException if a deferred payload cannot be bound.
+   */
+  public Object getValue(int index) {
+    Object field = fields_.get(index);
+    if (field instanceof DeferredArgument) {
+      return ((DeferredArgument) field).getValue();
+    }
+    return field;
+  }
+
+  /**
+   * Returns the number of fields including the type ID.
+   *
+   * @return The number of fields in the message.
+   */
+  public int size() {
+    return fields_.size();
+  }
+
+  /**
+   * Creates an empty message with the specified type ID.
+   *
+   * @param type_id The WAMP type ID.
+   */
+  private WampMessage(int type_id) {
+    this.type_id_ = type_id;
+    fields_ = new ArrayList<Object>(4);
+    fields_.add(type_id);
+  }
+
+  /**
+   * Decodes the field at the current parser position according to the message type.
+   *
+   * @param input The WAMP message text.
+   * @param parser The parser positioned at the first token of the field.
+   * @param type_id The WAMP type ID of the message.
+   * @param index The index of the field.
+   * @return The decoded field.
+   * @throws IOException if the field cannot be decoded.
+   */
+  private static Object decodeField(String input,
+                                    JsonParser parser,
+                                    int type_id,
+                                    int index) throws IOException {
+    switch (type_id) {
+      case WampConnection.kWelcome:
+        // [0, session ID, protocol version, server ID]
+        return index == 2 ? skip(parser) : readString(parser);
+      case WampConnection.kPrefix:
+        // [1, prefix, URI]
+        return index <= 2 ? readString(parser) : skip(parser);
+      case WampConnection.kSubscribe:
+        // [5, topic URI]
+      case WampConnection.kUnsubscribe:
+        // [6, topic URI]
+        return index == 1 ? readString(parser) : skip(parser);
+      case WampConnection.kCall:
+        // [2, call ID, method URI, arguments...]
+        return index <= 2 ? readString(parser) : readPayload(input, parser);
+      case WampConnection.kCallResult:
+        // [3, call ID, result]
+        return index == 1 ? readString(parser) : readPayload(input, parser);
+      case WampConnection.kCallError:
+        // [4, call ID, error URI, error description, error details]
+        return index <= 3 ? readString(parser) : readPayload(input, parser);
+      case WampConnection.kPublish:
+        // [7, topic URI, event data, exclude_me or exclude list, eligible list]
+        switch (index) {
+          case 1: return readString(parser);
+          case 2: return readPayload(input, parser);
+          case 3:
+            if (parser.getCurrentToken() == JsonToken.VALUE_TRUE ||
+                parser.getCurrentToken() == JsonToken.VALUE_FALSE) {
+              return parser.getBooleanValue();
+            }
+            return readStringList(parser);
+          case 4: return readStringList(parser);
+          default: return skip(parser);
+        }
+      case WampConnection.kEvent:
+        // [8, topic URI, event data]
+        return index == 1 ? readString(parser) : readPayload(input, parser);
+      default:
+        return skip(parser);
+    }
+  }
+
+  /**
+   * Reads a payload field. Scalars are returned as Java wrapper types. JSON objects and arrays
+   * are returned as {@link JsonArgument} instances that reference the raw JSON text.
+   *
+   * @param input The WAMP message text.
+   * @param parser The parser positioned at the first token of the payload.
+   * @return The payload.
+   * @throws IOException if the payload is malformed.
+   */
+  private static Object readPayload(String input, JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case START_ARRAY:
+      case START_OBJECT:
+        int start = findStructStart(input, (int) parser.getTokenLocation().getCharOffset());
+        parser.skipChildren();
+        // The current location of the parser is the offset of the closing bracket.
+        int end = (int) parser.getCurrentLocation().getCharOffset() + 1;
+        return new JsonArgument(input.substring(start, end));
+      case VALUE_STRING: return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getNumberValue();
+      case VALUE_TRUE: return Boolean.TRUE;
+      case VALUE_FALSE: return Boolean.FALSE;
+      case VALUE_NULL: return null;
+      default:
+        throw new JsonParseException("invalid payload", parser.getTokenLocation());
+    }
+  }
+
+  /**
+   * Returns the index of the opening bracket of the JSON object or array at or after the
+   * specified offset. The offset reported by the parser may precede the bracket by separators
+   * and whitespace.
+   *
+   * @param input The WAMP message text.
+   * @param offset The token offset reported by the parser.
+   * @return The index of the opening bracket.
+   * @throws JsonParseException if no opening bracket is found.
+   */
+  private static int findStructStart(String input, int offset) throws JsonParseException {
+    for (int i = offset; i < input.length(); i++) {
+      char c = input.charAt(i);
+      if (c == '{' || c == '[') {
+        return i;
+      }
+      if (c != ',' && !Character.isWhitespace(c)) {
+        break;
+      }
+    }
+    throw new JsonParseException("invalid payload offset", null);
+  }
+
+  /**
+   * Reads a string field.
+   *
+   * @param parser The parser positioned at the field.
+   * @return The string value.
+   * @throws IOException if the field is not a string.
+   */
+  private static String readString(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+      throw new JsonParseException("string expected", parser.getTokenLocation());
+    }
+    return parser.getText();
+  }
+
+  /**
+   * Reads a list of strings. Non-string scalars are converted to strings.
+   * Returns null and skips the field if the field is not an array.
+   *
+   * @param parser The parser positioned at the field.
+   * @return The list of strings or null if the field is not an array.
+   * @throws IOException if the field is malformed.
+   */
+  private static ArrayList<String> readStringList(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+      return skip(parser);
+    }
+    ArrayList<String> list = new ArrayList<String>();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == null || token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+        throw new JsonParseException("string list expected", parser.getTokenLocation());
+      }
+      list.add(token == JsonToken.VALUE_NULL ? null : parser.getText());
+    }
+    return list;
+  }
+
+  /**
+   * Skips a field.
+   *
+   * @param parser The parser positioned at the field.
+   * @return null
+   * @throws IOException if the field is malformed.
+   */
+  private static <T> T skip(JsonParser parser) throws IOException {
+    parser.skipChildren();
+    return null;
+  }
+
+  private ArrayList<Object> fields_;  // Message fields including the type ID at index 0.
+  private int type_id_;  // WAMP type ID.
+}
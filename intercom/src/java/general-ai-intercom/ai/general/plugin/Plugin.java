@@ -8,7 +8,10 @@ package ai.general.plugin;
 import ai.general.net.Connection;
 import ai.general.net.ConnectionManager;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -18,8 +21,8 @@ import org.apache.logging.log4j.LogManager;
  *
  * An plugin represents a set of services that provide some functionality.
  * Plugins are compiled into their own jar files and loaded dynamically by the
- * {@link PluginManager}. The PluginManager scans a jar file for classes that are subclasses of
- * Plugin and automatically installs them.
+ * {@link PluginManager}. The PluginManager loads the Plugin subclasses listed in the plugin
+ * index of a jar file and automatically installs them. See {@link PluginManager#load(String)}.
  *
  * Plugin contains methods that provide general information about the plugin. In addition, the
  * methods {@link #onLoad()} and {@link #onUnload()} are called when the plugin is loaded and
@@ -33,6 +36,17 @@ import org.apache.logging.log4j.LogManager;
  * connection specific data structures and services. When the connection is closed, the
  * {@link #onDisconnect(Connection)} method is called.
  *
+ * The onConnect and onDisconnect methods of the same connection are never called concurrently,
+ * but the methods of different connections may be called concurrently. Subclasses that maintain
+ * connection specific state in these methods must synchronize access to that state. Services may
+ * be registered and unregistered concurrently with these methods.
+ *
+ * A plugin is connected to each registered connection at most once. The onConnect and
+ * onDisconnect methods are called with the registration lock of the connection held (see
+ * {@link Connection#getRegistrationLock()}), including when the plugin is enabled or disabled
+ * while connections are added or removed. Thus, onConnect is never called for a connection that
+ * has been removed, and onDisconnect is called exactly once for each call of onConnect.
+ *
  * A concrete subclass of Plugin must be public and define a public constructor that takes no
  * arguments.
  */
@@ -47,14 +61,48 @@ public abstract class Plugin {
    * @param publisher The publisher of the plugin.
    */
   public Plugin(String name, double version, String description, String publisher) {
+    this(name, version, description, publisher, new String[0]);
+  }
+
+  /**
+   * Constructs a plugin that depends on other plugins.
+   *
+   * The {@link PluginManager} enables the dependencies of a plugin before the plugin and
+   * disables the plugin before its dependencies. A plugin cannot be enabled if any of its
+   * dependencies cannot be enabled.
+   *
+   * Subclasses must define a constructor that takes no arguments.
+   *
+   * @param name The name of this plugin.
+   * @param version The version of this plugin. Larger numbers corresponds to later versions.
+   * @param description A brief description of the plugin.
+   * @param publisher The publisher of the plugin.
+   * @param dependencies The names of the plugins this plugin depends on.
+   */
+  public Plugin(String name,
+                double version,
+                String description,
+                String publisher,
+                String... dependencies) {
     this.name_ = name;
     this.version_ = version;
     this.description_ = description;
     this.publisher_ = publisher;
-    services_ = new HashMap<String, ServiceDefinition>();
+    this.dependencies_ = dependencies.clone();
+    services_ = new ConcurrentHashMap<String, ServiceDefinition>();
+    connections_ = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
     enabled_ = false;
   }
 
+  /**
+   * Returns the names of the plugins this plugin depends on.
+   *
+   * @return The names of the plugin dependencies.
+   */
+  public String[] getDependencies() {
+    return dependencies_.clone();
+  }
+
   /**
    * Plugin description.
    *
@@ -64,6 +112,25 @@ public abstract class Plugin {
     return description_;
   }
 
+  /**
+   * Returns the time it took to enable the plugin the last time it was enabled. This includes
+   * the time to connect the plugin to all ready connections.
+   *
+   * @return The time in nanoseconds it took to enable the plugin or 0 if it has not been enabled.
+   */
+  public long getEnableTime() {
+    return enable_time_;
+  }
+
+  /**
+   * Returns the time it took to load the plugin.
+   *
+   * @return The time in nanoseconds it took to load the plugin or 0 if it has not been loaded.
+   */
+  public long getLoadTime() {
+    return load_time_;
+  }
+
   /**
    * Plugin name.
    *
@@ -146,6 +213,10 @@ public abstract class Plugin {
    * Services that are configured not to auto-connect are skipped by this method and must be
    * manually connected.
    *
+   * The topics of all services are collected and subscribed with a single call to
+   * {@link Connection#subscribe(java.util.Collection)}, which allows the connection to send the
+   * subscribe requests as one batch.
+   *
    * This method is automatically called by the {@link #onConnect(Connection)} method. This
    * method should not be called explicitly by a subclasses that calls the base class
    * implementation of the onConnect(Connection) method.
@@ -154,15 +225,13 @@ public abstract class Plugin {
    * @return True if all event methods have been successfully subscribed.
    */
   protected boolean connectServices(Connection connection) {
-    boolean success = true;
+    ArrayList<String> topic_paths = new ArrayList<String>();
     for (ServiceDefinition service_def : services_.values()) {
       if (service_def.getAutoConnect()) {
-        if (!service_def.connect(connection)) {
-          success = false;
-        }
+        topic_paths.addAll(service_def.getTopicPaths());
       }
     }
-    return success;
+    return topic_paths.isEmpty() || connection.subscribe(topic_paths);
   }
 
   /**
@@ -180,13 +249,11 @@ public abstract class Plugin {
    * @return True if all event methods have been successfully subscribed.
    */
   protected boolean disconnectServices(Connection connection) {
-    boolean success = true;
+    ArrayList<String> topic_paths = new ArrayList<String>();
     for (ServiceDefinition service_def : services_.values()) {
-      if (!service_def.disconnect(connection)) {
-        success = false;
-      }
+      topic_paths.addAll(service_def.getTopicPaths());
     }
-    return success;
+    return topic_paths.isEmpty() || connection.unsubscribe(topic_paths);
   }
 
   /**
@@ -236,7 +303,12 @@ public abstract class Plugin {
                                          service,
                                          service_home_path);
     service_def.setAutoConnect(auto_connect);
-    services_.put(service_name, service_def);
+    if (services_.putIfAbsent(service_name, service_def) != null) {
+      // The same service name has been registered concurrently.
+      ServiceManager.Instance.removeService(service_def.getName());
+      throw new IllegalArgumentException(
+          "Duplicate service name: " + getName() + "/" + service_name);
+    }
     return true;
   }
 
@@ -332,10 +404,9 @@ public abstract class Plugin {
    * Unregisters all registered services of this plugin.
    */
   protected void unregisterAllServices() {
-    for (ServiceDefinition service_def : services_.values()) {
-      ServiceManager.Instance.removeService(service_def.getName());
+    for (String service_name : services_.keySet()) {
+      unregisterService(service_name);
     }
-    services_.clear();
   }
 
   /**
@@ -345,10 +416,9 @@ public abstract class Plugin {
    * @return True if the service has been unregistered.
    */
   protected boolean unregisterService(String service_name) {
-    ServiceDefinition service_def = services_.get(service_name);
+    ServiceDefinition service_def = services_.remove(service_name);
     if (service_def != null) {
       ServiceManager.Instance.removeService(service_def.getName());
-      services_.remove(service_name);
     }
     return true;
   }
@@ -370,20 +440,28 @@ public abstract class Plugin {
   boolean setEnabled(boolean enabled) {
     if (this.enabled_ != enabled) {
       if (enabled) {
+        long start = System.nanoTime();
         this.enabled_ = onEnable();
         if (this.enabled_) {
-          for (Connection connection :
-                 ConnectionManager.Instance.getConnections().toArray(new Connection[] {})) {
-            onConnect(connection);
+          ConnectionManager connection_manager = ConnectionManager.Instance;
+          for (Connection connection : connection_manager.getConnections()) {
+            synchronized (connection.getRegistrationLock()) {
+              // The connection may have been removed concurrently.
+              if (connection_manager.isRegistered(connection)) {
+                connect(connection);
+              }
+            }
           }
         }
-        log.debug("enabled plugin {}", name_);
+        enable_time_ = System.nanoTime() - start;
+        log.debug("enabled plugin {} in {} us", name_, enable_time_ / 1000);
       } else {
-        for (Connection connection :
-               ConnectionManager.Instance.getConnections().toArray(new Connection[] {})) {
-          onDisconnect(connection);
-        }
         this.enabled_ = false;
+        for (Connection connection : connections_) {
+          synchronized (connection.getRegistrationLock()) {
+            disconnect(connection);
+          }
+        }
         onDisable();
         unregisterAllServices();
         log.debug("disabled plugin {}", name_);
@@ -392,6 +470,53 @@ public abstract class Plugin {
     return this.enabled_;
   }
 
+  /**
+   * Connects this plugin to the specified connection by calling {@link #onConnect(Connection)}
+   * if the plugin is enabled and not yet connected to the connection.
+   *
+   * Must be called with the registration lock of the connection held.
+   *
+   * @param connection The connection to connect to.
+   */
+  void connect(Connection connection) {
+    // The connection is recorded before the enabled state is checked, so that a concurrent
+    // disable either observes the connection or this method observes the disabled state.
+    if (!connections_.add(connection)) {
+      return;
+    }
+    if (!enabled_) {
+      connections_.remove(connection);
+      return;
+    }
+    onConnect(connection);
+  }
+
+  /**
+   * Disconnects this plugin from the specified connection by calling
+   * {@link #onDisconnect(Connection)} if the plugin is connected to the connection.
+   *
+   * Must be called with the registration lock of the connection held.
+   *
+   * @param connection The connection to disconnect from.
+   */
+  void disconnect(Connection connection) {
+    if (connections_.remove(connection)) {
+      onDisconnect(connection);
+    }
+  }
+
+  /**
+   * Loads the plugin by calling the {@link #onLoad()} method and records the load time.
+   *
+   * @return True if the plugin was initialized successfully.
+   */
+  boolean load() {
+    long start = System.nanoTime();
+    boolean loaded = onLoad();
+    load_time_ = System.nanoTime() - start;
+    return loaded;
+  }
+
   /**
    * Unloads the plugin.
    *
@@ -405,13 +530,17 @@ public abstract class Plugin {
 
   private static Logger log = LogManager.getLogger();
 
+  private Set<Connection> connections_;  // Connections to which this plugin is connected.
+  private String[] dependencies_;  // Names of plugins this plugin depends on.
   private String description_;  // Plugin description.
-  private boolean enabled_;  // True if the plugin has been enabled.
+  private volatile long enable_time_;  // Time in nanoseconds it took to enable the plugin.
+  private volatile boolean enabled_;  // True if the plugin has been enabled.
+  private volatile long load_time_;  // Time in nanoseconds it took to load the plugin.
   private String name_;  // Plugin name.
   private String publisher_;  // Publisher information.
 
   // Services associated with plugin (service name, service definition)
-  private HashMap<String, ServiceDefinition> services_;
+  private ConcurrentHashMap<String, ServiceDefinition> services_;
 
   private double version_;  // Plugin version.
 }
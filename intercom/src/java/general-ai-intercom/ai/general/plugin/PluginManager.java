@@ -7,19 +7,32 @@ package ai.general.plugin;
 
 import ai.general.net.Connection;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
@@ -29,7 +42,8 @@ import org.apache.logging.log4j.LogManager;
  * The PluginManager loads and manages plugins.
  *
  * The PluginManager loads plugins from a jar file, initializes the plugins and unitializes them
- * before shutdown.
+ * before shutdown. Plugin jar files should declare their plugin classes in a plugin index, so
+ * that only the plugin classes need to be loaded. See {@link #load(String)}.
  *
  * PluginManager is a singleton class.
  */
@@ -40,36 +54,136 @@ public class PluginManager {
    */
   public static final PluginManager Instance = new PluginManager();
 
+  /**
+   * Name of the jar manifest attribute that lists the plugin classes of a jar file.
+   */
+  public static final String kManifestAttribute = "Plugin-Classes";
+
+  // Path of the service provider file that lists the plugin classes of a jar file.
+  private static final String kServiceIndex = "META-INF/services/ai.general.plugin.Plugin";
+
+  // Executor that runs tasks in the calling thread.
+  private static final Executor kCallerThread = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        task.run();
+      }
+    };
+
+  /**
+   * Enables a plugin after all of its dependencies have been enabled. When the task finishes, it
+   * schedules the tasks of the dependent plugins whose dependencies have all been processed.
+   */
+  private static class EnableTask implements Runnable {
+
+    /**
+     * @param plugin The plugin to enable.
+     * @param executor The executor that runs enable tasks.
+     * @param completion Latch that is counted down when the task has finished.
+     */
+    public EnableTask(Plugin plugin, Executor executor, CountDownLatch completion) {
+      this.plugin_ = plugin;
+      this.executor_ = executor;
+      this.completion_ = completion;
+      dependents_ = new ArrayList<EnableTask>();
+      pending_dependencies_ = new AtomicInteger();
+      dependency_failed_ = false;
+    }
+
+    /**
+     * Adds a task of a plugin that depends on the plugin of this task.
+     *
+     * @param dependent The task of the dependent plugin.
+     */
+    public void addDependent(EnableTask dependent) {
+      dependents_.add(dependent);
+      dependent.pending_dependencies_.incrementAndGet();
+    }
+
+    /**
+     * Returns true if the task does not wait for any dependencies.
+     *
+     * @return True if the task can be run immediately.
+     */
+    public boolean isReady() {
+      return pending_dependencies_.get() == 0;
+    }
+
+    /**
+     * Enables the plugin unless one of its dependencies could not be enabled.
+     */
+    @Override
+    public void run() {
+      boolean enabled = false;
+      try {
+        if (dependency_failed_) {
+          log.warn("cannot enable plugin {}: dependency not enabled", plugin_.getName());
+        } else {
+          enabled = plugin_.setEnabled(true);
+        }
+      } finally {
+        for (EnableTask dependent : dependents_) {
+          if (!enabled) {
+            dependent.dependency_failed_ = true;
+          }
+          if (dependent.pending_dependencies_.decrementAndGet() == 0) {
+            executor_.execute(dependent);
+          }
+        }
+        completion_.countDown();
+      }
+    }
+
+    /**
+     * Marks the task as failed due to a dependency that cannot be enabled.
+     */
+    public void setDependencyFailed() {
+      dependency_failed_ = true;
+    }
+
+    private CountDownLatch completion_;  // Counted down when the task has finished.
+    private volatile boolean dependency_failed_;  // True if a dependency is not enabled.
+    private ArrayList<EnableTask> dependents_;  // Tasks of dependent plugins.
+    private Executor executor_;  // Executor that runs enable tasks.
+    private AtomicInteger pending_dependencies_;  // Number of unprocessed dependencies.
+    private Plugin plugin_;  // The plugin to enable.
+  }
+
   /**
    * PluginManager is a singleton.
    * The singleton instance can be obtained via {@link #Instance}.
    */
   private PluginManager() {
-    plugins_ = new HashMap<String, Plugin>();
+    class_loaders_ = new ArrayList<URLClassLoader>();
+    parallelism_ = 1;
+    plugins_ = new ConcurrentHashMap<String, Plugin>();
   }
 
   /**
    * Connects enabled plugins to the specified connection.
-   * Calls the onConnect method of all enabled Plugins.
+   * Calls the onConnect method of all enabled Plugins that are not yet connected to the
+   * connection.
    *
-   * This method is called by the {@link ai.general.net.ConnectionManager}.
+   * This method is called by the {@link ai.general.net.ConnectionManager} with the registration
+   * lock of the connection held.
    *
    * @param connection The new connection.
    */
   public void connect(Connection connection) {
     for (Plugin plugin : plugins_.values()) {
-      if (plugin.isEnabled()) {
-        plugin.onConnect(connection);
-      }
+      plugin.connect(connection);
     }
   }
 
   /**
    * Disables all loaded plugins.
+   *
+   * Plugins are disabled before the plugins they depend on.
    */
   public void disableAll() {
-    for (Plugin plugin : plugins_.values()) {
-      plugin.setEnabled(false);
+    HashSet<String> disabled = new HashSet<String>();
+    for (String name : plugins_.keySet()) {
+      disable(name, disabled);
     }
   }
 
@@ -79,43 +193,91 @@ public class PluginManager {
    * This method returns false if the plugin has not been loaded.
    * This method has no effect if the plugin has already been disabled.
    *
+   * Enabled plugins that depend on the plugin are disabled first.
+   *
    * @param name The name of the plugin.
    */
   public void disablePlugin(String name) {
-    Plugin plugin = plugins_.get(name);
-    if (plugin != null) {
-      plugin.setEnabled(false);
-    }
+    disable(name, new HashSet<String>());
   }
 
   /**
-   * Disconnects enabled plugins from the specified connection.
-   * Calls the onDisconnect method of all enabled Plugins.
+   * Disconnects plugins from the specified connection.
+   * Calls the onDisconnect method of all Plugins that are connected to the connection.
    *
-   * This method is called by the {@link ai.general.net.ConnectionManager}.
+   * This method is called by the {@link ai.general.net.ConnectionManager} with the registration
+   * lock of the connection held.
    *
    * @param connection The connection being closed.
    */
   public void disconnect(Connection connection) {
     for (Plugin plugin : plugins_.values()) {
-      if (plugin.isEnabled()) {
-        plugin.onDisconnect(connection);
-      }
+      plugin.disconnect(connection);
     }
   }
 
   /**
    * Enables all loaded plugins.
    *
+   * Each plugin is enabled after the plugins it depends on. Plugins whose dependencies are
+   * missing, cannot be enabled or are cyclic are not enabled. If the parallelism of the
+   * PluginManager is larger than 1, plugins that do not depend on each other are enabled in
+   * parallel on a thread pool of that size. See {@link #setParallelism(int)}.
+   *
    * Returns true if all plugins have been enabled.
+   *
+   * @return True if all plugins have been enabled.
    */
   public boolean enableAll() {
+    long start = System.nanoTime();
+    ArrayList<Plugin> plugins = sortByDependencies();
+    ExecutorService pool = null;
+    Executor executor = kCallerThread;
+    if (parallelism_ > 1 && plugins.size() > 1) {
+      pool = Executors.newFixedThreadPool(Math.min(parallelism_, plugins.size()));
+      executor = pool;
+    }
+    CountDownLatch completion = new CountDownLatch(plugins.size());
+    HashMap<String, EnableTask> tasks = new HashMap<String, EnableTask>();
+    for (Plugin plugin : plugins) {
+      tasks.put(plugin.getName(), new EnableTask(plugin, executor, completion));
+    }
+    for (Plugin plugin : plugins) {
+      EnableTask task = tasks.get(plugin.getName());
+      for (String dependency : plugin.getDependencies()) {
+        EnableTask dependency_task = tasks.get(dependency);
+        if (dependency_task != null) {
+          dependency_task.addDependent(task);
+        } else {
+          task.setDependencyFailed();
+        }
+      }
+    }
+    ArrayList<EnableTask> ready_tasks = new ArrayList<EnableTask>();
+    for (EnableTask task : tasks.values()) {
+      if (task.isReady()) {
+        ready_tasks.add(task);
+      }
+    }
+    try {
+      for (EnableTask task : ready_tasks) {
+        executor.execute(task);
+      }
+      completion.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
     boolean success = true;
     for (Plugin plugin : plugins_.values()) {
-      if (!plugin.setEnabled(true)) {
+      if (!plugin.isEnabled()) {
         success = false;
       }
     }
+    log.debug("Enabled {} plugins in {} ms", plugins.size(), (System.nanoTime() - start) / 1000000);
     return success;
   }
 
@@ -125,16 +287,23 @@ public class PluginManager {
    * This method returns false if the plugin has not been loaded or could not be enabled.
    * This method has no effect if the plugin has already been enabled.
    *
+   * The dependencies of the plugin are enabled first. The plugin is not enabled if any of its
+   * dependencies cannot be enabled.
+   *
    * @param name The name of the plugin.
    * @return True if the plugin has been enabled.
    */
   public boolean enablePlugin(String name) {
-    Plugin plugin = plugins_.get(name);
-    if (plugin != null) {
-      return plugin.setEnabled(true);
-    } else {
-      return false;
-    }
+    return enable(name, new HashSet<String>());
+  }
+
+  /**
+   * Returns the number of threads used to load and enable plugins.
+   *
+   * @return The number of threads used to load and enable plugins.
+   */
+  public int getParallelism() {
+    return parallelism_;
   }
 
   /**
@@ -184,6 +353,18 @@ public class PluginManager {
   /**
    * Loads all plugins in the specified jar file.
    *
+   * The plugin classes are determined from the plugin index of the jar file. The index is either
+   * the {@link #kManifestAttribute} attribute of the jar manifest or the
+   * META-INF/services/ai.general.plugin.Plugin file. Both list the fully qualified names of the
+   * plugin classes separated by whitespace or commas. Only the plugin classes are loaded by this
+   * method. Other classes are loaded lazily by the plugins.
+   *
+   * If the jar file has no plugin index, all classes in the jar file are loaded without being
+   * initialized and checked whether they are plugins. This is slow for large jar files.
+   *
+   * The class loader of the jar file remains open until the plugins are unloaded via
+   * {@link #unloadAll()}.
+   *
    * This plugins must enabled after they have been loaded.
    *
    * @param jar_filepath Path to a jar file.
@@ -191,50 +372,66 @@ public class PluginManager {
    */
   public int load(String jar_filepath) {
     log.debug("loading {}", jar_filepath);
+    ArrayList<String> class_names;
     try {
       JarFile jar = new JarFile(jar_filepath);
-      Enumeration<JarEntry> entries = jar.entries();
-      ArrayList<String> class_names = new ArrayList<String>();
-      while (entries.hasMoreElements()) {
-        JarEntry entry = entries.nextElement();
-        if (entry.getName().endsWith(".class")) {
-          class_names.add(
-              entry.getName().substring(0, entry.getName().length() - 6).
-              replace('/', '.'));
+      try {
+        class_names = getPluginClassNames(jar);
+      } finally {
+        jar.close();
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+    URLClassLoader class_loader = null;
+    try {
+      class_loader = new URLClassLoader(new URL[] { new File(jar_filepath).toURI().toURL() },
+                                        Plugin.class.getClassLoader());
+    } catch (MalformedURLException e) {
+      log.catching(Level.TRACE, e);
+    }
+    int plugin_count = 0;
+    if (class_loader != null) {
+      for (String class_name : class_names) {
+        try {
+          Class<?> class_def = Class.forName(class_name, false, class_loader);
+          if (load(class_def)) {
+            plugin_count++;
+          }
+        } catch (ClassNotFoundException | LinkageError e) {
+          log.warn("cannot load class {} from {}: {}", class_name, jar_filepath, e);
         }
       }
-      jar.close();
-      final File file = new File(jar_filepath);
-      URLClassLoader class_loader =
-        AccessController.doPrivileged(new PrivilegedAction<URLClassLoader>() {
-            @Override
-            public URLClassLoader run() {
-              try {
-                return new URLClassLoader(new URL[] { file.toURI().toURL() },
-                                          Plugin.class.getClassLoader());
-              } catch (MalformedURLException e) {
-                log.catching(Level.TRACE, e);
-                return null;
-              }
-            }
-          });
-      int plugin_count = 0;
-      if (class_loader != null) {
-        for (String class_name : class_names) {
-          try {
-            Class<?> class_def = class_loader.loadClass(class_name);
-            if (load(class_def)) {
-              plugin_count++;
-            }
-          } catch (ClassNotFoundException e) { /* cannot be thrown by construction */ }
+      if (plugin_count > 0) {
+        synchronized (class_loaders_) {
+          class_loaders_.add(class_loader);
         }
-        class_loader.close();
+      } else {
+        close(class_loader);
       }
-      log.debug("Loaded {} plugins from {}", plugin_count, jar_filepath);
-      return plugin_count;
-    } catch (IOException e) {
-      return -1;
     }
+    log.debug("Loaded {} plugins from {}", plugin_count, jar_filepath);
+    return plugin_count;
+  }
+
+  /**
+   * Sets the number of threads used by {@link #loadAll(String)} and {@link #enableAll()}.
+   *
+   * If the parallelism is 1, plugins are loaded and enabled sequentially in the calling thread.
+   * Otherwise, plugin jar files are loaded in parallel and plugins that do not depend on each
+   * other are enabled in parallel. In this case, the {@link Plugin#onLoad()} and
+   * {@link Plugin#onEnable()} methods of different plugins may be called concurrently.
+   *
+   * By default, the parallelism is 1.
+   *
+   * @param parallelism The maximum number of threads used to load and enable plugins.
+   * @throws IllegalArgumentException if parallelism is less than 1.
+   */
+  public void setParallelism(int parallelism) throws IllegalArgumentException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+    }
+    parallelism_ = parallelism;
   }
 
   /**
@@ -257,11 +454,14 @@ public class PluginManager {
         if (plugins_.containsKey(plugin.getName())) {
           return false;
         }
-        if (!plugin.onLoad()) {
+        if (!plugin.load()) {
+          return false;
+        }
+        if (plugins_.putIfAbsent(plugin.getName(), plugin) != null) {
+          plugin.onUnload();
           return false;
         }
-        plugins_.put(plugin.getName(), plugin);
-        log.debug("loaded plugin {}", plugin.getName());
+        log.debug("loaded plugin {} in {} us", plugin.getName(), plugin.getLoadTime() / 1000);
         return true;
       } catch (ReflectiveOperationException e) {}
     }
@@ -272,8 +472,10 @@ public class PluginManager {
    * Loads all plugins in the specified directory.
    *
    * This method scans all jar files in the directory and loads all plugin classes in those
-   * jar files.
+   * jar files. If the parallelism of the PluginManager is larger than 1, the jar files are
+   * loaded in parallel. See {@link #setParallelism(int)}.
    *
+   * @param directory The plugin directory.
    * @return The total number of plugins loaded.
    */
   public int loadAll(String directory) {
@@ -288,23 +490,234 @@ public class PluginManager {
       return 0;
     }
     int plugin_count = 0;
-    for (File file : list) {
-      plugin_count += load(file.getAbsolutePath());
+    if (parallelism_ == 1 || list.length <= 1) {
+      for (File file : list) {
+        plugin_count += load(file.getAbsolutePath());
+      }
+      return plugin_count;
+    }
+    ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (final File file : list) {
+      tasks.add(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return load(file.getAbsolutePath());
+          }
+        });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism_, list.length));
+    try {
+      for (Future<Integer> result : pool.invokeAll(tasks)) {
+        plugin_count += result.get();
+      }
+    } catch (ExecutionException e) {
+      log.catching(Level.WARN, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pool.shutdown();
     }
     return plugin_count;
   }
 
   /**
    * Disables and unloads all plugins.
+   *
+   * Plugins are disabled in dependency order before they are unloaded.
+   *
+   * Closes the class loaders of all plugin jar files.
    */
   public void unloadAll() {
+    disableAll();
     for (Plugin plugin : plugins_.values()) {
       plugin.unload();
     }
     plugins_.clear();
+    synchronized (class_loaders_) {
+      for (URLClassLoader class_loader : class_loaders_) {
+        close(class_loader);
+      }
+      class_loaders_.clear();
+    }
+  }
+
+  /**
+   * Adds the class names in a whitespace or comma separated list to the specified list.
+   *
+   * @param list The list of class names.
+   * @param class_names The list to which the class names are added.
+   */
+  private static void addClassNames(String list, ArrayList<String> class_names) {
+    for (String class_name : list.split("[\\s,]+")) {
+      if (!class_name.isEmpty()) {
+        class_names.add(class_name);
+      }
+    }
+  }
+
+  /**
+   * Closes a plugin class loader. Errors are logged.
+   *
+   * @param class_loader The class loader to close.
+   */
+  private static void close(URLClassLoader class_loader) {
+    try {
+      class_loader.close();
+    } catch (IOException e) {
+      log.catching(Level.DEBUG, e);
+    }
+  }
+
+  /**
+   * Disables the plugin with the specified name after disabling all enabled plugins that depend
+   * on it.
+   *
+   * @param name The name of the plugin.
+   * @param disabled The names of plugins that have already been processed.
+   */
+  private void disable(String name, HashSet<String> disabled) {
+    Plugin plugin = plugins_.get(name);
+    if (plugin == null || !disabled.add(name)) {
+      return;
+    }
+    for (Plugin dependent : plugins_.values()) {
+      if (dependent.isEnabled() && Arrays.asList(dependent.getDependencies()).contains(name)) {
+        disable(dependent.getName(), disabled);
+      }
+    }
+    plugin.setEnabled(false);
+  }
+
+  /**
+   * Enables the plugin with the specified name after enabling its dependencies.
+   *
+   * @param name The name of the plugin.
+   * @param path The names of the plugins whose dependencies are being enabled. Used to detect
+   *             cyclic dependencies.
+   * @return True if the plugin has been enabled.
+   */
+  private boolean enable(String name, HashSet<String> path) {
+    Plugin plugin = plugins_.get(name);
+    if (plugin == null) {
+      log.warn("cannot enable plugin {}: not loaded", name);
+      return false;
+    }
+    if (!path.add(name)) {
+      log.warn("cannot enable plugin {}: cyclic dependency", name);
+      return false;
+    }
+    boolean enabled = true;
+    for (String dependency : plugin.getDependencies()) {
+      if (!enable(dependency, path)) {
+        enabled = false;
+        break;
+      }
+    }
+    path.remove(name);
+    return enabled && plugin.setEnabled(true);
+  }
+
+  /**
+   * Returns the names of the plugin classes in a jar file.
+   *
+   * The names are read from the plugin index of the jar file. If the jar file has no plugin
+   * index, the names of all classes in the jar file are returned.
+   *
+   * @param jar The jar file.
+   * @return The names of the plugin classes or candidate classes in the jar file.
+   * @throws IOException if the jar file cannot be read.
+   */
+  private static ArrayList<String> getPluginClassNames(JarFile jar) throws IOException {
+    ArrayList<String> class_names = new ArrayList<String>();
+    Manifest manifest = jar.getManifest();
+    if (manifest != null) {
+      String plugin_classes = manifest.getMainAttributes().getValue(kManifestAttribute);
+      if (plugin_classes != null) {
+        addClassNames(plugin_classes, class_names);
+        return class_names;
+      }
+    }
+    JarEntry index = jar.getJarEntry(kServiceIndex);
+    if (index != null) {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(jar.getInputStream(index), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int comment = line.indexOf('#');
+          addClassNames(comment >= 0 ? line.substring(0, comment) : line, class_names);
+        }
+      } finally {
+        reader.close();
+      }
+      return class_names;
+    }
+    log.warn("{} has no plugin index, scanning all classes", jar.getName());
+    Enumeration<JarEntry> entries = jar.entries();
+    while (entries.hasMoreElements()) {
+      JarEntry entry = entries.nextElement();
+      if (entry.getName().endsWith(".class")) {
+        class_names.add(
+            entry.getName().substring(0, entry.getName().length() - 6).
+            replace('/', '.'));
+      }
+    }
+    return class_names;
+  }
+
+  /**
+   * Sorts the loaded plugins such that each plugin follows the loaded plugins it depends on.
+   * Plugins that have cyclic dependencies or depend on plugins with cyclic dependencies are
+   * omitted from the result.
+   *
+   * @return The loaded plugins in dependency order.
+   */
+  private ArrayList<Plugin> sortByDependencies() {
+    HashMap<String, Integer> pending_dependencies = new HashMap<String, Integer>();
+    HashMap<String, ArrayList<Plugin>> dependents = new HashMap<String, ArrayList<Plugin>>();
+    ArrayList<Plugin> sorted = new ArrayList<Plugin>();
+    for (Plugin plugin : plugins_.values()) {
+      int count = 0;
+      for (String dependency : plugin.getDependencies()) {
+        if (plugins_.containsKey(dependency)) {
+          if (!dependents.containsKey(dependency)) {
+            dependents.put(dependency, new ArrayList<Plugin>());
+          }
+          dependents.get(dependency).add(plugin);
+          count++;
+        }
+      }
+      pending_dependencies.put(plugin.getName(), count);
+      if (count == 0) {
+        sorted.add(plugin);
+      }
+    }
+    for (int i = 0; i < sorted.size(); i++) {
+      ArrayList<Plugin> plugin_dependents = dependents.get(sorted.get(i).getName());
+      if (plugin_dependents == null) {
+        continue;
+      }
+      for (Plugin dependent : plugin_dependents) {
+        int count = pending_dependencies.get(dependent.getName()) - 1;
+        pending_dependencies.put(dependent.getName(), count);
+        if (count == 0) {
+          sorted.add(dependent);
+        }
+      }
+    }
+    if (sorted.size() < plugins_.size()) {
+      for (String name : pending_dependencies.keySet()) {
+        if (pending_dependencies.get(name) > 0) {
+          log.warn("cannot enable plugin {}: cyclic dependency", name);
+        }
+      }
+    }
+    return sorted;
   }
 
   private static Logger log = LogManager.getLogger();
 
-  private HashMap<String, Plugin> plugins_;  // All plugins. (name, plugin).
+  private ArrayList<URLClassLoader> class_loaders_;  // Class loaders of loaded plugin jars.
+  private volatile int parallelism_;  // Number of threads used to load and enable plugins.
+  private ConcurrentHashMap<String, Plugin> plugins_;  // All plugins. (name, plugin).
 }
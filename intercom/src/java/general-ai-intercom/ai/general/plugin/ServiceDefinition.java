@@ -7,12 +7,17 @@ package ai.general.plugin;
 
 import ai.general.directory.Directory;
 import ai.general.directory.Handler;
+import ai.general.directory.PatternIndex;
 import ai.general.directory.Request;
 import ai.general.net.Connection;
 import ai.general.net.MethodHandler;
+import ai.general.net.MethodInvoker;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -38,6 +43,9 @@ import org.apache.logging.log4j.LogManager;
  * of the directory.
  *
  * Service definitions are automatically created and maintained by the {@link ServiceManager}.
+ *
+ * ServiceDefinition is thread-safe. A service may be connected to or disconnected from different
+ * connections concurrently while its handlers are added or removed.
  */
 public class ServiceDefinition {
 
@@ -67,7 +75,8 @@ public class ServiceDefinition {
         this.request_path_ = "/" + request_path;
         node_path_ = home_path_ + request_path;
       }
-      if (node_path_.endsWith("/*")) {
+      // A trailing wildcard is part of a pattern and is only stripped from literal paths.
+      if (node_path_.endsWith("/*") && !PatternIndex.isPattern(node_path_)) {
         node_path_ = node_path_.substring(0, node_path_.length() - 2);
       }
     }
@@ -83,7 +92,8 @@ public class ServiceDefinition {
 
     /**
      * Returns the full directory node path of the handler. The handler is added to the
-     * directory node at this path.
+     * directory node at this path. If the path is a pattern, the handler is added as a pattern
+     * handler to the node before the first wildcard.
      *
      * @param The full directory node path of the handler.
      */
@@ -127,7 +137,8 @@ public class ServiceDefinition {
     this.name_ = name;
     this.service_ = service;
     this.home_path_ = home_path;
-    handler_definitions_ = new ArrayList<ServiceHandlerDefinition>();
+    handler_definitions_ = new CopyOnWriteArrayList<ServiceHandlerDefinition>();
+    topic_paths_ = new CopyOnWriteArrayList<String>();
     auto_connect_ = true;
   }
 
@@ -143,40 +154,54 @@ public class ServiceDefinition {
    */
   public boolean addHandler(String handler_path, Request.RequestType request_type, Method method) {
     String handler_name = name_ + ":" + request_type.name() + ":" + method.toString();
-    ServiceHandlerDefinition handler_def =
-      new ServiceHandlerDefinition(handler_path,
-                                   request_type,
-                                   new MethodHandler(handler_name,
-                                                     handler_path.endsWith("/*"),
-                                                     service_,
-                                                     method));
-    if (Directory.Instance.createPath(handler_def.getNodePath()) &&
-        Directory.Instance.addHandler(handler_def.getNodePath(), handler_def.getHandler())) {
-      handler_definitions_.add(handler_def);
-      log.trace("Added service handler {} @ {}", handler_name, handler_def.getNodePath());
-      return true;
-    } else {
-      return false;
-    }
+    return addHandler(handler_path,
+                      request_type,
+                      new MethodHandler(handler_name,
+                                        handler_path.endsWith("/*"),
+                                        service_,
+                                        method));
+  }
+
+  /**
+   * Adds a handler for a service method that is called through the specified invoker. This
+   * method is used by generated {@link ServiceTable} classes.
+   *
+   * The handler name is derived from the method description in the same way as for handlers
+   * added via {@link #addHandler(String, Request.RequestType, Method)}.
+   *
+   * If necessary, this method creates the directory path to the handler node.
+   *
+   * @param handler_path The directory path to the handler node relative to the service home path.
+   * @param request_type The type of requests handled by the service method.
+   * @param method_description The description of the service method as returned by
+   *                           {@link Method#toString()}.
+   * @param parameter_types The generic parameter types of the service method.
+   * @param invoker Invokes the service method on the service instance.
+   * @return True if the handler was successfully added.
+   */
+  public boolean addHandler(String handler_path,
+                            Request.RequestType request_type,
+                            String method_description,
+                            Type[] parameter_types,
+                            MethodInvoker invoker) {
+    String handler_name = name_ + ":" + request_type.name() + ":" + method_description;
+    return addHandler(handler_path,
+                      request_type,
+                      new MethodHandler(handler_name,
+                                        handler_path.endsWith("/*"),
+                                        parameter_types,
+                                        invoker));
   }
 
   /**
    * Connects the service to the connection by subscribing all event methods of the service to
-   * the connection.
+   * the connection. The subscribe requests are sent as one batch.
    *
    * @param connection The connection to connect to.
    * @return True if all event methods have been successfully subscribed.
    */
   public boolean connect(Connection connection) {
-    boolean success = true;
-    for (ServiceHandlerDefinition handler_def : handler_definitions_) {
-      if (handler_def.getRequestType() == Request.RequestType.Publish) {
-        if (!connection.subscribe(handler_def.getRequestPath())) {
-          success = false;
-        }
-      }
-    }
-    return success;
+    return connection.subscribe(topic_paths_);
   }
 
 
@@ -188,15 +213,7 @@ public class ServiceDefinition {
    * @return True if all event methods have been successfully unsubscribed.
    */
   public boolean disconnect(Connection connection) {
-    boolean success = true;
-    for (ServiceHandlerDefinition handler_def : handler_definitions_) {
-      if (handler_def.getRequestType() == Request.RequestType.Publish) {
-        if (!connection.unsubscribe(handler_def.getRequestPath())) {
-          success = false;
-        }
-      }
-    }
-    return success;
+    return connection.unsubscribe(topic_paths_);
   }
 
   /**
@@ -235,6 +252,19 @@ public class ServiceDefinition {
     return service_;
   }
 
+  /**
+   * Returns the request paths of all event methods of the service. These are the topic paths to
+   * which the service subscribes when it is connected.
+   *
+   * The list is maintained as handlers are added and removed, so that connecting the service
+   * does not require scanning the handlers.
+   *
+   * @return The topic paths of the event methods of the service.
+   */
+  public List<String> getTopicPaths() {
+    return Collections.unmodifiableList(topic_paths_);
+  }
+
   /**
    * Removes all service handlers from the directory.
    *
@@ -244,12 +274,15 @@ public class ServiceDefinition {
    */
   public void removeAllHandlers() {
     for (ServiceHandlerDefinition handler_def : handler_definitions_) {
+      handler_definitions_.remove(handler_def);
+      if (handler_def.getRequestType() == Request.RequestType.Publish) {
+        topic_paths_.remove(handler_def.getRequestPath());
+      }
       Directory.Instance.removeHandler(handler_def.getNodePath(),
                                        handler_def.getHandler().getName());
       log.trace("Removed service handler {} @ {}",
                 handler_def.getHandler().getName(), handler_def.getNodePath());
     }
-    handler_definitions_.clear();
   }
 
   /**
@@ -270,11 +303,57 @@ public class ServiceDefinition {
   public void setAutoConnect(boolean auto_connect) {
   }
 
+  /**
+   * Adds a service handler to the directory.
+   *
+   * @param handler_path The directory path to the handler node relative to the service home path.
+   * @param request_type The type of requests handled by the handler.
+   * @param handler The handler.
+   * @return True if the handler was successfully added.
+   */
+  private boolean addHandler(String handler_path,
+                             Request.RequestType request_type,
+                             Handler handler) {
+    ServiceHandlerDefinition handler_def =
+      new ServiceHandlerDefinition(handler_path, request_type, handler);
+    if (createNodePath(handler_def.getNodePath()) &&
+        Directory.Instance.addHandler(handler_def.getNodePath(), handler_def.getHandler())) {
+      handler_definitions_.add(handler_def);
+      if (request_type == Request.RequestType.Publish) {
+        topic_paths_.add(handler_def.getRequestPath());
+      }
+      log.trace("Added service handler {} @ {}", handler.getName(), handler_def.getNodePath());
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Creates the directory path to the node of a handler. If the node path is a pattern, only the
+   * path before the first wildcard is created.
+   *
+   * @param node_path The full directory node path of the handler.
+   * @return True if the path exists.
+   */
+  private boolean createNodePath(String node_path) {
+    int pattern_start = PatternIndex.patternStart(node_path);
+    if (pattern_start < 0) {
+      return Directory.Instance.createPath(node_path);
+    }
+    String literal_path = node_path.substring(0, pattern_start - 1);
+    return literal_path.length() == 0 || Directory.Instance.createPath(literal_path);
+  }
+
   private static Logger log = LogManager.getLogger();
 
-  private boolean auto_connect_;  // Whether to automatically connect to new connections.
+  private volatile boolean auto_connect_;  // Whether to automatically connect to new connections.
   private String name_;  // The service name.
-  private ArrayList<ServiceHandlerDefinition> handler_definitions_;  // Service handlers.
+
+  // Service handlers.
+  private CopyOnWriteArrayList<ServiceHandlerDefinition> handler_definitions_;
+
   private String home_path_;  // The service home path.
   private Object service_;  // The service instance.
+  private CopyOnWriteArrayList<String> topic_paths_;  // Request paths of event handlers.
 }
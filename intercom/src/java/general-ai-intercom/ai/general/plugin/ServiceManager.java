@@ -10,7 +10,7 @@ import ai.general.plugin.annotation.RpcMethod;
 import ai.general.plugin.annotation.Subscribe;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -40,7 +40,7 @@ public class ServiceManager {
    * The singleton instance can be obtained via {@link #Instance}.
    */
   private ServiceManager() {
-    services_ = new HashMap<String, ServiceDefinition>();
+    services_ = new ConcurrentHashMap<String, ServiceDefinition>();
   }
 
   /**
@@ -49,7 +49,9 @@ public class ServiceManager {
    *
    * This method scans the service instance for service annotations and automatically generates
    * handlers for annotated methods. The class of the service instance and all of its super
-   * classes are scanned.
+   * classes are scanned. If a {@link ServiceTable} has been generated for the class of the
+   * service instance at compile time, the handlers are added via the ServiceTable instead,
+   * which avoids scanning the class via reflection.
    *
    * Multiple services can shares the same service home path. The service home path is typically
    * the home path of the user account or the root of the directory.
@@ -58,7 +60,8 @@ public class ServiceManager {
    * This method does not abort if it fails to add a handler, but continues with adding the
    * remaining handlers.
    *
-   * The service name must be unique.
+   * The service name must be unique. Services may be added concurrently, e.g. by plugins that
+   * are enabled in parallel.
    *
    * @param service_name A unique service name.
    * @param service The service instance.
@@ -67,22 +70,26 @@ public class ServiceManager {
    * @throws IllegalArgumentException if a service with the same name already exists.
    */
   public ServiceDefinition addService(String service_name, Object service, String home_path) {
-    if (services_.containsKey(service_name)) {
-      throw new IllegalArgumentException("Duplicate service name: " + service_name);
-    }
     if (!home_path.endsWith("/")) {
       home_path = home_path + "/";
     }
     ServiceDefinition service_def = new ServiceDefinition(service_name, service, home_path);
-    services_.put(service_name, service_def);
-    for (Method method : service.getClass().getMethods()) {
-      Subscribe subscription = method.getAnnotation(Subscribe.class);
-      if (subscription != null) {
-        service_def.addHandler(subscription.value(), Request.RequestType.Publish, method);
-      }
-      RpcMethod rpc_declaration = method.getAnnotation(RpcMethod.class);
-      if (rpc_declaration != null) {
-        service_def.addHandler(rpc_declaration.value(), Request.RequestType.Call, method);
+    if (services_.putIfAbsent(service_name, service_def) != null) {
+      throw new IllegalArgumentException("Duplicate service name: " + service_name);
+    }
+    ServiceTable service_table = getServiceTable(service.getClass());
+    if (service_table != null) {
+      service_table.addHandlers(service_def, service);
+    } else {
+      for (Method method : service.getClass().getMethods()) {
+        Subscribe subscription = method.getAnnotation(Subscribe.class);
+        if (subscription != null) {
+          service_def.addHandler(subscription.value(), Request.RequestType.Publish, method);
+        }
+        RpcMethod rpc_declaration = method.getAnnotation(RpcMethod.class);
+        if (rpc_declaration != null) {
+          service_def.addHandler(rpc_declaration.value(), Request.RequestType.Call, method);
+        }
       }
     }
     log.trace("Added service {} @ {}", service_name, home_path);
@@ -148,8 +155,29 @@ public class ServiceManager {
     log.trace("Removed service {}", service_name);
   }
 
+  /**
+   * Returns the generated {@link ServiceTable} of the specified service class or null if no
+   * ServiceTable has been generated for the class.
+   *
+   * @param service_class The class of a service instance.
+   * @return The generated ServiceTable or null.
+   */
+  private static ServiceTable getServiceTable(Class<?> service_class) {
+    try {
+      Class<?> table_class = Class.forName(service_class.getName() + ServiceTable.kClassSuffix,
+                                           true,
+                                           service_class.getClassLoader());
+      if (!ServiceTable.class.isAssignableFrom(table_class)) {
+        return null;
+      }
+      return (ServiceTable) table_class.getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
   private static Logger log = LogManager.getLogger();
 
   // List of services: service name -> ServiceDefinition.
-  private HashMap<String, ServiceDefinition> services_;
+  private ConcurrentHashMap<String, ServiceDefinition> services_;
 }
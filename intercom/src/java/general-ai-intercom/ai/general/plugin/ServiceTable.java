@@ -0,0 +1,35 @@
+/* General AI - Plugin Support
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.plugin;
+
+/**
+ * Dispatch table of a service class that is generated at compile time.
+ *
+ * The {@link ai.general.plugin.annotation.ServiceTableProcessor} generates a ServiceTable for
+ * each public service class that declares {@link ai.general.plugin.annotation.RpcMethod} or
+ * {@link ai.general.plugin.annotation.Subscribe} methods. The generated class is named after the
+ * binary name of the service class with the suffix {@link #kClassSuffix}, e.g.
+ * my.package.MyService_ServiceTable.
+ *
+ * A ServiceTable adds handlers for the annotated methods of the service class that call the
+ * methods directly. {@link ServiceManager} uses the generated ServiceTable if it is present and
+ * scans the service class via reflection otherwise.
+ *
+ * Implementations must be public and have a public default constructor.
+ */
+public interface ServiceTable {
+
+  /** Suffix of the name of generated ServiceTable classes. */
+  public static final String kClassSuffix = "_ServiceTable";
+
+  /**
+   * Adds a handler for each annotated method of the service class to the service definition.
+   *
+   * @param service_def The definition of the service.
+   * @param service The service instance. Must be an instance of the service class.
+   */
+  void addHandlers(ServiceDefinition service_def, Object service);
+}
@@ -0,0 +1,460 @@
+/* General AI - Plugin Annotations
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.plugin.annotation;
+
+import ai.general.plugin.ServiceTable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@link ServiceTable} for service classes at compile time.
+ *
+ * ServiceTableProcessor is an annotation processor that is registered as a service provider in
+ * the intercom library. It is run automatically by javac for sources that are compiled against
+ * the library, e.g. plugins.
+ *
+ * For each public service class that declares {@link RpcMethod} or {@link Subscribe} methods,
+ * the processor generates a class named after the binary name of the service class with the
+ * suffix "_ServiceTable". The generated table adds the same handlers that
+ * {@link ai.general.plugin.ServiceManager} would add by scanning the class via reflection, but
+ * calls the service methods directly and declares the generic parameter types of the methods as
+ * compile time constants.
+ *
+ * Methods inherited from a generic superclass are called with the parameter types they have as
+ * members of the service class, e.g. a method m(T) inherited from Base&lt;String&gt; is called with
+ * a String.
+ *
+ * No table is generated for classes that cannot be referenced by generated code in the same
+ * package, i.e. non-public classes, abstract classes, inner classes, generic classes and classes
+ * with generic service methods. ServiceManager uses reflection for such classes.
+ */
+@SupportedAnnotationTypes({"ai.general.plugin.annotation.RpcMethod",
+                           "ai.general.plugin.annotation.Subscribe"})
+public class ServiceTableProcessor extends AbstractProcessor {
+
+  /**
+   * Returns the latest source version since the processor does not depend on language features.
+   *
+   * @return The latest supported source version.
+   */
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  /**
+   * Generates service tables for the classes that declare annotated methods.
+   *
+   * @param annotations The annotation types processed in this round.
+   * @param round_env The round environment.
+   * @return False, so that other processors may process the annotations.
+   */
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round_env) {
+    LinkedHashSet<TypeElement> service_classes = new LinkedHashSet<TypeElement>();
+    for (Element element : round_env.getElementsAnnotatedWith(RpcMethod.class)) {
+      service_classes.add((TypeElement) element.getEnclosingElement());
+    }
+    for (Element element : round_env.getElementsAnnotatedWith(Subscribe.class)) {
+      service_classes.add((TypeElement) element.getEnclosingElement());
+    }
+    for (TypeElement service_class : service_classes) {
+      if (!isSupported(service_class)) {
+        continue;
+      }
+      List<ExecutableElement> methods = getServiceMethods(service_class);
+      if (methods == null) {
+        continue;
+      }
+      try {
+        generate(service_class, methods);
+      } catch (IOException e) {
+        processingEnv.getMessager().printMessage(
+            Diagnostic.Kind.WARNING, "cannot generate service table: " + e, service_class);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Appends the description of a method as returned by {@link java.lang.reflect.Method#toString()}.
+   *
+   * @param method The method.
+   * @param out The string builder to which the description is appended.
+   */
+  private void appendDescription(ExecutableElement method, StringBuilder out) {
+    Modifier[] modifiers = {
+      Modifier.PUBLIC, Modifier.PROTECTED, Modifier.PRIVATE, Modifier.ABSTRACT, Modifier.STATIC,
+      Modifier.FINAL, Modifier.SYNCHRONIZED, Modifier.NATIVE, Modifier.STRICTFP
+    };
+    for (Modifier modifier : modifiers) {
+      if (method.getModifiers().contains(modifier)) {
+        out.append(modifier.toString()).append(' ');
+      }
+    }
+    out.append(binaryName(method.getReturnType())).append(' ');
+    out.append(binaryName(method.getEnclosingElement().asType()));
+    out.append('.').append(method.getSimpleName()).append('(');
+    List<? extends VariableElement> parameters = method.getParameters();
+    for (int i = 0; i < parameters.size(); i++) {
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append(binaryName(parameters.get(i).asType()));
+    }
+    out.append(')');
+    List<? extends TypeMirror> exceptions = method.getThrownTypes();
+    for (int i = 0; i < exceptions.size(); i++) {
+      out.append(i == 0 ? " throws " : ",");
+      out.append(binaryName(exceptions.get(i)));
+    }
+  }
+
+  /**
+   * Appends the statement that adds the handler of a method for an annotation.
+   *
+   * The parameter types of the handler are the types of the method as a member of the service
+   * class. Thus, the type variables of methods inherited from a generic superclass are replaced
+   * with the type arguments of the service class.
+   *
+   * @param service_class The service class.
+   * @param method The annotated method.
+   * @param handler_path The path specified by the annotation.
+   * @param request_type The request type of the handler.
+   * @param out The string builder to which the statement is appended.
+   */
+  private void appendHandler(TypeElement service_class,
+                             ExecutableElement method,
+                             String handler_path,
+                             String request_type,
+                             StringBuilder out) {
+    StringBuilder description = new StringBuilder();
+    appendDescription(method, description);
+    List<? extends TypeMirror> parameter_types =
+      memberType(service_class, method).getParameterTypes();
+    out.append("    service_def.addHandler(\n");
+    out.append("        ").append(literal(handler_path)).append(",\n");
+    out.append("        ai.general.directory.Request.RequestType.").append(request_type)
+      .append(",\n");
+    out.append("        ").append(literal(description.toString())).append(",\n");
+    out.append("        new java.lang.reflect.Type[] {");
+    for (int i = 0; i < parameter_types.size(); i++) {
+      if (i > 0) {
+        out.append(", ");
+      }
+      appendType(parameter_types.get(i), out);
+    }
+    out.append("},\n");
+    out.append("        new ai.general.net.MethodInvoker() {\n");
+    out.append("          @Override\n");
+    out.append("          @SuppressWarnings(\"unchecked\")\n");
+    out.append("          public java.lang.Object invoke(java.lang.Object[] args)\n");
+    out.append("            throws java.lang.reflect.InvocationTargetException {\n");
+    out.append("            try {\n");
+    out.append("              ");
+    boolean is_void = method.getReturnType().getKind() == TypeKind.VOID;
+    if (!is_void) {
+      out.append("return ");
+    }
+    if (method.getModifiers().contains(Modifier.STATIC)) {
+      out.append(service_class.getQualifiedName());
+    } else {
+      out.append("target");
+    }
+    out.append('.').append(method.getSimpleName()).append('(');
+    for (int i = 0; i < parameter_types.size(); i++) {
+      if (i > 0) {
+        out.append(", ");
+      }
+      out.append('(').append(boxedName(parameter_types.get(i))).append(") args[")
+        .append(i).append(']');
+    }
+    out.append(");\n");
+    if (is_void) {
+      out.append("              return null;\n");
+    }
+    out.append("            } catch (java.lang.Throwable e) {\n");
+    out.append("              throw new java.lang.reflect.InvocationTargetException(e);\n");
+    out.append("            }\n");
+    out.append("          }\n");
+    out.append("        });\n");
+  }
+
+  /**
+   * Appends an expression that evaluates to the {@link java.lang.reflect.Type} of a parameter.
+   * Generic types are captured via a Jackson TypeReference.
+   *
+   * @param type The parameter type.
+   * @param out The string builder to which the expression is appended.
+   */
+  private void appendType(TypeMirror type, StringBuilder out) {
+    if (isGeneric(type)) {
+      out.append("new com.fasterxml.jackson.core.type.TypeReference<").append(type)
+        .append(">() {}.getType()");
+    } else {
+      out.append(processingEnv.getTypeUtils().erasure(type)).append(".class");
+    }
+  }
+
+  /**
+   * Returns the binary name of the erasure of a type as returned by
+   * {@link Class#getTypeName()}.
+   *
+   * @param type A type.
+   * @return The binary type name.
+   */
+  private String binaryName(TypeMirror type) {
+    TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+    switch (erasure.getKind()) {
+      case ARRAY:
+        return binaryName(((ArrayType) erasure).getComponentType()) + "[]";
+      case DECLARED:
+        return processingEnv.getElementUtils().getBinaryName(
+            (TypeElement) ((DeclaredType) erasure).asElement()).toString();
+      default:
+        return erasure.toString();
+    }
+  }
+
+  /**
+   * Returns the source name of a type to which a bound argument can be cast. Primitive types
+   * are boxed.
+   *
+   * @param type A parameter type.
+   * @return The source name of the cast type.
+   */
+  private String boxedName(TypeMirror type) {
+    if (type.getKind().isPrimitive()) {
+      return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type)
+        .getQualifiedName().toString();
+    }
+    return type.toString();
+  }
+
+  /**
+   * Writes the service table source file of a service class.
+   *
+   * @param service_class The service class.
+   * @param methods The annotated methods of the service class.
+   * @throws IOException if the source file cannot be written.
+   */
+  private void generate(TypeElement service_class, List<ExecutableElement> methods)
+    throws IOException {
+    String binary_name =
+      processingEnv.getElementUtils().getBinaryName(service_class).toString();
+    String package_name =
+      processingEnv.getElementUtils().getPackageOf(service_class).getQualifiedName().toString();
+    String table_name = binary_name.substring(binary_name.lastIndexOf('.') + 1) +
+      ServiceTable.kClassSuffix;
+    StringBuilder out = new StringBuilder();
+    out.append("// Generated by ").append(getClass().getName()).append(". Do not edit.\n\n");
+    if (!package_name.isEmpty()) {
+      out.append("package ").append(package_name).append(";\n\n");
+    }
+    out.append("public final class ").append(table_name)
+      .append(" implements ai.general.plugin.ServiceTable {\n\n");
+    out.append("  @Override\n");
+    out.append("  public void addHandlers(ai.general.plugin.ServiceDefinition service_def,\n");
+    out.append("                          java.lang.Object service) {\n");
+    out.append("    final ").append(service_class.getQualifiedName()).append(" target = (")
+      .append(service_class.getQualifiedName()).append(") service;\n");
+    for (ExecutableElement method : methods) {
+      Subscribe subscription = method.getAnnotation(Subscribe.class);
+      if (subscription != null) {
+        appendHandler(service_class, method, subscription.value(), "Publish", out);
+      }
+      RpcMethod rpc_declaration = method.getAnnotation(RpcMethod.class);
+      if (rpc_declaration != null) {
+        appendHandler(service_class, method, rpc_declaration.value(), "Call", out);
+      }
+    }
+    out.append("  }\n");
+    out.append("}\n");
+    String file_name = package_name.isEmpty() ? table_name : package_name + "." + table_name;
+    Writer writer =
+      processingEnv.getFiler().createSourceFile(file_name, service_class).openWriter();
+    try {
+      writer.write(out.toString());
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Returns the public annotated methods of a service class including inherited methods.
+   * Returns null if any of the methods cannot be called by generated code, e.g. because a
+   * parameter type of an inherited method is a type variable that is not bound by the service
+   * class.
+   *
+   * @param service_class The service class.
+   * @return The annotated methods or null.
+   */
+  private List<ExecutableElement> getServiceMethods(TypeElement service_class) {
+    ArrayList<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+    for (Element member : processingEnv.getElementUtils().getAllMembers(service_class)) {
+      if (member.getKind() != ElementKind.METHOD ||
+          !member.getModifiers().contains(Modifier.PUBLIC) ||
+          (member.getAnnotation(RpcMethod.class) == null &&
+           member.getAnnotation(Subscribe.class) == null)) {
+        continue;
+      }
+      ExecutableElement method = (ExecutableElement) member;
+      if (!method.getTypeParameters().isEmpty() ||
+          !isPublic((TypeElement) method.getEnclosingElement())) {
+        return null;
+      }
+      ExecutableType member_type = memberType(service_class, method);
+      if (hasTypeVariable(member_type.getReturnType())) {
+        return null;
+      }
+      for (TypeMirror parameter_type : member_type.getParameterTypes()) {
+        if (hasTypeVariable(parameter_type)) {
+          return null;
+        }
+      }
+      methods.add(method);
+    }
+    return methods;
+  }
+
+  /**
+   * Returns true if the type is or contains a type variable.
+   *
+   * @param type A type.
+   * @return True if the type cannot be named outside of its generic declaration.
+   */
+  private boolean hasTypeVariable(TypeMirror type) {
+    switch (type.getKind()) {
+      case ARRAY:
+        return hasTypeVariable(((ArrayType) type).getComponentType());
+      case DECLARED:
+        for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+          if (hasTypeVariable(argument)) {
+            return true;
+          }
+        }
+        return false;
+      case WILDCARD:
+        WildcardType wildcard = (WildcardType) type;
+        return (wildcard.getExtendsBound() != null &&
+                hasTypeVariable(wildcard.getExtendsBound())) ||
+          (wildcard.getSuperBound() != null && hasTypeVariable(wildcard.getSuperBound()));
+      case TYPEVAR:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns true if the type is a parameterized type or contains a parameterized type.
+   *
+   * @param type A type.
+   * @return True if the type is generic.
+   */
+  private boolean isGeneric(TypeMirror type) {
+    switch (type.getKind()) {
+      case ARRAY:
+        return isGeneric(((ArrayType) type).getComponentType());
+      case DECLARED:
+        return !((DeclaredType) type).getTypeArguments().isEmpty();
+      case TYPEVAR:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns true if the class and all of its enclosing classes are public.
+   *
+   * @param type_element A class.
+   * @return True if the class is accessible from any package.
+   */
+  private boolean isPublic(TypeElement type_element) {
+    Element element = type_element;
+    while (element instanceof TypeElement) {
+      if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+        return false;
+      }
+      element = element.getEnclosingElement();
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if a service table can be generated for the service class.
+   *
+   * @param service_class The service class.
+   * @return True if the service class is supported.
+   */
+  private boolean isSupported(TypeElement service_class) {
+    if (service_class.getKind() != ElementKind.CLASS ||
+        service_class.getModifiers().contains(Modifier.ABSTRACT) ||
+        !service_class.getTypeParameters().isEmpty() ||
+        !isPublic(service_class)) {
+      return false;
+    }
+    return service_class.getNestingKind() == NestingKind.TOP_LEVEL ||
+      service_class.getModifiers().contains(Modifier.STATIC);
+  }
+
+  /**
+   * Returns the type of a method as a member of the service class.
+   *
+   * @param service_class The service class.
+   * @param method A method declared or inherited by the service class.
+   * @return The method type with the type arguments of the service class substituted.
+   */
+  private ExecutableType memberType(TypeElement service_class, ExecutableElement method) {
+    return (ExecutableType) processingEnv.getTypeUtils().asMemberOf(
+        (DeclaredType) service_class.asType(), method);
+  }
+
+  /**
+   * Returns a Java string literal for the specified value.
+   *
+   * @param value A string value.
+   * @return The quoted and escaped string literal.
+   */
+  private static String literal(String value) {
+    StringBuilder out = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': out.append("\\\""); break;
+        case '\\': out.append("\\\\"); break;
+        case '\n': out.append("\\n"); break;
+        default: out.append(c); break;
+      }
+    }
+    return out.append('"').toString();
+  }
+}
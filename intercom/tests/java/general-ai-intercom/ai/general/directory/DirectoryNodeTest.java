@@ -8,6 +8,9 @@ package ai.general.directory;
 import ai.general.directory.test.TestHandler;
 import ai.general.directory.test.TestUtilities;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -498,4 +501,53 @@ public class DirectoryNodeTest {
     assertThat(test_handler_a2.getArgument(0), is("[4]"));
     assertThat(test_handler_c.getArgument(0), is("[3]"));
   }
+
+  /**
+   * Tests that requests can be handled while handlers and children are changed concurrently.
+   */
+  @Test
+  public void concurrentChanges() throws Exception {
+    final Node root = new DirectoryNode("");
+    final Node node_a = new DirectoryNode("a");
+    final Node node_b = new DirectoryNode("b");
+    root.mount(node_a);
+    node_a.mount(node_b);
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              while (running.get()) {
+                root.handle(TestUtilities.createRequest("wamp://user@domain/a/b/c", "[1]"));
+                node_a.getChildren().size();
+              }
+            } catch (Throwable e) {
+              failure.set(e);
+            }
+          }
+        };
+      readers[i].start();
+    }
+    for (int i = 0; i < 2000; i++) {
+      String name = "handler" + (i % 16);
+      if (!node_a.removeHandler(name)) {
+        node_a.addHandler(new TestHandler(name, i % 2 == 0));
+      }
+      if (!node_b.removeHandler(name)) {
+        node_b.addHandler(new TestHandler(name));
+      }
+      Node node_c = new DirectoryNode("c");
+      node_b.mount(node_c);
+      node_c.addHandler(new TestHandler(name));
+      Assert.assertTrue(node_b.unmount(node_c));
+    }
+    running.set(false);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    Assert.assertNull(failure.get());
+  }
 }
@@ -8,6 +8,12 @@ package ai.general.directory;
 import ai.general.directory.test.TestHandler;
 import ai.general.directory.test.TestUtilities;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -18,6 +24,53 @@ import static org.hamcrest.CoreMatchers.*;
  */
 public class DirectoryTest {
 
+  /**
+   * Handler that records the arguments and threads of all requests it handles.
+   */
+  private static class RecordingHandler extends Handler {
+
+    /**
+     * @param name Name of handler.
+     */
+    public RecordingHandler(String name) {
+      super(name, false);
+      arguments_ = new ArrayList<Object>();
+      threads_ = Collections.synchronizedList(new ArrayList<Thread>());
+    }
+
+    /**
+     * Returns the recorded arguments in the order in which they were handled.
+     *
+     * @return The recorded arguments.
+     */
+    public synchronized List<Object> getArguments() {
+      return new ArrayList<Object>(arguments_);
+    }
+
+    /**
+     * Returns the threads on which requests were handled.
+     *
+     * @return The recorded threads.
+     */
+    public List<Thread> getThreads() {
+      return threads_;
+    }
+
+    /**
+     * Records the first argument and the current thread.
+     *
+     * @param request The request to handle.
+     */
+    @Override
+    public synchronized void handle(Request request) {
+      arguments_.add(request.getArgument(0));
+      threads_.add(Thread.currentThread());
+    }
+
+    private ArrayList<Object> arguments_;  // Recorded arguments.
+    private List<Thread> threads_;  // Threads on which requests were handled.
+  }
+
   /**
    * Tests creation of paths.
    */
@@ -408,4 +461,217 @@ public class DirectoryTest {
     Assert.assertNull(link_handler.getArgument(0));
     Assert.assertNull(link_link_handler.getArgument(0));
   }
+
+  /**
+   * Tests that cached routes are invalidated by structural changes.
+   */
+  @Test
+  public void routeCache() {
+    final String kBase = "/directory/route_cache";
+    Directory directory = Directory.Instance;
+    Request request = TestUtilities.createRequest("/a/b", "first");
+    assertThat(directory.handle(kBase, request), is(0));
+    Assert.assertTrue(directory.createPath(kBase + "/a/b"));
+    assertThat(directory.handle(kBase, request), is(0));
+
+    TestHandler handler = new TestHandler("handler");
+    TestHandler catchall = new TestHandler("catchall", true);
+    Assert.assertTrue(directory.addHandler(kBase + "/a/b", handler));
+    assertThat(directory.handle(kBase, request), is(1));
+    assertThat(handler.getArgument(0), is("first"));
+    request = TestUtilities.createRequest("/a/b", "second");
+    assertThat(directory.handle(kBase, request), is(1));
+    assertThat(handler.getArgument(0), is("second"));
+
+    Assert.assertTrue(directory.addHandler(kBase + "/a", catchall));
+    request = TestUtilities.createRequest("/a/b", "third");
+    assertThat(directory.handle(kBase, request), is(2));
+    assertThat(catchall.getArgument(0), is("third"));
+    assertThat(catchall.getPathRemainder(), is("b"));
+    // Same target node relative to a different base path.
+    assertThat(directory.handle(kBase + "/a", TestUtilities.createRequest("/b", "x")), is(2));
+
+    Assert.assertTrue(directory.removeHandler(kBase + "/a/b", "handler"));
+    assertThat(directory.handle(kBase, request), is(1));
+    Assert.assertTrue(directory.removePath(kBase + "/a"));
+    assertThat(directory.handle(kBase, request), is(0));
+  }
+
+  /**
+   * Tests that cached routes are only invalidated by changes to the nodes of the route.
+   */
+  @Test
+  public void routeCacheScope() {
+    final String kBase = "/directory/route_scope";
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kBase + "/topic/a/b"));
+    Assert.assertTrue(directory.createPath(kBase + "/other"));
+    TestHandler handler = new TestHandler("handler");
+    Assert.assertTrue(directory.addHandler(kBase + "/topic/a/b", handler));
+    Route route = directory.getRoute(kBase, "/topic/a/b");
+    Route parent_route = directory.getRoute(kBase, "/topic/a");
+    assertThat(route.size(), is(1));
+    assertThat(directory.getRoute(kBase, "/topic/a/b"), is(sameInstance(route)));
+
+    // Changes outside of the route.
+    Assert.assertTrue(directory.addHandler(kBase + "/other", new TestHandler("other")));
+    Assert.assertTrue(directory.addHandler(kBase + "/other/*", new TestHandler("catchall", true)));
+    Assert.assertTrue(directory.createPath(kBase + "/other/child"));
+    Assert.assertTrue(directory.removeHandler(kBase + "/other", "other"));
+    assertThat(directory.getRoute(kBase, "/topic/a/b"), is(sameInstance(route)));
+    // Regular handlers of a node do not affect routes that pass through the node.
+    Assert.assertTrue(directory.addHandler(kBase + "/topic/a", new TestHandler("a")));
+    assertThat(directory.getRoute(kBase, "/topic/a/b"), is(sameInstance(route)));
+    Assert.assertFalse(parent_route.isValid());
+
+    // Changes to the route.
+    Assert.assertTrue(directory.addHandler(kBase + "/topic/a/*", new TestHandler("all", true)));
+    Assert.assertFalse(route.isValid());
+    route = directory.getRoute(kBase, "/topic/a/b");
+    assertThat(route.size(), is(2));
+    Assert.assertTrue(directory.addHandler(kBase + "/topic/a/b", new TestHandler("b")));
+    Assert.assertFalse(route.isValid());
+    route = directory.getRoute(kBase, "/topic/a/b");
+    assertThat(route.size(), is(3));
+    Assert.assertTrue(directory.removePath(kBase + "/topic"));
+    Assert.assertFalse(route.isValid());
+    assertThat(directory.getRoute(kBase, "/topic/a/b").size(), is(0));
+
+    // Routes of a base path that does not exist yet.
+    route = directory.getRoute(kBase + "/new", "/x");
+    assertThat(route.size(), is(0));
+    Assert.assertTrue(directory.createPath(kBase + "/new/x"));
+    Assert.assertFalse(route.isValid());
+    Assert.assertTrue(directory.addHandler(kBase + "/new/x", new TestHandler("x")));
+    assertThat(directory.getRoute(kBase + "/new", "/x").size(), is(1));
+  }
+
+  /**
+   * Tests that cached routes do not keep removed handlers reachable.
+   */
+  @Test
+  public void routeCacheRelease() throws InterruptedException {
+    final String kBase = "/directory/route_release";
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kBase + "/topic"));
+    Assert.assertTrue(directory.createPath(kBase + "/linked"));
+    Assert.assertTrue(directory.link(kBase + "/linked", kBase + "/topic"));
+    TestHandler handler = new TestHandler("handler");
+    TestHandler catch_all = new TestHandler("catch_all", true);
+    Assert.assertTrue(directory.addHandler(kBase + "/topic", handler));
+    Assert.assertTrue(directory.addHandler(kBase + "/linked/topic/*", catch_all));
+    // The link adds a handler to the target node that dispatches to the linked handlers.
+    assertThat(directory.getRoute(kBase, "/topic").size(), is(2));
+    assertThat(directory.getRoute(kBase, "/linked/topic/x").size(), is(1));
+    WeakReference<TestHandler> handler_reference = new WeakReference<TestHandler>(handler);
+    WeakReference<TestHandler> catch_all_reference = new WeakReference<TestHandler>(catch_all);
+    handler = null;
+    catch_all = null;
+
+    // Removing a handler releases it from the route cache.
+    Assert.assertTrue(directory.removeHandler(kBase + "/topic", "handler"));
+    for (int i = 0; i < 100 && handler_reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assert.assertNull(handler_reference.get());
+
+    // Unlinking releases the handlers added via the link.
+    Assert.assertTrue(directory.unlink(kBase + "/linked", kBase + "/topic"));
+    for (int i = 0; i < 100 && catch_all_reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assert.assertNull(catch_all_reference.get());
+  }
+
+  /**
+   * Tests pattern handlers including pattern handlers added via links.
+   */
+  @Test
+  public void patternHandlers() {
+    final String kBase = "/directory/patterns";
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kBase + "/sensors/a/temperature"));
+    Assert.assertTrue(directory.createPath(kBase + "/sensors/b/temperature"));
+    Assert.assertTrue(directory.createPath(kBase + "/sensors/b/humidity"));
+    Assert.assertTrue(directory.createPath(kBase + "/user"));
+    Assert.assertTrue(directory.link(kBase + "/user", kBase + "/sensors"));
+
+    TestHandler temperature = new TestHandler("temperature");
+    TestHandler linked = new TestHandler("linked");
+    Assert.assertTrue(directory.addHandler(kBase + "/sensors/+/temperature", temperature));
+    Assert.assertFalse(directory.addHandler(kBase + "/sensors/+/humidity", temperature));
+    Assert.assertFalse(directory.addHandler(kBase + "/missing/+/temperature", linked));
+    Assert.assertTrue(directory.addHandler(kBase + "/user/sensors/*/humidity", linked));
+    Assert.assertTrue(directory.hasHandler(kBase + "/sensors/+/temperature", "temperature"));
+    Assert.assertTrue(directory.hasHandler(kBase + "/user/sensors/*/humidity", "linked"));
+    Assert.assertFalse(directory.getNode(kBase + "/sensors").hasHandler("linked"));
+
+    // The virtual node handler of the link is counted as well.
+    Request request = TestUtilities.createRequest("/sensors/a/temperature", "ta");
+    assertThat(directory.handle(kBase, request), is(2));
+    assertThat(temperature.getArgument(0), is("ta"));
+    assertThat(temperature.getPathRemainder(), is("a/temperature"));
+    request = TestUtilities.createRequest("/sensors/b/humidity", "hb");
+    assertThat(directory.handle(kBase, request), is(1));
+    assertThat(linked.getArgument(0), is("hb"));
+    assertThat(linked.getPathRemainder(), is("b/humidity"));
+    assertThat(temperature.getArgument(0), is("ta"));
+
+    Assert.assertTrue(directory.removeHandler(kBase + "/sensors/+/temperature", "temperature"));
+    request = TestUtilities.createRequest("/sensors/b/temperature", "tb");
+    assertThat(directory.handle(kBase, request), is(1));  // virtual node handler only
+    assertThat(temperature.getArgument(0), is("ta"));
+    Assert.assertTrue(directory.unlink(kBase + "/user", kBase + "/sensors"));
+    request = TestUtilities.createRequest("/sensors/b/humidity", "unlinked");
+    assertThat(directory.handle(kBase, request), is(0));
+    assertThat(linked.getArgument(0), is("hb"));
+  }
+
+  /**
+   * Tests parallel fan-out of publish requests.
+   */
+  @Test
+  public void parallelFanOut() {
+    final String kPath = "/directory/fanout";
+    final int kHandlers = 1000;
+    final int kRequests = 20;
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kPath));
+    ArrayList<RecordingHandler> handlers = new ArrayList<RecordingHandler>();
+    for (int i = 0; i < kHandlers; i++) {
+      RecordingHandler handler = new RecordingHandler("handler" + i);
+      Assert.assertTrue(directory.addHandler(kPath, handler));
+      handlers.add(handler);
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    directory.setParallelFanOut(pool, 100, 50);
+    try {
+      for (int i = 0; i < kRequests; i++) {
+        Request request = TestUtilities.createRequest(kPath, i);
+        request.setRequestType(Request.RequestType.Publish);
+        assertThat(directory.handle("/", request), is(kHandlers));
+      }
+      // Call requests are always handled on the calling thread.
+      Request call = TestUtilities.createRequest(kPath, -1);
+      call.setRequestType(Request.RequestType.Call);
+      assertThat(directory.handle("/", call), is(kHandlers));
+    } finally {
+      directory.setParallelFanOut(null, Integer.MAX_VALUE, Integer.MAX_VALUE);
+      pool.shutdown();
+    }
+    boolean pool_used = false;
+    for (RecordingHandler handler : handlers) {
+      List<Object> arguments = handler.getArguments();
+      assertThat(arguments.size(), is(kRequests + 1));
+      for (int i = 0; i < kRequests; i++) {
+        assertThat(arguments.get(i), is((Object) i));
+        pool_used |= handler.getThreads().get(i) != Thread.currentThread();
+      }
+      assertThat(handler.getThreads().get(kRequests), is(Thread.currentThread()));
+    }
+    Assert.assertTrue(pool_used);
+    Assert.assertTrue(directory.removePath(kPath));
+  }
 }
@@ -7,6 +7,8 @@ package ai.general.directory;
 
 import ai.general.net.Uri;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -144,4 +146,40 @@ public class PathWalkerTest {
     assertThat(walker.atLeaf(), is(true));
     assertThat(walker.remainder(), is(""));
   }
+
+  /**
+   * Tests comparison and lookup of node names without substrings.
+   */
+  @Test
+  public void segments() {
+    ConcurrentHashMap<String, Integer> children = new ConcurrentHashMap<String, Integer>();
+    children.put("sensors", 1);
+    children.put("temperature", 2);
+    children.put("", 3);
+    PathWalker walker = new PathWalker("/sensors//temperature/");
+    assertThat(walker.numNodes(), is(4));
+    Assert.assertTrue(walker.currentNodeNameEquals(""));
+    Assert.assertTrue(walker.moveDown());
+    Assert.assertTrue(walker.currentNodeNameEquals("sensors"));
+    Assert.assertFalse(walker.currentNodeNameEquals("sensor"));
+    assertThat(walker.getCurrentSegment().hashCode(), is("sensors".hashCode()));
+    assertThat(walker.getCurrentSegment().toString(), is("sensors"));
+    assertThat(children.get(walker.getCurrentSegment()), is(1));
+    assertThat(walker.remainder(), is("/temperature"));
+    Assert.assertTrue(walker.moveDown());
+    assertThat(walker.getCurrentNodeName(), is(""));
+    assertThat(children.get(walker.getCurrentSegment()), is(3));
+    Assert.assertTrue(walker.moveDown());
+    assertThat(children.get(walker.getCurrentSegment()), is(2));
+    Assert.assertTrue(walker.atLeaf());
+    Assert.assertTrue(walker.moveUp());
+    assertThat(walker.getCurrentNodeName(), is(""));
+    Assert.assertTrue(walker.moveUp());
+    assertThat(walker.getCurrentNodeName(), is("sensors"));
+    Assert.assertTrue(walker.moveUp());
+    assertThat(walker.getCurrentNodeName(), is(""));
+    walker = new PathWalker("/humidity");
+    walker.moveDown();
+    Assert.assertNull(children.get(walker.getCurrentSegment()));
+  }
 }
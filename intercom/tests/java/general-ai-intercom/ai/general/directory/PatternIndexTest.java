@@ -0,0 +1,90 @@
+/* General AI - Directory
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.directory;
+
+import ai.general.directory.test.TestHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link PatternIndex}.
+ */
+public class PatternIndexTest {
+
+  /**
+   * Returns the names of the handlers that match a path.
+   *
+   * @param index The pattern index.
+   * @param path The path to match.
+   * @return The names of the matching handlers.
+   */
+  private static ArrayList<String> match(PatternIndex index, String path) {
+    ArrayList<Handler> handlers = new ArrayList<Handler>();
+    index.match(path, handlers);
+    ArrayList<String> names = new ArrayList<String>();
+    for (Handler handler : handlers) {
+      names.add(handler.getName());
+    }
+    return names;
+  }
+
+  /**
+   * Tests detection of pattern paths.
+   */
+  @Test
+  public void patternStart() {
+    assertThat(PatternIndex.patternStart("/sensors/temperature"), is(-1));
+    assertThat(PatternIndex.patternStart("/sensors/*"), is(-1));
+    assertThat(PatternIndex.patternStart("/sensors/*/"), is(-1));
+    assertThat(PatternIndex.patternStart("/sensors/+"), is(9));
+    assertThat(PatternIndex.patternStart("/sensors/+/temperature"), is(9));
+    assertThat(PatternIndex.patternStart("/sensors/*/temperature"), is(9));
+    assertThat(PatternIndex.patternStart("/+/a/+"), is(1));
+    assertThat(PatternIndex.patternStart("/sensors/a+b"), is(-1));
+    Assert.assertTrue(PatternIndex.isPattern("+"));
+    Assert.assertFalse(PatternIndex.isPattern("*"));
+  }
+
+  /**
+   * Tests matching of patterns.
+   */
+  @Test
+  public void match() {
+    PatternIndex index = new PatternIndex();
+    Assert.assertTrue(index.isEmpty());
+    index.add("+/temperature", new TestHandler("temperature"));
+    index.add("+", new TestHandler("any"));
+    index.add("+/*", new TestHandler("all"));
+    index.add("a/+", new TestHandler("a"));
+    index.add("*/+/c", new TestHandler("c"));
+    assertThat(index.size(), is(5));
+    Assert.assertTrue(index.contains("all"));
+
+    assertThat(match(index, "a"), is(Arrays.asList("all", "any")));
+    assertThat(match(index, "b/temperature"), is(Arrays.asList("all", "temperature")));
+    assertThat(match(index, "a/temperature"), is(Arrays.asList("a", "all", "temperature")));
+    assertThat(match(index, "b/humidity"), is(Arrays.asList("all")));
+    assertThat(match(index, "a/b/c"), is(Arrays.asList("all", "c")));
+    assertThat(match(index, "").size(), is(0));
+
+    Assert.assertTrue(index.remove("all"));
+    Assert.assertFalse(index.remove("all"));
+    Assert.assertTrue(index.remove("c"));
+    assertThat(match(index, "a/b/c").size(), is(0));
+    assertThat(match(index, "a/temperature"), is(Arrays.asList("a", "temperature")));
+    Assert.assertTrue(index.remove("temperature"));
+    Assert.assertTrue(index.remove("any"));
+    Assert.assertTrue(index.remove("a"));
+    Assert.assertTrue(index.isEmpty());
+    assertThat(match(index, "a/temperature").size(), is(0));
+  }
+}
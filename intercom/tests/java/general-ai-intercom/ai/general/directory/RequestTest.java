@@ -7,6 +7,10 @@ package ai.general.directory;
 
 import ai.general.net.Uri;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -83,4 +87,49 @@ public class RequestTest {
     assertThat(result.getError(1).getDescription(), is("second"));
     assertThat((int) result.getError(1).getDetails(), is(987));
   }
+
+  /**
+   * Tests that deferred arguments are bound on access.
+   */
+  @Test
+  public void deferredArguments() {
+    final int[] bind_count = {0};
+    DeferredArgument deferred = new DeferredArgument() {
+        @Override
+        protected Object bind() {
+          bind_count[0]++;
+          return "bound";
+        }
+      };
+    Request request = new Request(new Uri(kTestUri), "plain", deferred);
+    assertThat(request.getRawArgument(1), is((Object) deferred));
+    Assert.assertFalse(deferred.isBound());
+    assertThat(request.getArgument(1), is((Object) "bound"));
+    assertThat(request.getArguments().toArray(), is(new Object[] {"plain", "bound"}));
+    Assert.assertTrue(deferred.isBound());
+    assertThat(bind_count[0], is(1));
+    assertThat(request.getRawArgument(2), is(nullValue()));
+  }
+
+  /**
+   * Tests eligible and excluded session sets.
+   */
+  @Test
+  public void sessionFilter() {
+    Request request = new Request(new Uri("/a/b?eligible=s1,s2,,s3&exclude=s2"), "data");
+    Set<String> eligible = request.getEligibleSessions();
+    assertThat(eligible.size(), is(3));
+    Assert.assertTrue(eligible.contains("s1"));
+    Assert.assertTrue(eligible.contains("s3"));
+    assertThat(request.getEligibleSessions(), is(sameInstance(eligible)));
+    assertThat(request.getExcludedSessions().size(), is(1));
+    Assert.assertTrue(request.getExcludedSessions().contains("s2"));
+
+    request = new Request(new Uri("/a/b"), "data");
+    Assert.assertNull(request.getEligibleSessions());
+    Assert.assertNull(request.getExcludedSessions());
+    request.setExcludedSessions(new HashSet<String>(Arrays.asList("s4", "s5")));
+    Assert.assertTrue(request.getExcludedSessions().contains("s5"));
+    Assert.assertNull(request.getEligibleSessions());
+  }
 }
@@ -10,6 +10,7 @@ import ai.general.directory.test.TestUtilities;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -114,4 +115,38 @@ public class VirtualNodeTest {
     virtual.deactivate();
     assertThat(real.handle(request), is(0));
   }
+
+  /**
+   * Tests that concurrent lookups of a virtual child return the same virtual child.
+   */
+  @Test
+  public void concurrentGetChild() throws Exception {
+    DirectoryNode real = new DirectoryNode("real");
+    real.mount(new DirectoryNode("child"));
+    final VirtualNode virtual = new VirtualNode(real, "virtual");
+    final AtomicReferenceArray<Node> children = new AtomicReferenceArray<Node>(8);
+    Thread[] threads = new Thread[children.length()];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            children.set(index, virtual.getChild("child"));
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertTrue(children.get(0) instanceof VirtualNode);
+    for (int i = 1; i < children.length(); i++) {
+      assertThat(children.get(i), is(sameInstance(children.get(0))));
+    }
+
+    children.get(0).addHandler(new TestHandler("handler"));
+    Assert.assertTrue(real.getChild("child").hasHandler("virtual:child"));
+    virtual.deactivate();
+    Assert.assertFalse(real.getChild("child").hasHandler("virtual:child"));
+  }
 }
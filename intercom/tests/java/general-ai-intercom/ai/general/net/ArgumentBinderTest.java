@@ -0,0 +1,114 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.directory.test.TestBean;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for the {@link ArgumentBinder} class.
+ */
+public class ArgumentBinderTest {
+
+  /**
+   * Declares the parameter types used by the tests.
+   *
+   * @param number A primitive.
+   * @param text A string.
+   * @param bean A bean.
+   * @param beans A generic list of beans.
+   * @param bean_array An array of beans.
+   */
+  public static void parameters(int number, String text, TestBean bean, List<TestBean> beans,
+                                TestBean[] bean_array) {}
+
+  /**
+   * Returns the binder for the parameter with the specified index of {@link #parameters}.
+   *
+   * @param index The parameter index.
+   * @return The binder for the parameter.
+   */
+  private static ArgumentBinder binder(int index) throws NoSuchMethodException {
+    Type[] types = ArgumentBinderTest.class.getMethod(
+        "parameters", int.class, String.class, TestBean.class, List.class, TestBean[].class)
+      .getGenericParameterTypes();
+    return new ArgumentBinder(types[index]);
+  }
+
+  /**
+   * Returns a generic map representation of a TestBean.
+   *
+   * @param number Bean number.
+   * @return Generic bean representation.
+   */
+  private static Map<String, Object> beanMap(int number) {
+    HashMap<String, Object> map = new HashMap<String, Object>();
+    map.put("number", number);
+    map.put("real", 1.5);
+    map.put("text", "bean");
+    return map;
+  }
+
+  /**
+   * Tests binding of primitives and strings.
+   */
+  @Test
+  public void primitives() throws Exception {
+    ArgumentBinder number = binder(0);
+    Integer value = 1234567;
+    Assert.assertSame(value, number.bind(value));
+    assertThat((Integer) number.bind(7L), is(7));
+    try {
+      number.bind(null);
+      Assert.fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {}
+    try {
+      number.bind("text");
+      Assert.fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {}
+
+    ArgumentBinder text = binder(1);
+    String string = "text";
+    Assert.assertSame(string, text.bind(string));
+    Assert.assertNull(text.bind(null));
+  }
+
+  /**
+   * Tests binding of beans and generic collections of beans.
+   */
+  @Test
+  public void beans() throws Exception {
+    ArgumentBinder bean = binder(2);
+    TestBean test_bean = new TestBean(1, 1.5, "bean");
+    Assert.assertSame(test_bean, bean.bind(test_bean));
+    assertThat((TestBean) bean.bind(beanMap(1)), is(test_bean));
+
+    ArrayList<Object> list = new ArrayList<Object>();
+    list.add(beanMap(1));
+    list.add(beanMap(2));
+    @SuppressWarnings("unchecked")
+    List<Object> beans = (List<Object>) binder(3).bind(list);
+    assertThat(beans.size(), is(2));
+    Assert.assertTrue(beans.get(0) instanceof TestBean);
+    assertThat(((TestBean) beans.get(1)).getNumber(), is(2));
+
+    TestBean[] bean_array = new TestBean[] {test_bean};
+    Assert.assertSame(bean_array, binder(4).bind(bean_array));
+    TestBean[] bound_array = (TestBean[]) binder(4).bind(list);
+    assertThat(bound_array.length, is(2));
+    assertThat(bound_array[0], is(test_bean));
+  }
+}
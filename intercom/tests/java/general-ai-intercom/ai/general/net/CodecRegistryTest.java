@@ -0,0 +1,75 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.directory.test.TestBean;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Tests for {@link CodecRegistry}.
+ */
+public class CodecRegistryTest {
+
+  /**
+   * Serializes Point instances as a JSON string.
+   */
+  public static class PointSerializer extends JsonSerializer<Point> {
+
+    @Override
+    public void serialize(Point point, JsonGenerator generator, SerializerProvider provider)
+      throws IOException {
+      generator.writeString(point.x + ":" + point.y);
+    }
+  }
+
+  /**
+   * Type used to test custom serializers.
+   */
+  public static class Point {
+    public int x = 1;
+    public int y = 2;
+  }
+
+  /**
+   * Tests encoding, decoding and conversion of values.
+   */
+  @Test
+  public void codecs() throws IOException {
+    CodecRegistry codecs = CodecRegistry.Instance;
+    assertThat(codecs.getReader(TestBean.class),
+               is(sameInstance(codecs.getReader(TestBean.class))));
+    TestBean bean = new TestBean(235, 3.1415, "bean");
+    String json = codecs.getWriter().writeValueAsString(bean);
+    assertThat((TestBean) codecs.getReader(TestBean.class).readValue(json), is(bean));
+    Map<?, ?> map = codecs.getReader(Map.class).readValue(json);
+    assertThat(codecs.convert(map, TestBean.class), is(bean));
+  }
+
+  /**
+   * Tests registration of custom serializers.
+   */
+  @Test
+  public void registerModule() throws IOException {
+    CodecRegistry codecs = CodecRegistry.Instance;
+    SimpleModule module = new SimpleModule("PointModule");
+    module.addSerializer(Point.class, new PointSerializer());
+    codecs.registerModule(module);
+    assertThat(codecs.getWriter().writeValueAsString(new Point()), is("\"1:2\""));
+    Assert.assertNotNull(codecs.getReader(TestBean.class));
+  }
+}
@@ -0,0 +1,81 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.net.wamp.WampConnectionTest.TestConnection;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link ConnectionManager}.
+ */
+public class ConnectionManagerTest {
+
+  /**
+   * Tests lookup of connections by session ID and user account.
+   */
+  @Test
+  public void index() {
+    ConnectionManager manager = ConnectionManager.Instance;
+    int num_connections = manager.numConnections();
+    int num_users = manager.numUsers();
+    TestConnection connection1 = new TestConnection("index1@domain.zz");
+    TestConnection connection2 = new TestConnection("index2@domain.zz");
+    Assert.assertTrue(manager.getUserConnections("index1@domain.zz").isEmpty());
+    connection1.open();
+    connection2.open();
+    assertThat(manager.numConnections(), is(num_connections + 4));
+    assertThat(manager.numUsers(), is(num_users + 2));
+
+    Collection<Connection> session = manager.getSessionConnections("test-session-index1@domain.zz");
+    assertThat(session.size(), is(2));
+    Assert.assertTrue(session.contains(connection1.client()));
+    Assert.assertTrue(session.contains(connection1.server()));
+    Collection<Connection> user = manager.getUserConnections("index2@domain.zz");
+    assertThat(user.size(), is(2));
+    Assert.assertTrue(user.contains(connection2.server()));
+    Assert.assertTrue(manager.getSessionConnections("unknown-session").isEmpty());
+    Assert.assertTrue(manager.getSessionConnections(null).isEmpty());
+    try {
+      user.clear();
+      Assert.fail("expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) {}
+
+    connection1.close();
+    assertThat(manager.numConnections(), is(num_connections + 2));
+    assertThat(manager.numUsers(), is(num_users + 1));
+    Assert.assertTrue(manager.getSessionConnections("test-session-index1@domain.zz").isEmpty());
+    Assert.assertFalse(manager.getConnections().contains(connection1.server()));
+    connection2.close();
+    assertThat(manager.numConnections(), is(num_connections));
+    Assert.assertTrue(manager.getUserConnections("index2@domain.zz").isEmpty());
+  }
+
+  /**
+   * Tests that connections can be iterated while connections are removed.
+   */
+  @Test
+  public void iterate() {
+    ConnectionManager manager = ConnectionManager.Instance;
+    TestConnection connection1 = new TestConnection("iterate1@domain.zz");
+    TestConnection connection2 = new TestConnection("iterate2@domain.zz");
+    connection1.open();
+    connection2.open();
+    Iterator<Connection> iterator = manager.getConnections().iterator();
+    connection1.close();
+    connection2.close();
+    while (iterator.hasNext()) {
+      Assert.assertNotNull(iterator.next());
+    }
+    Assert.assertFalse(manager.getConnections().contains(connection2.client()));
+  }
+}
@@ -0,0 +1,67 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link ImmutableUri}.
+ */
+public class ImmutableUriTest {
+
+  /**
+   * Tests construction, string representation and derived copies.
+   */
+  @Test
+  public void derivedCopies() {
+    Uri mutable = new Uri("wamp://user@general.ai/a/b?x=1#f");
+    ImmutableUri uri = ImmutableUri.of(mutable);
+    assertThat(uri.toString(), is(mutable.toString()));
+    assertThat(ImmutableUri.of(uri), is(sameInstance(uri)));
+    assertThat(uri.toString(), is(sameInstance(uri.toString())));
+
+    // Changes of the source do not affect the immutable copy.
+    mutable.setParameter("y", "2");
+    Assert.assertFalse(uri.hasParameter("y"));
+
+    ImmutableUri with_path = uri.withPath("c/d");
+    assertThat(with_path.getPath(), is("/c/d"));
+    assertThat(with_path.getParameter("x"), is("1"));
+    assertThat(with_path.toString(), is("wamp://user@general.ai/c/d?x=1#f"));
+    ImmutableUri with_fragment = uri.withFragment("error");
+    assertThat(with_fragment.toString(), is("wamp://user@general.ai/a/b?x=1#error"));
+    assertThat(uri.toString(), is("wamp://user@general.ai/a/b?x=1#f"));
+
+    Uri copy = new Uri(with_fragment);
+    copy.setFragment(null);
+    assertThat(copy.toString(), is("wamp://user@general.ai/a/b?x=1"));
+    Assert.assertFalse(with_fragment.hasParameter("y"));
+  }
+
+  /**
+   * Tests that modifications are rejected.
+   */
+  @Test
+  public void immutable() {
+    ImmutableUri uri = new ImmutableUri("wamp://general.ai/a");
+    try {
+      uri.setPath("/b");
+      Assert.fail("path modified");
+    } catch (UnsupportedOperationException e) {}
+    try {
+      uri.setParameter("x", "1");
+      Assert.fail("parameter modified");
+    } catch (UnsupportedOperationException e) {}
+    try {
+      uri.setFragment("f");
+      Assert.fail("fragment modified");
+    } catch (UnsupportedOperationException e) {}
+    assertThat(uri.toString(), is("wamp://general.ai/a"));
+  }
+}
@@ -0,0 +1,181 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link KeyedExecutor}.
+ */
+public class KeyedExecutorTest {
+
+  /**
+   * Task that appends a number to a list.
+   */
+  private static class AppendTask implements Runnable {
+
+    /**
+     * @param list The list to append to.
+     * @param value The value to append.
+     * @param done Counted down after the value has been appended.
+     */
+    public AppendTask(List<Integer> list, int value, CountDownLatch done) {
+      this.list_ = list;
+      this.value_ = value;
+      this.done_ = done;
+    }
+
+    /**
+     * Appends the value.
+     */
+    @Override
+    public void run() {
+      list_.add(value_);
+      done_.countDown();
+    }
+
+    private CountDownLatch done_;  // Counted down after the value has been appended.
+    private List<Integer> list_;  // The list to append to.
+    private int value_;  // The value to append.
+  }
+
+  /**
+   * Tests that tasks with the same key run in order while different keys run concurrently.
+   */
+  @Test
+  public void order() throws InterruptedException {
+    final int kKeys = 16;
+    final int kTasksPerKey = 500;
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    KeyedExecutor executor = new KeyedExecutor(pool);
+    ArrayList<List<Integer>> results = new ArrayList<List<Integer>>();
+    CountDownLatch done = new CountDownLatch(kKeys * kTasksPerKey);
+    for (int k = 0; k < kKeys; k++) {
+      results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    for (int i = 0; i < kTasksPerKey; i++) {
+      for (int k = 0; k < kKeys; k++) {
+        executor.execute("/topic/" + k, new AppendTask(results.get(k), i, done));
+      }
+    }
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (int k = 0; k < kKeys; k++) {
+      List<Integer> result = results.get(k);
+      assertThat(result.size(), is(kTasksPerKey));
+      for (int i = 0; i < kTasksPerKey; i++) {
+        assertThat(result.get(i), is(i));
+      }
+    }
+    pool.shutdown();
+    Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    assertThat(executor.getKeyCount(), is(0));
+  }
+
+  /**
+   * Tests queue depth reporting and that failing tasks do not affect subsequent tasks.
+   */
+  @Test
+  public void queueDepth() throws InterruptedException {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    KeyedExecutor executor = new KeyedExecutor(pool);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute("a", new Runnable() {
+        @Override
+        public void run() {
+          started.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {}
+          throw new RuntimeException("test exception");
+        }
+      });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    List<Integer> result = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch done = new CountDownLatch(3);
+    executor.execute("a", new AppendTask(result, 1, done));
+    executor.execute("a", new AppendTask(result, 2, done));
+    executor.execute("b", new AppendTask(result, 3, done));
+    assertThat(executor.getQueueDepth("a"), is(2));
+    assertThat(executor.getQueueDepth("b"), is(1));
+    assertThat(executor.getQueueDepth("c"), is(0));
+    assertThat(executor.getKeyCount(), is(2));
+    assertThat(executor.getQueueDepths().get("a"), is(2));
+    release.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(result.indexOf(1) < result.indexOf(2));
+    pool.shutdown();
+    Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertTrue(executor.getQueueDepths().isEmpty());
+  }
+
+  /**
+   * Tests that tasks are run on the calling thread if the executor rejects them.
+   */
+  @Test
+  public void rejected() {
+    KeyedExecutor executor = new KeyedExecutor(new Executor() {
+        @Override
+        public void execute(Runnable task) {
+          throw new RejectedExecutionException();
+        }
+      });
+    List<Integer> result = new ArrayList<Integer>();
+    CountDownLatch done = new CountDownLatch(2);
+    executor.execute("a", new AppendTask(result, 1, done));
+    executor.execute("a", new AppendTask(result, 2, done));
+    assertThat(done.getCount(), is(0L));
+    assertThat(result.get(0), is(1));
+    assertThat(result.get(1), is(2));
+    assertThat(executor.getKeyCount(), is(0));
+  }
+
+  /**
+   * Tests that a rejected key with many batches is run without recursion.
+   */
+  @Test
+  public void rejectedBatches() {
+    final int kTaskCount = KeyedExecutor.kBatchSize * 50000;
+    final KeyedExecutor executor = new KeyedExecutor(new Executor() {
+        @Override
+        public void execute(Runnable task) {
+          throw new RejectedExecutionException();
+        }
+      });
+    final int[] count = new int[1];
+    final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          count[0]++;
+        }
+      };
+    // The tasks are added while the first task runs, so that the key is rescheduled after each
+    // batch.
+    executor.execute("a", new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < kTaskCount; i++) {
+            executor.execute("a", task);
+          }
+        }
+      });
+    assertThat(count[0], is(kTaskCount));
+    assertThat(executor.getKeyCount(), is(0));
+  }
+}
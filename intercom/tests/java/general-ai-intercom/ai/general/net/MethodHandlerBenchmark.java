@@ -0,0 +1,124 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.directory.Request;
+
+import java.lang.reflect.Method;
+
+/**
+ * Micro-benchmark that compares reflective method invocation with the generated invokers used by
+ * {@link MethodHandler}. See {@link MethodInvoker}.
+ *
+ * The benchmark is not run as part of the unit tests. It can be run with:
+ *
+ *   java -cp &lt;classpath&gt; ai.general.net.MethodHandlerBenchmark [variant] [iterations]
+ *
+ * where variant is one of "reflection", "invoker" or "handler". Each variant should be run in
+ * its own JVM, since the JIT optimizes the shared measurement loop for the variants that run
+ * first. If no variant is specified, all variants are run in one JVM.
+ *
+ * Each variant is warmed up before it is measured. The reported times are averages per call.
+ */
+public class MethodHandlerBenchmark {
+
+  /**
+   * Target of the benchmarked calls.
+   */
+  public static class Target {
+
+    /**
+     * Adds two numbers.
+     *
+     * @param number An integer.
+     * @param real A real.
+     * @return number + real.
+     */
+    public double add(int number, double real) {
+      sum_ += number + real;
+      return sum_;
+    }
+
+    private double sum_;  // Sum of all added values.
+  }
+
+  /**
+   * A benchmarked operation.
+   */
+  private interface Operation {
+
+    /**
+     * Runs the operation once.
+     *
+     * @param i The iteration number.
+     * @return A value that depends on the result of the operation.
+     */
+    double run(int i) throws Throwable;
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional variant and number of iterations.
+   */
+  public static void main(String[] args) throws Throwable {
+    String variant = args.length > 0 ? args[0] : "all";
+    final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+    final Target target = new Target();
+    final Method method = Target.class.getMethod("add", int.class, double.class);
+    final MethodInvoker invoker = MethodInvoker.create(target, method);
+    final MethodHandler handler = new MethodHandler("add", false, target, method);
+    final Uri uri = new Uri("wamp://localhost/benchmark/add");
+
+    if (variant.equals("all") || variant.equals("reflection")) {
+      measure("Method.invoke", iterations, new Operation() {
+          @Override
+          public double run(int i) throws Throwable {
+            return (Double) method.invoke(target, new Object[] {i, 1.0});
+          }
+        });
+    }
+    if (variant.equals("all") || variant.equals("invoker")) {
+      measure("MethodInvoker.invoke", iterations, new Operation() {
+          @Override
+          public double run(int i) throws Throwable {
+            return (Double) invoker.invoke(new Object[] {i, 1.0});
+          }
+        });
+    }
+    if (variant.equals("all") || variant.equals("handler")) {
+      measure("MethodHandler.handle", iterations / 10, new Operation() {
+          @Override
+          public double run(int i) throws Throwable {
+            Request request = new Request(uri, Request.RequestType.Call, i, 1.0);
+            handler.handle(request);
+            return request.getResult().getValues().size();
+          }
+        });
+    }
+  }
+
+  /**
+   * Warms up and measures an operation and prints the average time per call.
+   *
+   * @param name Name of the operation.
+   * @param iterations Number of measured iterations.
+   * @param operation The operation to measure.
+   */
+  private static void measure(String name, int iterations, Operation operation) throws Throwable {
+    double sink = 0.0;
+    for (int i = 0; i < iterations; i++) {
+      sink += operation.run(i);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      sink += operation.run(i);
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.printf("%-28s %8.1f ns/call (%s)%n",
+                      name, (double) elapsed / iterations, sink != 0.0 ? "ok" : "-");
+  }
+}
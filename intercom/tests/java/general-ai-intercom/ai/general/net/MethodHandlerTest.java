@@ -94,6 +94,17 @@ public class MethodHandlerTest {
       return 1;
     }
 
+    /**
+     * Test method that throws an IllegalStateException with the provided message.
+     *
+     * @param message Exception message.
+     * @return Never returns.
+     * @throws IllegalStateException always.
+     */
+    public int callRuntimeError(String message) {
+      throw new IllegalStateException(message);
+    }
+
     /**
      * Resets the variables of TestObject to default values.
      */
@@ -332,7 +343,34 @@ public class MethodHandlerTest {
       assertThat(((TestBean) error.getDetails()).getReal(), is(1.0));
       assertThat(((TestBean) error.getDetails()).getText(), is("details"));
 
+      // call method that throws a runtime exception
+      handler =
+        new MethodHandler("callRuntimeError",
+                          false,
+                          test,
+                          test.getClass().getDeclaredMethod("callRuntimeError", String.class));
+      request = TestUtilities.createRequest("wamp://general.ai/call?type=call", "runtime");
+      handler.handle(request);
+      result = request.getResult();
+      assertThat(result.numValues(), is(0));
+      error = result.getError(0);
+      assertThat(error.getDescription(), is("java.lang.IllegalStateException"));
+      assertThat((String) error.getDetails(), is("runtime"));
+
       // call method with incompatible arguments
+      // null primitive
+      handler =
+        new MethodHandler("call1",
+                          false,
+                          test,
+                          test.getClass().getDeclaredMethod("call1", int.class, double.class));
+      request = TestUtilities.createRequest("wamp://general.ai/call?type=call", null, 1.0);
+      handler.handle(request);
+      result = request.getResult();
+      assertThat(result.numValues(), is(0));
+      error = result.getError(0);
+      assertThat(error.getDescription(), is("java.lang.IllegalArgumentException"));
+
       // incorrect type
       args = json_parser.readValue("[\"text\", 1]", Object[].class);
       handler =
@@ -0,0 +1,262 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for the {@link MethodInvoker} class.
+ */
+public class MethodInvokerTest {
+
+  /**
+   * Class loader that defines {@link IsolatedObject} itself instead of delegating to its parent,
+   * like a plugin class loader defines the classes of a plugin.
+   */
+  private static class ChildLoader extends ClassLoader {
+
+    /**
+     * @param parent The parent class loader.
+     */
+    public ChildLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    /**
+     * Defines IsolatedObject and delegates all other classes to the parent loader.
+     *
+     * @param name The binary class name.
+     * @param resolve True if the class should be resolved.
+     * @return The loaded class.
+     * @throws ClassNotFoundException if the class cannot be found.
+     */
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      if (!name.equals(IsolatedObject.class.getName())) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded_class = findLoadedClass(name);
+        if (loaded_class == null) {
+          byte[] bytes = readClass(name);
+          loaded_class = defineClass(name, bytes, 0, bytes.length);
+        }
+        return loaded_class;
+      }
+    }
+
+    /**
+     * Reads the class file of a class from the parent loader.
+     *
+     * @param name The binary class name.
+     * @return The class file bytes.
+     * @throws ClassNotFoundException if the class file cannot be read.
+     */
+    private byte[] readClass(String name) throws ClassNotFoundException {
+      InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+      if (in == null) {
+        throw new ClassNotFoundException(name);
+      }
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+      } catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
+    }
+  }
+
+  /**
+   * Class that is loaded by a {@link ChildLoader}.
+   */
+  public static class IsolatedObject {
+
+    /**
+     * Returns the text.
+     *
+     * @param text A string.
+     * @return text.
+     */
+    public String echo(String text) {
+      return text;
+    }
+  }
+
+  /**
+   * Defines methods that are called via MethodInvoker.
+   */
+  private static class TestObject {
+
+    /**
+     * Returns the sum of the arguments.
+     *
+     * @param a An integer.
+     * @param b A double.
+     * @param c A string representation of a long.
+     * @return a + b + c.
+     */
+    public double add(int a, double b, String c) {
+      return a + b + Long.parseLong(c);
+    }
+
+    /**
+     * Returns the sum of the arguments.
+     *
+     * @param a An integer.
+     * @param b An integer.
+     * @param c An integer.
+     * @param d An integer.
+     * @return a + b + c + d.
+     */
+    public int add4(int a, int b, int c, int d) {
+      return a + b + c + d;
+    }
+
+    /**
+     * Returns the count.
+     *
+     * @return The count.
+     */
+    public int getCount() {
+      return count_;
+    }
+
+    /**
+     * Adds a value to the count.
+     *
+     * @param value The value to add.
+     */
+    public void increment(Integer value) {
+      count_ += value;
+    }
+
+    /**
+     * Returns the text.
+     *
+     * @param text A string.
+     * @return text.
+     */
+    public static String echo(String text) {
+      return text;
+    }
+
+    /**
+     * Throws an RpcException.
+     *
+     * @throws RpcException always.
+     */
+    public static void fail() throws RpcException {
+      throw new RpcException("failed", null);
+    }
+
+    private int count_;  // Sum of all incremented values.
+  }
+
+  /**
+   * Tests generated invokers.
+   */
+  @Test
+  public void generated() throws Exception {
+    TestObject test = new TestObject();
+    MethodInvoker add = MethodInvoker.create(
+        test, TestObject.class.getMethod("add", int.class, double.class, String.class));
+    Assert.assertFalse(add.isReflective());
+    assertThat((Double) add.invoke(new Object[] {1, 2.0, "3"}), is(6.0));
+
+    MethodInvoker increment =
+      MethodInvoker.create(test, TestObject.class.getMethod("increment", Integer.class));
+    Assert.assertFalse(increment.isReflective());
+    Assert.assertNull(increment.invoke(new Object[] {5}));
+    Assert.assertNull(increment.invoke(new Object[] {7}));
+    MethodInvoker get_count = MethodInvoker.create(test, TestObject.class.getMethod("getCount"));
+    Assert.assertFalse(get_count.isReflective());
+    assertThat((Integer) get_count.invoke(new Object[0]), is(12));
+
+    MethodInvoker echo =
+      MethodInvoker.create(null, TestObject.class.getMethod("echo", String.class));
+    Assert.assertFalse(echo.isReflective());
+    assertThat((String) echo.invoke(new Object[] {"text"}), is("text"));
+  }
+
+  /**
+   * Tests methods with more parameters than supported by generated invokers.
+   */
+  @Test
+  public void reflective() throws Exception {
+    MethodInvoker add4 = MethodInvoker.create(
+        new TestObject(),
+        TestObject.class.getMethod("add4", int.class, int.class, int.class, int.class));
+    Assert.assertTrue(add4.isReflective());
+    assertThat((Integer) add4.invoke(new Object[] {1, 2, 3, 4}), is(10));
+  }
+
+  /**
+   * Tests that exceptions thrown by the method are wrapped in InvocationTargetException.
+   */
+  @Test
+  public void exceptions() throws Exception {
+    MethodInvoker fail = MethodInvoker.create(null, TestObject.class.getMethod("fail"));
+    Assert.assertFalse(fail.isReflective());
+    try {
+      fail.invoke(new Object[0]);
+      Assert.fail("expected exception");
+    } catch (InvocationTargetException e) {
+      Assert.assertTrue(e.getCause() instanceof RpcException);
+      assertThat(e.getCause().getMessage(), is("failed"));
+    }
+    MethodInvoker add = MethodInvoker.create(
+        new TestObject(), TestObject.class.getMethod("add", int.class, double.class, String.class));
+    try {
+      add.invoke(new Object[] {1, 2.0, "x"});
+      Assert.fail("expected exception");
+    } catch (InvocationTargetException e) {
+      Assert.assertTrue(e.getCause() instanceof NumberFormatException);
+    }
+  }
+
+  /**
+   * Tests generated invokers of methods of classes defined by a child class loader.
+   */
+  @Test
+  public void childLoader() throws Exception {
+    ClassLoader loader = new ChildLoader(MethodInvokerTest.class.getClassLoader());
+    Class<?> isolated_class = loader.loadClass(IsolatedObject.class.getName());
+    Assert.assertNotSame(IsolatedObject.class, isolated_class);
+    Object instance = isolated_class.getConstructor().newInstance();
+    MethodInvoker echo =
+      MethodInvoker.create(instance, isolated_class.getMethod("echo", String.class));
+    Assert.assertFalse(echo.isReflective());
+    assertThat((String) echo.invoke(new Object[] {"text"}), is("text"));
+
+    // The lookup class does not expose its lookup outside of its package.
+    Class<?> lookup_class =
+      Class.forName(getClass().getPackage().getName() + ".MethodInvoker$$Lookup", false, loader);
+    assertThat(lookup_class.getClassLoader(), is(loader));
+    Assert.assertFalse(Modifier.isPublic(lookup_class.getModifiers()));
+    Method lookup_method = lookup_class.getDeclaredMethod("lookup");
+    Assert.assertFalse(Modifier.isPublic(lookup_method.getModifiers()));
+    try {
+      lookup_method.invoke(null);
+      Assert.fail("lookup method is accessible");
+    } catch (IllegalAccessException e) {}
+  }
+}
@@ -0,0 +1,252 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.net.wamp.WampConnection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link QueuedOutputSender}.
+ */
+public class QueuedOutputSenderTest {
+
+  /**
+   * Executor that collects tasks until they are explicitly run. Rejects tasks after it has been
+   * shut down.
+   */
+  private static class ManualExecutor implements Executor {
+
+    @Override
+    public void execute(Runnable task) {
+      if (shutdown_) {
+        throw new RejectedExecutionException();
+      }
+      tasks_.add(task);
+    }
+
+    /**
+     * Runs all collected tasks.
+     *
+     * @return The number of tasks run.
+     */
+    public int runAll() {
+      int count = 0;
+      while (!tasks_.isEmpty()) {
+        tasks_.remove(0).run();
+        count++;
+      }
+      return count;
+    }
+
+    /**
+     * Rejects all subsequently submitted tasks.
+     */
+    public void shutdown() {
+      shutdown_ = true;
+    }
+
+    private boolean shutdown_ = false;
+    private ArrayList<Runnable> tasks_ = new ArrayList<Runnable>();
+  }
+
+  /**
+   * Records all sent messages.
+   */
+  private static class RecordingSender implements OutputSender {
+
+    @Override
+    public boolean sendBinary(ByteBuffer data) {
+      return false;
+    }
+
+    @Override
+    public boolean sendText(String text) {
+      messages_.add(text);
+      return true;
+    }
+
+    private ArrayList<String> messages_ = new ArrayList<String>();
+  }
+
+  /**
+   * Records all sent messages and the sizes of sent batches.
+   */
+  private static class RecordingBatchSender implements BatchOutputSender {
+
+    @Override
+    public boolean sendBinary(ByteBuffer data) {
+      return false;
+    }
+
+    @Override
+    public boolean sendText(String text) {
+      messages_.add(text);
+      return true;
+    }
+
+    @Override
+    public boolean sendTexts(List<String> texts) {
+      batch_sizes_.add(texts.size());
+      messages_.addAll(texts);
+      return true;
+    }
+
+    private ArrayList<Integer> batch_sizes_ = new ArrayList<Integer>();
+    private ArrayList<String> messages_ = new ArrayList<String>();
+  }
+
+  /**
+   * Tests that queued messages are passed to a batch sender as one batch.
+   */
+  @Test
+  public void batch() {
+    RecordingBatchSender sender = new RecordingBatchSender();
+    ManualExecutor executor = new ManualExecutor();
+    QueuedOutputSender queue =
+      new QueuedOutputSender(sender, 8, QueuedOutputSender.OverflowPolicy.Block, executor, null);
+    Assert.assertTrue(queue.sendTexts(Arrays.asList("s1", "s2", "s3")));
+    Assert.assertTrue(queue.sendText("r1"));
+    assertThat(queue.getQueueDepth(), is(4));
+    assertThat(executor.runAll(), is(1));
+    assertThat(sender.batch_sizes_.toArray(), is(new Object[] {4}));
+    assertThat(sender.messages_.toArray(), is(new Object[] {"s1", "s2", "s3", "r1"}));
+    assertThat(queue.getSentCount(), is(4L));
+
+    // Single messages are not sent as a batch.
+    Assert.assertTrue(queue.sendText("r2"));
+    assertThat(executor.runAll(), is(1));
+    assertThat(sender.batch_sizes_.size(), is(1));
+    assertThat(sender.messages_.size(), is(5));
+  }
+
+  /**
+   * Tests batched flushing and the drop oldest policy.
+   */
+  @Test
+  public void dropOldest() {
+    RecordingSender sender = new RecordingSender();
+    ManualExecutor executor = new ManualExecutor();
+    QueuedOutputSender queue =
+      new QueuedOutputSender(sender, 3, QueuedOutputSender.OverflowPolicy.DropOldest, executor,
+                             null);
+    Assert.assertTrue(queue.sendText("e1", true));
+    Assert.assertTrue(queue.sendText("r1"));
+    Assert.assertTrue(queue.sendText("e2", true));
+    Assert.assertTrue(queue.sendText("e3", true));
+    Assert.assertTrue(queue.sendText("r2"));
+    assertThat(queue.getQueueDepth(), is(3));
+    assertThat(queue.getDroppedCount(), is(2L));
+    assertThat(sender.messages_.size(), is(0));
+
+    // Only droppable messages are dropped.
+    Assert.assertTrue(queue.sendText("r3"));
+    assertThat(queue.getQueueDepth(), is(3));
+    assertThat(queue.getDroppedCount(), is(3L));
+    Assert.assertTrue(queue.sendText("e4", true));
+    assertThat(queue.getQueueDepth(), is(3));
+    assertThat(queue.getDroppedCount(), is(4L));
+    Assert.assertTrue(queue.sendText("r4"));
+    assertThat(queue.getQueueDepth(), is(4));
+
+    assertThat(executor.runAll(), is(1));
+    assertThat(sender.messages_.toArray(), is(new Object[] {"r1", "r2", "r3", "r4"}));
+    assertThat(queue.getQueueDepth(), is(0));
+    assertThat(queue.getMaxQueueDepth(), is(4));
+    assertThat(queue.getSentCount(), is(4L));
+  }
+
+  /**
+   * Tests the disconnect policy.
+   */
+  @Test
+  public void disconnect() {
+    RecordingSender sender = new RecordingSender();
+    ManualExecutor executor = new ManualExecutor();
+    WampConnection connection =
+      new WampConnection(new Uri("ws", "general.ai", "/queue_test"), "queue", "/", sender);
+    connection.setOutputQueue(2, QueuedOutputSender.OverflowPolicy.Disconnect, executor);
+    QueuedOutputSender queue = connection.getOutputQueue();
+    Assert.assertNotNull(queue);
+    Assert.assertTrue(connection.welcome("queue-session"));
+    Assert.assertTrue(connection.isReady());
+    Assert.assertTrue(connection.event("/topic", 1));
+    Assert.assertFalse(connection.event("/topic", 2));
+    Assert.assertTrue(queue.isClosed());
+    assertThat(queue.getDroppedCount(), is(3L));
+    Assert.assertFalse(connection.event("/topic", 3));
+    executor.runAll();
+    Assert.assertFalse(connection.isReady());
+    assertThat(sender.messages_.size(), is(0));
+  }
+
+  /**
+   * Tests the block policy.
+   */
+  @Test
+  public void block() throws InterruptedException {
+    final RecordingSender sender = new RecordingSender();
+    final ManualExecutor executor = new ManualExecutor();
+    final QueuedOutputSender queue =
+      new QueuedOutputSender(sender, 1, QueuedOutputSender.OverflowPolicy.Block, executor, null);
+    Assert.assertTrue(queue.sendText("m1", true));
+    Thread producer = new Thread() {
+        @Override
+        public void run() {
+          queue.sendText("m2", true);
+        }
+      };
+    producer.start();
+    producer.join(100);
+    Assert.assertTrue(producer.isAlive());
+    executor.runAll();
+    producer.join(10000);
+    Assert.assertFalse(producer.isAlive());
+    executor.runAll();
+    assertThat(sender.messages_.toArray(), is(new Object[] {"m1", "m2"}));
+    assertThat(queue.getDroppedCount(), is(0L));
+  }
+
+  /**
+   * Tests that tasks rejected by the executor are run on the calling thread.
+   */
+  @Test
+  public void rejected() {
+    RecordingSender sender = new RecordingSender();
+    ManualExecutor executor = new ManualExecutor();
+    executor.shutdown();
+    QueuedOutputSender queue =
+      new QueuedOutputSender(sender, 2, QueuedOutputSender.OverflowPolicy.Block, executor, null);
+    Assert.assertTrue(queue.sendText("m1"));
+    Assert.assertTrue(queue.sendText("m2"));
+    assertThat(sender.messages_.toArray(), is(new Object[] {"m1", "m2"}));
+    assertThat(queue.getQueueDepth(), is(0));
+    assertThat(queue.getRejectedCount(), is(2L));
+
+    // The connection is closed on the calling thread if the close task is rejected.
+    executor = new ManualExecutor();
+    WampConnection connection =
+      new WampConnection(new Uri("ws", "general.ai", "/queue_test"), "queue", "/", sender);
+    connection.setOutputQueue(1, QueuedOutputSender.OverflowPolicy.Disconnect, executor);
+    queue = connection.getOutputQueue();
+    Assert.assertTrue(connection.welcome("rejected-session"));
+    executor.shutdown();
+    Assert.assertFalse(connection.event("/topic", 1));
+    Assert.assertTrue(queue.isClosed());
+    Assert.assertFalse(connection.isReady());
+    assertThat(queue.getRejectedCount(), is(1L));
+  }
+}
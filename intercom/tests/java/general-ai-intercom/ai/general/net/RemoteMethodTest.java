@@ -10,6 +10,13 @@ import ai.general.directory.test.TestBean;
 import ai.general.net.wamp.WampConnection;
 import ai.general.net.wamp.WampConnectionTest;
 
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -411,4 +418,158 @@ public class RemoteMethodTest {
     client.close();
     server.close();
   }
+
+  /**
+   * Tests that calls without response are expired by the connection.
+   */
+  @Test
+  public void callTimeout() {
+    final String kUserAccount = "timeout_user";
+    Uri uri = new Uri("ws", kHostname, "/remote_method_test");
+    WampConnectionTest.TestSender client_sender = new WampConnectionTest.TestSender();
+    WampConnection client = new WampConnection(uri, kUserAccount, "", client_sender);
+    client.setCallTimeoutMillis(200);
+    RemoteMethod<TestBean> remote_method =
+      new RemoteMethod<TestBean>(client, "/no_reply", TestBean.class);
+    long start_millis = System.currentTimeMillis();
+    try {
+      remote_method.call();
+      Assert.fail("call did not time out");
+    } catch (RemoteMethodCallException e) {
+      assertThat(e.getReason(), is(RemoteMethodCallException.Reason.Timeout));
+      Assert.assertTrue(e.getMethodCall().hasTimedOut());
+      assertThat(e.getMethodCall().getErrorUri().getFragment(), is(RpcCallback.kTimeoutError));
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start_millis < 10000);
+
+    // A late reply is ignored.
+    String call_id = client_sender.getOutput().split(",")[1];
+    Assert.assertTrue(client.process("[3," + call_id + ",null]"));
+    client.close();
+  }
+
+  /**
+   * Tests completion listeners, per-call deadlines and cancellation of asynchronous calls.
+   */
+  @Test
+  public void callListener() throws Exception {
+    final String kHomePath = "/remote_method/listener";
+    final String kMethod = "/method";
+    final String kUserAccount = "listener_user";
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kHomePath + kMethod));
+    Assert.assertTrue(directory.addHandler(
+        kHomePath + kMethod,
+        new MethodHandler(kMethod,
+                          false,
+                          null,
+                          getClass().getDeclaredMethod("method",
+                                                       int.class,
+                                                       int.class,
+                                                       double.class,
+                                                       String.class))));
+
+    Uri uri = new Uri("ws", kHostname, "/remote_method_test");
+    WampConnectionTest.TestSender client_sender = new WampConnectionTest.TestSender();
+    WampConnectionTest.TestSender server_sender = new WampConnectionTest.TestSender();
+    WampConnection client = new WampConnection(uri, kUserAccount, "", client_sender);
+    WampConnection server = new WampConnection(uri, kUserAccount, kHomePath, server_sender);
+    server.welcome("test-session-" + kUserAccount);
+    client.process(server_sender.getOutput());
+    RemoteMethod<TestBean> remote_method =
+      new RemoteMethod<TestBean>(client, kMethod, TestBean.class);
+
+    final ArrayList<TestBean> results = new ArrayList<TestBean>();
+    RemoteMethodCall.Listener<TestBean> listener = new RemoteMethodCall.Listener<TestBean>() {
+      @Override
+      public void onCompletion(RemoteMethodCall<TestBean> method_call) {
+        results.add(method_call.getResult());
+      }
+    };
+    RemoteMethodCall<TestBean> method_call =
+      remote_method.callAsync(listener, null, 0, 7, 2.5, "listener");
+    Assert.assertFalse(method_call.isDone());
+    assertThat(results.size(), is(0));
+    Assert.assertTrue(server.process(client_sender.getOutput()));
+    Assert.assertTrue(client.process(server_sender.getOutput()));
+    Assert.assertTrue(method_call.isDone());
+    assertThat(results.size(), is(1));
+    assertThat(results.get(0).getText(), is("listener"));
+    assertThat(method_call.get().getNumber(), is(7));
+    method_call.addListener(listener, null);
+    assertThat(results.size(), is(2));
+
+    // per-call deadline
+    method_call = remote_method.callAsyncWithTimeout(100, 0, 1, 1.0, "late");
+    try {
+      method_call.get(10, TimeUnit.SECONDS);
+      Assert.fail("call did not time out");
+    } catch (ExecutionException e) {
+      assertThat(((RemoteMethodCallException) e.getCause()).getReason(),
+                 is(RemoteMethodCallException.Reason.Timeout));
+    }
+
+    // cancellation
+    method_call = remote_method.callAsync(0, 1, 1.0, "cancelled");
+    Assert.assertTrue(method_call.cancel(false));
+    Assert.assertTrue(server.process(client_sender.getOutput()));
+    Assert.assertTrue(client.process(server_sender.getOutput()));
+    Assert.assertTrue(method_call.isCancelled());
+    Assert.assertFalse(method_call.isSuccessful());
+    try {
+      method_call.get();
+      Assert.fail("call was not cancelled");
+    } catch (CancellationException e) {}
+
+    // A listener rejected by its executor is run by the calling thread.
+    Executor rejecting_executor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+          throw new RejectedExecutionException();
+        }
+      };
+    results.clear();
+    method_call.addListener(listener, rejecting_executor);
+    assertThat(results.size(), is(1));
+    Assert.assertNull(results.get(0));
+
+    client.close();
+    server.close();
+  }
+
+  /**
+   * Tests that a call completes with an error if the result does not match the return type.
+   */
+  @Test
+  public void callResultMismatch() throws Exception {
+    final String kUserAccount = "mismatch_user";
+    Uri uri = new Uri("ws", kHostname, "/remote_method_test");
+    WampConnectionTest.TestSender client_sender = new WampConnectionTest.TestSender();
+    WampConnection client = new WampConnection(uri, kUserAccount, "", client_sender);
+    RemoteMethod<TestBean> remote_method =
+      new RemoteMethod<TestBean>(client, "/mismatch", TestBean.class);
+    final ArrayList<Boolean> completions = new ArrayList<Boolean>();
+    RemoteMethodCall.Listener<TestBean> listener = new RemoteMethodCall.Listener<TestBean>() {
+      @Override
+      public void onCompletion(RemoteMethodCall<TestBean> method_call) {
+        completions.add(method_call.isSuccessful());
+      }
+    };
+    RemoteMethodCall<TestBean> method_call = remote_method.callAsync(listener, null);
+    String call_id = client_sender.getOutput().split(",")[1];
+    Assert.assertTrue(client.process("[3," + call_id + ",\"not a bean\"]"));
+    Assert.assertTrue(method_call.isDone());
+    Assert.assertFalse(method_call.isSuccessful());
+    assertThat(method_call.getErrorDetails(), is((Object) "not a bean"));
+    assertThat(completions.size(), is(1));
+    Assert.assertFalse(completions.get(0));
+    try {
+      method_call.get();
+      Assert.fail("call did not fail");
+    } catch (ExecutionException e) {
+      assertThat(((RemoteMethodCallException) e.getCause()).getReason(),
+                 is(RemoteMethodCallException.Reason.RemoteError));
+    }
+    client.close();
+  }
 }
@@ -0,0 +1,113 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RpcExecutors}.
+ */
+public class RpcExecutorsTest {
+
+  /**
+   * Call that blocks until it is released.
+   */
+  private static class BlockingCall implements Runnable {
+
+    /**
+     * @param release Latch that releases the call.
+     * @param done Latch that is counted down when the call has finished.
+     */
+    public BlockingCall(CountDownLatch release, CountDownLatch done) {
+      this.release_ = release;
+      this.done_ = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        release_.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        done_.countDown();
+      }
+    }
+
+    private CountDownLatch done_;  // Counted down when the call has finished.
+    private CountDownLatch release_;  // Releases the call.
+  }
+
+  /**
+   * Tests that a bounded executor rejects calls that exceed the limit and accepts calls again
+   * when calls complete.
+   */
+  @Test
+  public void bound() throws InterruptedException {
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      Executor executor = RpcExecutors.bound(pool, 2);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(2);
+      executor.execute(new BlockingCall(release, done));
+      executor.execute(new BlockingCall(release, done));
+      try {
+        executor.execute(new BlockingCall(release, done));
+        Assert.fail("expected RejectedExecutionException");
+      } catch (RejectedExecutionException e) {}
+      release.countDown();
+      Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+      // Permits are released after the calls have completed.
+      for (int i = 0; i < 1000; i++) {
+        try {
+          executor.execute(new BlockingCall(release, new CountDownLatch(1)));
+          break;
+        } catch (RejectedExecutionException e) {
+          Thread.sleep(10);
+        }
+      }
+
+      // Calls rejected by the underlying executor do not consume permits.
+      pool.shutdown();
+      for (int i = 0; i < 3; i++) {
+        try {
+          executor.execute(new BlockingCall(release, new CountDownLatch(1)));
+          Assert.fail("expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {}
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that the default executor rejects calls if it is overloaded.
+   */
+  @Test
+  public void defaultRejects() throws InterruptedException {
+    Executor executor = RpcExecutors.newDefault(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    executor.execute(new BlockingCall(release, done));
+    executor.execute(new BlockingCall(release, done));
+    try {
+      executor.execute(new BlockingCall(release, done));
+      Assert.fail("expected RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+    } finally {
+      release.countDown();
+    }
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,60 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link UriCache}.
+ */
+public class UriCacheTest {
+
+  /**
+   * Tests lookups, hit and miss counts and sharing of cached URI's.
+   */
+  @Test
+  public void get() {
+    UriCache cache = new UriCache(16);
+    Uri uri = cache.get("wamp://general.ai/a/./b/../c?x=1#f");
+    Assert.assertNotNull(uri);
+    assertThat(uri.getPath(), is("/a/c"));
+    assertThat(uri.getParameter("x"), is("1"));
+    assertThat(uri.getFragment(), is("f"));
+    assertThat(cache.getMissCount(), is(1L));
+    assertThat(cache.getHitCount(), is(0L));
+
+    assertThat(cache.get("wamp://general.ai/a/./b/../c?x=1#f"), is(sameInstance(uri)));
+    try {
+      uri.setFragment("modified");
+      Assert.fail("cached URI modified");
+    } catch (UnsupportedOperationException e) {}
+    assertThat(cache.getMissCount(), is(1L));
+    assertThat(cache.getHitCount(), is(1L));
+
+    Assert.assertNull(cache.get("wamp://general.ai/a b"));
+    assertThat(cache.size(), is(1));
+    cache.clear();
+    assertThat(cache.size(), is(0));
+  }
+
+  /**
+   * Tests that the cache size is bounded and frequently used entries are retained.
+   */
+  @Test
+  public void bounded() {
+    UriCache cache = new UriCache(8);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertNotNull(cache.get("wamp://general.ai/topic/" + i));
+      Assert.assertNotNull(cache.get("wamp://general.ai/hot"));
+      Assert.assertTrue(cache.size() <= 8);
+    }
+    assertThat(cache.getMissCount(), is(101L));
+    assertThat(cache.getHitCount(), is(99L));
+  }
+}
@@ -0,0 +1,118 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link WebSocketCodec}.
+ */
+public class WebSocketCodecTest {
+
+  /**
+   * Tests the accept key computation and Base64 encoding.
+   */
+  @Test
+  public void acceptKey() {
+    // Example from RFC 6455.
+    assertThat(WebSocketCodec.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="),
+               is("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+    assertThat(WebSocketCodec.base64(new byte[0]), is(""));
+    assertThat(WebSocketCodec.base64("f".getBytes()), is("Zg=="));
+    assertThat(WebSocketCodec.base64("fo".getBytes()), is("Zm8="));
+    assertThat(WebSocketCodec.base64("foo".getBytes()), is("Zm9v"));
+    assertThat(WebSocketCodec.base64("foobar".getBytes()), is("Zm9vYmFy"));
+  }
+
+  /**
+   * Tests decoding of masked client frames.
+   */
+  @Test
+  public void decode() {
+    // Masked "Hello" from RFC 6455.
+    byte[] frame = { (byte) 0x81, (byte) 0x85, 0x37, (byte) 0xfa, 0x21, 0x3d,
+                     0x7f, (byte) 0x9f, 0x4d, 0x51, 0x58 };
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    buffer.put(frame, 0, 4);
+    buffer.flip();
+    Assert.assertNull(WebSocketCodec.decode(buffer, 1024));
+    assertThat(buffer.position(), is(0));
+    buffer.compact();
+    buffer.put(frame, 4, frame.length - 4);
+    buffer.flip();
+    WebSocketCodec.Frame decoded = WebSocketCodec.decode(buffer, 1024);
+    Assert.assertNotNull(decoded);
+    Assert.assertTrue(decoded.isFinal());
+    assertThat(decoded.getOpcode(), is(WebSocketCodec.kText));
+    assertThat(new String(decoded.getPayload(), WebSocketCodec.kUtf8), is("Hello"));
+    Assert.assertFalse(buffer.hasRemaining());
+
+    try {
+      WebSocketCodec.decode(ByteBuffer.wrap(frame), 4);
+      Assert.fail("frame length limit not enforced");
+    } catch (IllegalArgumentException e) {}
+    try {
+      WebSocketCodec.decode(ByteBuffer.wrap(new byte[] { (byte) 0x81, 0x00 }), 1024);
+      Assert.fail("unmasked client frame accepted");
+    } catch (IllegalArgumentException e) {}
+  }
+
+  /**
+   * Tests encoding of server frames with all length encodings.
+   */
+  @Test
+  public void encode() {
+    int[] lengths = { 0, 125, 126, 65535, 65536 };
+    int[] header_lengths = { 2, 2, 4, 4, 10 };
+    for (int i = 0; i < lengths.length; i++) {
+      byte[] payload = new byte[lengths[i]];
+      assertThat(WebSocketCodec.headerLength(payload.length), is(header_lengths[i]));
+      ByteBuffer buffer = ByteBuffer.allocate(header_lengths[i] + payload.length);
+      WebSocketCodec.encode(buffer, WebSocketCodec.kBinary, payload);
+      Assert.assertFalse(buffer.hasRemaining());
+      assertThat(buffer.get(0), is((byte) 0x82));
+    }
+  }
+
+  /**
+   * Tests parsing of the opening handshake.
+   */
+  @Test
+  public void handshake() {
+    String request =
+      "GET /chat HTTP/1.1\r\n" +
+      "Host: server.example.com\r\n" +
+      "Upgrade: websocket\r\n" +
+      "Connection: keep-alive, Upgrade\r\n" +
+      "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+      "Sec-WebSocket-Protocol: chat, wamp\r\n" +
+      "Sec-WebSocket-Version: 13\r\n\r\n";
+    ByteBuffer buffer = ByteBuffer.wrap(request.getBytes());
+    buffer.limit(buffer.limit() - 2);
+    Assert.assertNull(WebSocketCodec.parseHandshake(buffer));
+    buffer.limit(buffer.capacity());
+    WebSocketCodec.Handshake handshake = WebSocketCodec.parseHandshake(buffer);
+    Assert.assertNotNull(handshake);
+    Assert.assertFalse(buffer.hasRemaining());
+    assertThat(handshake.getPath(), is("/chat"));
+    assertThat(handshake.getKey(), is("dGhlIHNhbXBsZSBub25jZQ=="));
+    Assert.assertTrue(handshake.offersProtocol("wamp"));
+    Assert.assertFalse(handshake.offersProtocol("mqtt"));
+
+    buffer = ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes());
+    handshake = WebSocketCodec.parseHandshake(buffer);
+    Assert.assertNull(handshake.getKey());
+    try {
+      WebSocketCodec.parseHandshake(ByteBuffer.wrap("POST / HTTP/1.1\r\n\r\n".getBytes()));
+      Assert.fail("non GET request accepted");
+    } catch (IllegalArgumentException e) {}
+  }
+}
@@ -0,0 +1,383 @@
+/* General AI - Networking
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net;
+
+import ai.general.directory.Directory;
+import ai.general.net.wamp.WampConnection;
+import ai.general.net.wamp.WampEndpoint;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link WebSocketServer}. All tests run over the loopback interface.
+ */
+public class WebSocketServerTest {
+
+  private static final String kHomePath = "/websocket_server_test";
+
+  /**
+   * Minimal blocking WebSocket client.
+   */
+  private static class TestClient {
+
+    /**
+     * Connects to the server and performs the opening handshake.
+     *
+     * @param port The server port.
+     * @throws IOException If the connection or handshake fails.
+     */
+    public TestClient(int port) throws IOException {
+      socket_ = new Socket(InetAddress.getLoopbackAddress(), port);
+      socket_.setSoTimeout(10000);
+      input_ = new DataInputStream(socket_.getInputStream());
+      output_ = socket_.getOutputStream();
+      output_.write(("GET /wamp HTTP/1.1\r\n" +
+                     "Host: localhost\r\n" +
+                     "Upgrade: websocket\r\n" +
+                     "Connection: Upgrade\r\n" +
+                     "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                     "Sec-WebSocket-Protocol: wamp\r\n" +
+                     "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("US-ASCII"));
+      StringBuilder response = new StringBuilder();
+      while (!response.toString().endsWith("\r\n\r\n")) {
+        response.append((char) input_.readUnsignedByte());
+      }
+      response_ = response.toString();
+    }
+
+    /**
+     * Closes the socket.
+     *
+     * @throws IOException If the socket cannot be closed.
+     */
+    public void close() throws IOException {
+      socket_.close();
+    }
+
+    /**
+     * Returns the handshake response.
+     *
+     * @return The HTTP response header.
+     */
+    public String getResponse() {
+      return response_;
+    }
+
+    /**
+     * Reads a server frame.
+     *
+     * @return The frame opcode in the first byte followed by the payload.
+     * @throws IOException If the frame cannot be read.
+     */
+    public byte[] readFrame() throws IOException {
+      int opcode = input_.readUnsignedByte() & 0x0f;
+      int length = input_.readUnsignedByte();
+      if (length == 126) {
+        length = input_.readUnsignedShort();
+      } else if (length == 127) {
+        length = (int) input_.readLong();
+      }
+      byte[] frame = new byte[length + 1];
+      frame[0] = (byte) opcode;
+      input_.readFully(frame, 1, length);
+      return frame;
+    }
+
+    /**
+     * Reads a text frame.
+     *
+     * @return The text.
+     * @throws IOException If the frame cannot be read.
+     */
+    public String readText() throws IOException {
+      byte[] frame = readFrame();
+      assertThat((int) frame[0], is(WebSocketCodec.kText));
+      return new String(frame, 1, frame.length - 1, "UTF-8");
+    }
+
+    /**
+     * Sends a masked frame. Large payloads are sent in two writes to exercise partial reads.
+     *
+     * @param opcode The frame opcode.
+     * @param is_final True if the FIN bit is set.
+     * @param payload The frame payload.
+     * @throws IOException If the frame cannot be sent.
+     */
+    public void sendFrame(int opcode, boolean is_final, byte[] payload) throws IOException {
+      byte[] mask = { 0x11, 0x22, 0x33, 0x44 };
+      int header_length = payload.length < 126 ? 2 : (payload.length <= 0xffff ? 4 : 10);
+      byte[] frame = new byte[header_length + 4 + payload.length];
+      frame[0] = (byte) (is_final ? 0x80 | opcode : opcode);
+      if (header_length == 2) {
+        frame[1] = (byte) (0x80 | payload.length);
+      } else if (header_length == 4) {
+        frame[1] = (byte) (0x80 | 126);
+        frame[2] = (byte) (payload.length >> 8);
+        frame[3] = (byte) payload.length;
+      } else {
+        frame[1] = (byte) (0x80 | 127);
+        for (int i = 0; i < 8; i++) {
+          frame[2 + i] = (byte) ((long) payload.length >> (56 - 8 * i));
+        }
+      }
+      System.arraycopy(mask, 0, frame, header_length, 4);
+      for (int i = 0; i < payload.length; i++) {
+        frame[header_length + 4 + i] = (byte) (payload[i] ^ mask[i & 3]);
+      }
+      int split = frame.length / 2;
+      output_.write(frame, 0, split);
+      output_.flush();
+      output_.write(frame, split, frame.length - split);
+      output_.flush();
+    }
+
+    /**
+     * Sends a masked text frame.
+     *
+     * @param text The text to send.
+     * @throws IOException If the frame cannot be sent.
+     */
+    public void sendText(String text) throws IOException {
+      sendFrame(WebSocketCodec.kText, true, text.getBytes("UTF-8"));
+    }
+
+    private DataInputStream input_;  // Socket input.
+    private OutputStream output_;  // Socket output.
+    private String response_;  // Handshake response.
+    private Socket socket_;  // Client socket.
+  }
+
+  /**
+   * Test RPC method.
+   *
+   * @param text Text to echo.
+   * @return The text.
+   */
+  public static String echo(String text) {
+    return text;
+  }
+
+  /**
+   * Waits until the server has the expected number of connections.
+   *
+   * @param server The server.
+   * @param count The expected connection count.
+   */
+  private static void awaitConnectionCount(WebSocketServer server, int count)
+    throws InterruptedException {
+    for (int i = 0; i < 1000 && server.getConnectionCount() != count; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(server.getConnectionCount(), is(count));
+  }
+
+  /**
+   * Tests WAMP calls over WebSockets.
+   */
+  @Test
+  public void wamp() throws Exception {
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kHomePath + "/echo"));
+    Assert.assertTrue(
+        directory.addHandler(kHomePath + "/echo",
+                             new MethodHandler("echo", false, null,
+                                               WebSocketServerTest.class.getMethod(
+                                                   "echo", String.class))));
+    WebSocketServer server =
+      new WebSocketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2,
+                          new WampEndpoint("localhost", kHomePath));
+    server.start();
+    Assert.assertTrue(server.isRunning());
+    try {
+      TestClient client = new TestClient(server.getPort());
+      assertThat(client.getResponse(), startsWith("HTTP/1.1 101"));
+      assertThat(client.getResponse(),
+                 containsString("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+      assertThat(client.getResponse(), containsString("Sec-WebSocket-Protocol: wamp"));
+      assertThat(client.readText(), startsWith("[0,"));
+
+      client.sendText("[2,\"c1\",\"wamp://localhost/echo\",\"hello\"]");
+      assertThat(client.readText(), is("[3,\"c1\",\"hello\"]"));
+
+      // Batched messages are received as separate messages.
+      Connection connection = null;
+      for (Connection candidate :
+             ConnectionManager.Instance.getConnections().toArray(new Connection[] {})) {
+        if (candidate.getHomePath().equals(kHomePath)) {
+          connection = candidate;
+        }
+      }
+      Assert.assertNotNull(connection);
+      Assert.assertTrue(connection.subscribe(Arrays.asList("/batch/t1", "/batch/t2")));
+      assertThat(client.readText(), allOf(startsWith("[5,"), containsString("/batch/t1")));
+      assertThat(client.readText(), allOf(startsWith("[5,"), containsString("/batch/t2")));
+
+      // Fragmented and large messages.
+      StringBuilder large = new StringBuilder();
+      for (int i = 0; i < 40000; i++) {
+        large.append((char) ('a' + i % 26));
+      }
+      client.sendText("[2,\"c2\",\"wamp://localhost/echo\",\"" + large + "\"]");
+      assertThat(client.readText(), is("[3,\"c2\",\"" + large + "\"]"));
+      byte[] message = "[2,\"c3\",\"wamp://localhost/echo\",\"fragment\"]".getBytes("UTF-8");
+      byte[] first = new byte[10];
+      byte[] second = new byte[message.length - first.length];
+      System.arraycopy(message, 0, first, 0, first.length);
+      System.arraycopy(message, first.length, second, 0, second.length);
+      client.sendFrame(WebSocketCodec.kText, false, first);
+      client.sendFrame(WebSocketCodec.kContinuation, true, second);
+      assertThat(client.readText(), is("[3,\"c3\",\"fragment\"]"));
+      client.close();
+
+      client = new TestClient(server.getPort());
+      client.readText();
+      client.sendFrame(WebSocketCodec.kPing, true, new byte[] { 1, 2 });
+      byte[] pong = client.readFrame();
+      assertThat(pong, is(new byte[] { WebSocketCodec.kPong, 1, 2 }));
+      client.sendFrame(WebSocketCodec.kClose, true,
+                       WebSocketCodec.closePayload(WebSocketCodec.kNormalClosure));
+      byte[] close = client.readFrame();
+      assertThat((int) close[0], is(WebSocketCodec.kClose));
+      awaitConnectionCount(server, 0);
+      client.close();
+    } finally {
+      server.stop();
+    }
+    Assert.assertFalse(server.isRunning());
+  }
+
+  /**
+   * Tests that many idle WebSockets can be served and are closed when the server stops.
+   */
+  @Test
+  public void manyConnections() throws Exception {
+    WebSocketServer server =
+      new WebSocketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4,
+                          new WampEndpoint("localhost", kHomePath));
+    server.start();
+    ArrayList<TestClient> clients = new ArrayList<TestClient>();
+    try {
+      for (int i = 0; i < 200; i++) {
+        TestClient client = new TestClient(server.getPort());
+        assertThat(client.readText(), startsWith("[0,"));
+        clients.add(client);
+      }
+      awaitConnectionCount(server, clients.size());
+    } finally {
+      server.stop();
+    }
+    assertThat(server.getConnectionCount(), is(0));
+    for (TestClient client : clients) {
+      try {
+        client.readFrame();
+        Assert.fail("socket not closed");
+      } catch (IOException e) {}
+      client.close();
+    }
+  }
+
+  /**
+   * Tests that the WebSocket is closed if the output queue of its connection overflows with the
+   * disconnect policy.
+   */
+  @Test
+  public void outputQueueDisconnect() throws Exception {
+    final String kOverflowHomePath = kHomePath + "/overflow";
+    WebSocketServer server =
+      new WebSocketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1,
+                          new WampEndpoint("localhost", kOverflowHomePath));
+    server.start();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      TestClient client = new TestClient(server.getPort());
+      assertThat(client.readText(), startsWith("[0,"));
+      awaitConnectionCount(server, 1);
+      // The welcome message is sent before the connection is registered.
+      WampConnection connection = null;
+      for (int i = 0; i < 1000 && connection == null; i++) {
+        for (Connection candidate :
+               ConnectionManager.Instance.getConnections().toArray(new Connection[] {})) {
+          if (candidate.getHomePath().equals(kOverflowHomePath)) {
+            connection = (WampConnection) candidate;
+          }
+        }
+        if (connection == null) {
+          Thread.sleep(10);
+        }
+      }
+      Assert.assertNotNull(connection);
+      connection.setOutputQueue(1, QueuedOutputSender.OverflowPolicy.Disconnect, executor);
+
+      // Block the executor, so that the queue cannot be flushed.
+      executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException {
+            release.await();
+            return null;
+          }
+        });
+      Assert.assertTrue(connection.event("/topic", 1));
+      Assert.assertFalse(connection.event("/topic", 2));
+      Assert.assertTrue(connection.getOutputQueue().isClosed());
+      release.countDown();
+
+      byte[] close = client.readFrame();
+      assertThat((int) close[0], is(WebSocketCodec.kClose));
+      try {
+        client.readFrame();
+        Assert.fail("socket not closed");
+      } catch (IOException e) {}
+      awaitConnectionCount(server, 0);
+      Assert.assertFalse(connection.isReady());
+      client.close();
+    } finally {
+      release.countDown();
+      executor.shutdown();
+      server.stop();
+    }
+  }
+
+  /**
+   * Tests that invalid handshakes are rejected.
+   */
+  @Test
+  public void rejectHandshake() throws Exception {
+    WebSocketServer server =
+      new WebSocketServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1,
+                          new WampEndpoint("localhost", kHomePath));
+    server.start();
+    try {
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+      socket.setSoTimeout(10000);
+      socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+      DataInputStream input = new DataInputStream(socket.getInputStream());
+      byte[] response = new byte[12];
+      input.readFully(response);
+      assertThat(new String(response, "US-ASCII"), is("HTTP/1.1 400"));
+      socket.close();
+      awaitConnectionCount(server, 0);
+    } finally {
+      server.stop();
+    }
+  }
+}
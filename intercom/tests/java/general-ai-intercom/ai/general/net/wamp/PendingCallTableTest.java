@@ -0,0 +1,176 @@
+/* General AI - WAMP Server and Client
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net.wamp;
+
+import ai.general.net.RpcCallback;
+import ai.general.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link PendingCallTable}.
+ */
+public class PendingCallTableTest {
+
+  /**
+   * Counts callback invocations.
+   */
+  private static class CountingCallback implements RpcCallback {
+
+    @Override
+    public void onError(Uri error_uri, String error_description, Object error_details) {
+      errors_++;
+      error_uri_ = error_uri;
+    }
+
+    @Override
+    public void onSuccess(Object result) {
+      successes_++;
+    }
+
+    private Uri error_uri_;
+    private int errors_;
+    private int successes_;
+  }
+
+  /**
+   * Tests adding and removing calls.
+   */
+  @Test
+  public void addRemove() {
+    PendingCallTable table = new PendingCallTable(new Uri("wamp://general.ai/error#timeout"));
+    CountingCallback[] callbacks = new CountingCallback[100];
+    String[] call_ids = new String[callbacks.length];
+    for (int i = 0; i < callbacks.length; i++) {
+      callbacks[i] = new CountingCallback();
+      call_ids[i] = PendingCallTable.format(table.add(callbacks[i], 60000));
+    }
+    assertThat(table.size(), is(callbacks.length));
+    for (int i = callbacks.length - 1; i >= 0; i--) {
+      assertThat(table.remove(call_ids[i]), is((RpcCallback) callbacks[i]));
+    }
+    assertThat(table.size(), is(0));
+    Assert.assertNull(table.remove(call_ids[0]));
+    Assert.assertNull(table.remove("session:1:1234"));
+    Assert.assertNull(table.remove(""));
+    Assert.assertNull(table.remove("999999"));
+
+    // remove by callback
+    for (int i = 0; i < callbacks.length; i++) {
+      table.add(callbacks[i], 60000);
+    }
+    for (int i = 0; i < callbacks.length; i += 2) {
+      Assert.assertTrue(table.remove(callbacks[i]));
+      Assert.assertFalse(table.remove(callbacks[i]));
+    }
+    assertThat(table.size(), is(callbacks.length / 2));
+    assertThat(table.expire(System.currentTimeMillis() + 120000), is(callbacks.length / 2));
+    for (int i = 0; i < callbacks.length; i++) {
+      assertThat(callbacks[i].errors_, is(i % 2));
+    }
+  }
+
+  /**
+   * Tests expiration of overdue calls.
+   */
+  @Test
+  public void expire() {
+    PendingCallTable table = new PendingCallTable(new Uri("wamp://general.ai/error#timeout"));
+    CountingCallback short_call = new CountingCallback();
+    CountingCallback long_call = new CountingCallback();
+    long now = System.currentTimeMillis();
+    String short_id = PendingCallTable.format(table.add(short_call, 1000));
+    String long_id = PendingCallTable.format(table.add(long_call, 600000));
+    assertThat(table.expire(now), is(0));
+    assertThat(table.expire(now + 2000), is(1));
+    assertThat(short_call.errors_, is(1));
+    assertThat(short_call.error_uri_.getFragment(), is(RpcCallback.kTimeoutError));
+    Assert.assertNull(table.remove(short_id));
+    assertThat(table.size(), is(1));
+
+    // A full wheel revolution must not expire calls with a later deadline.
+    assertThat(table.expire(now + 120000), is(0));
+    assertThat(table.remove(long_id), is((RpcCallback) long_call));
+    assertThat(long_call.errors_, is(0));
+    assertThat(long_call.successes_, is(0));
+  }
+
+  /**
+   * Tests that the table size depends on the number of pending calls rather than on the range of
+   * pending call ID's.
+   */
+  @Test
+  public void compact() {
+    PendingCallTable table = new PendingCallTable(new Uri("wamp://general.ai/error#timeout"));
+    CountingCallback slow_call = new CountingCallback();
+    String slow_id = PendingCallTable.format(table.add(slow_call, 600000));
+    CountingCallback callback = new CountingCallback();
+    for (int i = 0; i < 100000; i++) {
+      String call_id = PendingCallTable.format(table.add(callback, 600000));
+      assertThat(table.remove(call_id), is((RpcCallback) callback));
+    }
+    assertThat(table.capacity(), is(16));
+
+    String[] call_ids = new String[1000];
+    for (int i = 0; i < call_ids.length; i++) {
+      call_ids[i] = PendingCallTable.format(table.add(callback, 600000));
+    }
+    Assert.assertTrue(table.capacity() >= 2 * table.size());
+    for (String call_id : call_ids) {
+      assertThat(table.remove(call_id), is((RpcCallback) callback));
+    }
+    assertThat(table.capacity(), is(16));
+    assertThat(table.remove(slow_id), is((RpcCallback) slow_call));
+    assertThat(table.size(), is(0));
+  }
+
+  /**
+   * Tests failing all pending calls.
+   */
+  @Test
+  public void failAll() {
+    PendingCallTable table = new PendingCallTable(new Uri("wamp://general.ai/error#timeout"));
+    CountingCallback[] callbacks = new CountingCallback[100];
+    String[] call_ids = new String[callbacks.length];
+    for (int i = 0; i < callbacks.length; i++) {
+      callbacks[i] = new CountingCallback();
+      call_ids[i] = PendingCallTable.format(table.add(callbacks[i], 60000));
+    }
+    assertThat(table.failAll(new Uri("wamp://general.ai/error#closed"), "closed"),
+               is(callbacks.length));
+    assertThat(table.size(), is(0));
+    assertThat(table.capacity(), is(16));
+    for (int i = 0; i < callbacks.length; i++) {
+      assertThat(callbacks[i].errors_, is(1));
+      assertThat(callbacks[i].error_uri_.getFragment(), is("closed"));
+      Assert.assertNull(table.remove(call_ids[i]));
+    }
+    assertThat(table.expire(System.currentTimeMillis() + 120000), is(0));
+    assertThat(table.failAll(new Uri("wamp://general.ai/error#closed"), "closed"), is(0));
+
+    // The table can be used after all calls have failed.
+    String call_id = PendingCallTable.format(table.add(callbacks[0], 60000));
+    assertThat(table.remove(call_id), is((RpcCallback) callbacks[0]));
+  }
+
+  /**
+   * Tests that calls with very large timeouts do not expire.
+   */
+  @Test
+  public void largeTimeout() {
+    PendingCallTable table = new PendingCallTable(new Uri("wamp://general.ai/error#timeout"));
+    CountingCallback callback = new CountingCallback();
+    String call_id = PendingCallTable.format(table.add(callback, Long.MAX_VALUE));
+    long now = System.currentTimeMillis();
+    assertThat(table.expire(now + 1000), is(0));
+    assertThat(table.expire(now + 120000), is(0));
+    assertThat(callback.errors_, is(0));
+    assertThat(table.remove(call_id), is((RpcCallback) callback));
+  }
+}
@@ -12,13 +12,26 @@ import ai.general.directory.Result;
 import ai.general.directory.test.GenericTestHandler;
 import ai.general.directory.test.TestBean;
 import ai.general.directory.test.TestHandler;
+import ai.general.net.BatchOutputSender;
+import ai.general.net.KeyedExecutor;
 import ai.general.net.OutputSender;
 import ai.general.net.RpcCallback;
+import ai.general.net.RpcExecutors;
 import ai.general.net.Uri;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -32,6 +45,92 @@ public class WampConnectionTest {
 
   private static final String kHostname = "general.ai";
 
+  /**
+   * Batch output sender that records all messages.
+   */
+  private static class BatchSender implements BatchOutputSender {
+
+    /**
+     * Not implemented.
+     *
+     * @param data The data to send.
+     * @return false
+     */
+    @Override
+    public boolean sendBinary(ByteBuffer data) {
+      return false;
+    }
+
+    /**
+     * Records a message.
+     *
+     * @param text The text to send.
+     * @return True.
+     */
+    @Override
+    public boolean sendText(String text) {
+      texts.add(text);
+      return true;
+    }
+
+    /**
+     * Records a batch of messages.
+     *
+     * @param texts The messages to send.
+     * @return True.
+     */
+    @Override
+    public boolean sendTexts(List<String> texts) {
+      batches.add(new ArrayList<String>(texts));
+      return true;
+    }
+
+    public final ArrayList<List<String>> batches = new ArrayList<List<String>>();
+    public final ArrayList<String> texts = new ArrayList<String>();
+  }
+
+  /**
+   * Output sender that blocks the first message until it is released and then fails to send it.
+   */
+  private static class BlockingSender implements OutputSender {
+
+    /**
+     * Not implemented.
+     *
+     * @param data The data to send.
+     * @return false
+     */
+    @Override
+    public boolean sendBinary(ByteBuffer data) {
+      return false;
+    }
+
+    /**
+     * Records a message. Blocks the first message until released and fails to send it.
+     *
+     * @param text The text to send.
+     * @return False for the first message, true otherwise.
+     */
+    @Override
+    public boolean sendText(String text) {
+      texts.add(text);
+      if (texts.size() > 1) {
+        return true;
+      }
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return false;
+    }
+
+    public final CountDownLatch entered = new CountDownLatch(1);
+    public final CountDownLatch release = new CountDownLatch(1);
+    public final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+  }
+
   /**
    * Output sender for testing purposes.
    */
@@ -439,6 +538,91 @@ public class WampConnectionTest {
     }
   }
 
+  /**
+   * Test handler that does not return until it is released.
+   */
+  private static class BlockingRpcHandler extends Handler {
+
+    /**
+     * @param method_name The RPC method name.
+     */
+    public BlockingRpcHandler(String method_name) {
+      super(method_name, false);
+      latch_ = new CountDownLatch(1);
+    }
+
+    /**
+     * Waits until the handler is released and returns the method name.
+     *
+     * @param request The request to handle.
+     */
+    @Override
+    public void handle(Request request) {
+      try {
+        latch_.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {}
+      request.getResult().addValue(getName());
+    }
+
+    /**
+     * Not used.
+     *
+     * @param path_remainder The relative path from the calling node to the target of the request.
+     * @param request The request to handle.
+     */
+    @Override
+    public void handleCatchAll(String path_remainder, Request request) {}
+
+    /**
+     * Releases all waiting calls.
+     */
+    public void release() {
+      latch_.countDown();
+    }
+
+    private CountDownLatch latch_;  // Blocks calls until released.
+  }
+
+  /**
+   * Thread-safe output sender that records all output.
+   */
+  private static class QueueSender implements OutputSender {
+
+    /**
+     * Waits for the next output.
+     *
+     * @return The next output or null if there is no output within 10 seconds.
+     */
+    public String poll() throws InterruptedException {
+      return output_.poll(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Not implemented.
+     *
+     * @param data The data to send.
+     * @return false
+     */
+    @Override
+    public boolean sendBinary(ByteBuffer data) {
+      return false;
+    }
+
+    /**
+     * Records the output.
+     *
+     * @param text The text to send.
+     * @return true
+     */
+    @Override
+    public boolean sendText(String text) {
+      output_.add(text);
+      return true;
+    }
+
+    private LinkedBlockingQueue<String> output_ = new LinkedBlockingQueue<String>();  // Output.
+  }
+
   /**
    * Test callback that stores the success or error results.
    */
@@ -619,6 +803,90 @@ public class WampConnectionTest {
     connection.close();
   }
 
+  /**
+   * Tests that subscriptions are sent as batches and shared by subscribers of the same topic.
+   */
+  @Test
+  public void batchSubscribe() {
+    final String kUserAccount = "tester2@domain.zz";
+    BatchSender sender = new BatchSender();
+    WampConnection connection =
+      new WampConnection(new Uri("ws", kHostname, "/wamp_connection_test/batch"),
+                         kUserAccount,
+                         clientHomePath(kUserAccount),
+                         sender);
+
+    Assert.assertTrue(connection.subscribe(Arrays.asList("/batch/a", "batch/b", "/batch/a")));
+    assertThat(sender.batches.size(), is(1));
+    assertThat(sender.batches.get(0),
+               is(Arrays.asList(jsonArray(5, uri(kUserAccount, "/batch/a")),
+                                jsonArray(5, uri(kUserAccount, "/batch/b")))));
+
+    // Established subscriptions are reused.
+    Assert.assertTrue(connection.subscribe("/batch/a"));
+    Assert.assertTrue(connection.subscribe(Arrays.asList("/batch/b")));
+    assertThat(sender.batches.size(), is(1));
+    Assert.assertTrue(sender.texts.isEmpty());
+
+    // Topics are unsubscribed when the last subscriber unsubscribes.
+    Assert.assertTrue(connection.unsubscribe(Arrays.asList("/batch/a", "/batch/b")));
+    Assert.assertTrue(connection.unsubscribe("/batch/b"));
+    assertThat(sender.texts, is(Arrays.asList(jsonArray(6, uri(kUserAccount, "/batch/b")))));
+    Assert.assertTrue(connection.unsubscribe("/batch/a"));
+    assertThat(sender.texts.size(), is(1));
+
+    // Close unsubscribes all remaining topics as one batch.
+    sender.texts.clear();
+    connection.close();
+    assertThat(sender.batches.size(), is(2));
+    assertThat(sender.batches.get(1),
+               is(Arrays.asList(jsonArray(6, uri(kUserAccount, "/batch/a")))));
+    Assert.assertTrue(sender.texts.isEmpty());
+  }
+
+  /**
+   * Tests that a subscription is not shared before its subscribe request has been sent.
+   */
+  @Test
+  public void concurrentSubscribe() throws InterruptedException {
+    final String kUserAccount = "tester2@domain.zz";
+    final BlockingSender sender = new BlockingSender();
+    final WampConnection connection =
+      new WampConnection(new Uri("ws", kHostname, "/wamp_connection_test/concurrent"),
+                         kUserAccount,
+                         clientHomePath(kUserAccount),
+                         sender);
+    final boolean[] results = new boolean[2];
+    Thread first = new Thread() {
+        @Override
+        public void run() {
+          results[0] = connection.subscribe("/concurrent/a");
+        }
+      };
+    Thread second = new Thread() {
+        @Override
+        public void run() {
+          results[1] = connection.subscribe("/concurrent/a");
+        }
+      };
+    first.start();
+    Assert.assertTrue(sender.entered.await(10, TimeUnit.SECONDS));
+    second.start();
+    // The second subscriber waits for the outcome of the first subscribe request.
+    second.join(100);
+    Assert.assertTrue(second.isAlive());
+    sender.release.countDown();
+    first.join();
+    second.join();
+    Assert.assertFalse(results[0]);
+    Assert.assertTrue(results[1]);
+    // The second subscriber sends its own request after the first request failed.
+    assertThat(sender.texts.size(), is(2));
+    assertThat(sender.texts.get(1), is(jsonArray(5, uri(kUserAccount, "/concurrent/a"))));
+    Assert.assertTrue(connection.unsubscribe("/concurrent/a"));
+    assertThat(sender.texts.get(2), is(jsonArray(6, uri(kUserAccount, "/concurrent/a"))));
+  }
+
   /**
    * Tests event messages. In this test, the events are triggered directly from the server without
    * a publish message.
@@ -754,6 +1022,40 @@ public class WampConnectionTest {
     }
   }
 
+  /**
+   * Tests that relayed publish requests are encoded only once for all connections.
+   */
+  @Test
+  public void relay() {
+    TestConnection connection1 = new TestConnection("relay1@domain.zz");
+    TestConnection connection2 = new TestConnection("relay2@domain.zz");
+    connection1.open();
+    connection2.open();
+    Uri topic_uri = new Uri("wamp", kHostname, "/relay/topic");
+
+    JsonArgument json_data = new JsonArgument("{\"x\": [1, 2]}");
+    Request request = new Request(topic_uri, Request.RequestType.Publish, json_data);
+    Assert.assertTrue(connection1.server().relay(topic_uri, request));
+    String output = connection1.getServerOutput();
+    assertThat(output, is("[8,\"wamp://general.ai/relay/topic\",{\"x\": [1, 2]}]"));
+    Assert.assertTrue(connection2.server().relay(topic_uri, request));
+    assertThat(connection2.getServerOutput(), is(sameInstance(output)));
+    Assert.assertFalse(json_data.isBound());
+
+    TestBean bean = new TestBean(235, 3.1415, "bean");
+    request = new Request(topic_uri, Request.RequestType.Publish, bean);
+    Assert.assertTrue(connection1.server().relay(topic_uri, request));
+    output = connection1.getServerOutput();
+    assertThat(output, startsWith("[8,\"wamp://general.ai/relay/topic\",{"));
+    Assert.assertTrue(connection2.server().relay(topic_uri, request));
+    assertThat(connection2.getServerOutput(), is(sameInstance(output)));
+    Assert.assertTrue(connection1.client().relay(topic_uri, request));
+    assertThat(connection1.getClientOutput(), startsWith("[7,"));
+
+    connection1.close();
+    connection2.close();
+  }
+
   /**
    * Tests RPC calls including call results and call errors.
    */
@@ -906,6 +1208,119 @@ public class WampConnectionTest {
     connection.close();
   }
 
+  /**
+   * Tests that pending calls fail immediately when the connection is closed.
+   */
+  @Test
+  public void closePendingCalls() {
+    TestSender sender = new TestSender();
+    WampConnection client = new WampConnection(new Uri("ws", kHostname, "/close_call_test"),
+                                               "close@domain.zz",
+                                               "",
+                                               sender);
+    TestCallback callback = new TestCallback();
+    Assert.assertTrue(client.call(RpcHandler.kMethod1, callback));
+    String call_id = sender.getOutput().split(",")[1];
+    assertThat(callback.getCallbackType(), is(TestCallback.CallbackType.kNone));
+    client.close();
+    assertThat(callback.getCallbackType(), is(TestCallback.CallbackType.kError));
+    assertThat(callback.getErrorUri().getFragment(), is(RpcCallback.kClosedError));
+
+    // A late reply is ignored.
+    callback.clear();
+    Assert.assertTrue(client.process("[3," + call_id + ",null]"));
+    assertThat(callback.getCallbackType(), is(TestCallback.CallbackType.kNone));
+  }
+
+  /**
+   * Tests that incoming calls executed by a call executor do not block subsequent calls.
+   */
+  @Test
+  public void asyncCall() throws InterruptedException {
+    final String kUserAccount = "async@domain.zz";
+    final String kUserHome = serverHomePath(kUserAccount);
+    Directory directory = Directory.Instance;
+    BlockingRpcHandler slow = new BlockingRpcHandler("/async/slow");
+    Assert.assertTrue(directory.createPath(kUserHome + "/async/slow"));
+    Assert.assertTrue(directory.addHandler(kUserHome + "/async/slow", slow));
+    Assert.assertTrue(directory.createPath(kUserHome + RpcHandler.kMethod2));
+    Assert.assertTrue(directory.addHandler(kUserHome + RpcHandler.kMethod2,
+                                           new RpcHandler(RpcHandler.kMethod2)));
+    QueueSender sender = new QueueSender();
+    WampConnection server = new WampConnection(new Uri("ws", kHostname, "/async_call_test"),
+                                               kUserAccount,
+                                               kUserHome,
+                                               sender);
+    Assert.assertNull(server.getCallExecutor());
+    Executor executor = RpcExecutors.newBoundedPool(2, 1);
+    server.setCallExecutor(executor);
+    assertThat(server.getCallExecutor(), is(executor));
+    Assert.assertTrue(server.welcome("async-session"));
+    assertThat(sender.poll(), startsWith("[0,"));
+
+    String slow_uri = uri(kUserAccount, "/async/slow");
+    Assert.assertTrue(server.process("[2,\"s1\"," + slow_uri + "]"));
+    Assert.assertTrue(server.process("[2,\"f1\"," + uri(kUserAccount, RpcHandler.kMethod2) +
+                                     ",1,2,3]"));
+    assertThat(sender.poll(), is("[3,\"f1\",6]"));
+    slow.release();
+    assertThat(sender.poll(), is("[3,\"s1\",\"/async/slow\"]"));
+
+    server.setCallExecutor(new Executor() {
+        @Override
+        public void execute(Runnable task) {
+          throw new RejectedExecutionException();
+        }
+      });
+    Assert.assertTrue(server.process("[2,\"r1\"," + slow_uri + "]"));
+    assertThat(sender.poll(),
+               is("[4,\"r1\",\"wamp://async%40domain.zz@general.ai/async/slow#rpc_error\"," +
+                  "\"call rejected\"]"));
+    server.close();
+  }
+
+  /**
+   * Tests that incoming events handled by a publish executor are handled in order.
+   */
+  @Test
+  public void asyncPublish() throws InterruptedException {
+    final String kUserAccount = "async_publish@domain.zz";
+    final String kUserHome = serverHomePath(kUserAccount);
+    final int kEventCount = 100;
+    final ArrayList<Object> events = new ArrayList<Object>();
+    final CountDownLatch done = new CountDownLatch(kEventCount);
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.createPath(kUserHome + "/async/topic"));
+    Assert.assertTrue(directory.addHandler(kUserHome + "/async/topic", new Handler("test") {
+        @Override
+        public void handle(Request request) {
+          events.add(request.getArgument(0));
+          done.countDown();
+        }
+
+        @Override
+        public void handleCatchAll(String path_remainder, Request request) {}
+      }));
+    WampConnection server = new WampConnection(new Uri("ws", kHostname, "/async_publish_test"),
+                                               kUserAccount,
+                                               kUserHome,
+                                               new QueueSender());
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    KeyedExecutor executor = new KeyedExecutor(pool);
+    server.setPublishExecutor(executor);
+    assertThat(server.getPublishExecutor(), is(executor));
+    Assert.assertTrue(server.welcome("async-publish-session"));
+    for (int i = 0; i < kEventCount; i++) {
+      Assert.assertTrue(server.process("[7," + uri(kUserAccount, "/async/topic") + "," + i + "]"));
+    }
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < kEventCount; i++) {
+      assertThat(events.get(i), is((Object) i));
+    }
+    pool.shutdown();
+    server.close();
+  }
+
   /**
    * Tests prefix requests.
    */
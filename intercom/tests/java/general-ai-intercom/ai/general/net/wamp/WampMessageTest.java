@@ -0,0 +1,132 @@
+/* General AI - WAMP Server and Client
+ * Copyright (C) 2014 Tuna Oezer, General AI.
+ * See license.txt for copyright information.
+ */
+
+package ai.general.net.wamp;
+
+import ai.general.directory.Request;
+import ai.general.directory.test.TestBean;
+import ai.general.net.MethodHandler;
+import ai.general.net.Uri;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link WampMessage}.
+ */
+public class WampMessageTest {
+
+  /**
+   * Test RPC method that sums the numbers of the beans.
+   *
+   * @param beans A list of beans.
+   * @param offset Number added to the sum.
+   * @return The sum of the bean numbers plus the offset.
+   */
+  public static int sumBeans(List<TestBean> beans, int offset) {
+    int sum = offset;
+    for (TestBean bean : beans) {
+      sum += bean.getNumber();
+    }
+    return sum;
+  }
+
+  /**
+   * Tests that structured payloads are deferred and bound on demand.
+   */
+  @Test
+  public void deferredPayload() throws IOException {
+    WampMessage message = WampMessage.decode(
+        "[2, \"call-1\", \"wamp://general.ai/test\", " +
+        "{\"a\": [1, \"]\\\"\"], \"b\": {}}, 5, \"x\"]");
+    assertThat(message, is(notNullValue()));
+    assertThat(message.getTypeId(), is(WampConnection.kCall));
+    assertThat(message.size(), is(6));
+    assertThat(message.getString(1), is("call-1"));
+    assertThat(message.getString(2), is("wamp://general.ai/test"));
+    Assert.assertTrue(message.getField(3) instanceof JsonArgument);
+    JsonArgument argument = (JsonArgument) message.getField(3);
+    assertThat(argument.getJson(), is("{\"a\": [1, \"]\\\"\"], \"b\": {}}"));
+    Assert.assertFalse(argument.isBound());
+    Map<?, ?> value = (Map<?, ?>) message.getValue(3);
+    Assert.assertTrue(argument.isBound());
+    assertThat(((List<?>) value.get("a")).get(1), is((Object) "]\""));
+    assertThat(message.getField(4), is((Object) 5));
+    assertThat(message.getField(5), is((Object) "x"));
+  }
+
+  /**
+   * Tests that deferred payloads are decoded directly into method parameter types.
+   */
+  @Test
+  public void typedBinding() throws Exception {
+    WampMessage message = WampMessage.decode(
+        "[2, \"call-1\", \"wamp://general.ai/test\", " +
+        "[{\"number\": 1, \"real\": 0.5, \"text\": \"a\"}, {\"number\": 2}], 3]");
+    JsonArgument argument = (JsonArgument) message.getField(3);
+    Request request =
+      new Request(new Uri("wamp://general.ai/test"), Request.RequestType.Call,
+                  message.getField(3), message.getField(4));
+    MethodHandler handler = new MethodHandler(
+        "sumBeans", false, null,
+        WampMessageTest.class.getMethod("sumBeans", List.class, int.class));
+    handler.handle(request);
+    Assert.assertFalse(request.getResult().hasErrors());
+    assertThat(request.getResult().getValue(0), is((Object) 6));
+    Assert.assertFalse(argument.isBound());
+
+    // invalid arguments are reported as errors
+    message = WampMessage.decode(
+        "[2, \"call-2\", \"wamp://general.ai/test\", [{\"number\": \"x\"}], 3]");
+    request =
+      new Request(new Uri("wamp://general.ai/test"), Request.RequestType.Call,
+                  message.getField(3), message.getField(4));
+    handler.handle(request);
+    Assert.assertTrue(request.getResult().hasErrors());
+    assertThat(request.getResult().getError(0).getDescription(),
+               is("java.lang.IllegalArgumentException"));
+  }
+
+  /**
+   * Tests decoding of publish exclude and eligible lists.
+   */
+  @Test
+  public void publishLists() throws IOException {
+    WampMessage message = WampMessage.decode("[7, \"topic\", [1, 2], [\"s1\", \"s2\"], [\"s3\"]]");
+    assertThat(message.getTypeId(), is(WampConnection.kPublish));
+    Assert.assertTrue(message.getField(2) instanceof JsonArgument);
+    ArrayList<String> exclude = new ArrayList<String>();
+    exclude.add("s1");
+    exclude.add("s2");
+    assertThat(message.getField(3), is((Object) exclude));
+    message = WampMessage.decode("[7, \"topic\", null, true]");
+    assertThat(message.getField(2), is(nullValue()));
+    assertThat(message.getField(3), is((Object) Boolean.TRUE));
+  }
+
+  /**
+   * Tests handling of invalid messages.
+   */
+  @Test
+  public void invalidMessages() throws IOException {
+    assertThat(WampMessage.decode("[99, \"x\"]"), is(nullValue()));
+    String[] invalid = {
+      "{}", "[\"x\"]", "[2, 5, \"uri\"]", "[8, \"topic\", {\"a\": 1]", "[5, \"topic\""
+    };
+    for (String input : invalid) {
+      try {
+        WampMessage.decode(input);
+        Assert.fail(input);
+      } catch (IOException e) {}
+    }
+  }
+}
@@ -9,8 +9,24 @@ import ai.general.directory.Directory;
 import ai.general.directory.Request;
 import ai.general.directory.Result;
 import ai.general.directory.test.TestUtilities;
+import ai.general.net.Connection;
+import ai.general.net.ConnectionManager;
 import ai.general.net.wamp.WampConnectionTest;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -21,6 +37,119 @@ import static org.hamcrest.CoreMatchers.*;
  */
 public class PluginTest {
 
+  /**
+   * Plugin that records the order in which plugins are enabled and disabled.
+   */
+  public static class OrderPlugin extends Plugin {
+
+    /**
+     * @param name The name of the plugin.
+     * @param dependencies The names of the plugins this plugin depends on.
+     */
+    public OrderPlugin(String name, String... dependencies) {
+      super(name, 1.0, "Plugin used to test dependencies.", "General AI", dependencies);
+    }
+
+    /**
+     * Records that the plugin has been disabled.
+     */
+    @Override
+    protected void onDisable() {
+      events.add("-" + getName());
+    }
+
+    /**
+     * Records that the plugin has been enabled.
+     *
+     * @return True.
+     */
+    @Override
+    protected boolean onEnable() {
+      events.add("+" + getName());
+      return true;
+    }
+
+    // Enable (+name) and disable (-name) events of all OrderPlugins in order.
+    public static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  /** Plugin without dependencies. */
+  public static class PluginA extends OrderPlugin {
+    public PluginA() { super("A"); }
+  }
+
+  /** Plugin that depends on A. */
+  public static class PluginB extends OrderPlugin {
+    public PluginB() { super("B", "A"); }
+  }
+
+  /** Plugin that depends on A. */
+  public static class PluginC extends OrderPlugin {
+    public PluginC() { super("C", "A"); }
+  }
+
+  /** Plugin that depends on B and C. */
+  public static class PluginD extends OrderPlugin {
+    public PluginD() { super("D", "B", "C"); }
+  }
+
+  /** Plugin that depends on a plugin that is not loaded. */
+  public static class PluginE extends OrderPlugin {
+    public PluginE() { super("E", "Missing"); }
+  }
+
+  /** Plugin that depends on G. */
+  public static class PluginF extends OrderPlugin {
+    public PluginF() { super("F", "G"); }
+  }
+
+  /** Plugin that depends on F. */
+  public static class PluginG extends OrderPlugin {
+    public PluginG() { super("G", "F"); }
+  }
+
+  /**
+   * Plugin that records the connect and disconnect events of the connections of the connect
+   * test.
+   */
+  public static class ConnectPlugin extends Plugin {
+
+    public ConnectPlugin() {
+      super("Connect", 1.0, "Plugin used to test connections.", "General AI");
+    }
+
+    /**
+     * Records that the plugin has been connected.
+     *
+     * @param connection The new connection.
+     * @return True.
+     */
+    @Override
+    protected boolean onConnect(Connection connection) {
+      if (connection.getUri().getPath().startsWith("/plugin_connect_test/")) {
+        events.add("+" + connection.getUri().getPath());
+      }
+      return true;
+    }
+
+    /**
+     * Records that the plugin has been disconnected.
+     *
+     * @param connection The connection being closed.
+     * @return True.
+     */
+    @Override
+    protected boolean onDisconnect(Connection connection) {
+      if (connection.getUri().getPath().startsWith("/plugin_connect_test/")) {
+        events.add("-" + connection.getUri().getPath());
+      }
+      return true;
+    }
+
+    // Connect (+path) and disconnect (-path) events in order.
+    public static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+  }
+
   // The path is relative to the project build file.
   private static final String kTestPluginPath = "../build/jar/test-plugin-0.jar";
 
@@ -112,4 +241,173 @@ public class PluginTest {
     Assert.assertFalse(plugin.isEnabled());
     Assert.assertFalse(plugin_manager.isPluginLoaded(kPluginName));
   }
+
+  /**
+   * Tests that a plugin is connected to each registered connection exactly once and is never
+   * connected to removed connections.
+   */
+  @Test
+  public void connect() {
+    final String kClient = "/plugin_connect_test/client";
+    final String kServer = "/plugin_connect_test/server";
+    PluginManager plugin_manager = PluginManager.Instance;
+    WampConnectionTest.TestConnection connection =
+      new WampConnectionTest.TestConnection("/plugin_connect_test",
+                                            "connect@test.top",
+                                            "/plugin_connect_test/client_home",
+                                            "/plugin_connect_test/server_home");
+    connection.open();
+    Assert.assertTrue(plugin_manager.load(ConnectPlugin.class));
+    ConnectPlugin.events.clear();
+    Assert.assertTrue(plugin_manager.enablePlugin("Connect"));
+    assertThat(ConnectPlugin.events.size(), is(2));
+    Assert.assertTrue(ConnectPlugin.events.contains("+" + kClient));
+    Assert.assertTrue(ConnectPlugin.events.contains("+" + kServer));
+
+    // A connection that is already connected is not connected again.
+    synchronized (connection.client().getRegistrationLock()) {
+      plugin_manager.connect(connection.client());
+    }
+    assertThat(ConnectPlugin.events.size(), is(2));
+
+    connection.close();
+    assertThat(ConnectPlugin.events.size(), is(4));
+    Assert.assertTrue(ConnectPlugin.events.contains("-" + kClient));
+    Assert.assertTrue(ConnectPlugin.events.contains("-" + kServer));
+    Assert.assertFalse(ConnectionManager.Instance.isRegistered(connection.client()));
+
+    // Removed connections are neither connected nor disconnected again.
+    plugin_manager.disablePlugin("Connect");
+    Assert.assertTrue(plugin_manager.enablePlugin("Connect"));
+    plugin_manager.disablePlugin("Connect");
+    assertThat(ConnectPlugin.events.size(), is(4));
+
+    plugin_manager.unloadAll();
+  }
+
+  /**
+   * Copies the test plugin jar to a temporary jar file with the specified manifest. The plugin
+   * service index of the test plugin is not copied.
+   *
+   * @param manifest The manifest of the new jar file.
+   * @return The temporary jar file.
+   */
+  private static File copyTestPlugin(Manifest manifest) throws IOException {
+    File file = File.createTempFile("test-plugin", ".jar");
+    file.deleteOnExit();
+    JarFile source = new JarFile(kTestPluginPath);
+    JarOutputStream target = new JarOutputStream(new FileOutputStream(file), manifest);
+    try {
+      byte[] buffer = new byte[4096];
+      Enumeration<JarEntry> entries = source.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+        if (entry.getName().startsWith("META-INF/")) {
+          continue;
+        }
+        target.putNextEntry(new JarEntry(entry.getName()));
+        InputStream input = source.getInputStream(entry);
+        int length;
+        while ((length = input.read(buffer)) > 0) {
+          target.write(buffer, 0, length);
+        }
+        input.close();
+        target.closeEntry();
+      }
+    } finally {
+      target.close();
+      source.close();
+    }
+    return file;
+  }
+
+  /**
+   * Tests loading of plugins listed in the jar manifest.
+   */
+  @Test
+  public void loadFromManifest() throws IOException {
+    final String kPluginName = "TestPlugin";
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().putValue(
+        PluginManager.kManifestAttribute,
+        "ai.general.plugin.test.TestPlugin, ai.general.plugin.test.MissingPlugin");
+    File file = copyTestPlugin(manifest);
+
+    PluginManager plugin_manager = PluginManager.Instance;
+    Assert.assertFalse(plugin_manager.isPluginLoaded(kPluginName));
+    assertThat(plugin_manager.load(file.getPath()), is(1));
+    Plugin plugin = plugin_manager.getPlugin(kPluginName);
+    Assert.assertNotNull(plugin);
+    Assert.assertTrue(plugin_manager.enablePlugin(kPluginName));
+
+    // Classes that are not listed in the manifest are loaded lazily by the plugin.
+    Assert.assertNotNull(plugin.getClass().getClassLoader().getResource(
+        "ai/general/plugin/test/TestService.class"));
+    plugin_manager.unloadAll();
+    Assert.assertFalse(plugin_manager.isPluginLoaded(kPluginName));
+
+    // A plugin index without plugin classes loads no plugins.
+    manifest.getMainAttributes().putValue(PluginManager.kManifestAttribute,
+                                          "ai.general.plugin.test.TestService");
+    file = copyTestPlugin(manifest);
+    assertThat(plugin_manager.load(file.getPath()), is(0));
+    assertThat(plugin_manager.getPluginCount(), is(0));
+  }
+
+  /**
+   * Tests that plugins are enabled and disabled in dependency order.
+   */
+  @Test
+  public void dependencies() {
+    PluginManager plugin_manager = PluginManager.Instance;
+    try {
+      plugin_manager.setParallelism(0);
+      Assert.fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {}
+    plugin_manager.setParallelism(4);
+    Class<?>[] plugin_classes = {
+      PluginD.class, PluginC.class, PluginB.class, PluginA.class,
+      PluginE.class, PluginF.class, PluginG.class
+    };
+    for (Class<?> plugin_class : plugin_classes) {
+      Assert.assertTrue(plugin_manager.load(plugin_class));
+    }
+    OrderPlugin.events.clear();
+    Assert.assertFalse(plugin_manager.enableAll());
+    for (String name : new String[] {"A", "B", "C", "D"}) {
+      Assert.assertTrue(plugin_manager.isPluginEnabled(name));
+      Assert.assertTrue(plugin_manager.getPlugin(name).getEnableTime() > 0);
+    }
+    for (String name : new String[] {"E", "F", "G"}) {
+      Assert.assertFalse(plugin_manager.isPluginEnabled(name));
+    }
+    List<String> events = new ArrayList<String>(OrderPlugin.events);
+    assertThat(events.size(), is(4));
+    assertThat(events.get(0), is("+A"));
+    assertThat(events.get(3), is("+D"));
+    Assert.assertFalse(plugin_manager.enablePlugin("E"));
+    Assert.assertFalse(plugin_manager.enablePlugin("F"));
+
+    OrderPlugin.events.clear();
+    plugin_manager.disablePlugin("A");
+    for (String name : new String[] {"A", "B", "C", "D"}) {
+      Assert.assertFalse(plugin_manager.isPluginEnabled(name));
+    }
+    events = new ArrayList<String>(OrderPlugin.events);
+    assertThat(events.size(), is(4));
+    assertThat(events.get(0), is("-D"));
+    assertThat(events.get(3), is("-A"));
+
+    OrderPlugin.events.clear();
+    Assert.assertTrue(plugin_manager.enablePlugin("D"));
+    events = new ArrayList<String>(OrderPlugin.events);
+    assertThat(events.size(), is(4));
+    assertThat(events.get(0), is("+A"));
+    assertThat(events.get(3), is("+D"));
+
+    plugin_manager.unloadAll();
+    plugin_manager.setParallelism(1);
+    assertThat(plugin_manager.getPluginCount(), is(0));
+  }
 }
@@ -13,6 +13,10 @@ import ai.general.directory.test.TestUtilities;
 import ai.general.plugin.annotation.RpcMethod;
 import ai.general.plugin.annotation.Subscribe;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -67,6 +71,114 @@ public class ServiceManagerTest {
     private TestBean bean_;
   }
 
+  /**
+   * Test service that subscribes to wildcard topics.
+   */
+  public static class PatternTestService {
+
+    public PatternTestService() {
+      temperatures_ = new ArrayList<Integer>();
+      events_ = new ArrayList<Integer>();
+    }
+
+    /**
+     * @return The data of all events received by {@link #onSensorEvent(int)}.
+     */
+    public List<Integer> getEvents() {
+      return events_;
+    }
+
+    /**
+     * @return The data of all events received by {@link #onTemperature(int)}.
+     */
+    public List<Integer> getTemperatures() {
+      return temperatures_;
+    }
+
+    /**
+     * Test subscription to all events of all sensors.
+     *
+     * @param value Event data.
+     */
+    @Subscribe("sensors/+/*")
+    public void onSensorEvent(int value) {
+      events_.add(value);
+    }
+
+    /**
+     * Test subscription to the temperature of all sensors.
+     *
+     * @param value Event data.
+     */
+    @Subscribe("sensors/+/temperature")
+    public void onTemperature(int value) {
+      temperatures_.add(value);
+    }
+
+    private ArrayList<Integer> events_;
+    private ArrayList<Integer> temperatures_;
+  }
+
+  /**
+   * Generic test service for which no service table is generated.
+   *
+   * @param <T> Unused type parameter.
+   */
+  public static class GenericTestService<T> {
+
+    /**
+     * Test RPC method that adds numbers.
+     *
+     * @param numbers The numbers to add.
+     * @return The sum of the numbers.
+     */
+    @RpcMethod("methods/sum")
+    public int sum(List<Integer> numbers) {
+      int sum = 0;
+      for (int number : numbers) {
+        sum += number;
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * Generic base class of a service class.
+   *
+   * @param <T> The type of values echoed by the service.
+   */
+  public static class GenericBaseService<T> {
+
+    /**
+     * Test RPC method that returns its argument.
+     *
+     * @param value The value to return.
+     * @return The value.
+     */
+    @RpcMethod("methods/echo")
+    public T echo(T value) {
+      return value;
+    }
+  }
+
+  /**
+   * Service class that inherits a generic RPC method. A service table is generated for this class
+   * with the type arguments of the superclass substituted.
+   */
+  public static class StringTestService extends GenericBaseService<String> {
+
+    /**
+     * Test RPC method that returns the length of a string.
+     *
+     * @param value A string.
+     * @return The length of the string.
+     */
+    @RpcMethod("methods/length")
+    public int length(String value) {
+      return value.length();
+    }
+  }
+
   /**
    * Tests the subscribe annotation.
    */
@@ -107,6 +219,51 @@ public class ServiceManagerTest {
     }
   }
 
+  /**
+   * Tests the subscribe annotation with wildcard topics.
+   */
+  @Test
+  public void subscribePattern() throws Exception {
+    final String kServiceName = "test_subscribe_pattern_service";
+    final String kHomePath = "/service_manager/subscribe_pattern/";
+    PatternTestService service = new PatternTestService();
+    final String kHandlerName = kServiceName + ":Publish:" +
+      service.getClass().getDeclaredMethod("onSensorEvent", int.class).toString();
+
+    ServiceManager service_manager = ServiceManager.Instance;
+    ServiceDefinition service_def = service_manager.addService(kServiceName, service, kHomePath);
+    Assert.assertNotNull(service_def);
+    assertThat(service_def.getTopicPaths().size(), is(2));
+    Assert.assertTrue(service_def.getTopicPaths().contains("/sensors/+/*"));
+    Assert.assertTrue(service_def.getTopicPaths().contains("/sensors/+/temperature"));
+
+    // Only the path before the first wildcard is created.
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.pathExists(kHomePath + "sensors"));
+    Assert.assertFalse(directory.pathExists(kHomePath + "sensors/+"));
+    Assert.assertTrue(directory.hasHandler(kHomePath + "sensors/+/*", kHandlerName));
+
+    Assert.assertTrue(directory.createPath(kHomePath + "sensors/a/temperature"));
+    Assert.assertTrue(directory.createPath(kHomePath + "sensors/b/humidity/indoor"));
+    Request request = TestUtilities.createRequest(
+        "wamp://test@general.ai/sensors/a/temperature?type=publish", 21);
+    assertThat(directory.handle(kHomePath, request), is(2));
+    request = TestUtilities.createRequest(
+        "wamp://test@general.ai/sensors/b/humidity/indoor?type=publish", 40);
+    assertThat(directory.handle(kHomePath, request), is(1));
+    request = TestUtilities.createRequest(
+        "wamp://test@general.ai/sensors?type=publish", 0);
+    assertThat(directory.handle(kHomePath, request), is(0));
+    assertThat(service.getTemperatures(), is(Arrays.asList(21)));
+    assertThat(service.getEvents(), is(Arrays.asList(21, 40)));
+
+    service_manager.removeService(kServiceName);
+    Assert.assertFalse(directory.hasHandler(kHomePath + "sensors/+/*", kHandlerName));
+    request = TestUtilities.createRequest(
+        "wamp://test@general.ai/sensors/a/temperature?type=publish", 22);
+    assertThat(directory.handle(kHomePath, request), is(0));
+  }
+
   /**
    * Tests the RpcMethod annotation.
    */
@@ -152,4 +309,64 @@ public class ServiceManagerTest {
       Assert.fail(e.toString());
     }
   }
+
+  /**
+   * Tests that service tables are generated at compile time for supported service classes and
+   * that ServiceManager falls back to reflection for other service classes.
+   */
+  @Test
+  public void serviceTable() throws Exception {
+    Class<?> table = Class.forName(TestService.class.getName() + ServiceTable.kClassSuffix);
+    Assert.assertTrue(ServiceTable.class.isAssignableFrom(table));
+    try {
+      Class.forName(GenericTestService.class.getName() + ServiceTable.kClassSuffix);
+      Assert.fail("expected ClassNotFoundException");
+    } catch (ClassNotFoundException e) {}
+
+    final String kServiceName = "test_generic_service";
+    final String kHomePath = "/service_manager/generic/";
+    GenericTestService<String> service = new GenericTestService<String>();
+    final String kHandlerName = kServiceName + ":Call:" +
+      service.getClass().getDeclaredMethod("sum", List.class).toString();
+    ServiceManager service_manager = ServiceManager.Instance;
+    service_manager.addService(kServiceName, service, kHomePath);
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.hasHandler(kHomePath + "methods/sum", kHandlerName));
+    Request request = TestUtilities.createRequest(
+        "wamp://test@general.ai/methods/sum?type=call", Arrays.asList(1, 2, 3));
+    assertThat(directory.handle(kHomePath, request), is(1));
+    assertThat((Integer) request.getResult().getValue(0), is(6));
+    service_manager.removeService(kServiceName);
+    Assert.assertFalse(directory.hasHandler(kHomePath + "methods/sum", kHandlerName));
+  }
+
+  /**
+   * Tests that a service table is generated for a service class that inherits a method from a
+   * generic superclass.
+   */
+  @Test
+  public void inheritedGenericServiceTable() throws Exception {
+    Class<?> table = Class.forName(StringTestService.class.getName() + ServiceTable.kClassSuffix);
+    Assert.assertTrue(ServiceTable.class.isAssignableFrom(table));
+
+    final String kServiceName = "test_string_service";
+    final String kHomePath = "/service_manager/string/";
+    StringTestService service = new StringTestService();
+    final String kHandlerName = kServiceName + ":Call:" +
+      service.getClass().getMethod("echo", Object.class).toString();
+    ServiceManager service_manager = ServiceManager.Instance;
+    service_manager.addService(kServiceName, service, kHomePath);
+    Directory directory = Directory.Instance;
+    Assert.assertTrue(directory.hasHandler(kHomePath + "methods/echo", kHandlerName));
+    Request request = TestUtilities.createRequest(
+        "wamp://test@general.ai/methods/echo?type=call", "text");
+    assertThat(directory.handle(kHomePath, request), is(1));
+    assertThat((String) request.getResult().getValue(0), is("text"));
+    request = TestUtilities.createRequest(
+        "wamp://test@general.ai/methods/length?type=call", "text");
+    assertThat(directory.handle(kHomePath, request), is(1));
+    assertThat((Integer) request.getResult().getValue(0), is(4));
+    service_manager.removeService(kServiceName);
+    Assert.assertFalse(directory.hasHandler(kHomePath + "methods/echo", kHandlerName));
+  }
 }